@@ -0,0 +1,97 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ca.internal;
+
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of serial number generation with 64 threads issuing certificates at the same time, run with
+ * "ant benchmark -Dbenchmark.args=SernoGeneratorBenchmark". The generator with one synchronized SecureRandom that SernoGeneratorRandom used to
+ * be is included for comparison. Run with "-t 1" to compare with no contention.
+ *
+ * @version $Id$
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class SernoGeneratorBenchmark {
+
+    private SernoGenerator generator;
+    private SernoGenerator pooledGenerator;
+    private SynchronizedSernoGenerator synchronizedGenerator;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        generator = new SernoGeneratorRandom("SHA1PRNG", 8, 0);
+        pooledGenerator = new SernoGeneratorRandom("SHA1PRNG", 8, 10000);
+        synchronizedGenerator = new SynchronizedSernoGenerator("SHA1PRNG");
+    }
+
+    @Benchmark
+    public BigInteger serno() {
+        return generator.getSerno();
+    }
+
+    @Benchmark
+    public BigInteger pooledSerno() {
+        return pooledGenerator.getSerno();
+    }
+
+    @Benchmark
+    public BigInteger synchronizedSerno() {
+        return synchronizedGenerator.getSerno();
+    }
+
+    /** SernoGeneratorRandom as it was before it stopped sharing one SecureRandom between all threads */
+    private static class SynchronizedSernoGenerator {
+        private final SecureRandom random;
+        private final BigInteger lowest = new BigInteger("0080000000000000", 16);
+        private final BigInteger highest = new BigInteger("7FFFFFFFFFFFFFFF", 16);
+
+        private SynchronizedSernoGenerator(final String algorithm) throws NoSuchAlgorithmException {
+            random = SecureRandom.getInstance(algorithm);
+            random.setSeed(Math.abs(System.currentTimeMillis() + hashCode()));
+        }
+
+        public synchronized BigInteger getSerno() {
+            final byte[] sernobytes = new byte[8];
+            while (true) {
+                random.nextBytes(sernobytes);
+                final BigInteger serno = new BigInteger(sernobytes).abs();
+                if ((serno.compareTo(lowest) >= 0) && (serno.compareTo(highest) <= 0)) {
+                    return serno;
+                }
+            }
+        }
+    }
+}
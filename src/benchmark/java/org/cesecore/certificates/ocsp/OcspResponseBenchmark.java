@@ -0,0 +1,269 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.ocsp.BasicOCSPResp;
+import org.bouncycastle.ocsp.BasicOCSPRespGenerator;
+import org.bouncycastle.ocsp.CertificateID;
+import org.bouncycastle.ocsp.OCSPReq;
+import org.bouncycastle.ocsp.OCSPReqGenerator;
+import org.bouncycastle.ocsp.RevokedStatus;
+import org.cesecore.authentication.tokens.AlwaysAllowLocalAuthenticationToken;
+import org.cesecore.authentication.tokens.AuthenticationToken;
+import org.cesecore.authentication.tokens.UsernamePrincipal;
+import org.cesecore.certificates.certificate.CertificateStatus;
+import org.cesecore.certificates.certificate.CertificateStoreSessionLocal;
+import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.ocsp.cache.CryptoTokenAndChain;
+import org.cesecore.certificates.ocsp.cache.HsmSigningExecutorCache;
+import org.cesecore.certificates.ocsp.cache.InMemoryRevocationStatusIndex;
+import org.cesecore.certificates.ocsp.cache.TokenAndChainCache;
+import org.cesecore.certificates.ocsp.logging.AuditLogger;
+import org.cesecore.certificates.ocsp.logging.PatternLogger;
+import org.cesecore.certificates.ocsp.logging.TransactionLogger;
+import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.config.ConfigurationHolder;
+import org.cesecore.keys.token.CryptoToken;
+import org.cesecore.keys.token.CryptoTokenFactory;
+import org.cesecore.keys.token.SoftCryptoToken;
+import org.cesecore.util.CertTools;
+import org.cesecore.util.CryptoProviderTools;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the stages of OcspResponseSessionBean.getOcspResponse, and of the whole method, run with "ant benchmark".
+ *
+ * Status is read from an in-memory stand-in for the certificate store, so the numbers show the cost of our own code and of the signing, not of
+ * the database. Run with "-prof gc" (the default of the ant target) to get the allocation rate of each stage.
+ *
+ * @version $Id$
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OcspResponseBenchmark {
+
+    private static final String KEY_ALIAS = "ocspSignKey";
+
+    /** Number of single requests in each OCSP request */
+    @Param({ "1", "10" })
+    public int entries;
+
+    private byte[] requestBytes;
+    private CertificateID[] certIds;
+    private String issuerDn;
+    private X509Certificate[] chain;
+    private PrivateKey privateKey;
+    private TokenAndChainCache tokenAndChainCache;
+    private InMemoryRevocationStatusIndex index;
+    private BenchmarkOcspResponseSessionBean bean;
+    private AuthenticationToken authenticationToken;
+
+    @Setup
+    public void setup() throws Exception {
+        CryptoProviderTools.installBCProviderIfNotAvailable();
+        // Exercise the pattern loggers as they are used in production
+        ConfigurationHolder.updateConfiguration("ocsp.trx-log", "true");
+        ConfigurationHolder.updateConfiguration("ocsp.audit-log", "true");
+
+        final CryptoToken cryptoToken = CryptoTokenFactory.createCryptoToken(SoftCryptoToken.class.getName(), new Properties(), null, 4711);
+        cryptoToken.generateKeyPair("2048", KEY_ALIAS);
+        privateKey = cryptoToken.getPrivateKey(KEY_ALIAS);
+        final X509Certificate caCertificate = CertTools.genSelfCert("CN=OCSP Benchmark CA,O=CESeCore,C=SE", 365, null, privateKey,
+                cryptoToken.getPublicKey(KEY_ALIAS), AlgorithmConstants.SIGALG_SHA1_WITH_RSA, true);
+        issuerDn = CertTools.getSubjectDN(caCertificate);
+        chain = new X509Certificate[] { caCertificate };
+
+        // Every other certificate is revoked
+        final Map<BigInteger, CertificateStatus> statuses = new HashMap<BigInteger, CertificateStatus>();
+        index = new InMemoryRevocationStatusIndex();
+        final OCSPReqGenerator requestGenerator = new OCSPReqGenerator();
+        certIds = new CertificateID[entries];
+        for (int i = 0; i < entries; i++) {
+            final BigInteger serialNumber = BigInteger.valueOf(1000 + i);
+            certIds[i] = new CertificateID(CertificateID.HASH_SHA1, caCertificate, serialNumber);
+            requestGenerator.addRequest(certIds[i]);
+            final CertificateStatus status;
+            if (i % 2 == 0) {
+                status = new CertificateStatus(CertificateStatus.OK.toString(), 1);
+            } else {
+                status = new CertificateStatus(System.currentTimeMillis(), RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE, 1);
+            }
+            statuses.put(serialNumber, status);
+            index.put(issuerDn, serialNumber, status);
+        }
+        index.setLoaded(true);
+        requestBytes = requestGenerator.generate().getEncoded();
+
+        final Map<Integer, CryptoTokenAndChain> tokenAndChains = new HashMap<Integer, CryptoTokenAndChain>();
+        tokenAndChains.put(TokenAndChainCache.keyFromCertificateID(certIds[0]), new CryptoTokenAndChain(cryptoToken, chain, KEY_ALIAS));
+        tokenAndChainCache = new TokenAndChainCache();
+        tokenAndChainCache.updateCache(tokenAndChains, certIds[0]);
+
+        bean = new BenchmarkOcspResponseSessionBean(tokenAndChainCache);
+        final Field field = OcspResponseSessionBean.class.getDeclaredField("certificateStoreSession");
+        field.setAccessible(true);
+        field.set(bean, getCertificateStoreStandIn(statuses));
+        authenticationToken = new AlwaysAllowLocalAuthenticationToken(new UsernamePrincipal("OcspResponseBenchmark"));
+    }
+
+    /** The complete pipeline, as called by the OCSP servlet. */
+    @Benchmark
+    public byte[] getOcspResponse() throws Exception {
+        return bean.getOcspResponse(authenticationToken, requestBytes, null, "127.0.0.1", "localhost");
+    }
+
+    @Benchmark
+    public OCSPReq parseRequest() throws Exception {
+        return new OCSPReq(requestBytes);
+    }
+
+    @Benchmark
+    public CryptoTokenAndChain lookupTokenAndChain() {
+        CryptoTokenAndChain ret = null;
+        for (final CertificateID certId : certIds) {
+            ret = tokenAndChainCache.get(certId);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public CertificateStatus resolveStatus() {
+        CertificateStatus ret = null;
+        for (final CertificateID certId : certIds) {
+            ret = index.getStatus(issuerDn, certId.getSerialNumber());
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public TransactionLogger patternLogging() {
+        final TransactionLogger transactionLogger = new TransactionLogger(Integer.valueOf(1), "benchmark", "127.0.0.1");
+        final AuditLogger auditLogger = new AuditLogger("", Integer.valueOf(1), "benchmark", "127.0.0.1");
+        transactionLogger.paramPut(PatternLogger.PROCESS_TIME, PatternLogger.PROCESS_TIME);
+        auditLogger.paramPut(PatternLogger.PROCESS_TIME, PatternLogger.PROCESS_TIME);
+        auditLogger.paramPut(AuditLogger.OCSPREQUEST, requestBytes);
+        for (final CertificateID certId : certIds) {
+            transactionLogger.paramPut(TransactionLogger.SERIAL_NOHEX, certId.getSerialNumber().toByteArray());
+            transactionLogger.paramPut(TransactionLogger.DIGEST_ALGOR, certId.getHashAlgOID());
+            transactionLogger.paramPut(TransactionLogger.ISSUER_NAME_HASH, certId.getIssuerNameHash());
+            transactionLogger.paramPut(TransactionLogger.ISSUER_KEY, certId.getIssuerKeyHash());
+            transactionLogger.paramPut(TransactionLogger.CERT_STATUS, OCSPResponseItem.OCSP_GOOD);
+            transactionLogger.writeln();
+        }
+        auditLogger.paramPut(AuditLogger.OCSPRESPONSE, requestBytes);
+        auditLogger.writeln();
+        auditLogger.flush();
+        transactionLogger.flush();
+        return transactionLogger;
+    }
+
+    /** Signing in the calling thread, i.e. the cost of the signature itself. */
+    @Benchmark
+    public BasicOCSPResp sign() throws Exception {
+        return getResponseGenerator().generate(AlgorithmConstants.SIGALG_SHA1_WITH_RSA, privateKey, chain, new Date(), "BC");
+    }
+
+    /** Signing through the signing thread pool, as getOcspResponse does, i.e. the cost of the signature and of the hand-off. */
+    @Benchmark
+    public BasicOCSPResp signInSigningExecutor() throws Exception {
+        return HsmSigningExecutorCache.INSTANCE.get(chain[0]).sign(
+                new HsmResponseThread(getResponseGenerator(), AlgorithmConstants.SIGALG_SHA1_WITH_RSA, privateKey, chain, "BC"));
+    }
+
+    private BasicOCSPRespGenerator getResponseGenerator() throws Exception {
+        final BasicOCSPRespGenerator generator = new BasicOCSPRespGenerator(chain[0].getPublicKey());
+        final Date now = new Date();
+        for (int i = 0; i < certIds.length; i++) {
+            if (i % 2 == 0) {
+                generator.addResponse(certIds[i], null, now, null, null);
+            } else {
+                generator.addResponse(certIds[i], new RevokedStatus(now, RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE), now, null, null);
+            }
+        }
+        return generator;
+    }
+
+    /** @return a CertificateStoreSessionLocal answering getStatus and getStatuses from the given map. */
+    private static CertificateStoreSessionLocal getCertificateStoreStandIn(final Map<BigInteger, CertificateStatus> statuses) {
+        return (CertificateStoreSessionLocal) Proxy.newProxyInstance(CertificateStoreSessionLocal.class.getClassLoader(),
+                new Class<?>[] { CertificateStoreSessionLocal.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getStatus".equals(method.getName())) {
+                            return getStatus((BigInteger) args[1]);
+                        }
+                        if ("getStatuses".equals(method.getName())) {
+                            final Map<BigInteger, CertificateStatus> ret = new HashMap<BigInteger, CertificateStatus>();
+                            for (final Object serno : (Collection<?>) args[1]) {
+                                ret.put((BigInteger) serno, getStatus((BigInteger) serno));
+                            }
+                            return ret;
+                        }
+                        throw new UnsupportedOperationException(method.getName() + " is not available in the benchmark.");
+                    }
+
+                    private CertificateStatus getStatus(final BigInteger serno) {
+                        final CertificateStatus status = statuses.get(serno);
+                        return status != null ? status : CertificateStatus.NOT_AVAILABLE;
+                    }
+                });
+    }
+
+    /** The OCSP responder with a fixed TokenAndChainCache, outside of any EJB container. */
+    private static class BenchmarkOcspResponseSessionBean extends OcspResponseSessionBean {
+        private final TokenAndChainCache tokenAndChainCache;
+
+        private BenchmarkOcspResponseSessionBean(final TokenAndChainCache tokenAndChainCache) {
+            this.tokenAndChainCache = tokenAndChainCache;
+        }
+
+        @Override
+        protected void initiateIfNecessary() {
+            // The cache is already loaded
+        }
+
+        @Override
+        protected TokenAndChainCache getTokenAndChainCache() {
+            return tokenAndChainCache;
+        }
+    }
+}
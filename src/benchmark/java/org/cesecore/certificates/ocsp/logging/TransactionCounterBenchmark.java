@@ -0,0 +1,70 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.logging;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of what every OCSP request does to get its log ids, with 64 threads asking at the same time, run with
+ * "ant benchmark -Dbenchmark.args=TransactionCounterBenchmark". The synchronized counter that TransactionCounter used to be is included for
+ * comparison. Run with "-t 1" to compare with no contention.
+ *
+ * @version $Id$
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(64)
+@Fork(1)
+public class TransactionCounterBenchmark {
+
+    private final SynchronizedCounter synchronizedCounter = new SynchronizedCounter();
+
+    @Benchmark
+    public int transactionNumber() {
+        return TransactionCounter.INSTANCE.getTransactionNumber();
+    }
+
+    @Benchmark
+    public int synchronizedTransactionNumber() {
+        return synchronizedCounter.getTransactionNumber();
+    }
+
+    @Benchmark
+    public String globalUid() {
+        return GuidHolder.INSTANCE.getGlobalUid();
+    }
+
+    /** TransactionCounter as it was before it was made lock free */
+    private static class SynchronizedCounter {
+        private int transactionNumber = 0;
+
+        public synchronized int getTransactionNumber() {
+            return transactionNumber++;
+        }
+    }
+}
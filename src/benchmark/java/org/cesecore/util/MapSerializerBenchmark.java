@@ -0,0 +1,161 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.cesecore.certificates.endentity.ExtendedInformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of reading and writing the data of one database row as XML and in the binary format of MapSerializer, run with
+ * "ant benchmark -Dbenchmark.args=MapSerializerBenchmark". The rows are a map shaped like a stored X509 CA (with a soft CA token and a
+ * certificate chain of two), the extended information of an end entity and the details of an audit log entry.
+ *
+ * @version $Id$
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapSerializerBenchmark {
+
+    @Param({ "ca", "endentity", "audit" })
+    public String row;
+
+    private Map<Object, Object> map;
+    private String xml;
+    private String binary;
+
+    @Setup
+    public void setUp() {
+        if ("ca".equals(row)) {
+            map = createCa();
+        } else if ("endentity".equals(row)) {
+            final ExtendedInformation ei = new ExtendedInformation();
+            ei.setSubjectDirectoryAttributes("dateOfBirth=19590927, placeOfBirth=Stockholm");
+            ei.setCustomData("startTime", "2011-01-01 00:00");
+            ei.setCertificateSerialNumber(BigInteger.valueOf(4711));
+            map = new Base64PutHashMap();
+            map.putAll((Map<?, ?>) ei.saveData());
+        } else {
+            final Map<Object, Object> details = new Base64PutHashMap();
+            details.put("msg", "Added CA 'ManagementCA' with id -1044812612 and status 1.");
+            final Properties properties = new Properties();
+            properties.setProperty("certSignKey", "signKey");
+            properties.setProperty("crlSignKey", "signKey");
+            properties.setProperty("defaultKey", "encryptKey");
+            details.put("tokenproperties", properties);
+            details.put("tokensequence", "00000");
+            map = details;
+        }
+        xml = MapSerializer.encodeXml(map);
+        binary = MapSerializer.encodeBinary(map);
+    }
+
+    @Benchmark
+    public Object decodeXml() {
+        return MapSerializer.decode(xml);
+    }
+
+    @Benchmark
+    public Object decodeBinary() {
+        return MapSerializer.decode(binary);
+    }
+
+    @Benchmark
+    public String encodeXml() {
+        return MapSerializer.encodeXml(map);
+    }
+
+    @Benchmark
+    public String encodeBinary() {
+        return MapSerializer.encodeBinary(map);
+    }
+
+    private static Map<Object, Object> createCa() {
+        final Random random = new Random(0);
+        final Map<Object, Object> tokenData = new HashMap<Object, Object>();
+        tokenData.put("version", Float.valueOf(7));
+        tokenData.put("classpath", "org.cesecore.keys.token.SoftCryptoToken");
+        tokenData.put("propertydata", "certSignKey signKey\ncrlSignKey signKey\ndefaultKey encryptKey\n");
+        tokenData.put("keystore", randomBase64(random, 4500));
+        tokenData.put("signaturealgorithm", "SHA256WithRSA");
+        tokenData.put("encryptionalgorithm", "SHA256WithRSA");
+        tokenData.put("sequence", "00000");
+        tokenData.put("sequenceformat", "NUMERIC");
+        final List<Object> chain = new ArrayList<Object>();
+        chain.add(randomBase64(random, 1200));
+        chain.add(randomBase64(random, 1200));
+        final Map<Object, Object> ca = new Base64PutHashMap();
+        ca.put("version", Float.valueOf(18));
+        ca.put("catype", Integer.valueOf(1));
+        ca.put("validity", Long.valueOf(3650));
+        ca.put("expiretime", new Date(1893456000000L));
+        ca.put("signedby", Integer.valueOf(1));
+        ca.put("description", "Management CA");
+        ca.put("revokationreason", Integer.valueOf(-1));
+        ca.put("certificateprofileid", Integer.valueOf(3));
+        ca.put("crlperiod", Long.valueOf(86400000));
+        ca.put("deltacrlperiod", Long.valueOf(0));
+        ca.put("crlissueinterval", Long.valueOf(0));
+        ca.put("crloverlaptime", Long.valueOf(600000));
+        ca.put("crlpublishers", new ArrayList<Object>());
+        ca.put("approvalsettings", new ArrayList<Object>());
+        ca.put("numberofreqapprovals", Integer.valueOf(1));
+        ca.put("catoken", tokenData);
+        ca.put("certificatechain", chain);
+        ca.put("extendedcaservices", new ArrayList<Object>());
+        ca.put("subjectaltname", "");
+        ca.put("defaultcrldistpoint", "http://localhost:8080/crl/ManagementCA.crl");
+        ca.put("defaultcrlissuer", "");
+        ca.put("defaultocspservicelocator", "http://localhost:8080/ocsp");
+        ca.put("cadefinedfreshestcrl", "");
+        for (final String flag : new String[] { "useauthoritykeyidentifier", "authoritykeyidentifiercritical", "usecrlnumber",
+                "crlnumbercritical", "useutf8policytext", "useprintablestringsubjectdn", "useldapdnorder", "usecrldistributionpointoncrl",
+                "crldistributionpointoncrlcritical", "finishuser", "includeinhealthcheck", "doEnforceUniquePublicKeys",
+                "doEnforceUniqueDistinguishedName", "doEnforceUniqueSubjectDNSerialnumber", "useCertreqHistory", "useUserStorage",
+                "useCertificateStorage" }) {
+            ca.put(flag, Boolean.valueOf(random.nextBoolean()));
+        }
+        return ca;
+    }
+
+    private static String randomBase64(final Random random, final int length) {
+        final byte[] bytes = new byte[length * 3 / 4];
+        random.nextBytes(bytes);
+        return new String(Base64.encode(bytes));
+    }
+}
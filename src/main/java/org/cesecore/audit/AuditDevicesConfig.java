@@ -187,11 +187,29 @@ public class AuditDevicesConfig {
     	return getInt(properties, "validate.fetchsize", 1000);
     }
 
+    /** Parameter to specify the number of threads that verify the log in parallel, for different nodes or parts of the log of a node. */
+    public static int getAuditLogValidationThreads(final Properties properties) {
+    	return getInt(properties, "validate.threads", 1);
+    }
+
     /** Parameter to specify the number of logs to be fetched in each export round trip. */
     public static int getAuditLogExportFetchSize(final Properties properties) {
     	return getInt(properties, "export.fetchsize", 1000);
     }
     
+    /**
+     * Parameter to specify how long (ms) log calls are collected before they are written in one transaction. 0 to write each log call in its
+     * own transaction.
+     */
+    public static int getAuditLogGroupCommitWindow(final Properties properties) {
+    	return getInt(properties, "groupcommit.window", 0);
+    }
+
+    /** Parameter to specify the maximum number of logs written in one transaction when group commit is used. */
+    public static int getAuditLogGroupCommitMaxSize(final Properties properties) {
+    	return getInt(properties, "groupcommit.maxsize", 100);
+    }
+
     private static int getInt(final Properties properties, final String key, final int defaultValue) {
         int ret = defaultValue;
         try {
@@ -0,0 +1,203 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.audit.impl.integrityprotected;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.cesecore.audit.enums.EventStatus;
+import org.cesecore.audit.enums.EventType;
+import org.cesecore.audit.enums.ModuleType;
+import org.cesecore.audit.enums.ServiceType;
+import org.cesecore.audit.log.AuditRecordStorageException;
+import org.cesecore.dbprotection.ProtectedDataConfiguration;
+
+/**
+ * Group commit of audit log records. Concurrent log calls are collected for a short time and written in one transaction, which saves a
+ * database commit per record when there is a lot of logging.
+ *
+ * No extra thread writes to the database. The first caller that finds no batch being written waits for the window to pass, or for the batch to
+ * be full, and writes the batch, while the others wait for it. Every caller returns only when its record has been committed, or throws
+ * AuditRecordStorageException if the batch it was part of could not be written, just as when each record is written in its own transaction.
+ *
+ * @version $Id$
+ */
+public class AuditRecordBatcher {
+
+	private static final Logger log = Logger.getLogger(AuditRecordBatcher.class);
+
+	/**
+	 * Threads calculating row protection for the records of a batch. Idle threads end after a minute, so no thread is left holding on to the
+	 * application when it is undeployed, and the daemon threads never keep the JVM from exiting.
+	 */
+	private static final ThreadPoolExecutor protectionExecutor;
+	static {
+		final int threads = Runtime.getRuntime().availableProcessors();
+		protectionExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "AuditRecordProtection");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		protectionExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private final long window;
+	private final int maxSize;
+
+	/** Records not written yet, in the order they were logged */
+	private final List<Entry> pending = new ArrayList<Entry>();
+	/** true while a caller is collecting or writing a batch */
+	private boolean writing = false;
+
+	/**
+	 * @param window the time (ms) to collect records before they are written
+	 * @param maxSize the maximum number of records written in one transaction
+	 */
+	AuditRecordBatcher(final long window, final int maxSize) {
+		this.window = window;
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/** Adds the record to a batch and waits for the batch to be committed. */
+	void log(final IntegrityProtectedLoggerSessionLocal logger, final Entry entry, final Properties properties) throws AuditRecordStorageException {
+		synchronized (this) {
+			pending.add(entry);
+			// Wake up a writer waiting for the batch to fill up
+			notifyAll();
+		}
+		try {
+			while (true) {
+				final List<Entry> batch;
+				synchronized (this) {
+					while (!entry.done && writing) {
+						wait();
+					}
+					if (entry.done) {
+						break;
+					}
+					// Nobody is writing, so it is up to us to write the next batch
+					writing = true;
+					final long end = System.currentTimeMillis() + window;
+					long remaining;
+					while (pending.size() < maxSize && (remaining = end - System.currentTimeMillis()) > 0) {
+						wait(remaining);
+					}
+					final List<Entry> first = pending.subList(0, Math.min(maxSize, pending.size()));
+					batch = new ArrayList<Entry>(first);
+					first.clear();
+				}
+				Exception failure = null;
+				try {
+					logger.logBatch(batch, properties);
+				} catch (Exception e) {
+					// AuditRecordStorageException or a RuntimeException from the container
+					failure = e;
+				}
+				if (log.isDebugEnabled()) {
+					log.debug("Wrote " + batch.size() + " audit records in one transaction" + (failure == null ? "." : ", failed: " + failure.getMessage()));
+				}
+				synchronized (this) {
+					for (final Entry done : batch) {
+						done.failure = failure;
+						done.done = true;
+					}
+					writing = false;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AuditRecordStorageException("Interrupted while waiting for audit record to be written.", e);
+		}
+		if (entry.failure != null) {
+			throw new AuditRecordStorageException(entry.failure.getMessage(), entry.failure);
+		}
+	}
+
+	/** Calculates the row protection of the records using several threads, if database integrity protection is used. */
+	static void protect(final List<AuditRecordData> records) throws AuditRecordStorageException {
+		if (records.size() < 2 || !ProtectedDataConfiguration.useDatabaseIntegrityProtection(AuditRecordData.class.getSimpleName())) {
+			return;
+		}
+		final List<Future<Object>> futures = new ArrayList<Future<Object>>(records.size());
+		for (final AuditRecordData record : records) {
+			futures.add(protectionExecutor.submit(new Callable<Object>() {
+				@Override
+				public Object call() {
+					record.protectDataInAdvance();
+					return null;
+				}
+			}));
+		}
+		try {
+			for (final Future<Object> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AuditRecordStorageException("Interrupted while protecting audit records.", e);
+		} catch (ExecutionException e) {
+			throw new AuditRecordStorageException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/** A log call waiting to be written. */
+	public static class Entry {
+		private final Long timeStamp;
+		private final EventType eventType;
+		private final EventStatus eventStatus;
+		private final ModuleType module;
+		private final ServiceType service;
+		private final String authToken;
+		private final String customId;
+		private final String searchDetail1;
+		private final String searchDetail2;
+		private final Map<String, Object> additionalDetails;
+		/** Guarded by the AuditRecordBatcher */
+		private boolean done = false;
+		private Exception failure = null;
+
+		Entry(final Long timeStamp, final EventType eventType, final EventStatus eventStatus, final ModuleType module, final ServiceType service,
+				final String authToken, final String customId, final String searchDetail1, final String searchDetail2,
+				final Map<String, Object> additionalDetails) {
+			this.timeStamp = timeStamp;
+			this.eventType = eventType;
+			this.eventStatus = eventStatus;
+			this.module = module;
+			this.service = service;
+			this.authToken = authToken;
+			this.customId = customId;
+			this.searchDetail1 = searchDetail1;
+			this.searchDetail2 = searchDetail2;
+			this.additionalDetails = additionalDetails;
+		}
+
+		AuditRecordData toAuditRecordData(final String nodeId, final Long sequenceNumber) {
+			return new AuditRecordData(nodeId, sequenceNumber, timeStamp, eventType, eventStatus, authToken, service, module, customId,
+					searchDetail1, searchDetail2, additionalDetails);
+		}
+	}
+}
@@ -64,6 +64,8 @@ public class AuditRecordData extends ProtectedData implements Serializable, Audi
     private String additionalDetails;
     private int rowVersion = 0;
     private String rowProtection;
+    /** Not persisted, true if the row protection has been calculated by {@link #protectDataInAdvance()} */
+    private transient boolean protectedInAdvance = false;
 
     public AuditRecordData() {}
     
@@ -307,7 +309,18 @@ public class AuditRecordData extends ProtectedData implements Serializable, Audi
 	@Transient
 	@Override
 	protected void protectData() {
+		if (protectedInAdvance) {
+			protectedInAdvance = false;
+		} else {
+			super.protectData();
+		}
+	}
+
+	/** Calculates the row protection before the row is persisted, so that it can be done for many rows at the same time. */
+	@Transient
+	public void protectDataInAdvance() {
 		super.protectData();
+		protectedInAdvance = true;
 	}
 	
 	@PostLoad
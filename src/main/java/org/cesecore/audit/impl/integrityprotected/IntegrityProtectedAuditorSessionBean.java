@@ -14,12 +14,20 @@ package org.cesecore.audit.impl.integrityprotected;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
@@ -29,7 +37,9 @@ import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceUnit;
 import javax.persistence.Query;
 
 import org.apache.commons.lang.time.FastDateFormat;
@@ -52,6 +62,7 @@ import org.cesecore.authentication.tokens.AuthenticationToken;
 import org.cesecore.config.CesecoreConfiguration;
 import org.cesecore.dbprotection.DatabaseProtectionError;
 import org.cesecore.keys.token.CryptoToken;
+import org.cesecore.util.QueryResultWrapper;
 import org.cesecore.util.ValidityDate;
 import org.cesecore.util.query.Criteria;
 import org.cesecore.util.query.QueryCriteria;
@@ -74,9 +85,32 @@ import org.cesecore.util.query.QueryGenerator;
 public class IntegrityProtectedAuditorSessionBean implements IntegrityProtectedAuditorSessionLocal {
 
 	private static final Logger log = Logger.getLogger(IntegrityProtectedAuditorSessionBean.class);
-	
+
+	/**
+	 * Verifies ranges of the log in parallel, shared by all verifications. It grows to the largest number of threads that has been asked for,
+	 * and the threads end when they have been idle for a minute.
+	 */
+	private static final ThreadPoolExecutor verifyExecutor;
+	static {
+		final ClassLoader classLoader = IntegrityProtectedAuditorSessionBean.class.getClassLoader();
+		verifyExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "AuditLogVerification");
+				thread.setDaemon(true);
+				// Not a container thread, so make sure the entity classes can be loaded
+				thread.setContextClassLoader(classLoader);
+				return thread;
+			}
+		});
+		verifyExecutor.allowCoreThreadTimeOut(true);
+	}
+
     @PersistenceContext(unitName = CesecoreConfiguration.PERSISTENCE_UNIT)
     private EntityManager entityManager;
+    /** Used to create an EntityManager for each thread when verifying in parallel */
+    @PersistenceUnit(unitName = CesecoreConfiguration.PERSISTENCE_UNIT)
+    private EntityManagerFactory entityManagerFactory;
     @Resource
     private SessionContext sessionContext;
     @EJB
@@ -99,7 +133,7 @@ public class IntegrityProtectedAuditorSessionBean implements IntegrityProtectedA
             final SigningFileOutputStream signingFileOutputStream = new SigningFileOutputStream(exportFile, cryptoToken, signatureDetails);
             final AuditExporter auditExporter = c.newInstance();
             auditExporter.setOutputStream(signingFileOutputStream);
-            verifyAndOptionalExport(auditExporter, report, timestamp, AuditDevicesConfig.getAuditLogExportFetchSize(properties));
+            verifyAndOptionalExport(auditExporter, report, timestamp, AuditDevicesConfig.getAuditLogExportFetchSize(properties), 1);
         	report.setExportedFile(exportFile.getCanonicalPath());
         	if (log.isDebugEnabled()) {
         		log.debug("Exported " + report.getExportCount() + " rows.");
@@ -155,7 +189,8 @@ public class IntegrityProtectedAuditorSessionBean implements IntegrityProtectedA
 	public AuditLogValidationReport verifyLogsIntegrity(final AuthenticationToken token, final Date timestamp, final Properties properties) throws AuditLogValidatorException {
         final AuditLogValidationReport report = new AuditLogValidationReport();
         try {
-            verifyAndOptionalExport(null, report, timestamp, AuditDevicesConfig.getAuditLogExportFetchSize(properties));
+            verifyAndOptionalExport(null, report, timestamp, AuditDevicesConfig.getAuditLogExportFetchSize(properties),
+            		AuditDevicesConfig.getAuditLogValidationThreads(properties));
         	// Log the success or failure depending on if verification returns error or not
         	logVerificationResult(report.errors().size(), timestamp, token);
         } catch (final Exception e) {
@@ -167,65 +202,208 @@ public class IntegrityProtectedAuditorSessionBean implements IntegrityProtectedA
 	/**
 	 * Read batches of logs from the database. If the database integrity check fails, the batch will be processed row by row.
 	 * Results are added to the report.
+	 * 
+	 * When only verifying, the log of each node is split in ranges of sequence numbers that are verified in parallel, each with its own
+	 * EntityManager, since the row protection is verified as the rows are loaded. Exported rows are written in order by the calling thread.
+	 * 
+	 * The parallel ranges are read by threads that the container does not manage, with application managed EntityManagers that never join a
+	 * JTA transaction. This is the same as in the calling thread, since verification does not support transactions: the rows are only read,
+	 * each query on a connection in auto-commit mode, and the EntityManager is closed when the range has been read. If the container does not
+	 * inject an EntityManagerFactory, the ranges are verified one after the other.
+	 * 
 	 * @param auditExporter can be null if no export should take place
 	 * @param report is a AuditLogValidationReport or AuditLogExportReport
 	 * @param timestamp process all entries up until this time (should be epoch GMT)
+	 * @param threads the number of threads to verify with, ignored when exporting
 	 */
-	private void verifyAndOptionalExport(final AuditExporter auditExporter, final AuditLogValidationReport report, final Date timestamp, final int fetchSize) throws IOException {
-    	// Get a list of the nodes that have data in the database
-    	for (final String nodeId : getNodeIds()) {
-    		if (log.isDebugEnabled()) {
-    			log.debug("exportAuditLogs for nodeId " + nodeId);
-    		}
-    		// Assuming timeStamp is in UTC
-    		final QueryCriteria queryCriteria = QueryCriteria.create().add(Criteria.eq("nodeId", nodeId)).add(Criteria.leq("timeStamp", timestamp.getTime())).add(Criteria.orderAsc("sequenceNumber"));
-            final QueryGenerator generator = QueryGenerator.generator(AuditRecordData.class, queryCriteria, "a");
-    		int startIndex = 1;
-    		final Holder<Long> lastSeqNumber = new Holder<Long>(Long.valueOf(-1L));
-    		while (true) {
-    			try {
-        			final List<AuditRecordData> queryResult = verifyLogsIntegritySubset(startIndex, fetchSize, generator, report, lastSeqNumber, nodeId);
-    				final int results = queryResult.size();
-    				if (results == 0) {
-    					break;	// No more data for this node
-    				}
-    				startIndex += results;
-					if (auditExporter!=null) {
-						for (final AuditRecordData auditRecordData : queryResult) {
-							writeToExport(auditExporter, auditRecordData);
-        					((AuditLogExportReport) report).incExportCount();
+	private void verifyAndOptionalExport(final AuditExporter auditExporter, final AuditLogValidationReport report, final Date timestamp, final int fetchSize, final int threads) throws IOException {
+		final List<SequenceRange> ranges = getSequenceRanges(timestamp, auditExporter == null ? threads : 1);
+		if (auditExporter != null || threads <= 1 || ranges.size() <= 1 || entityManagerFactory == null) {
+			for (final SequenceRange range : ranges) {
+				verifyAndOptionalExport(entityManager, auditExporter, report, timestamp, fetchSize, range);
+			}
+			return;
+		}
+		growVerifyExecutor(Math.min(threads, ranges.size()));
+		final List<Future<Object>> futures = new ArrayList<Future<Object>>(ranges.size());
+		try {
+			for (final SequenceRange range : ranges) {
+				futures.add(verifyExecutor.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws IOException {
+						final EntityManager workerEntityManager = entityManagerFactory.createEntityManager();
+						try {
+							verifyAndOptionalExport(workerEntityManager, null, report, timestamp, fetchSize, range);
+						} finally {
+							workerEntityManager.close();
 						}
+						return null;
 					}
-    			} catch (final DatabaseProtectionError e) {
-    				// One of the FETCH_SIZE entries failed.. we have to go through line by line to find out witch one..
-    				for (int i=0; i<fetchSize; i++) {
-        				try {
-                			final List<AuditRecordData> queryResult = verifyLogsIntegritySubset(startIndex, 1, generator, report, lastSeqNumber, nodeId);
-            				final int results = queryResult.size();
-            				if (results != 1) {
-            					break;	// No more data for this node
-            				}
-        					if (auditExporter!=null) {
-        						writeToExport(auditExporter, queryResult.get(0));
-            					((AuditLogExportReport) report).incExportCount();
-        					}
-        				} catch (final DatabaseProtectionError e2) {
-        					final AuditRecordData auditRecordData = (AuditRecordData) e2.getEntity();
-        					// Add to report
-        					report.warn(new AuditLogReportElem(lastSeqNumber.get().longValue(), auditRecordData.getSequenceNumber(), "log with sequence number after " + lastSeqNumber.get() + " on nodeId '" + nodeId + "' could not be verified"));
-        					lastSeqNumber.set(auditRecordData.getSequenceNumber());
-        					// We still export it
-        					// TODO: It might make sense to make it configurable to export when verification fails..
-        					if (auditExporter!=null) {
-            					writeToExport(auditExporter, auditRecordData);
-            					((AuditLogExportReport) report).incExportCount();
-        					}
-        				}
-        				startIndex += 1;
-    				}
-    			}
-    		}
-    	}
+				}));
+			}
+			for (final Future<Object> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while verifying audit log.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		} finally {
+			// Ranges that have not been verified yet are not needed if one failed
+			for (final Future<Object> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/** Makes sure that the shared executor has at least the given number of threads. */
+	private static void growVerifyExecutor(final int threads) {
+		synchronized (verifyExecutor) {
+			if (threads > verifyExecutor.getMaximumPoolSize()) {
+				verifyExecutor.setMaximumPoolSize(threads);
+				verifyExecutor.setCorePoolSize(threads);
+			}
+		}
+	}
+
+	/**
+	 * Verifies and optionally exports the log rows in one range of sequence numbers of one node. Rows are fetched in sequence number order,
+	 * each batch starting after the last sequence number of the previous one, so the database does not have to skip over what has already
+	 * been read. The EntityManager is cleared after each batch.
+	 */
+	private void verifyAndOptionalExport(final EntityManager entityManager, final AuditExporter auditExporter, final AuditLogValidationReport report,
+			final Date timestamp, final int fetchSize, final SequenceRange range) throws IOException {
+		final String nodeId = range.nodeId;
+		if (log.isDebugEnabled()) {
+			log.debug("exportAuditLogs for nodeId " + nodeId + " after sequenceNumber " + range.after + (range.last == null ? "" : " up to " + range.last));
+		}
+		final Holder<Long> lastSeqNumber = new Holder<Long>(Long.valueOf(range.after));
+		while (true) {
+			try {
+				final List<AuditRecordData> queryResult = verifyLogsIntegritySubset(entityManager, timestamp, range, fetchSize, report, lastSeqNumber);
+				final int results = queryResult.size();
+				if (results == 0) {
+					break;	// No more data for this node
+				}
+				if (auditExporter!=null) {
+					for (final AuditRecordData auditRecordData : queryResult) {
+						writeToExport(auditExporter, auditRecordData);
+						((AuditLogExportReport) report).incExportCount();
+					}
+				}
+			} catch (final DatabaseProtectionError e) {
+				// One of the FETCH_SIZE entries failed.. the error tells which one, so only the rows before it have to be read again
+				verifyUpToFailedRow(entityManager, auditExporter, report, timestamp, fetchSize, nodeId, lastSeqNumber, e);
+			} finally {
+				// Don't keep the rows that have been verified, or the whole log would end up in memory
+				entityManager.clear();
+			}
+		}
+		if (range.last != null && lastSeqNumber.get().longValue() < range.last.longValue()) {
+			// The next range starts after range.last, so entries missing at the end of this range must be reported here
+			addToReport(report, new AuditLogReportElem(lastSeqNumber.get(), range.last, "missing log with sequence number " + (lastSeqNumber.get().longValue() + 1) + " on nodeId '" + nodeId+"'"));
+		}
+	}
+
+	/**
+	 * Handles a row that failed verification when it was loaded. The rows between the last verified one and the failed one are read again,
+	 * and verified and exported as usual, and then the failed row is reported and exported. If another row before it also fails, that one
+	 * is handled first in the same way.
+	 * 
+	 * @param e the error thrown when loading a batch of rows, with the row that failed
+	 */
+	private void verifyUpToFailedRow(final EntityManager entityManager, final AuditExporter auditExporter, final AuditLogValidationReport report,
+			final Date timestamp, final int fetchSize, final String nodeId, final Holder<Long> lastSeqNumber, final DatabaseProtectionError e) throws IOException {
+		final AuditRecordData failed = (AuditRecordData) e.getEntity();
+		if (failed == null) {
+			// Not a failed verification of a row, but for example a missing key
+			throw e;
+		}
+		final SequenceRange before = new SequenceRange(nodeId, lastSeqNumber.get().longValue(), Long.valueOf(failed.getSequenceNumber().longValue() - 1));
+		while (lastSeqNumber.get().longValue() < before.last.longValue()) {
+			try {
+				final List<AuditRecordData> queryResult = verifyLogsIntegritySubset(entityManager, timestamp, before, fetchSize, report, lastSeqNumber);
+				if (queryResult.isEmpty()) {
+					break;
+				}
+				if (auditExporter!=null) {
+					for (final AuditRecordData auditRecordData : queryResult) {
+						writeToExport(auditExporter, auditRecordData);
+						((AuditLogExportReport) report).incExportCount();
+					}
+				}
+			} catch (final DatabaseProtectionError e2) {
+				verifyUpToFailedRow(entityManager, auditExporter, report, timestamp, fetchSize, nodeId, lastSeqNumber, e2);
+			} finally {
+				entityManager.clear();
+			}
+		}
+		// Add to report
+		addToReport(report, new AuditLogReportElem(lastSeqNumber.get().longValue(), failed.getSequenceNumber(), "log with sequence number after " + lastSeqNumber.get() + " on nodeId '" + nodeId + "' could not be verified"));
+		lastSeqNumber.set(failed.getSequenceNumber());
+		// We still export it
+		// TODO: It might make sense to make it configurable to export when verification fails..
+		if (auditExporter!=null) {
+			writeToExport(auditExporter, failed);
+			((AuditLogExportReport) report).incExportCount();
+		}
+	}
+
+	/**
+	 * Splits the log of every node into ranges of sequence numbers that can be verified independently.
+	 * 
+	 * @param parts the number of ranges to split the log of a node with many rows into
+	 * @return the ranges, in the order that they should be exported
+	 */
+	private List<SequenceRange> getSequenceRanges(final Date timestamp, final int parts) {
+		final List<SequenceRange> ranges = new ArrayList<SequenceRange>();
+		for (final String nodeId : getNodeIds()) {
+			long min = 0;
+			long max = -1;
+			if (parts > 1) {
+				final Query query = entityManager.createQuery("SELECT MIN(a.sequenceNumber), MAX(a.sequenceNumber) FROM AuditRecordData a WHERE a.nodeId=:nodeId AND a.timeStamp<=:timeStamp");
+				query.setParameter("nodeId", nodeId);
+				query.setParameter("timeStamp", Long.valueOf(timestamp.getTime()));
+				final Object[] minMax = QueryResultWrapper.getSingleResult(query);
+				if (minMax != null && minMax[0] != null && minMax[1] != null) {
+					min = ((Number) minMax[0]).longValue();
+					max = ((Number) minMax[1]).longValue();
+				}
+			}
+			ranges.addAll(getSequenceRanges(nodeId, min, max, parts));
+		}
+		return ranges;
+	}
+
+	/**
+	 * Splits the sequence numbers min to max of a node into ranges of about the same size. The first range starts before sequence number 0
+	 * like a single pass would, so missing entries before min are reported once. The last range is open, so rows written during verification
+	 * are handled as before.
+	 * 
+	 * @param max the highest sequence number, or less than min if the node has no rows
+	 * @return the ranges in sequence number order, a single open range if there are fewer rows than parts
+	 */
+	static List<SequenceRange> getSequenceRanges(final String nodeId, final long min, final long max, final int parts) {
+		final List<SequenceRange> ranges = new ArrayList<SequenceRange>();
+		final long size = (max - min + 1) / parts;
+		long after = -1L;
+		for (int i = 1; i < parts && size > 0; i++) {
+			final long last = min - 1 + i * size;
+			ranges.add(new SequenceRange(nodeId, after, Long.valueOf(last)));
+			after = last;
+		}
+		ranges.add(new SequenceRange(nodeId, after, null));
+		return ranges;
+	}
+
+	private void addToReport(final AuditLogValidationReport report, final AuditLogReportElem elem) {
+		synchronized (report) {
+			report.warn(elem);
+		}
 	}
 
 	/** We want to export exactly like it was stored in the database, to comply with requirements on logging systems where no altering of the original log data is allowed. */
@@ -251,17 +429,28 @@ public class IntegrityProtectedAuditorSessionBean implements IntegrityProtectedA
     /**
      * Fetch a batch of log rows from the database (implying database integrity check) and verifies
      * that all sequence numbers are present.
-     * @param startIndex start batch from this position 
+     * @param entityManager the EntityManager to read the rows with
+     * @param timestamp only rows up until this time are read
+     * @param range the node and sequence numbers to read, the batch starts after lastSeqNumber
      * @param max entries per batch
-     * @param queryCriteria where clause
      * @param report will be updated when a problem is found
      * @param lastSeqNumber will be updated to the last sequence number processed in this subset
-     * @param nodeId identifier of which node that claims to have written this data
      * @return the log entries we fetched from the database so the caller may export these
      * @throws DatabaseProtectionError if the intregrity verification fails for one of the entries in the batch during fetch
      */
-	private List<AuditRecordData> verifyLogsIntegritySubset(final int startIndex, final int max, final QueryGenerator generator, final AuditLogValidationReport report, final Holder<Long> lastSeqNumber, final String nodeId) throws DatabaseProtectionError {
-		final List<AuditRecordData> queryResult = internalSelectAuditLogs(startIndex, max, generator);	// Might throw DatabaseProtectionError
+	private List<AuditRecordData> verifyLogsIntegritySubset(final EntityManager entityManager, final Date timestamp, final SequenceRange range, final int max,
+			final AuditLogValidationReport report, final Holder<Long> lastSeqNumber) throws DatabaseProtectionError {
+		final String nodeId = range.nodeId;
+		// Assuming timeStamp is in UTC
+		final QueryCriteria queryCriteria = QueryCriteria.create().add(Criteria.eq("nodeId", nodeId)).add(Criteria.leq("timeStamp", timestamp.getTime()))
+				.add(Criteria.grt("sequenceNumber", lastSeqNumber.get()));
+		if (range.last != null) {
+			queryCriteria.add(Criteria.leq("sequenceNumber", range.last));
+		}
+		queryCriteria.add(Criteria.orderAsc("sequenceNumber"));
+		final QueryGenerator generator = QueryGenerator.generator(AuditRecordData.class, queryCriteria, "a");
+		@SuppressWarnings("unchecked")
+		final List<AuditRecordData> queryResult = buildConditionalQuery(entityManager, "SELECT a FROM AuditRecordData a", generator, 0, max).getResultList();	// Might throw DatabaseProtectionError
 		// Loop through results and verify that the sequence order is correct
 		for (int i=0; i<queryResult.size(); i++) {
 			final long currentSeqNumber = queryResult.get(i).getSequenceNumber().longValue();
@@ -270,7 +459,7 @@ public class IntegrityProtectedAuditorSessionBean implements IntegrityProtectedA
 					log.debug("Log verification failure for log on node '" + nodeId + "'. Missing entry. Last sequenceNumber was " + lastSeqNumber.get() + " and current is " + currentSeqNumber);
 				}
 				// Add to report
-				report.warn(new AuditLogReportElem(lastSeqNumber.get(), Long.valueOf(currentSeqNumber), "missing log with sequence number " + (lastSeqNumber.get().longValue() + 1) + " on nodeId '" + nodeId+"'"));
+				addToReport(report, new AuditLogReportElem(lastSeqNumber.get(), Long.valueOf(currentSeqNumber), "missing log with sequence number " + (lastSeqNumber.get().longValue() + 1) + " on nodeId '" + nodeId+"'"));
 			}
 			lastSeqNumber.set(Long.valueOf(currentSeqNumber));
 		}
@@ -334,6 +523,18 @@ public class IntegrityProtectedAuditorSessionBean implements IntegrityProtectedA
         return query;
     }
     
+    /** Sequence numbers of one node that are verified together, the ones after {@link #after} up to and including {@link #last}, or all if null. */
+    static class SequenceRange {
+    	final String nodeId;
+    	final long after;
+    	final Long last;
+    	SequenceRange(final String nodeId, final long after, final Long last) {
+    		this.nodeId = nodeId;
+    		this.after = after;
+    		this.last = last;
+    	}
+    }
+
     /** Class used internally for holding an object that can updated by a method. */
     private class Holder<T> {
     	private T object;
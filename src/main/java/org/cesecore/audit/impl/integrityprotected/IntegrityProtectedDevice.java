@@ -17,6 +17,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
+import org.cesecore.audit.AuditDevicesConfig;
 import org.cesecore.audit.AuditLogDevice;
 import org.cesecore.audit.AuditLogEntry;
 import org.cesecore.audit.audit.AuditExporter;
@@ -74,6 +75,9 @@ public class IntegrityProtectedDevice implements AuditLogDevice {
 
 	private Map<Class<?>, ?> ejbs;
 	private final NodeSequenceHolder nodeSequenceHolder = new NodeSequenceHolder();
+	/** Used for group commit, created on the first log call if it is configured */
+	private volatile AuditRecordBatcher auditRecordBatcher = null;
+	private volatile boolean auditRecordBatcherConfigured = false;
 
 	@Override
 	public void setEjbs(Map<Class<?>, ?> ejbs) {
@@ -104,9 +108,32 @@ public class IntegrityProtectedDevice implements AuditLogDevice {
 	public void log(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service, String authToken, String customId,
 			String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails, Properties properties) throws AuditRecordStorageException {
 		properties.put(NodeSequenceHolder.class, nodeSequenceHolder);
+		final AuditRecordBatcher batcher = getAuditRecordBatcher(properties);
+		if (batcher != null) {
+			final AuditRecordBatcher.Entry entry = new AuditRecordBatcher.Entry(Long.valueOf(trustedTime.getTimeMillis()), eventType, eventStatus,
+					module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails);
+			batcher.log(getEjb(IntegrityProtectedLoggerSessionLocal.class), entry, properties);
+			return;
+		}
 		getEjb(IntegrityProtectedLoggerSessionLocal.class).log(trustedTime, eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails, properties);
 	}
 
+	/** @return the batcher to use for group commit, or null if each log call is written in its own transaction */
+	private AuditRecordBatcher getAuditRecordBatcher(final Properties properties) {
+		if (!auditRecordBatcherConfigured) {
+			synchronized (this) {
+				if (!auditRecordBatcherConfigured) {
+					final int window = AuditDevicesConfig.getAuditLogGroupCommitWindow(properties);
+					if (window > 0) {
+						auditRecordBatcher = new AuditRecordBatcher(window, AuditDevicesConfig.getAuditLogGroupCommitMaxSize(properties));
+					}
+					auditRecordBatcherConfigured = true;
+				}
+			}
+		}
+		return auditRecordBatcher;
+	}
+
 	@Override
 	public boolean isSupportingQueries() {
 		return true;
@@ -12,6 +12,8 @@
  *************************************************************************/
 package org.cesecore.audit.impl.integrityprotected;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -67,7 +69,7 @@ public class IntegrityProtectedLoggerSessionBean implements IntegrityProtectedLo
         	final String nodeId = CesecoreConfiguration.getNodeIdentifier();
         	final NodeSequenceHolder nodeSequenceHolder = (NodeSequenceHolder) properties.get(NodeSequenceHolder.class);
         	final Long sequenceNumber = nodeSequenceHolder.getNext(entityManager, nodeId);
-        	final Long timeStamp = Long.valueOf(trustedTime.getTime().getTime());
+        	final Long timeStamp = Long.valueOf(trustedTime.getTimeMillis());
         	final AuditRecordData auditRecordData = new AuditRecordData(nodeId, sequenceNumber, timeStamp, eventType, eventStatus, authToken, service, module, customId, searchDetail1, searchDetail2, additionalDetails);
         	entityManager.persist(auditRecordData);
         } catch (Exception e) {
@@ -79,4 +81,32 @@ public class IntegrityProtectedLoggerSessionBean implements IntegrityProtectedLo
             }
         }
 	}
+
+	@Override
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)	// Always persist audit log
+	public void logBatch(final List<AuditRecordBatcher.Entry> entries, final Properties properties) throws AuditRecordStorageException {
+		if (log.isTraceEnabled()) {
+			log.trace(">logBatch:" + entries.size());
+		}
+		try {
+			final String nodeId = CesecoreConfiguration.getNodeIdentifier();
+			final NodeSequenceHolder nodeSequenceHolder = (NodeSequenceHolder) properties.get(NodeSequenceHolder.class);
+			final List<AuditRecordData> auditRecords = new ArrayList<AuditRecordData>(entries.size());
+			for (final AuditRecordBatcher.Entry entry : entries) {
+				auditRecords.add(entry.toAuditRecordData(nodeId, nodeSequenceHolder.getNext(entityManager, nodeId)));
+			}
+			// Row protection is the expensive part, so it is calculated for all records at the same time before they are persisted
+			AuditRecordBatcher.protect(auditRecords);
+			for (final AuditRecordData auditRecordData : auditRecords) {
+				entityManager.persist(auditRecordData);
+			}
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+			throw new AuditRecordStorageException(e.getMessage(), e);
+		} finally {
+			if (log.isTraceEnabled()) {
+				log.trace("<logBatch");
+			}
+		}
+	}
 }
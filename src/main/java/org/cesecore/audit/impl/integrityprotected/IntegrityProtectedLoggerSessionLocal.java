@@ -12,13 +12,26 @@
  *************************************************************************/
 package org.cesecore.audit.impl.integrityprotected;
 
+import java.util.List;
+import java.util.Properties;
+
 import javax.ejb.Local;
 
 import org.cesecore.audit.AuditLogger;
+import org.cesecore.audit.log.AuditRecordStorageException;
 
 /**
  * @version $Id$
  */
 @Local
 public interface IntegrityProtectedLoggerSessionLocal extends AuditLogger {
+
+    /**
+     * Writes several log records in one transaction, with consecutive sequence numbers in the order given.
+     * 
+     * @param entries the log calls to write
+     * @param properties the same properties as for {@link #log}
+     * @throws AuditRecordStorageException if any of the records could not be written, in which case none of them are
+     */
+    void logBatch(List<AuditRecordBatcher.Entry> entries, Properties properties) throws AuditRecordStorageException;
 }
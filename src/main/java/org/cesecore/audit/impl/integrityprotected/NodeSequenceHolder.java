@@ -12,7 +12,7 @@
  *************************************************************************/
 package org.cesecore.audit.impl.integrityprotected;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
@@ -21,38 +21,43 @@ import org.cesecore.util.QueryResultWrapper;
 
 /**
  * Get this node's next log row sequence number.
+ *
+ * Sequence numbers are handed out with a compare-and-set on an AtomicLong, so concurrent audit log writes don't wait for each other. Only the
+ * first call, that reads the last used sequence number from the database, is synchronized.
+ *
  * @version $Id$
  */
 public class NodeSequenceHolder {
 
 	// We only want to use this from IntegrityProtectedDevice
 	protected NodeSequenceHolder() {}
-	
-	private volatile long lastSequenceNumber = -1;
-	private final ReentrantLock lockSequenceNumber = new ReentrantLock();
-	
+
+	/** Marks that the last used sequence number has not been read from the database yet */
+	private static final long NOT_INITIALIZED = Long.MIN_VALUE;
+
+	private final AtomicLong lastSequenceNumber = new AtomicLong(NOT_INITIALIZED);
+
 	public long getNext(final EntityManager entityManager, final String nodeId) {
-		try {
-			lockSequenceNumber.lock();
-			if (lastSequenceNumber == -1) {
-				// First time this method is called we check the database for the latest sequenceNumber from last run..
-				final Query query = entityManager.createQuery("SELECT MAX(a.sequenceNumber) FROM AuditRecordData a WHERE a.nodeId=:nodeId");
-				query.setParameter("nodeId", nodeId);
-				lastSequenceNumber = QueryResultWrapper.getSingleResult(query, Long.valueOf(-1)).longValue();
+		while (true) {
+			final long last = lastSequenceNumber.get();
+			if (last == NOT_INITIALIZED) {
+				initialize(entityManager, nodeId);
+			} else if (lastSequenceNumber.compareAndSet(last, last + 1)) {
+				return last + 1;
 			}
-			lastSequenceNumber++;
-			return lastSequenceNumber;
-		} finally {
-			lockSequenceNumber.unlock();
 		}
 	}
-	
-	protected void reset() {
-		try {
-			lockSequenceNumber.lock();
-			lastSequenceNumber = -1;
-		} finally {
-			lockSequenceNumber.unlock();
+
+	private synchronized void initialize(final EntityManager entityManager, final String nodeId) {
+		if (lastSequenceNumber.get() == NOT_INITIALIZED) {
+			// First time this method is called we check the database for the latest sequenceNumber from last run..
+			final Query query = entityManager.createQuery("SELECT MAX(a.sequenceNumber) FROM AuditRecordData a WHERE a.nodeId=:nodeId");
+			query.setParameter("nodeId", nodeId);
+			lastSequenceNumber.compareAndSet(NOT_INITIALIZED, QueryResultWrapper.getSingleResult(query, Long.valueOf(-1)).longValue());
 		}
 	}
+
+	protected void reset() {
+		lastSequenceNumber.set(NOT_INITIALIZED);
+	}
 }
@@ -116,7 +116,7 @@ public final class AuditLogProcessQueue {
         synchronized(pushLock) {
             lastSequenceNumber++;
             auditLogData.setSequenceNumber(lastSequenceNumber);
-            auditLogData.setTimeStamp(Long.valueOf(trustedTime.getTime().getTime()));
+            auditLogData.setTimeStamp(Long.valueOf(trustedTime.getTimeMillis()));
             final AuditLogProcess process = new AuditLogProcess(auditLogData);
             processing.add(process);
             return process; 
@@ -31,6 +31,7 @@ import org.cesecore.authorization.control.StandardRules;
 import org.cesecore.internal.InternalResources;
 import org.cesecore.jndi.JndiConstants;
 import org.cesecore.time.TrustedTime;
+import org.cesecore.time.TrustedTimeCache;
 import org.cesecore.time.TrustedTimeWatcherSessionLocal;
 import org.cesecore.time.providers.TrustedTimeProviderException;
 
@@ -80,7 +81,11 @@ public class SecurityEventsLoggerSessionBean implements SecurityEventsLoggerSess
             log.trace(String.format(">log:%s:%s:%s:%s:%s:%s:%s:%s:%s", eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails));
         }
         try {
-        	final TrustedTime tt = trustedTimeWatcherSession.getTrustedTime(false);
+        	// Only go through the watcher when the time has to be updated
+        	TrustedTime tt = TrustedTimeCache.INSTANCE.getCurrentTrustedTime();
+        	if (tt == null) {
+        	    tt = trustedTimeWatcherSession.getTrustedTime(false);
+        	}
         	internalSecurityEventsLoggerSession.log(tt, eventType, eventStatus, module, service, authToken, customId, searchDetail1, searchDetail2, additionalDetails);
         } catch (TrustedTimeProviderException e) {
             log.error(e.getMessage(), e);
@@ -44,6 +44,12 @@ public class AlwaysAllowLocalAuthenticationToken extends LocalJvmOnlyAuthenticat
         return super.isCreatedInThisJvm();
     }
 
+    /** All tokens of this class are equal, so decisions may only be cached for tokens that match at all, i.e. tokens created in this JVM. */
+    @Override
+    public boolean isDecisionCacheable() {
+        return super.isCreatedInThisJvm();
+    }
+
     @Override
     public boolean equals(Object authenticationToken) {
         if (this == authenticationToken) {        
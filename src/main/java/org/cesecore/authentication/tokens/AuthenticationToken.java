@@ -55,6 +55,16 @@ public abstract class AuthenticationToken implements Serializable {
      * @return <code>true</code> if matching.
      */
     public abstract boolean matches(AccessUserAspect accessUser);
+
+    /**
+     * Whether authorization decisions made for this token may be cached and used for other tokens that are equal to it. This is only safe if
+     * <code>matches(...)</code> gives the same answer for all equal tokens, so the default is false.
+     * 
+     * @return <code>true</code> if decisions for this token may be cached.
+     */
+    public boolean isDecisionCacheable() {
+        return false;
+    }
     
     @Override
     public abstract boolean equals(Object authenticationToken);
@@ -14,6 +14,9 @@ package org.cesecore.authentication.tokens;
 
 import java.math.BigInteger;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -141,51 +144,9 @@ public class X509CertificateAuthenticationToken extends LocalJvmOnlyAuthenticati
                 default:
                 }
             } else {
-                parameter = DNFieldExtractor.CN;
-                switch (matchValue) {
-                case WITH_COUNTRY:
-                    parameter = DNFieldExtractor.C;
-                    break;
-                case WITH_DOMAINCOMPONENT:
-                    parameter = DNFieldExtractor.DC;
-                    break;
-                case WITH_STATEORPROVINCE:
-                    parameter = DNFieldExtractor.ST;
-                    break;
-                case WITH_LOCALITY:
-                    parameter = DNFieldExtractor.L;
-                    break;
-                case WITH_ORGANIZATION:
-                    parameter = DNFieldExtractor.O;
-                    break;
-                case WITH_ORGANIZATIONALUNIT:
-                    parameter = DNFieldExtractor.OU;
-                    break;
-                case WITH_TITLE:
-                    parameter = DNFieldExtractor.T;
-                    break;
-                case WITH_DNSERIALNUMBER:
-                    parameter = DNFieldExtractor.SN;
-                    break;
-                case WITH_COMMONNAME:
-                    parameter = DNFieldExtractor.CN;
-                    break;
-                case WITH_UID:
-                    parameter = DNFieldExtractor.UID;
-                    break;
-                case WITH_DNEMAILADDRESS:
-                    parameter = DNFieldExtractor.E;
-                    break;
-                case WITH_RFC822NAME:
-                    parameter = DNFieldExtractor.RFC822NAME;
+                parameter = getFieldParameter(matchValue);
+                if (matchValue == X500PrincipalAccessMatchValue.WITH_RFC822NAME || matchValue == X500PrincipalAccessMatchValue.WITH_UPN) {
                     usedExtractor = anExtractor;
-                    break;
-                case WITH_UPN:
-                    parameter = DNFieldExtractor.UPN;
-                    usedExtractor = anExtractor;
-                    break;
-                default:
-                    break;
                 }
                 size = usedExtractor.getNumberOfFields(parameter);
                 clientstrings = new String[size];
@@ -237,6 +198,97 @@ public class X509CertificateAuthenticationToken extends LocalJvmOnlyAuthenticati
         return returnvalue;
     }
 
+    /** Decisions depend only on the certificate, which is what equals compares, but are not cached for tokens created in another JVM. */
+    @Override
+    public boolean isDecisionCacheable() {
+        return super.isCreatedInThisJvm();
+    }
+
+    /**
+     * Returns the values of the certificate that access user aspects with the given match value are compared with, so that aspects that match
+     * on equality can be looked up instead of being matched one at a time. For WITH_SERIALNUMBER this is the serial number in lower case hex.
+     * 
+     * @param matchValue what the aspects match with
+     * @return the values, or an empty list if this token was not created in this JVM and should not match anything
+     */
+    public List<String> getMatchValues(final X500PrincipalAccessMatchValue matchValue) {
+        if (!super.isCreatedInThisJvm()) {
+            return Collections.emptyList();
+        }
+        if (matchValue == X500PrincipalAccessMatchValue.WITH_SERIALNUMBER) {
+            return Collections.singletonList(certificate.getSerialNumber().toString(16));
+        } else if (matchValue == X500PrincipalAccessMatchValue.WITH_FULLDN) {
+            return Collections.singletonList(CertTools.getSubjectDN(certificate));
+        }
+        final DNFieldExtractor usedExtractor;
+        if (matchValue == X500PrincipalAccessMatchValue.WITH_RFC822NAME || matchValue == X500PrincipalAccessMatchValue.WITH_UPN) {
+            usedExtractor = anExtractor;
+        } else {
+            usedExtractor = dnExtractor;
+        }
+        final int parameter = getFieldParameter(matchValue);
+        final int size = usedExtractor.getNumberOfFields(parameter);
+        final List<String> values = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(usedExtractor.getField(parameter, i));
+        }
+        return values;
+    }
+
+    /** @return the id of the CA that issued the certificate, which access user aspects are compared with */
+    public int getAdminCaId() {
+        return adminCaId;
+    }
+
+    /** @return the DNFieldExtractor field that access user aspects with the match value are compared with */
+    private static int getFieldParameter(final X500PrincipalAccessMatchValue matchValue) {
+        int parameter = DNFieldExtractor.CN;
+        switch (matchValue) {
+        case WITH_COUNTRY:
+            parameter = DNFieldExtractor.C;
+            break;
+        case WITH_DOMAINCOMPONENT:
+            parameter = DNFieldExtractor.DC;
+            break;
+        case WITH_STATEORPROVINCE:
+            parameter = DNFieldExtractor.ST;
+            break;
+        case WITH_LOCALITY:
+            parameter = DNFieldExtractor.L;
+            break;
+        case WITH_ORGANIZATION:
+            parameter = DNFieldExtractor.O;
+            break;
+        case WITH_ORGANIZATIONALUNIT:
+            parameter = DNFieldExtractor.OU;
+            break;
+        case WITH_TITLE:
+            parameter = DNFieldExtractor.T;
+            break;
+        case WITH_DNSERIALNUMBER:
+            parameter = DNFieldExtractor.SN;
+            break;
+        case WITH_COMMONNAME:
+            parameter = DNFieldExtractor.CN;
+            break;
+        case WITH_UID:
+            parameter = DNFieldExtractor.UID;
+            break;
+        case WITH_DNEMAILADDRESS:
+            parameter = DNFieldExtractor.E;
+            break;
+        case WITH_RFC822NAME:
+            parameter = DNFieldExtractor.RFC822NAME;
+            break;
+        case WITH_UPN:
+            parameter = DNFieldExtractor.UPN;
+            break;
+        default:
+            break;
+        }
+        return parameter;
+    }
+
     /** Returns user information of the user this authentication token belongs to. */
     @Override
     public String toString() {
@@ -13,14 +13,21 @@
 package org.cesecore.authorization.access;
 
 import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.cesecore.authentication.tokens.AuthenticationToken;
 import org.cesecore.authorization.rules.AccessRuleData;
+import org.cesecore.config.CesecoreConfiguration;
 import org.cesecore.roles.RoleData;
 
 /**
  * Maintains an access tree in memory
  * 
+ * When the tree is built, the access user aspects of the roles are indexed, so the roles a token matches are found once per check. Decisions
+ * are cached per authentication token and resource, for tokens that allow it. The index and the cache belong to the tree, so they are
+ * thrown away when the tree is rebuilt for a new access tree update number. When the cache is full it is cleared.
+ * 
  * This class is based in AccessTree from EJBCA AccessTree.java 9993 2010-09-27 07:12:52Z anatom
  * 
  * @version $Id$
@@ -28,25 +35,42 @@ import org.cesecore.roles.RoleData;
  */
 public class AccessTree {
 
-    private AccessTreeNode rootNode = null;
+    private volatile AccessTreeNode rootNode = null;
+    /** Aspect index and decisions for the current root node */
+    private volatile Compiled compiled = null;
+    private final int maxDecisions;
+
+    public AccessTree() {
+        this(CesecoreConfiguration.getAuthorizationDecisionCacheSize());
+    }
+
+    /**
+     * @param maxDecisions the number of decisions to cache, 0 to not cache decisions
+     */
+    public AccessTree(final int maxDecisions) {
+        this.maxDecisions = maxDecisions;
+    }
 
     /**
      * Builds an access tree out of the given roles. In order to maintain consistency over several nodes connected to the same persistence layer, the
      * access tree needs to be refreshed at regular intervals with fresh data from the database.
      * 
-     * This method is thread safe, and will protect the previous access tree while the new one is being built.
+     * This method is thread safe. The new tree is built on the side while authorization checks use the previous one, and is then swapped in, so
+     * checks never wait for a rebuild.
      * 
      * @param roles
      *            A collection of RoleData objects.
      */
-    public synchronized void buildTree(Collection<RoleData> roles) {
+    public void buildTree(Collection<RoleData> roles) {
         AccessTreeNode newRootnode = new AccessTreeNode("/");
         for (RoleData role : roles) {
             for (AccessRuleData accessrule : role.getAccessRules().values()) {
                 newRootnode.addAccessRule(accessrule.getAccessRuleName(), accessrule, role); // Without heading '/'
             }
         }
+        final AccessUserAspectIndex index = new AccessUserAspectIndex(roles);
         rootNode = newRootnode; // Replace the old access rules with the new ones
+        compiled = new Compiled(newRootnode, index);
     }
 
     /**
@@ -64,8 +88,71 @@ public class AccessTree {
         if ((checkresource.toCharArray())[0] != '/') {
             checkresource = "/" + checkresource;
         }
+        final AccessTreeNode root = rootNode;
+        final Compiled current = compiled;
+        if (current == null || current.root != root) {
+            // Not built by buildTree, or being rebuilt and this is the previous root node
+            return root.isAuthorized(authenticationToken, checkresource);
+        }
+        final boolean cacheable = maxDecisions > 0 && authenticationToken.isDecisionCacheable();
+        Decision decision = null;
+        if (cacheable) {
+            decision = new Decision(authenticationToken, checkresource);
+            final Boolean cached = current.decisions.get(decision);
+            if (cached != null) {
+                return cached.booleanValue();
+            }
+        }
         // Check if user is authorized in the tree.
-        return rootNode.isAuthorized(authenticationToken, checkresource);
+        final boolean authorized = root.isAuthorized(authenticationToken, checkresource, current.index.getMatchingRoles(authenticationToken));
+        if (cacheable) {
+            if (current.decisions.size() >= maxDecisions) {
+                current.decisions.clear();
+            }
+            current.decisions.put(decision, Boolean.valueOf(authorized));
+        }
+        return authorized;
     }
 
+    /** What is derived from one root node */
+    private static final class Compiled {
+        private final AccessTreeNode root;
+        private final AccessUserAspectIndex index;
+        private final Map<Decision, Boolean> decisions = new ConcurrentHashMap<Decision, Boolean>();
+
+        private Compiled(final AccessTreeNode root, final AccessUserAspectIndex index) {
+            this.root = root;
+            this.index = index;
+        }
+    }
+
+    /** Key of a cached decision */
+    private static final class Decision {
+        private final AuthenticationToken authenticationToken;
+        private final String resource;
+        private final int hashCode;
+
+        private Decision(final AuthenticationToken authenticationToken, final String resource) {
+            this.authenticationToken = authenticationToken;
+            this.resource = resource;
+            this.hashCode = 31 * authenticationToken.hashCode() + resource.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Decision)) {
+                return false;
+            }
+            final Decision other = (Decision) obj;
+            return resource.equals(other.resource) && authenticationToken.equals(other.authenticationToken);
+        }
+    }
 }
@@ -14,6 +14,7 @@ package org.cesecore.authorization.access;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 import org.cesecore.authentication.tokens.AuthenticationToken;
@@ -88,10 +89,21 @@ public class AccessTreeNode {
      * @return True if role is authorized to resource.
      */
     public boolean isAuthorized(AuthenticationToken authenticationToken, String resourcePath) {
-        return isAuthorizedRecursive(authenticationToken, resourcePath, AccessTreeState.STATE_UNKNOWN); 
+        return isAuthorizedRecursive(authenticationToken, resourcePath, AccessTreeState.STATE_UNKNOWN, null); 
 
     }
 
+    /**
+     * Entrance method when the roles the token matches are already known, see {@link AccessUserAspectIndex}.
+     * 
+     * @param matchingRoles
+     *            the highest priority of the aspects the token matches, by role
+     * @return True if role is authorized to resource.
+     */
+    boolean isAuthorized(AuthenticationToken authenticationToken, String resourcePath, Map<RoleData, X500PrincipalAccessMatchValue> matchingRoles) {
+        return isAuthorizedRecursive(authenticationToken, resourcePath, AccessTreeState.STATE_UNKNOWN, matchingRoles);
+    }
+
     /**
      * Performs a recursive check of authorization through this resource, and all below it.
      * 
@@ -101,15 +113,18 @@ public class AccessTreeNode {
      *            Resource to check.
      * @param legacyState
      *            The best state yet encountered.
+     * @param matchingRoles
+     *            The roles the token matches, or null to match the token with the aspects of each role.
      * @return True of role is authorized to resource.
      */
-    private boolean isAuthorizedRecursive(AuthenticationToken authenticationToken, String resourcePath, AccessTreeState legacyState) {
+    private boolean isAuthorizedRecursive(AuthenticationToken authenticationToken, String resourcePath, AccessTreeState legacyState,
+            Map<RoleData, X500PrincipalAccessMatchValue> matchingRoles) {
     	if (log.isTraceEnabled()) {
     		log.trace(">isAuthorizedRecursive("+authenticationToken.toString()+", "+resourcePath+", "+legacyState+"). Resource="+resource);
     	}
         boolean returnval = false;
 
-        AccessTreeState internalstate = findPreferredRule(authenticationToken);
+        AccessTreeState internalstate = matchingRoles == null ? findPreferredRule(authenticationToken) : findPreferredRule(matchingRoles);
         if (log.isTraceEnabled()) {
         	log.trace("preferredRule: "+internalstate);
         }
@@ -161,7 +176,7 @@ public class AccessTreeNode {
                 if (internalstate == AccessTreeState.STATE_ACCEPT_RECURSIVE || internalstate == AccessTreeState.STATE_DECLINE) {
                     legacyState = internalstate;
                 }
-                returnval = next.isAuthorizedRecursive(authenticationToken, nextsubresource, legacyState);
+                returnval = next.isAuthorizedRecursive(authenticationToken, nextsubresource, legacyState, matchingRoles);
             }
         }
     	if (log.isTraceEnabled()) {
@@ -264,6 +279,29 @@ public class AccessTreeNode {
         return state;
     }
 
+    /** Same as {@link #findPreferredRule(AuthenticationToken)}, with the highest priority of the matching aspects of each role already known. */
+    private AccessTreeState findPreferredRule(Map<RoleData, X500PrincipalAccessMatchValue> matchingRoles) {
+        AccessTreeState state = AccessTreeState.STATE_UNKNOWN;
+        X500PrincipalAccessMatchValue statePriority = X500PrincipalAccessMatchValue.NONE;
+        for (Tuplet<RoleData, AccessRuleData> roleRulePair : roleRulePairs) {
+            X500PrincipalAccessMatchValue thisUserStatePriority = matchingRoles.get(roleRulePair.getFirstElement());
+            if (thisUserStatePriority != null) {
+                AccessTreeState thisUserState = roleRulePair.getSecondElement().getTreeState();
+                // If rule has higher priority, its state is to be used.
+                if (statePriority.getNumericValue() < thisUserStatePriority.getNumericValue()) {
+                    state = thisUserState;
+                    statePriority = thisUserStatePriority;
+                } else if (statePriority == thisUserStatePriority) {
+                    // If the priority is the same then decline has priority over accept.
+                    if (state.getLegacyNumber() < thisUserState.getLegacyNumber()) {
+                        state = thisUserState;
+                    }
+                }
+            }
+        }
+        return state;
+    }
+
     public String getResource() {
         return resource;
     }
@@ -0,0 +1,209 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.authorization.access;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cesecore.authentication.tokens.AuthenticationToken;
+import org.cesecore.authentication.tokens.X509CertificateAuthenticationToken;
+import org.cesecore.authorization.user.AccessMatchType;
+import org.cesecore.authorization.user.AccessUserAspect;
+import org.cesecore.authorization.user.X500PrincipalAccessMatchValue;
+import org.cesecore.roles.RoleData;
+
+/**
+ * The access user aspects of all roles in an access tree, indexed so that the roles an authentication token belongs to can be found once per
+ * authorization check, instead of matching every aspect at every node on the resource path.
+ *
+ * Aspects that match an X509CertificateAuthenticationToken on equality are kept in a hash map by CA id, match value, case sensitivity and
+ * value, so matching such a token costs one lookup per kind of aspect. Other aspects, and all aspects for other kinds of tokens, are matched one
+ * at a time with {@link AuthenticationToken#matches(AccessUserAspect)}. The result is the same as matching every aspect, see
+ * X509CertificateAuthenticationToken.matches.
+ *
+ * @version $Id$
+ */
+final class AccessUserAspectIndex {
+
+    /** Aspects that match on equality, by CA, match value and value */
+    private final Map<Key, List<RoleAspect>> byKey = new HashMap<Key, List<RoleAspect>>();
+    /** The match values and case sensitivities used in byKey, i.e. what to look up for a token */
+    private final Set<Kind> kinds = new HashSet<Kind>();
+    /** Aspects that can not be looked up */
+    private final List<RoleAspect> others = new ArrayList<RoleAspect>();
+    /** All aspects, for tokens that can not be looked up */
+    private final List<RoleAspect> all = new ArrayList<RoleAspect>();
+
+    AccessUserAspectIndex(final Collection<RoleData> roles) {
+        for (final RoleData role : roles) {
+            for (final AccessUserAspect aspect : role.getAccessUsers().values()) {
+                final RoleAspect roleAspect = new RoleAspect(role, aspect);
+                all.add(roleAspect);
+                final Key key = getKey(aspect);
+                if (key == null) {
+                    others.add(roleAspect);
+                } else {
+                    List<RoleAspect> list = byKey.get(key);
+                    if (list == null) {
+                        list = new ArrayList<RoleAspect>(1);
+                        byKey.put(key, list);
+                    }
+                    list.add(roleAspect);
+                    kinds.add(key.kind);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the roles that the token matches. When several aspects of a role match, only the one with the highest priority matters, since
+     * they all give the same rule state.
+     *
+     * @return the highest priority of the matching aspects, by role
+     */
+    Map<RoleData, X500PrincipalAccessMatchValue> getMatchingRoles(final AuthenticationToken authenticationToken) {
+        final Map<RoleData, X500PrincipalAccessMatchValue> matchingRoles = new IdentityHashMap<RoleData, X500PrincipalAccessMatchValue>();
+        final List<RoleAspect> unindexed;
+        if (authenticationToken instanceof X509CertificateAuthenticationToken) {
+            final X509CertificateAuthenticationToken x509Token = (X509CertificateAuthenticationToken) authenticationToken;
+            final int caId = x509Token.getAdminCaId();
+            for (final Kind kind : kinds) {
+                for (final String value : x509Token.getMatchValues(kind.matchWith)) {
+                    final List<RoleAspect> matching = byKey.get(new Key(caId, kind, kind.caseInsensitive ? foldCase(value) : value));
+                    if (matching != null) {
+                        for (final RoleAspect roleAspect : matching) {
+                            addMatch(matchingRoles, roleAspect);
+                        }
+                    }
+                }
+            }
+            unindexed = others;
+        } else {
+            unindexed = all;
+        }
+        for (final RoleAspect roleAspect : unindexed) {
+            if (authenticationToken.matches(roleAspect.aspect)) {
+                addMatch(matchingRoles, roleAspect);
+            }
+        }
+        return matchingRoles;
+    }
+
+    private static void addMatch(final Map<RoleData, X500PrincipalAccessMatchValue> matchingRoles, final RoleAspect roleAspect) {
+        final X500PrincipalAccessMatchValue priority = roleAspect.aspect.getPriority();
+        final X500PrincipalAccessMatchValue previous = matchingRoles.get(roleAspect.role);
+        if (previous == null || previous.getNumericValue() < priority.getNumericValue()) {
+            matchingRoles.put(roleAspect.role, priority);
+        }
+    }
+
+    /** @return the key to look the aspect up with, or null if it must be matched with the token */
+    private static Key getKey(final AccessUserAspect aspect) {
+        final X500PrincipalAccessMatchValue matchWith = aspect.getMatchWithByValue();
+        final AccessMatchType matchType = aspect.getMatchTypeAsType();
+        final String value = aspect.getMatchValue();
+        final Integer caId = aspect.getCaId();
+        if (matchWith == null || value == null || caId == null
+                || (matchType != AccessMatchType.TYPE_EQUALCASE && matchType != AccessMatchType.TYPE_EQUALCASEINS)) {
+            return null;
+        }
+        if (matchWith == X500PrincipalAccessMatchValue.WITH_SERIALNUMBER) {
+            try {
+                return new Key(caId.intValue(), new Kind(matchWith, false), new BigInteger(value, 16).toString(16));
+            } catch (NumberFormatException e) {
+                // Let the token decide what an invalid serial number means
+                return null;
+            }
+        }
+        // A full DN is always compared without case, also for TYPE_EQUALCASE
+        final boolean caseInsensitive = matchType == AccessMatchType.TYPE_EQUALCASEINS || matchWith == X500PrincipalAccessMatchValue.WITH_FULLDN;
+        return new Key(caId.intValue(), new Kind(matchWith, caseInsensitive), caseInsensitive ? foldCase(value) : value);
+    }
+
+    /** @return the string with each character folded the way String.equalsIgnoreCase compares it */
+    private static String foldCase(final String value) {
+        final char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        }
+        return new String(chars);
+    }
+
+    private static final class RoleAspect {
+        private final RoleData role;
+        private final AccessUserAspect aspect;
+
+        private RoleAspect(final RoleData role, final AccessUserAspect aspect) {
+            this.role = role;
+            this.aspect = aspect;
+        }
+    }
+
+    /** What a value is compared with, and how */
+    private static final class Kind {
+        private final X500PrincipalAccessMatchValue matchWith;
+        private final boolean caseInsensitive;
+
+        private Kind(final X500PrincipalAccessMatchValue matchWith, final boolean caseInsensitive) {
+            this.matchWith = matchWith;
+            this.caseInsensitive = caseInsensitive;
+        }
+
+        @Override
+        public int hashCode() {
+            return matchWith.hashCode() * 2 + (caseInsensitive ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Kind)) {
+                return false;
+            }
+            final Kind other = (Kind) obj;
+            return matchWith == other.matchWith && caseInsensitive == other.caseInsensitive;
+        }
+    }
+
+    private static final class Key {
+        private final int caId;
+        private final Kind kind;
+        private final String value;
+
+        private Key(final int caId, final Kind kind, final String value) {
+            this.caId = caId;
+            this.kind = kind;
+            this.value = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return (caId * 31 + kind.hashCode()) * 31 + value.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return caId == other.caId && kind.equals(other.kind) && value.equals(other.value);
+        }
+    }
+}
@@ -13,6 +13,7 @@
 package org.cesecore.authorization.cache;
 
 import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.cesecore.authorization.access.AccessTree;
 import org.cesecore.config.CesecoreConfiguration;
@@ -23,7 +24,9 @@ import org.cesecore.roles.RoleData;
  * 
  * This file is based on AuthorizationCache (updated 2010-12-14) and Authorizer (probably r10794) from EJBCA
  * 
- * TODO: This class requires some minor unit tests.
+ * A new access tree is built on the side and then swapped in, so authorization checks keep using the previous tree during a rebuild. Only one
+ * thread rebuilds the tree at a time, the others continue with the tree they have. The tree is only rebuilt when the access tree update number
+ * has changed, or the cache has been expired. The cache time is only how often the update number is checked.
  * 
  * @version $Id$
  * 
@@ -36,42 +39,96 @@ public class AccessTreeCache {
      */
     private volatile AccessTree accessTree = null;
     /*
-     * Help variable used to check that authorization trees are updated.
+     * Help variable used to check that authorization trees are updated. -1 if the tree has to be rebuilt.
      */
     private volatile int accessTreeUpdatenumber = -1;
     /* help variable used to control that cache update isn't performed to often. */
     private volatile long lastUpdateTime = -1;
+    /* Held by the thread that rebuilds the access tree */
+    private final ReentrantLock updateLock = new ReentrantLock();
+    /* Number of times forceCacheExpire has been called, guarded by this */
+    private int expireCount = 0;
+    /* expireCount when the current rebuild started, guarded by this */
+    private int expireCountAtUpdate = 0;
+
+    /**
+     * Called before the roles are read to rebuild the access tree. If there is no access tree yet, this waits for any rebuild in progress to
+     * finish. Otherwise it returns false at once if another thread is already rebuilding the tree, and the caller should use the current tree.
+     * If true is returned, {@link #endUpdate()} must be called when done.
+     * 
+     * @return true if the caller should rebuild the access tree
+     */
+    public boolean beginUpdate() {
+        if (accessTree == null) {
+            updateLock.lock();
+        } else if (!updateLock.tryLock()) {
+            return false;
+        }
+        if (accessTree != null && !needsUpdate()) {
+            // Another thread has just rebuilt it
+            updateLock.unlock();
+            return false;
+        }
+        synchronized (this) {
+            expireCountAtUpdate = expireCount;
+        }
+        return true;
+    }
+
+    /** Called when a rebuild started with {@link #beginUpdate()} is done, even if it failed. */
+    public void endUpdate() {
+        updateLock.unlock();
+    }
 
     /**
      * Updates the access tree with the roles (and associated resources) specified in the first parameter. 
      * 
+     * The new tree is built before it replaces the current one. If the cache was expired after the rebuild started, the new tree is used but
+     * the cache still needs an update, since the roles may have been read before the change.
      * 
      * @param roles A collection of RoleData objects.
-     * @param authorizationTreeUpdateNumber FIXME: Document me.
+     * @param authorizationTreeUpdateNumber the access tree update number that was read before the roles
      */
-    public synchronized void updateAccessTree(Collection<RoleData> roles, int authorizationTreeUpdateNumber) {
-        if (accessTree == null) {
-            accessTree = new AccessTree();
+    public void updateAccessTree(Collection<RoleData> roles, int authorizationTreeUpdateNumber) {
+        final AccessTree newAccessTree = new AccessTree();
+        newAccessTree.buildTree(roles);
+        synchronized (this) {
+            accessTree = newAccessTree;
+            if (expireCount == expireCountAtUpdate) {
+                this.accessTreeUpdatenumber = authorizationTreeUpdateNumber;
+                lastUpdateTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Called when the access tree update number has been checked and has not changed, so it is not checked again until the cache time has
+     * passed.
+     * 
+     * @param authorizationTreeUpdateNumber the access tree update number that was read
+     */
+    public synchronized void updateChecked(int authorizationTreeUpdateNumber) {
+        if (accessTreeUpdatenumber == authorizationTreeUpdateNumber) {
+            lastUpdateTime = System.currentTimeMillis();
         }
-        accessTree.buildTree(roles);
-        this.accessTreeUpdatenumber = authorizationTreeUpdateNumber;
-        lastUpdateTime = System.currentTimeMillis();
     }
 
     /**
-     * Answers whether the access tree needs to be updated.
+     * Answers whether the access tree update number needs to be checked.
      * 
-     * @return <code>true</code> if the access tree hasn't been instantiated, <i>or</i> if the time interval has passed that specified in the cesecore
-     *         configuration file. Return <code>false</code> otherwise.
+     * @return <code>true</code> if the access tree hasn't been instantiated, <i>or</i> if the cache has been expired, <i>or</i> if the time
+     *         interval has passed that specified in the cesecore configuration file. Return <code>false</code> otherwise.
      */
     public boolean needsUpdate() {
-        if ((accessTree == null) || (lastUpdateTime + CesecoreConfiguration.getCacheAuthorizationTime() < System.currentTimeMillis())) {
+        if ((accessTree == null) || accessTreeUpdatenumber == -1
+                || (lastUpdateTime + CesecoreConfiguration.getCacheAuthorizationTime() < System.currentTimeMillis())) {
             return true;
         }
         return false;
     }
 
-    public void forceCacheExpire() {
+    public synchronized void forceCacheExpire() {
+    	expireCount++;
     	lastUpdateTime = -1;
     	accessTreeUpdatenumber = -1;
     }
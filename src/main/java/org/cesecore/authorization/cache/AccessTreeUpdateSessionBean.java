@@ -70,6 +70,17 @@ public class AccessTreeUpdateSessionBean implements AccessTreeUpdateSessionLocal
         return authTreeData;
     }
 
+    /**
+     * Reads the update number from the database, since the cached AccessTreeUpdateData does not see changes made by other nodes.
+     */
+    public int getAccessTreeUpdateNumber() {
+        final AccessTreeUpdateData data = findByPrimaryKey(AccessTreeUpdateData.AUTHORIZATIONTREEUPDATEDATA);
+        if (data == null) {
+            return getAccessTreeUpdateData().getAccessTreeUpdateNumber();
+        }
+        return data.getAccessTreeUpdateNumber();
+    }
+
     /**
      * Method incrementing the authorization tree update number and thereby signaling to other beans that they should reconstruct their access trees.
      */
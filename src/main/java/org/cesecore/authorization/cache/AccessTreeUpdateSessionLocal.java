@@ -24,6 +24,12 @@ public interface AccessTreeUpdateSessionLocal {
      * Returns a reference to the AuthorizationTreeUpdateData
      */
     AccessTreeUpdateData getAccessTreeUpdateData();
+
+    /**
+     * Reads the current authorization tree update number from the database, without using the cached AccessTreeUpdateData, so changes made
+     * by other nodes are seen.
+     */
+    int getAccessTreeUpdateNumber();
     
     /**
      * Method incrementing the authorization tree update number and thereby
@@ -32,6 +32,7 @@ import org.cesecore.authorization.cache.AccessTreeUpdateSessionLocal;
 import org.cesecore.jndi.JndiConstants;
 import org.cesecore.roles.access.RoleAccessSessionLocal;
 import org.cesecore.time.TrustedTime;
+import org.cesecore.time.TrustedTimeCache;
 import org.cesecore.time.TrustedTimeWatcherSessionLocal;
 import org.cesecore.time.providers.TrustedTimeProviderException;
 
@@ -59,7 +60,7 @@ public class AccessControlSessionBean implements AccessControlSessionLocal, Acce
     private TrustedTimeWatcherSessionLocal trustedTimeWatcherSession;
 
     /** Cache for authorization data */
-    private static AccessTreeCache accessTreeCache;
+    private static final AccessTreeCache accessTreeCache = new AccessTreeCache();
 
     private boolean isAuthorized(final AuthenticationToken authenticationToken, final String resource, final boolean doLogging) {
         if (accessTreeCache.getAccessTree().isAuthorized(authenticationToken, resource)) {
@@ -68,7 +69,10 @@ public class AccessControlSessionBean implements AccessControlSessionLocal, Acce
             if(doLogging) {
             	TrustedTime tt;
 				try {
-					tt = trustedTimeWatcherSession.getTrustedTime(false);
+					tt = TrustedTimeCache.INSTANCE.getCurrentTrustedTime();
+					if (tt == null) {
+					    tt = trustedTimeWatcherSession.getTrustedTime(false);
+					}
 	                securityEventsLoggerSession.log(tt, EventTypes.ACCESS_CONTROL, EventStatus.SUCCESS, ModuleTypes.ACCESSCONTROL, ServiceTypes.CORE,
 	                        authenticationToken.toString(), null, null, null, details);
 				} catch (TrustedTimeProviderException e) {
@@ -105,9 +109,7 @@ public class AccessControlSessionBean implements AccessControlSessionLocal, Acce
         if (log.isTraceEnabled()) {
             log.trace("forceCacheExpire");
         }
-        if (accessTreeCache != null) {
-            accessTreeCache.forceCacheExpire();
-        }
+        accessTreeCache.forceCacheExpire();
     }
 
     /**
@@ -118,14 +120,18 @@ public class AccessControlSessionBean implements AccessControlSessionLocal, Acce
     private boolean updateNeccessary() {
         boolean ret = false;
         // Only do the actual SQL query if we might update the configuration due to cache time anyhow
-        if (accessTreeCache == null) {
+        if (accessTreeCache.getAccessTree() == null) {
             ret = true;
         } else if (accessTreeCache.needsUpdate()) {
-            ret = accessTreeUpdateSession.getAccessTreeUpdateData().updateNeccessary(accessTreeCache.getAccessTreeUpdateNumber());
-            // we don't want to run the above query often
+            final int accessTreeUpdateNumber = accessTreeUpdateSession.getAccessTreeUpdateNumber();
+            ret = accessTreeUpdateNumber != accessTreeCache.getAccessTreeUpdateNumber();
+            if (!ret) {
+                // we don't want to run the above query often
+                accessTreeCache.updateChecked(accessTreeUpdateNumber);
+            }
         }
         if (log.isTraceEnabled()) {
-            log.trace("updateNeccessary: " + false);
+            log.trace("updateNeccessary: " + ret);
         }
         return ret;
     }
@@ -137,12 +143,15 @@ public class AccessControlSessionBean implements AccessControlSessionLocal, Acce
         if (log.isTraceEnabled()) {
             log.trace(">updateAuthorizationTree");
         }
-        final int authorizationtreeupdatenumber = accessTreeUpdateSession.getAccessTreeUpdateData().getAccessTreeUpdateNumber();
-        if (accessTreeCache == null) {
-            accessTreeCache = new AccessTreeCache();
+        // If another thread is rebuilding the tree, use the current one meanwhile
+        if (accessTreeCache.beginUpdate()) {
+            try {
+                final int authorizationtreeupdatenumber = accessTreeUpdateSession.getAccessTreeUpdateNumber();
+                accessTreeCache.updateAccessTree(roleAccessSession.getAllRoles(), authorizationtreeupdatenumber);
+            } finally {
+                accessTreeCache.endUpdate();
+            }
         }
-
-        accessTreeCache.updateAccessTree(roleAccessSession.getAllRoles(), authorizationtreeupdatenumber);
         if (log.isTraceEnabled()) {
             log.trace("<updateAuthorizationTree");
         }
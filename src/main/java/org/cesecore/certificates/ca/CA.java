@@ -16,6 +16,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.security.KeyPair;
@@ -48,6 +49,7 @@ import org.cesecore.certificates.ca.extendedservices.IllegalExtendedCAServiceReq
 import org.cesecore.certificates.ca.internal.CATokenCacheManager;
 import org.cesecore.certificates.certificateprofile.CertificateProfile;
 import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.crl.UnsignedCrl;
 import org.cesecore.certificates.endentity.EndEntityInformation;
 import org.cesecore.certificates.util.AlgorithmConstants;
 import org.cesecore.internal.InternalResources;
@@ -737,6 +739,19 @@ public abstract class CA extends UpgradeableDataHashMap implements Serializable
 
     public abstract CRL generateDeltaCRL(Collection<RevokedCertInfo> certs, int crlnumber, int basecrlnumber) throws Exception;
 
+    /**
+     * Encodes a CRL without holding all its entries in memory at once, for CAs with very many revoked certificates. The CRL is signed afterwards
+     * with {@link UnsignedCrl#sign(OutputStream)}, which does not read the entries again.
+     * 
+     * @param certs the revoked certificates to include, read once
+     * @param crlnumber CRLNumber for this CRL
+     * @return the CRL to sign, or null if this type of CA does not issue CRLs
+     */
+    public abstract UnsignedCrl encodeCRL(Iterator<RevokedCertInfo> certs, int crlnumber) throws Exception;
+
+    /** Same as {@link #encodeCRL(Iterator, int)} for a delta CRL with the given base CRL number. */
+    public abstract UnsignedCrl encodeDeltaCRL(Iterator<RevokedCertInfo> certs, int crlnumber, int basecrlnumber) throws Exception;
+
     public abstract byte[] createPKCS7(Certificate cert, boolean includeChain) throws SignRequestSignatureException;
 
     /**
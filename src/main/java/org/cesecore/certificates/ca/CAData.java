@@ -38,6 +38,7 @@ import org.cesecore.keys.token.IllegalCryptoTokenException;
 import org.cesecore.util.Base64GetHashMap;
 import org.cesecore.util.Base64PutHashMap;
 import org.cesecore.util.CertTools;
+import org.cesecore.util.MapSerializer;
 import org.cesecore.util.QueryResultWrapper;
 
 /**
@@ -217,9 +218,7 @@ public class CAData extends ProtectedData implements Serializable {
 
     private CA readAndUpgradeCAFromDatabase()
     throws UnsupportedEncodingException, IllegalCryptoTokenException {
-    	final java.beans.XMLDecoder decoder = new  java.beans.XMLDecoder(new java.io.ByteArrayInputStream(getData().getBytes("UTF8")));
-    	final Map h = (Map)decoder.readObject();
-    	decoder.close();
+    	final Map h = (Map)MapSerializer.decode(getData());
     	// Handle Base64 encoded string values
     	final LinkedHashMap<Object, Object> data = new Base64GetHashMap(h);
 
@@ -254,12 +253,7 @@ public class CAData extends ProtectedData implements Serializable {
         // We must base64 encode string for UTF safety
 		final LinkedHashMap a = new Base64PutHashMap();
         a.putAll((LinkedHashMap)ca.saveData());
-        
-        final java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-        final java.beans.XMLEncoder encoder = new java.beans.XMLEncoder(baos);
-        encoder.writeObject(a);
-        encoder.close();
-        final String data = baos.toString("UTF8");
+        final String data = MapSerializer.encode(a);
         if (log.isDebugEnabled()) {
         	log.debug("Saving CA data with length: "+data.length()+" for CA '"+ca.getName()+"'.");
         }
@@ -335,7 +329,17 @@ public class CAData extends ProtectedData implements Serializable {
 		final Query query = entityManager.createQuery("SELECT a.caId FROM CAData a");
 		return query.getResultList();
 	}
-	
+
+	/**
+	 * Fetch the columns needed to see if cached CAs are up to date, without reading the CA data.
+	 *
+	 * @return [0] = (Integer) caId, [1] = updateTime, [2] = status, [3] = expireTime, [4] = (String) name, [5] = (String) subjectDN
+	 */
+	public static List<Object[]> findAllUpdateInfo(final EntityManager entityManager) {
+		final Query query = entityManager.createQuery("SELECT a.caId, a.updateTime, a.status, a.expireTime, a.name, a.subjectDN FROM CAData a");
+		return query.getResultList();
+	}
+
 	//
 	// Start Database integrity protection methods
 	//
@@ -44,6 +44,7 @@ import org.cesecore.certificates.certificate.CertificateConstants;
 import org.cesecore.certificates.certificate.request.RequestMessageUtils;
 import org.cesecore.certificates.certificateprofile.CertificateProfile;
 import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.crl.UnsignedCrl;
 import org.cesecore.certificates.endentity.EndEntityInformation;
 import org.cesecore.internal.InternalResources;
 import org.cesecore.keys.token.CryptoToken;
@@ -485,6 +486,18 @@ public class CVCCA extends CA implements Serializable {
         return null;
     }
 
+    public UnsignedCrl encodeCRL(Iterator<RevokedCertInfo> certs, int crlnumber) {
+        String msg = intres.getLocalizedMessage("signsession.nocrlcreate", "CVC");
+        log.info(msg);
+        return null;
+    }
+
+    public UnsignedCrl encodeDeltaCRL(Iterator<RevokedCertInfo> certs, int crlnumber, int basecrlnumber) {
+        String msg = intres.getLocalizedMessage("signsession.nocrlcreate", "CVC");
+        log.info(msg);
+        return null;
+    }
+
 	/** Implementation of UpgradableDataHashMap function getLatestVersion */
 	public float getLatestVersion(){
 		return LATEST_VERSION;
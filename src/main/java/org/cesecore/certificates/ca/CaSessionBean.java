@@ -21,6 +21,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -57,6 +58,7 @@ import org.cesecore.keys.token.CryptoToken;
 import org.cesecore.keys.token.IllegalCryptoTokenException;
 import org.cesecore.util.CertTools;
 import org.cesecore.util.CryptoProviderTools;
+import org.cesecore.util.ValueExtractor;
 
 /**
  * Implementation of CaSession, i.e takes care of all CA related CRUD operations.
@@ -413,7 +415,12 @@ public class CaSessionBean implements CaSessionLocal, CaSessionRemote {
 	    // This should only be done if we have enabled caching, meaning that
 	    // we will not update the CA values until cache time expires
 	    CA ca = null;
-	    if (CACacheHelper.getLastCACacheUpdateTime() + CesecoreConfiguration.getCacheCaTimeInCaSession() > System.currentTimeMillis()) {
+	    final boolean cacheExpired = CACacheHelper.getLastCACacheUpdateTime() + CesecoreConfiguration.getCacheCaTimeInCaSession() <= System.currentTimeMillis();
+	    if (cacheExpired && fromCache) {
+	        // Check which CAs have been updated by any other cluster nodes, without reading the CA data of all of them
+	        refreshCACache();
+	    }
+	    if (!cacheExpired || fromCache) {
 	        if (caid != -1) {
 	            ca = CACacheManager.instance().getCA(caid);
 	        } else {
@@ -451,6 +458,23 @@ public class CaSessionBean implements CaSessionLocal, CaSessionRemote {
 	    return ca;
 	}
 
+	/**
+	 * Compares the update time of the cached CAs with the update time in the database, and removes the CAs that have been updated or removed
+	 * from the cache. Only a few columns of each CA are read, so that CAs that have not been updated are not read from the database again.
+	 */
+	private void refreshCACache() {
+	    final List<Object[]> updateInfos = CAData.findAllUpdateInfo(entityManager);
+	    final Collection<Integer> caids = new ArrayList<Integer>(updateInfos.size());
+	    for (final Object[] updateInfo : updateInfos) {
+	        final int id = ValueExtractor.extractIntValue(updateInfo[0]);
+	        CACacheManager.instance().refreshCA(id, ValueExtractor.extractLongValue(updateInfo[1]), ValueExtractor.extractIntValue(updateInfo[2]),
+	                ValueExtractor.extractLongValue(updateInfo[3]), (String) updateInfo[4], (String) updateInfo[5]);
+	        caids.add(Integer.valueOf(id));
+	    }
+	    CACacheManager.instance().retainCAs(caids);
+	    CACacheHelper.setLastCACacheUpdateTime(System.currentTimeMillis());
+	}
+
 	/**
 	 * Internal method that get CA info, and optionally performs a sign test
 	 * with the CAs test signing key.
@@ -0,0 +1,213 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ca;
+
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.x509.X509ExtensionsGenerator;
+import org.cesecore.certificates.certificate.certextensions.CertificateExtension;
+import org.cesecore.certificates.certificate.certextensions.CertificateExtensionException;
+import org.cesecore.certificates.certificate.certextensions.CertificateExtensionFactory;
+import org.cesecore.certificates.certificate.certextensions.CertificateExtentionConfigurationException;
+import org.cesecore.certificates.certificateprofile.CertificateProfile;
+import org.cesecore.certificates.endentity.EndEntityInformation;
+
+/**
+ * The certificate extensions that an X509 CA adds to the certificates it issues with one version of a certificate profile, worked out once
+ * instead of for every certificate.
+ *
+ * The plan holds the standard and custom extensions of the profile in the order they are added to the certificate. Extensions whose value
+ * is the same for all certificates (see {@link CertificateExtension#isSameForAllCertificates()}) are encoded when the plan is created, the
+ * other extensions are encoded for each certificate. A plan is immutable and can be used by several threads at once, it is only used as long
+ * as the profile, the CA public key and the CA settings that the extensions depend on are the same as when it was created.
+ *
+ * @version $Id$
+ */
+final class CertificateIssuancePlan {
+
+    private static final Logger log = Logger.getLogger(CertificateIssuancePlan.class);
+
+    /** An extension of the plan */
+    private static final class PlannedExtension {
+        /** The oid as written in the certificate profile, used to see if the extension has been overridden */
+        private final String oid;
+        private final DERObjectIdentifier derOid;
+        private final boolean critical;
+        private final CertificateExtension extension;
+        /** True if the value is the same for all certificates */
+        private final boolean precomputed;
+        /** The encoded value if precomputed, null if the extension is not added */
+        private final byte[] value;
+
+        private PlannedExtension(final String oid, final CertificateExtension extension, final boolean precomputed, final byte[] value) {
+            this.oid = oid;
+            this.derOid = new DERObjectIdentifier(extension.getOID());
+            this.critical = extension.isCriticalFlag();
+            this.extension = extension;
+            this.precomputed = precomputed;
+            this.value = value;
+        }
+    }
+
+    /** Our own copy of the profile, so changes made to the profile object of the caller are seen */
+    private final CertificateProfile certProfile;
+    private final int settingsHashCode;
+    private final PublicKey caPublicKey;
+    private final Certificate caCertificate;
+    private final String defaultCRLDistPoint;
+    private final String defaultCRLIssuer;
+    private final String caDefinedFreshestCRL;
+    private final String defaultOCSPServiceLocator;
+    private final boolean useUTF8PolicyText;
+    private final List<PlannedExtension> standardExtensions;
+    private final List<PlannedExtension> customExtensions;
+
+    /**
+     * Works out the extensions of certificates issued by the CA with the certificate profile.
+     *
+     * @param ca the issuing CA
+     * @param certProfile the certificate profile, it is copied so it can be changed afterwards
+     * @param caPublicKey the public key of the CA that the certificates are signed with
+     */
+    CertificateIssuancePlan(final X509CA ca, final CertificateProfile certProfile, final PublicKey caPublicKey) {
+        try {
+            this.certProfile = (CertificateProfile) certProfile.clone();
+        } catch (CloneNotSupportedException e) {
+            // Fatal, CertificateProfile implements clone
+            throw new IllegalStateException(e);
+        }
+        this.settingsHashCode = certProfile.getSettingsHashCode();
+        this.caPublicKey = caPublicKey;
+        this.caCertificate = ca.getCACertificate();
+        this.defaultCRLDistPoint = ca.getDefaultCRLDistPoint();
+        this.defaultCRLIssuer = ca.getDefaultCRLIssuer();
+        this.caDefinedFreshestCRL = ca.getCADefinedFreshestCRL();
+        this.defaultOCSPServiceLocator = ca.getDefaultOCSPServiceLocator();
+        this.useUTF8PolicyText = ca.getUseUTF8PolicyText();
+
+        // Standard certificate extensions are defined in CertificateProfile and CertificateExtensionFactory
+        // and implemented in package org.cesecore.certificates.certificate.certextensions.standard
+        final CertificateExtensionFactory fact = CertificateExtensionFactory.getInstance();
+        final List<PlannedExtension> standard = new ArrayList<PlannedExtension>();
+        for (final String oid : this.certProfile.getUsedStandardCertificateExtensions()) {
+            final CertificateExtension certExt = fact.getStandardCertificateExtension(oid, this.certProfile);
+            if (certExt != null) {
+                standard.add(plan(oid, certExt, ca));
+            }
+        }
+        this.standardExtensions = Collections.unmodifiableList(standard);
+        // Custom certificate extensions are defined in certextensions.properties
+        final List<PlannedExtension> custom = new ArrayList<PlannedExtension>();
+        for (final Integer id : this.certProfile.getUsedCertificateExtensions()) {
+            final CertificateExtension certExt = fact.getCertificateExtensions(id);
+            if (certExt != null) {
+                custom.add(plan(certExt.getOID(), certExt, ca));
+            }
+        }
+        this.customExtensions = Collections.unmodifiableList(custom);
+    }
+
+    private PlannedExtension plan(final String oid, final CertificateExtension certExt, final X509CA ca) {
+        if (certExt.isSameForAllCertificates()) {
+            try {
+                return new PlannedExtension(oid, certExt, true, certExt.getValueEncoded(null, ca, certProfile, null, caPublicKey));
+            } catch (CertificateExtensionException e) {
+                // Encode it for every certificate instead, so the error is reported when a certificate is issued, as always
+                if (log.isDebugEnabled()) {
+                    log.debug("Could not encode extension with oid " + oid + " in advance: " + e.getMessage());
+                }
+            } catch (CertificateExtentionConfigurationException e) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Could not encode extension with oid " + oid + " in advance: " + e.getMessage());
+                }
+            }
+        }
+        return new PlannedExtension(oid, certExt, false, null);
+    }
+
+    /**
+     * @param ca the issuing CA
+     * @param certProfile the certificate profile to issue a certificate with
+     * @param settingsHashCode the settings hash code of certProfile, see {@link CertificateProfile#getSettingsHashCode()}
+     * @param caPublicKey the public key of the CA that the certificate is signed with
+     * @return true if this plan gives the same extensions as working them out from the profile and the CA
+     */
+    boolean isValidFor(final X509CA ca, final CertificateProfile certProfile, final int settingsHashCode, final PublicKey caPublicKey) {
+        // Link certificates are signed with the previous key, so the key has to be the same object
+        return this.caPublicKey == caPublicKey && this.settingsHashCode == settingsHashCode && this.caCertificate == ca.getCACertificate()
+                && this.useUTF8PolicyText == ca.getUseUTF8PolicyText() && StringUtils.equals(this.defaultCRLDistPoint, ca.getDefaultCRLDistPoint())
+                && StringUtils.equals(this.defaultCRLIssuer, ca.getDefaultCRLIssuer())
+                && StringUtils.equals(this.caDefinedFreshestCRL, ca.getCADefinedFreshestCRL())
+                && StringUtils.equals(this.defaultOCSPServiceLocator, ca.getDefaultOCSPServiceLocator())
+                && this.certProfile.hasSameSettings(certProfile);
+    }
+
+    /**
+     * Adds the standard and the custom extensions of the profile to a certificate, in the order they are defined in the profile.
+     *
+     * @param extgen the extensions of the certificate
+     * @param overriddenOids the oids of extensions that have been taken from the request and should not be added
+     * @param subject the end entity that the certificate is issued to
+     * @param ca the issuing CA
+     * @param certProfile the certificate profile
+     * @param publicKey the public key of the end entity
+     * @param caPublicKey the public key of the CA that the certificate is signed with
+     */
+    void addExtensions(final X509ExtensionsGenerator extgen, final Set<String> overriddenOids, final EndEntityInformation subject, final X509CA ca,
+            final CertificateProfile certProfile, final PublicKey publicKey, final PublicKey caPublicKey) throws CertificateExtensionException,
+            CertificateExtentionConfigurationException {
+        for (final PlannedExtension planned : standardExtensions) {
+            // We don't want to try to add standard extensions with the same oid if we have already added them
+            // from the request, if AllowExtensionOverride is enabled.
+            // Two extensions with the same oid is not allowed in the standard.
+            if (overriddenOids.contains(planned.oid)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Extension with oid " + planned.oid + " has been overridden, standard extension will not be added.");
+                }
+            } else {
+                addExtension(extgen, planned, subject, ca, certProfile, publicKey, caPublicKey);
+            }
+        }
+        for (final PlannedExtension planned : customExtensions) {
+            if (overriddenOids.contains(planned.oid)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Extension with oid " + planned.oid + " has been overridden, custom extension will not be added.");
+                }
+            } else {
+                addExtension(extgen, planned, subject, ca, certProfile, publicKey, caPublicKey);
+            }
+        }
+    }
+
+    private void addExtension(final X509ExtensionsGenerator extgen, final PlannedExtension planned, final EndEntityInformation subject,
+            final X509CA ca, final CertificateProfile certProfile, final PublicKey publicKey, final PublicKey caPublicKey)
+            throws CertificateExtensionException, CertificateExtentionConfigurationException {
+        final byte[] value;
+        if (planned.precomputed) {
+            value = planned.value;
+        } else {
+            value = planned.extension.getValueEncoded(subject, ca, certProfile, publicKey, caPublicKey);
+        }
+        if (value != null) {
+            extgen.addExtension(planned.derOid, planned.critical, value);
+        }
+    }
+}
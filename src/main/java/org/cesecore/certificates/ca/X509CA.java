@@ -41,8 +41,10 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
@@ -65,6 +67,8 @@ import org.bouncycastle.asn1.x509.GeneralName;
 import org.bouncycastle.asn1.x509.GeneralNames;
 import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
 import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V2TBSCertListGenerator;
 import org.bouncycastle.asn1.x509.X509DefaultEntryConverter;
 import org.bouncycastle.asn1.x509.X509Extension;
 import org.bouncycastle.asn1.x509.X509Extensions;
@@ -82,6 +86,7 @@ import org.bouncycastle.cms.RecipientInformation;
 import org.bouncycastle.cms.RecipientInformationStore;
 import org.bouncycastle.jce.PKCS10CertificationRequest;
 import org.bouncycastle.jce.X509KeyUsage;
+import org.bouncycastle.jce.X509Principal;
 import org.bouncycastle.util.encoders.Hex;
 import org.bouncycastle.x509.X509V2CRLGenerator;
 import org.bouncycastle.x509.X509V3CertificateGenerator;
@@ -94,15 +99,17 @@ import org.cesecore.certificates.ca.internal.CertificateValidity;
 import org.cesecore.certificates.ca.internal.SernoGeneratorRandom;
 import org.cesecore.certificates.certificate.CertificateConstants;
 import org.cesecore.certificates.certificate.CertificateCreateException;
-import org.cesecore.certificates.certificate.certextensions.CertificateExtension;
-import org.cesecore.certificates.certificate.certextensions.CertificateExtensionFactory;
 import org.cesecore.certificates.certificateprofile.CertificatePolicy;
 import org.cesecore.certificates.certificateprofile.CertificateProfile;
 import org.cesecore.certificates.certificateprofile.CertificateProfileConstants;
+import org.cesecore.certificates.crl.CRLInfo;
 import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.crl.StreamingCrlGenerator;
+import org.cesecore.certificates.crl.UnsignedCrl;
 import org.cesecore.certificates.endentity.EndEntityInformation;
 import org.cesecore.certificates.endentity.ExtendedInformation;
 import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.certificates.util.AlgorithmTools;
 import org.cesecore.certificates.util.dn.PrintableStringEntryConverter;
 import org.cesecore.internal.InternalResources;
 import org.cesecore.keys.token.CryptoTokenOfflineException;
@@ -134,6 +141,11 @@ public class X509CA extends CA implements Serializable {
     /** key ID used for identifier of key used for key recovery encryption */
     private byte[] keyId = new byte[] { 1, 2, 3, 4, 5 };
 
+    /** The maximum number of certificate profiles that issuance plans are kept for */
+    private static final int MAX_ISSUANCE_PLANS = 32;
+    /** Issuance plans of the certificate profiles used lately, most recently created first. Replaced, never changed, when a plan is added. */
+    private transient volatile List<CertificateIssuancePlan> issuancePlans;
+
     // protected fields for properties specific to this type of CA.
     protected static final String POLICIES = "policies";
     protected static final String SUBJECTALTNAME = "subjectaltname";
@@ -684,6 +696,7 @@ public class X509CA extends CA implements Serializable {
 
         // First we check if there is general extension override, and add all extensions from
         // the request in that case
+        final Set<String> overriddenOids = new HashSet<String>();
         if (certProfile.getAllowExtensionOverride() && extensions != null) {
             @SuppressWarnings("rawtypes")
             Enumeration en = extensions.oids();
@@ -694,11 +707,11 @@ public class X509CA extends CA implements Serializable {
                     log.debug("Overriding extension with oid: " + oid);
                 }
                 extgen.addExtension(oid, ext.isCritical(), ext.getValue().getOctets());
+                overriddenOids.add(oid.getId());
             }
         }
 
         // Second we see if there is Key usage override
-        X509Extensions overridenexts = extgen.generate();
         if (certProfile.getAllowKeyUsageOverride() && (keyusage >= 0)) {
             if (log.isDebugEnabled()) {
                 log.debug("AllowKeyUsageOverride=true. Using KeyUsage from parameter: " + keyusage);
@@ -708,8 +721,9 @@ public class X509CA extends CA implements Serializable {
                 // We don't want to try to add custom extensions with the same oid if we have already added them
                 // from the request, if AllowExtensionOverride is enabled.
                 // Two extensions with the same oid is not allowed in the standard.
-                if (overridenexts.getExtension(X509Extensions.KeyUsage) == null) {
+                if (!overriddenOids.contains(X509Extensions.KeyUsage.getId())) {
                     extgen.addExtension(X509Extensions.KeyUsage, certProfile.getKeyUsageCritical(), ku);
+                    overriddenOids.add(X509Extensions.KeyUsage.getId());
                 } else {
                     if (log.isDebugEnabled()) {
                         log.debug("KeyUsage was already overridden by an extension, not using KeyUsage from parameter.");
@@ -718,57 +732,10 @@ public class X509CA extends CA implements Serializable {
             }
         }
 
-        // Third, check for standard Certificate Extensions that should be added.
-        // Standard certificate extensions are defined in CertificateProfile and CertificateExtensionFactory
-        // and implemented in package org.ejbca.core.model.certextensions.standard
-        CertificateExtensionFactory fact = CertificateExtensionFactory.getInstance();
-        List<String> usedStdCertExt = certProfile.getUsedStandardCertificateExtensions();
-        Iterator<String> certStdExtIter = usedStdCertExt.iterator();
-        overridenexts = extgen.generate();
-        while (certStdExtIter.hasNext()) {
-            String oid = certStdExtIter.next();
-            // We don't want to try to add standard extensions with the same oid if we have already added them
-            // from the request, if AllowExtensionOverride is enabled.
-            // Two extensions with the same oid is not allowed in the standard.
-            if (overridenexts.getExtension(new DERObjectIdentifier(oid)) == null) {
-                CertificateExtension certExt = fact.getStandardCertificateExtension(oid, certProfile);
-                if (certExt != null) {
-                    byte[] value = certExt.getValueEncoded(subject, this, certProfile, publicKey, caPublicKey);
-                    if (value != null) {
-                        extgen.addExtension(new DERObjectIdentifier(certExt.getOID()), certExt.isCriticalFlag(), value);
-                    }
-                }
-            } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("Extension with oid " + oid + " has been overridden, standard extension will not be added.");
-                }
-            }
-        }
-
-        // Fourth, check for custom Certificate Extensions that should be added.
-        // Custom certificate extensions is defined in certextensions.properties
-        fact = CertificateExtensionFactory.getInstance();
-        List<Integer> usedCertExt = certProfile.getUsedCertificateExtensions();
-        Iterator<Integer> certExtIter = usedCertExt.iterator();
-        while (certExtIter.hasNext()) {
-            Integer id = certExtIter.next();
-            CertificateExtension certExt = fact.getCertificateExtensions(id);
-            if (certExt != null) {
-                // We don't want to try to add custom extensions with the same oid if we have already added them
-                // from the request, if AllowExtensionOverride is enabled.
-                // Two extensions with the same oid is not allowed in the standard.
-                if (overridenexts.getExtension(new DERObjectIdentifier(certExt.getOID())) == null) {
-                    byte[] value = certExt.getValueEncoded(subject, this, certProfile, publicKey, caPublicKey);
-                    if (value != null) {
-                        extgen.addExtension(new DERObjectIdentifier(certExt.getOID()), certExt.isCriticalFlag(), value);
-                    }
-                } else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Extension with oid " + certExt.getOID() + " has been overridden, custom extension will not be added.");
-                    }
-                }
-            }
-        }
+        // Third and fourth, add the standard Certificate Extensions defined in CertificateProfile and CertificateExtensionFactory,
+        // and the custom Certificate Extensions defined in certextensions.properties, that have not been overridden.
+        // The extensions that are the same for all certificates of the profile are only encoded when the profile or the CA changes.
+        getIssuancePlan(certProfile, caPublicKey).addExtensions(extgen, overriddenOids, subject, this, certProfile, publicKey, caPublicKey);
 
         // Finally add extensions to certificate generator
         X509Extensions exts = extgen.generate();
@@ -827,6 +794,33 @@ public class X509CA extends CA implements Serializable {
         return cert;
     }
 
+    /**
+     * @return the issuance plan for certificates issued with the profile and CA key, created if there is no plan for the current settings
+     */
+    private CertificateIssuancePlan getIssuancePlan(final CertificateProfile certProfile, final PublicKey caPublicKey) {
+        final int settingsHashCode = certProfile.getSettingsHashCode();
+        final List<CertificateIssuancePlan> plans = issuancePlans;
+        if (plans != null) {
+            for (final CertificateIssuancePlan plan : plans) {
+                if (plan.isValidFor(this, certProfile, settingsHashCode, caPublicKey)) {
+                    return plan;
+                }
+            }
+        }
+        final CertificateIssuancePlan plan = new CertificateIssuancePlan(this, certProfile, caPublicKey);
+        // If two threads add a plan at the same time one of them is lost, it will be created again the next time it is needed
+        final List<CertificateIssuancePlan> newPlans = new ArrayList<CertificateIssuancePlan>(MAX_ISSUANCE_PLANS);
+        newPlans.add(plan);
+        if (plans != null) {
+            newPlans.addAll(plans.subList(0, Math.min(plans.size(), MAX_ISSUANCE_PLANS - 1)));
+        }
+        issuancePlans = newPlans;
+        if (log.isDebugEnabled()) {
+            log.debug("Created certificate issuance plan for CA " + getCAId() + ", " + newPlans.size() + " plans cached.");
+        }
+        return plan;
+    }
+
     public CRL generateCRL(Collection<RevokedCertInfo> certs, int crlnumber) throws CryptoTokenOfflineException, IllegalCryptoTokenException,
             IOException, SignatureException, NoSuchProviderException, InvalidKeyException, CRLException, NoSuchAlgorithmException {
         return generateCRL(certs, getCRLPeriod(), crlnumber, false, 0);
@@ -838,6 +832,61 @@ public class X509CA extends CA implements Serializable {
         return generateCRL(certs, getDeltaCRLPeriod(), crlnumber, true, basecrlnumber);
     }
 
+    @Override
+    public UnsignedCrl encodeCRL(Iterator<RevokedCertInfo> certs, int crlnumber) throws CryptoTokenOfflineException, IllegalCryptoTokenException,
+            IOException, SignatureException, NoSuchProviderException, InvalidKeyException, CRLException, NoSuchAlgorithmException {
+        return encodeCRL(certs, getCRLPeriod(), crlnumber, false, 0);
+    }
+
+    @Override
+    public UnsignedCrl encodeDeltaCRL(Iterator<RevokedCertInfo> certs, int crlnumber, int basecrlnumber) throws CryptoTokenOfflineException,
+            IllegalCryptoTokenException, IOException, SignatureException, NoSuchProviderException, InvalidKeyException, CRLException,
+            NoSuchAlgorithmException {
+        return encodeCRL(certs, getDeltaCRLPeriod(), crlnumber, true, basecrlnumber);
+    }
+
+    /**
+     * Encode a CRL or a deltaCRL, writing the entries as they are read from certs instead of adding them all to the CRL generator. The issuer,
+     * dates and extensions are the same as {@link #generateCRL(Collection, long, int, boolean, int)} puts in the CRL, but nothing is signed until
+     * the returned CRL is.
+     * 
+     * @return the CRL, to be signed
+     */
+    private UnsignedCrl encodeCRL(Iterator<RevokedCertInfo> certs, long crlPeriod, int crlnumber, boolean isDeltaCRL, int basecrlnumber)
+            throws CryptoTokenOfflineException, IllegalCryptoTokenException, IOException, CRLException {
+        final String sigAlg = getCAInfo().getCATokenInfo().getSignatureAlgorithm();
+        // Dates with the precision they get in the CRL, for the CRLInfo
+        final Time thisUpdate = new Time(new Date());
+        final Time nextUpdate = new Time(new Date(thisUpdate.getDate().getTime() + crlPeriod));
+        final X509Name issuer = getCRLIssuer();
+        final V2TBSCertListGenerator tbsgen = new V2TBSCertListGenerator();
+        tbsgen.setSignature(AlgorithmTools.getSignatureAlgorithmIdentifier(sigAlg));
+        tbsgen.setIssuer(issuer);
+        tbsgen.setThisUpdate(thisUpdate);
+        tbsgen.setNextUpdate(nextUpdate);
+        final X509ExtensionsGenerator extgen = getCRLExtensions(crlnumber, isDeltaCRL, basecrlnumber);
+        if (!extgen.isEmpty()) {
+            tbsgen.setExtensions(extgen.generate());
+        }
+        final StreamingCrlGenerator generator = new StreamingCrlGenerator(tbsgen.generateTBSCertList(), sigAlg);
+        boolean encoded = false;
+        try {
+            final int count = generator.writeEntries(certs);
+            if (log.isDebugEnabled()) {
+                log.debug("Encoded CRL number " + crlnumber + " with " + count + " entries.");
+            }
+            final UnsignedCrl ret = new UnsignedCrl(generator, getCAToken().getPrivateKey(CATokenConstants.CAKEYPURPOSE_CRLSIGN),
+                    getCAToken().getPublicKey(CATokenConstants.CAKEYPURPOSE_CRLSIGN), getCAToken().getCryptoToken().getSignProviderName(),
+                    new CRLInfo(issuer.toString(), crlnumber, thisUpdate.getDate().getTime(), nextUpdate.getDate().getTime()));
+            encoded = true;
+            return ret;
+        } finally {
+            if (!encoded) {
+                generator.close();
+            }
+        }
+    }
+
     /**
      * Generate a CRL or a deltaCRL
      * 
@@ -877,7 +926,35 @@ public class X509CA extends CA implements Serializable {
         crlgen.setThisUpdate(thisUpdate);
         crlgen.setNextUpdate(nextUpdate);
         crlgen.setSignatureAlgorithm(sigAlg);
-        // Make DNs
+        crlgen.setIssuerDN(getCRLIssuer());
+        if (certs != null) {
+            Iterator<RevokedCertInfo> it = certs.iterator();
+            while (it.hasNext()) {
+                RevokedCertInfo certinfo = (RevokedCertInfo) it.next();
+                crlgen.addCRLEntry(certinfo.getUserCertificate(), certinfo.getRevocationDate(), certinfo.getReason());
+            }
+        }
+        final X509ExtensionsGenerator extgen = getCRLExtensions(crlnumber, isDeltaCRL, basecrlnumber);
+        if (!extgen.isEmpty()) {
+            final X509Extensions exts = extgen.generate();
+            final Enumeration<?> oids = exts.oids();
+            while (oids.hasMoreElements()) {
+                final DERObjectIdentifier oid = (DERObjectIdentifier) oids.nextElement();
+                final X509Extension ext = exts.getExtension(oid);
+                crlgen.addExtension(oid, ext.isCritical(), ext.getValue().getOctets());
+            }
+        }
+
+        X509CRL crl;
+        crl = crlgen.generate(getCAToken().getPrivateKey(CATokenConstants.CAKEYPURPOSE_CRLSIGN), getCAToken().getCryptoToken().getSignProviderName());
+        // Verify before sending back
+        crl.verify(getCAToken().getPublicKey(CATokenConstants.CAKEYPURPOSE_CRLSIGN));
+
+        return crl;
+    }
+
+    /** @return the issuer name of CRLs, the subject of the CA certificate */
+    private X509Name getCRLIssuer() throws IOException {
         X509Certificate cacert = (X509Certificate) getCACertificate();
         if (cacert == null) {
             // This is an initial root CA, since no CA-certificate exists
@@ -889,36 +966,40 @@ public class X509CA extends CA implements Serializable {
                 converter = new X509DefaultEntryConverter();
             }
 
-            X509Name caname = CertTools.stringToBcX509Name(getSubjectDN(), converter, getUseLdapDNOrder());
-            crlgen.setIssuerDN(caname);
-        } else {
-            crlgen.setIssuerDN(cacert.getSubjectX500Principal());
-        }
-        if (certs != null) {
-            Iterator<RevokedCertInfo> it = certs.iterator();
-            while (it.hasNext()) {
-                RevokedCertInfo certinfo = (RevokedCertInfo) it.next();
-                crlgen.addCRLEntry(certinfo.getUserCertificate(), certinfo.getRevocationDate(), certinfo.getReason());
-            }
+            return CertTools.stringToBcX509Name(getSubjectDN(), converter, getUseLdapDNOrder());
         }
+        return new X509Principal(cacert.getSubjectX500Principal().getEncoded());
+    }
 
+    /**
+     * @param crlnumber
+     *            CRLNumber for this CRL
+     * @param isDeltaCRL
+     *            true for a DeltaCRL
+     * @param basecrlnumber
+     *            caseCRLNumber for a delta CRL, use 0 for full CRLs
+     * @return the extensions of a CRL, in the order they are put in the CRL
+     */
+    private X509ExtensionsGenerator getCRLExtensions(int crlnumber, boolean isDeltaCRL, int basecrlnumber) throws CryptoTokenOfflineException,
+            IllegalCryptoTokenException, IOException {
+        final X509ExtensionsGenerator extgen = new X509ExtensionsGenerator();
         // Authority key identifier
         if (getUseAuthorityKeyIdentifier() == true) {
             SubjectPublicKeyInfo apki = new SubjectPublicKeyInfo((ASN1Sequence) new ASN1InputStream(new ByteArrayInputStream(getCAToken()
                     .getPublicKey(CATokenConstants.CAKEYPURPOSE_CRLSIGN).getEncoded())).readObject());
             AuthorityKeyIdentifier aki = new AuthorityKeyIdentifier(apki);
-            crlgen.addExtension(X509Extensions.AuthorityKeyIdentifier.getId(), getAuthorityKeyIdentifierCritical(), aki);
+            extgen.addExtension(X509Extensions.AuthorityKeyIdentifier, getAuthorityKeyIdentifierCritical(), aki);
         }
         // CRLNumber extension
         if (getUseCRLNumber() == true) {
             CRLNumber crlnum = new CRLNumber(BigInteger.valueOf(crlnumber));
-            crlgen.addExtension(X509Extensions.CRLNumber.getId(), this.getCRLNumberCritical(), crlnum);
+            extgen.addExtension(X509Extensions.CRLNumber, this.getCRLNumberCritical(), crlnum);
         }
 
         if (isDeltaCRL) {
             // DeltaCRLIndicator extension
             CRLNumber basecrlnum = new CRLNumber(BigInteger.valueOf(basecrlnumber));
-            crlgen.addExtension(X509Extensions.DeltaCRLIndicator.getId(), true, basecrlnum);
+            extgen.addExtension(X509Extensions.DeltaCRLIndicator, true, basecrlnum);
         }
         // CRL Distribution point URI and Freshest CRL DP
         if (getUseCrlDistributionPointOnCrl()) {
@@ -932,7 +1013,7 @@ public class X509CA extends CA implements Serializable {
                 // According to the RFC, IDP must be a critical extension.
                 // Nonetheless, at the moment, Mozilla is not able to correctly
                 // handle the IDP extension and discards the CRL if it is critical.
-                crlgen.addExtension(X509Extensions.IssuingDistributionPoint.getId(), getCrlDistributionPointOnCrlCritical(), idp);
+                extgen.addExtension(X509Extensions.IssuingDistributionPoint, getCrlDistributionPointOnCrlCritical(), idp);
             }
 
             if (!isDeltaCRL) {
@@ -946,18 +1027,12 @@ public class X509CA extends CA implements Serializable {
                     // CRL must not be marked as critical. Therefore it is
                     // hardcoded as not critical and is independent of
                     // getCrlDistributionPointOnCrlCritical().
-                    crlgen.addExtension(X509Extensions.FreshestCRL.getId(), false, ext);
+                    extgen.addExtension(X509Extensions.FreshestCRL, false, ext);
                 }
 
             }
         }
-
-        X509CRL crl;
-        crl = crlgen.generate(getCAToken().getPrivateKey(CATokenConstants.CAKEYPURPOSE_CRLSIGN), getCAToken().getCryptoToken().getSignProviderName());
-        // Verify before sending back
-        crl.verify(getCAToken().getPublicKey(CATokenConstants.CAKEYPURPOSE_CRLSIGN));
-
-        return crl;
+        return extgen;
     }
 
     /**
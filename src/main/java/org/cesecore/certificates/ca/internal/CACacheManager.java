@@ -12,6 +12,8 @@
  *************************************************************************/
 package org.cesecore.certificates.ca.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -20,6 +22,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.cesecore.certificates.ca.CA;
 
@@ -171,6 +174,42 @@ public class CACacheManager {
         }
     }
 
+    /**
+     * Brings a cached CA up to date with the columns of the CA in the database, without reading the CA data. If the CA has been updated or
+     * renamed in the database it is removed, to be read again the next time it is needed.
+     *
+     * @param caid the id of the CA
+     * @param updateTime when the CA was last updated in the database
+     */
+    public synchronized void refreshCA(final int caid, final long updateTime, final int caStatus, final long caExpireTime, final String caName,
+            final String caSubjectDN) {
+        final CA ca = caRegistry.get(Integer.valueOf(caid));
+        if (ca != null) {
+            final Date cachedUpdateTime = ca.getCAInfo().getUpdateTime();
+            if (cachedUpdateTime == null || cachedUpdateTime.getTime() < updateTime || !StringUtils.equals(ca.getName(), caName)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("CA '" + ca.getName() + "' has been updated in database, need to refresh cache");
+                }
+                removeCA(caid);
+            } else {
+                getAndUpdateCA(caid, caStatus, caExpireTime, caName, caSubjectDN);
+            }
+        }
+    }
+
+    /**
+     * Removes all CAs that are not in the given collection, i.e. CAs that have been removed from the database.
+     *
+     * @param caids the ids of the CAs to keep
+     */
+    public synchronized void retainCAs(final Collection<Integer> caids) {
+        for (final Integer caid : new ArrayList<Integer>(caRegistry.keySet())) {
+            if (!caids.contains(caid)) {
+                removeCA(caid.intValue());
+            }
+        }
+    }
+
     public synchronized void removeAll() {
         caRegistry = new Hashtable<Integer, CA>();
         caNameToCaId = new HashMap<String, Integer>();
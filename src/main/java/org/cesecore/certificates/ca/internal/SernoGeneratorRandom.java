@@ -15,8 +15,14 @@ package org.cesecore.certificates.ca.internal;
 import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Date;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 import org.cesecore.config.CesecoreConfiguration;
@@ -25,6 +31,12 @@ import org.cesecore.internal.InternalResources;
 /**
  * Implements a singleton serial number generator using SecureRandom. This generator generates random 8 octec (64 bits) serial numbers.
  * 
+ * Threads that issue certificates at the same time should not wait for each other here, so there is no lock on the way to a serial number.
+ * There are a few SecureRandom instances, each seeded on its own, and each thread uses one of them. Optionally a pool of serial numbers is
+ * generated in advance by a background thread, and each of them is given to exactly one caller. Serial numbers are still random, so the same
+ * number can be generated twice, rarely with 8 octets. The unique index on CertificateData catches that, and the certificate is issued again
+ * with a new serial number.
+ * 
  * RFC3280 defines serialNumber be positive INTEGER, and X.690 defines INTEGER consist of one or more octets. X.690 also defines as follows:
  * 
  * If the contents octets of an integer value encoding consist of more than one octet, then the bits of the first octet and bit 8 of the second octet:
@@ -57,70 +69,50 @@ public class SernoGeneratorRandom implements SernoGenerator {
     /** Internal localization of logs and errors */
     private static final InternalResources intres = InternalResources.getInstance();
 
-    /** random generator algorithm, default SHA1PRNG */
-    private String algorithm = "SHA1PRNG";
-
-    /** number of bytes serial number to generate, default 8 */
-    private int noOctets = 8;
-
-    /** random generator */
-    private SecureRandom random;
+    /** Fills the pools of serial numbers. It has one thread at most, which goes away when it has had nothing to do for a while. */
+    private static final ThreadPoolExecutor refiller;
+    static {
+        refiller = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "Serial number generator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refiller.allowCoreThreadTimeOut(true);
+    }
 
     /** A handle to the unique Singleton instance. */
-    private static SernoGeneratorRandom instance = null;
+    private static volatile SernoGeneratorRandom instance = null;
 
-    /** lowest possible value we should deliver when getSerno is called */
-    private BigInteger lowest = new BigInteger("0080000000000000", 16);
-    /** highest possible value we should deliver when getSerno is called */
-    private BigInteger highest = new BigInteger("7FFFFFFFFFFFFFFF", 16);
+    /** number of serial numbers to generate in advance, 0 for none */
+    private final int poolSize;
+
+    /** The random generators and the settings they use, replaced as a whole when a setting is changed so getSerno never needs a lock */
+    private volatile Generators generators;
 
     /**
      * Creates a serial number generator using SecureRandom
      */
     protected SernoGeneratorRandom() throws NoSuchAlgorithmException {
-        log.trace(">SernoGenerator()");
-        this.algorithm = CesecoreConfiguration.getCaSerialNumberAlgorithm();
-        setSernoOctetSize(CesecoreConfiguration.getCaSerialNumberOctetSize());
-        init();
-        log.trace("<SernoGenerator()");
+        this(CesecoreConfiguration.getCaSerialNumberAlgorithm(), CesecoreConfiguration.getCaSerialNumberOctetSize(), CesecoreConfiguration
+                .getCaSerialNumberPoolSize());
     }
 
-    private void init() throws NoSuchAlgorithmException {
-        // Init random number generator for random serial numbers
-        random = SecureRandom.getInstance(algorithm);
-
-        // Using this seed we should get a different seed every time.
-        // We are not concerned about the security of the random bits, only that
-        // they are different every time.
-        // Extracting 64 bit random numbers out of this should give us 2^32 (4
-        // 294 967 296) serialnumbers before
-        // collisions (which are seriously BAD), well anyhow sufficient for
-        // pretty large scale installations.
-        // Design criteria: 1. No counter to keep track on. 2. Multiple threads
-        // can generate numbers at once, in
-        // a clustered environment etc.
-        long seed = Math.abs((new Date().getTime()) + this.hashCode());
-        random.setSeed(seed);
-
-        /*
-         * Another possibility is to use SecureRandom's default seeding which is
-         * designed to be secure: <p>The seed is produced by counting the
-         * number of times the VM manages to loop in a given period. This number
-         * roughly reflects the machine load at that point in time. The samples
-         * are translated using a permutation (s-box) and then XORed together.
-         * This process is non linear and should prevent the samples from
-         * "averaging out". The s-box was designed to have even statistical
-         * distribution; it's specific values are not crucial for the security
-         * of the seed. We also create a number of sleeper threads which add
-         * entropy to the system by keeping the scheduler busy. Twenty such
-         * samples should give us roughly 160 bits of randomness. <P> These
-         * values are gathered in the background by a daemon thread thus
-         * allowing the system to continue performing it's different activities,
-         * which in turn add entropy to the random seed. <p> The class also
-         * gathers miscellaneous system information, some machine dependent,
-         * some not. This information is then hashed together with the 20 seed
-         * bytes.
-         */
+    /**
+     * Creates a serial number generator using SecureRandom, with the given settings instead of the configured ones.
+     * 
+     * @param algorithm random generator algorithm, i.e. SHA1PRNG
+     * @param noOctets the size of the serial numbers in octets, 4 or 8
+     * @param poolSize number of serial numbers to generate in advance, 0 for none
+     */
+    SernoGeneratorRandom(final String algorithm, final int noOctets, final int poolSize) throws NoSuchAlgorithmException {
+        log.trace(">SernoGenerator()");
+        checkSernoOctetSize(noOctets);
+        this.poolSize = poolSize;
+        this.generators = new Generators(algorithm, noOctets, poolSize);
+        log.trace("<SernoGenerator()");
     }
 
     /**
@@ -128,71 +120,165 @@ public class SernoGeneratorRandom implements SernoGenerator {
      * 
      * @return An instance of the serial number generator.
      */
-    public static synchronized SernoGenerator instance() throws NoSuchAlgorithmException {
-        if (instance == null) {
-            instance = new SernoGeneratorRandom();
+    public static SernoGenerator instance() throws NoSuchAlgorithmException {
+        // This is called for every certificate, so only lock when the instance is created
+        SernoGeneratorRandom ret = instance;
+        if (ret == null) {
+            synchronized (SernoGeneratorRandom.class) {
+                ret = instance;
+                if (ret == null) {
+                    ret = new SernoGeneratorRandom();
+                    instance = ret;
+                }
+            }
         }
-        return instance;
+        return ret;
     }
 
     @Override
-    public synchronized BigInteger getSerno() {
+    public BigInteger getSerno() {
+        final Generators current = generators;
         // This is only for testing, of size is set to 0 we will generate random number
         // between 1 and 4, this will give collisions often...
-        if (noOctets == 0) {
+        if (current.noOctets == 0) {
             Random rand = new Random();
             return new java.math.BigInteger(Long.toString(rand.nextInt(4)));
         }
-
-        byte[] sernobytes = new byte[noOctets];
-        boolean ok = false;
-        BigInteger serno = null;
-        while (!ok) {
-            random.nextBytes(sernobytes);
-            serno = (new java.math.BigInteger(sernobytes)).abs();
-            // Must be within the range 0080000000000000 - 7FFFFFFFFFFFFFFF
-            if ((serno.compareTo(lowest) >= 0) && (serno.compareTo(highest) <= 0)) {
-                ok = true;
-            } else {
-                String msg = intres.getLocalizedMessage("sernogenerator.discarding");
-                log.info(msg);
+        if (current.pool != null) {
+            final BigInteger serno = current.pool.poll();
+            current.refillIfNeeded();
+            if (serno != null) {
+                return serno;
             }
         }
-        return serno;
+        return current.generate();
     }
 
     @Override
     public int getNoSernoBytes() {
-        return noOctets;
+        return generators.noOctets;
     }
 
     @Override
     public void setSeed(final long seed) {
-        random.setSeed(seed);
+        // Each random generator has already seeded itself, so this adds to the seed and they still give different numbers
+        for (final SecureRandom random : generators.randoms) {
+            random.setSeed(seed);
+        }
     }
 
     @Override
-    public void setAlgorithm(final String algo) throws NoSuchAlgorithmException {
+    public synchronized void setAlgorithm(final String algo) throws NoSuchAlgorithmException {
         // Since re-initialization is expensive, we only do it if we changed the algo
-        if (this.algorithm == null || !this.algorithm.equals(algo)) {
-            this.algorithm = algo;
+        final Generators current = generators;
+        if (current.algorithm == null || !current.algorithm.equals(algo)) {
             // We must re-init after choosing a new algorithm
-            init();
+            generators = new Generators(algo, current.noOctets, poolSize);
         }
     }
 
     @Override
-    public void setSernoOctetSize(final int noOctets) {
-        if (this.noOctets != noOctets) {
+    public synchronized void setSernoOctetSize(final int noOctets) {
+        final Generators current = generators;
+        if (current.noOctets != noOctets) {
+            checkSernoOctetSize(noOctets);
+            try {
+                // Serial numbers in the pool have the old size, so we start over with new generators
+                generators = new Generators(current.algorithm, noOctets, poolSize);
+            } catch (NoSuchAlgorithmException e) {
+                // Fatal, the algorithm was available when the current generators were created
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static void checkSernoOctetSize(final int noOctets) {
+        if ((noOctets != 4) && (noOctets != 8) && (noOctets != 0)) {
+            throw new IllegalArgumentException("SernoOctetSize must be 4 or 8 for this generator.");
+        }
+    }
+
+    /** The random generators for one algorithm and serial number size, and the pool of serial numbers generated with them */
+    private static final class Generators {
+        private final String algorithm;
+        /** number of bytes serial number to generate */
+        private final int noOctets;
+        /** lowest possible value we should deliver when getSerno is called */
+        private final BigInteger lowest;
+        /** highest possible value we should deliver when getSerno is called */
+        private final BigInteger highest;
+        /** random generators, a power of two of them so a thread can pick one with a mask */
+        private final SecureRandom[] randoms;
+        private final int mask;
+        /** serial numbers generated in advance, or null if there is no pool */
+        private final BlockingQueue<BigInteger> pool;
+        private final AtomicBoolean refilling = new AtomicBoolean(false);
+
+        private Generators(final String algorithm, final int noOctets, final int poolSize) throws NoSuchAlgorithmException {
+            this.algorithm = algorithm;
+            this.noOctets = noOctets;
             if (noOctets == 4) {
                 lowest = new BigInteger("00800000", 16);
                 highest = new BigInteger("7FFFFFFF", 16);
+            } else {
+                lowest = new BigInteger("0080000000000000", 16);
+                highest = new BigInteger("7FFFFFFFFFFFFFFF", 16);
             }
-            if ((noOctets != 4) && (noOctets != 8) && (noOctets != 0)) {
-                throw new IllegalArgumentException("SernoOctetSize must be 4 or 8 for this generator.");
+            // Two random generators per processor keeps the threads from waiting for each other, SecureRandom itself is synchronized
+            final int count = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+            randoms = new SecureRandom[count];
+            mask = count - 1;
+            for (int i = 0; i < count; i++) {
+                // Init random number generator for random serial numbers
+                randoms[i] = SecureRandom.getInstance(algorithm);
+                // We let each generator seed itself from the system, before anything else can set the seed. A generator that is only
+                // seeded with a given seed, for instance the time, gives the same numbers as another one seeded with the same value.
+                randoms[i].nextBytes(new byte[1]);
+            }
+            if (poolSize > 0) {
+                pool = new ArrayBlockingQueue<BigInteger>(poolSize);
+                refillIfNeeded();
+            } else {
+                pool = null;
             }
-            this.noOctets = noOctets;
         }
-    }
 
+        private BigInteger generate() {
+            // Thread ids are handed out in sequence, so threads spread evenly over the generators
+            final SecureRandom random = randoms[(int) Thread.currentThread().getId() & mask];
+            byte[] sernobytes = new byte[noOctets];
+            boolean ok = false;
+            BigInteger serno = null;
+            while (!ok) {
+                random.nextBytes(sernobytes);
+                serno = (new java.math.BigInteger(sernobytes)).abs();
+                // Must be within the range 0080000000000000 - 7FFFFFFFFFFFFFFF
+                if ((serno.compareTo(lowest) >= 0) && (serno.compareTo(highest) <= 0)) {
+                    ok = true;
+                } else {
+                    String msg = intres.getLocalizedMessage("sernogenerator.discarding");
+                    log.info(msg);
+                }
+            }
+            return serno;
+        }
+
+        /** Starts to fill up the pool in the background when half of it has been used, unless it is already being filled */
+        private void refillIfNeeded() {
+            if (pool.remainingCapacity() >= pool.size() && refilling.compareAndSet(false, true)) {
+                refiller.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (pool.offer(generate())) {
+                                // Until the pool is full
+                            }
+                        } finally {
+                            refilling.set(false);
+                        }
+                    }
+                });
+            }
+        }
+    }
 }
@@ -0,0 +1,50 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.certificate;
+
+import java.io.Serializable;
+
+import org.cesecore.certificates.certificate.request.RequestMessage;
+import org.cesecore.certificates.endentity.EndEntityInformation;
+
+/**
+ * One certificate to issue with {@link CertificateCreateSession#createCertificates(org.cesecore.authentication.tokens.AuthenticationToken, java.util.List, Class)}:
+ * the end entity and its certification request, as passed to
+ * {@link CertificateCreateSession#createCertificate(org.cesecore.authentication.tokens.AuthenticationToken, EndEntityInformation, RequestMessage, Class)}.
+ *
+ * @version $Id$
+ */
+public class CertificateCreateRequest implements Serializable {
+
+    private static final long serialVersionUID = 4328167613917395428L;
+
+    private final EndEntityInformation userData;
+    private final RequestMessage requestMessage;
+
+    /**
+     * @param userData the end entity, containing the issuing CA id, subject DN and certificate profile id etc.
+     * @param requestMessage the certification request, containing the public key to be put in the certificate
+     */
+    public CertificateCreateRequest(final EndEntityInformation userData, final RequestMessage requestMessage) {
+        this.userData = userData;
+        this.requestMessage = requestMessage;
+    }
+
+    public EndEntityInformation getUserData() {
+        return userData;
+    }
+
+    public RequestMessage getRequestMessage() {
+        return requestMessage;
+    }
+}
@@ -0,0 +1,69 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.certificate;
+
+import java.io.Serializable;
+
+import org.cesecore.certificates.certificate.request.CertificateResponseMessage;
+
+/**
+ * The outcome of one {@link CertificateCreateRequest}: either the response message with the issued certificate, or the exception that
+ * createCertificate would have thrown for the request.
+ *
+ * @version $Id$
+ */
+public class CertificateCreateResult implements Serializable {
+
+    private static final long serialVersionUID = -2740917604262853418L;
+
+    private final String username;
+    private final CertificateResponseMessage response;
+    private final Exception exception;
+
+    /** Creates the result of a certificate that was issued */
+    public CertificateCreateResult(final String username, final CertificateResponseMessage response) {
+        this.username = username;
+        this.response = response;
+        this.exception = null;
+    }
+
+    /** Creates the result of a request that failed */
+    public CertificateCreateResult(final String username, final Exception exception) {
+        this.username = username;
+        this.response = null;
+        this.exception = exception;
+    }
+
+    /** @return the username of the end entity of the request, or null if the request did not have any end entity */
+    public String getUsername() {
+        return username;
+    }
+
+    /** @return true if the certificate was issued */
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    /** @return the response message with the issued certificate, or null if the request failed */
+    public CertificateResponseMessage getResponse() {
+        return response;
+    }
+
+    /**
+     * @return why the request failed, AuthorizationDeniedException or one of the CesecoreExceptions thrown by createCertificate, or null if the
+     *         certificate was issued
+     */
+    public Exception getException() {
+        return exception;
+    }
+}
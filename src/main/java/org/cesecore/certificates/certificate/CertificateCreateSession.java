@@ -12,6 +12,8 @@
  *************************************************************************/
 package org.cesecore.certificates.certificate;
 
+import java.util.List;
+
 import org.cesecore.CesecoreException;
 import org.cesecore.authentication.tokens.AuthenticationToken;
 import org.cesecore.authorization.AuthorizationDeniedException;
@@ -62,5 +64,22 @@ public interface CertificateCreateSession {
      * @see org.cesecore.certificates.certificate.request.X509ResponseMessage
      */
     CertificateResponseMessage createCertificate(AuthenticationToken admin, EndEntityInformation userData, RequestMessage req, Class responseClass) throws AuthorizationDeniedException, CustomCertSerialNumberException, IllegalKeyException, CADoesntExistsException, CertificateCreateException, CesecoreException;
+
+    /**
+     * Issues many certificates in one call, for mass enrollment. Each request is handled as by
+     * {@link #createCertificate(AuthenticationToken, EndEntityInformation, RequestMessage, Class)}, but authorization is checked once per CA,
+     * uniqueness of subject DNs and keys is checked with one database query for many requests, certificates are signed in parallel by up to
+     * "certificate.bulk.threadspertoken" threads and stored in batches of "certificate.bulk.storebatchsize" certificates per transaction.
+     * 
+     * A request that fails does not affect the other requests, its result holds the exception that createCertificate would have thrown.
+     * 
+     * @param admin Information about the administrator or admin performing the event.
+     * @param requests the end entities and their certification requests
+     * @param responseClass The implementation class that will be used as the response messages.
+     * @return the result of each request, in the same order as the requests
+     * 
+     * @see #createCertificate(AuthenticationToken, EndEntityInformation, RequestMessage, Class)
+     */
+    List<CertificateCreateResult> createCertificates(AuthenticationToken admin, List<CertificateCreateRequest> requests, Class responseClass);
 	
 }
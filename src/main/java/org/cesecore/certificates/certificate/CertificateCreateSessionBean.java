@@ -20,10 +20,23 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
@@ -58,6 +71,7 @@ import org.cesecore.certificates.ca.CA;
 import org.cesecore.certificates.ca.CAConstants;
 import org.cesecore.certificates.ca.CADoesntExistsException;
 import org.cesecore.certificates.ca.CaSessionLocal;
+import org.cesecore.certificates.ca.SignRequestException;
 import org.cesecore.certificates.ca.SignRequestSignatureException;
 import org.cesecore.certificates.ca.catoken.CAToken;
 import org.cesecore.certificates.ca.catoken.CATokenConstants;
@@ -71,6 +85,7 @@ import org.cesecore.certificates.crl.RevokedCertInfo;
 import org.cesecore.certificates.endentity.EndEntityConstants;
 import org.cesecore.certificates.endentity.EndEntityInformation;
 import org.cesecore.certificates.endentity.ExtendedInformation;
+import org.cesecore.config.CesecoreConfiguration;
 import org.cesecore.internal.InternalResources;
 import org.cesecore.jndi.JndiConstants;
 import org.cesecore.keys.token.CryptoTokenOfflineException;
@@ -79,6 +94,7 @@ import org.cesecore.keys.util.KeyTools;
 import org.cesecore.util.Base64;
 import org.cesecore.util.CertTools;
 import org.cesecore.util.CryptoProviderTools;
+import org.cesecore.util.StringTools;
 
 /**
  * Interface for creating certificates
@@ -140,104 +156,534 @@ public class CertificateCreateSessionBean implements CertificateCreateSessionLoc
                 ca = caSession.getCA(admin, userData.getCAId());
             }
 
-            final CAToken catoken = ca.getCAToken();
+            // Verify the request
+            final PublicKey reqpk = verifyRequest(ca, req);
+
+            final Date notBefore = req.getRequestValidityNotBefore(); // Optionally requested validity
+            final Date notAfter = req.getRequestValidityNotAfter(); // Optionally requested validity
+            final X509Extensions exts = req.getRequestExtensions(); // Optionally requested extensions
+            final int keyusage = getKeyUsage(exts);
+            final String sequence = getSequence(req);
+            Certificate cert = createCertificate(admin, userData, ca, req.getRequestX509Name(), reqpk, keyusage, notBefore, notAfter, exts, sequence);
 
-            // See if we need some key material to decrypt request
-            if (req.requireKeyInfo()) {
-                // You go figure...scep encrypts message with the public CA-cert
-                req.setKeyInfo(ca.getCACertificate(), catoken.getPrivateKey(CATokenConstants.CAKEYPURPOSE_CERTSIGN), catoken.getCryptoToken()
-                        .getEncProviderName());
+            // Create the response message with all nonces and checks etc
+            ret = createResponse(req, responseClass, ca, cert);
+        } catch (IOException e) {
+            throw new CertificateCreateException(e);
+        } catch (InvalidKeyException e) {
+            throw new IllegalCryptoTokenException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalCryptoTokenException(e);
+        } catch (NoSuchProviderException e) {
+            throw new IllegalCryptoTokenException(e);
+        }
+
+        if (log.isTraceEnabled()) {
+            log.trace("<createCertificate(IRequestMessage)");
+        }
+        return ret;
+    }
+
+    // Each batch of certificates is stored in a transaction of its own, so a failure does not undo the certificates issued before it
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    @Override
+    public List<CertificateCreateResult> createCertificates(final AuthenticationToken admin, final List<CertificateCreateRequest> requests,
+            final Class responseClass) {
+        if (log.isTraceEnabled()) {
+            log.trace(">createCertificates(" + requests.size() + ")");
+        }
+        final List<BulkItem> items = new ArrayList<BulkItem>(requests.size());
+        // Find the CA of each request, this checks authorization and that the CA exists, once for each CA
+        final Map<Integer, CA> cas = new HashMap<Integer, CA>();
+        final Map<Integer, List<BulkItem>> itemsByCA = new LinkedHashMap<Integer, List<BulkItem>>();
+        for (final CertificateCreateRequest request : requests) {
+            final BulkItem item = new BulkItem(request);
+            items.add(item);
+            if (hasCustomSerialNumber(item.data)) {
+                // Custom serial numbers have their own checks and can not be retried, so issue them one by one
+                try {
+                    item.succeed(certificateCreateSession.createCertificate(admin, item.data, item.req, responseClass));
+                } catch (Exception e) {
+                    item.fail(e instanceof CesecoreException || e instanceof AuthorizationDeniedException ? e : new CertificateCreateException(e));
+                }
+                continue;
             }
-            // Verify the request
-            final PublicKey reqpk;
             try {
-                if (req.verify() == false) {
-                    final String msg = intres.getLocalizedMessage("createcert.popverificationfailed");
-                    // logSession.log(admin, ca.getCAId(), LogConstants.MODULE_CA, new java.util.Date(), req.getUsername(), null,
-                    // LogConstants.EVENT_ERROR_CREATECERTIFICATE, msg);
-                    throw new SignRequestSignatureException(msg);
+                CA ca;
+                if ((item.data == null) || (item.data.getCAId() == 0)) {
+                    // If no CAid in the supplied userdata
+                    ca = getCAFromRequest(admin, item.req);
+                } else {
+                    ca = cas.get(Integer.valueOf(item.data.getCAId()));
+                    if (ca == null) {
+                        ca = caSession.getCA(admin, item.data.getCAId());
+                    }
                 }
-                reqpk = req.getRequestPublicKey();
-                if (reqpk == null) {
-                    final String msg = intres.getLocalizedMessage("createcert.nokeyinrequest");
-                    throw new InvalidKeyException(msg);
+                final Integer caid = Integer.valueOf(ca.getCAId());
+                if (cas.containsKey(caid)) {
+                    // Use the same CA object for all requests to the CA
+                    ca = cas.get(caid);
+                } else {
+                    cas.put(caid, ca);
+                    itemsByCA.put(caid, new ArrayList<BulkItem>());
                 }
-            } catch (InvalidKeyException e) {
-                // If we get an invalid key exception here, we shoudl throw an IllegalKeyException to the caller
-                // The catch of InvalidKeyException in the end of this method, catches error from the CA crypto token
-                throw new IllegalKeyException(e);
+                item.ca = ca;
+                itemsByCA.get(caid).add(item);
+            } catch (CesecoreException e) {
+                item.fail(e);
+            } catch (AuthorizationDeniedException e) {
+                item.fail(e);
+            } catch (RuntimeException e) {
+                // EJBException if the CA is not active
+                item.fail(new CertificateCreateException(e));
+            }
+        }
+        // The CAs are handled one at a time, so each CA token signs with at most this many threads
+        final int threads = CesecoreConfiguration.getBulkIssuanceThreadsPerToken();
+        final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads, new BulkIssuanceThreadFactory()) : null;
+        try {
+            for (final List<BulkItem> caItems : itemsByCA.values()) {
+                createCertificates(admin, caItems.get(0).ca, caItems, responseClass, executor);
             }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        final List<CertificateCreateResult> ret = new ArrayList<CertificateCreateResult>(items.size());
+        for (final BulkItem item : items) {
+            ret.add(item.result);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("<createCertificates(" + requests.size() + ")");
+        }
+        return ret;
+    }
 
-            final Date notBefore = req.getRequestValidityNotBefore(); // Optionally requested validity
-            final Date notAfter = req.getRequestValidityNotAfter(); // Optionally requested validity
-            final X509Extensions exts = req.getRequestExtensions(); // Optionally requested extensions
-            int keyusage = -1;
-            if (exts != null) {
+    /** Issues the certificates of the requests to one CA, in the same steps as createCertificate but with each step done for all requests */
+    private void createCertificates(final AuthenticationToken admin, final CA ca, final List<BulkItem> items, final Class responseClass,
+            final ExecutorService executor) {
+        // We need to check that admin have rights to create certificates
+        if (!accessSession.isAuthorized(admin, StandardRules.CREATECERT.resource())) {
+            final String msg = intres.getLocalizedMessage("createcert.notauthorized", admin.toString(), ca.getCAId());
+            log.info(msg);
+            for (final BulkItem item : items) {
+                item.fail(new AuthorizationDeniedException(msg));
+            }
+            return;
+        }
+        // Verify the requests and check them against the policy, on this thread since it calls other session beans
+        runBulkStep(admin, ca, items, null, new BulkStep() {
+            @Override
+            public void run(final BulkItem item) throws Exception {
+                item.reqpk = verifyRequest(ca, item.req);
+                item.notBefore = item.req.getRequestValidityNotBefore();
+                item.notAfter = item.req.getRequestValidityNotAfter();
+                item.exts = item.req.getRequestExtensions();
+                item.keyusage = getKeyUsage(item.exts);
+                item.sequence = getSequence(item.req);
+                item.requestX509Name = item.req.getRequestX509Name();
+                item.certificateDN = item.data.getCertificateDN();
+                auditRequest(admin, item.data, ca, item.requestX509Name, item.reqpk, item.keyusage, item.notBefore, item.notAfter, item.sequence);
+                item.requested = true;
+                checkUserType(item.data);
+                item.certProfile = getCertificateProfile(item.data.getCertificateProfileId(), ca.getCAId());
+                verifyKey(item.reqpk, item.certProfile);
+            }
+        });
+        checkUniqueness(admin, ca, items);
+        // Sign the certificates, this is where parallel threads make a difference. Only the CA and its token are used here.
+        runBulkStep(admin, ca, items, executor, new BulkStep() {
+            @Override
+            public void run(final BulkItem item) throws Exception {
+                item.cert = ca.generateCertificate(item.data, item.requestX509Name, item.reqpk, item.keyusage, item.notBefore, item.notAfter,
+                        item.certProfile, item.exts, item.sequence);
+            }
+        });
+        if (ca.isUseCertificateStorage()) {
+            storeCertificates(admin, ca, items);
+        }
+        // Audit log and create the responses, on this thread since it calls other session beans
+        runBulkStep(admin, ca, items, null, new BulkStep() {
+            @Override
+            public void run(final BulkItem item) throws Exception {
+                final String serialNo = CertTools.getSerialNumberAsString(item.cert);
+                final int revreason = revokeOnIssuance(admin, item.data, ca, item.cert);
                 if (log.isDebugEnabled()) {
-                    log.debug("we have extensions, see if we can override KeyUsage by looking for a KeyUsage extension in request");
+                    log.debug("Generated certificate with SerialNumber '" + serialNo + "' for user '" + item.data.getUsername()
+                            + "', with revocation reason=" + revreason);
                 }
-                final X509Extension ext = exts.getExtension(X509Extensions.KeyUsage);
-                if (ext != null) {
-                    final ASN1OctetString os = ext.getValue();
-                    final ByteArrayInputStream bIs = new ByteArrayInputStream(os.getOctets());
-                    final ASN1InputStream dIs = new ASN1InputStream(bIs);
-                    try {
-                        final DERObject dob = dIs.readObject();
-                        final DERBitString bs = DERBitString.getInstance(dob);
-                        keyusage = bs.intValue();
-                    } catch (IOException e) {
-                        log.warn("Invalid KeyUsage extension in request, extensionbytes: " + new String(Base64.encode(exts.getEncoded())));
-                    }
-                    if (log.isDebugEnabled()) {
-                        log.debug("We have a key usage request extension: " + keyusage);
+                auditIssued(admin, item.data, ca, item.cert, serialNo, revreason);
+                item.issued = true;
+                item.succeed(createResponse(item.req, responseClass, ca, item.cert));
+            }
+        });
+    }
+
+    /**
+     * Checks the requests against the certificates already issued by the CA, with a few queries for all the requests, and against the
+     * other requests. Requests are checked as if they had been issued one after the other, so a request only counts once it has passed.
+     */
+    private void checkUniqueness(final AuthenticationToken admin, final CA ca, final List<BulkItem> items) {
+        final String caSubjectDN = CertTools.getSubjectDN(ca.getCACertificate());
+        boolean checkSubjectDN = false;
+        if (ca.isDoEnforceUniqueDistinguishedName()) {
+            if (ca.isUseCertificateStorage()) {
+                checkSubjectDN = true;
+            } else {
+                log.warn("CA configured to enforce unique SubjectDN, but not to store issued certificates. Check will be ignored. Please verify your configuration.");
+            }
+        }
+        boolean checkKey = false;
+        if (ca.isDoEnforceUniquePublicKeys()) {
+            if (ca.isUseCertificateStorage()) {
+                checkKey = true;
+            } else {
+                log.warn("CA configured to enforce unique entity keys, but not to store issued certificates. Check will be ignored. Please verify your configuration.");
+            }
+        }
+        if (!checkSubjectDN && !checkKey) {
+            return;
+        }
+        final List<String> subjectDNs = new ArrayList<String>();
+        final List<byte[]> subjectKeyIds = new ArrayList<byte[]>();
+        for (final BulkItem item : items) {
+            if (!item.isDone()) {
+                subjectDNs.add(item.certificateDN);
+                subjectKeyIds.add(KeyTools.createSubjectKeyId(item.reqpk).getKeyIdentifier());
+            }
+        }
+        final Map<String, Set<String>> existingBySubjectDN = checkSubjectDN ? certificateStoreSession.findUsernamesByIssuerDNAndSubjectDNs(
+                caSubjectDN, subjectDNs) : null;
+        final Map<String, Set<String>> existingByKey = checkKey ? certificateStoreSession.findUsernamesByIssuerDNAndSubjectKeyIds(caSubjectDN,
+                subjectKeyIds) : null;
+        final Map<String, Set<String>> requestedBySubjectDN = new HashMap<String, Set<String>>();
+        final Map<String, Set<String>> requestedByKey = new HashMap<String, Set<String>>();
+        final Iterator<byte[]> iter = subjectKeyIds.iterator();
+        for (final BulkItem item : items) {
+            if (item.isDone()) {
+                continue;
+            }
+            final String username = item.data.getUsername();
+            final String subjectDN = CertTools.stringToBCDNString(StringTools.strip(item.certificateDN));
+            final String subjectKeyId = new String(Base64.encode(iter.next(), false));
+            if (checkSubjectDN) {
+                final Set<String> users = getUsers(existingBySubjectDN.get(item.certificateDN), requestedBySubjectDN.get(subjectDN));
+                if (users.size() > 0 && !users.contains(username)) {
+                    final String msg = intres.getLocalizedMessage("createcert.subjectdn_exists_for_another_user", "'" + username + "'",
+                            listUsers(users));
+                    failBulkItem(admin, ca, item, new CesecoreException(ErrorCode.CERTIFICATE_WITH_THIS_SUBJECTDN_ALLREADY_EXISTS_FOR_ANOTHER_USER,
+                            msg));
+                    continue;
+                }
+            }
+            if (checkKey) {
+                final Set<String> users = getUsers(existingByKey.get(subjectKeyId), requestedByKey.get(subjectKeyId));
+                if (users.size() > 0 && !users.contains(username)) {
+                    final String msg = intres.getLocalizedMessage("createcert.key_exists_for_another_user", "'" + username + "'",
+                            listUsers(users));
+                    failBulkItem(admin, ca, item, new CesecoreException(ErrorCode.CERTIFICATE_FOR_THIS_KEY_ALLREADY_EXISTS_FOR_ANOTHER_USER, msg));
+                    continue;
+                }
+            }
+            addUser(requestedBySubjectDN, subjectDN, username);
+            addUser(requestedByKey, subjectKeyId, username);
+        }
+    }
+
+    /**
+     * @param existing the users with certificates with the subject DN or key, or null if there are none
+     * @param requested the users of the requests before this one that passed the checks, or null if there are none
+     * @return the users with certificates with the subject DN or key, or requests for it before this request
+     */
+    private Set<String> getUsers(final Set<String> existing, final Set<String> requested) {
+        final Set<String> users = new HashSet<String>();
+        if (existing != null) {
+            users.addAll(existing);
+        }
+        if (requested != null) {
+            users.addAll(requested);
+        }
+        return users;
+    }
+
+    /** Adds the user of a request that passed the checks to the users requesting a subject DN or key */
+    private void addUser(final Map<String, Set<String>> requested, final String key, final String username) {
+        Set<String> users = requested.get(key);
+        if (users == null) {
+            users = new HashSet<String>();
+            requested.put(key, users);
+        }
+        users.add(username);
+    }
+
+    /**
+     * Stores the certificates in batches, one transaction for each batch. If a batch can not be stored, for example because a serial number
+     * is already used, the certificates of the batch are stored one by one, with new serial numbers when needed.
+     */
+    private void storeCertificates(final AuthenticationToken admin, final CA ca, final List<BulkItem> items) {
+        final String cafingerprint = CertTools.getFingerprintAsString(ca.getCACertificate());
+        final int batchSize = CesecoreConfiguration.getBulkIssuanceStoreBatchSize();
+        final long updateTime = new Date().getTime();
+        final String tag = null;
+        // All certificates in a batch have the same certificate profile
+        final Map<Integer, List<BulkItem>> itemsByProfile = new LinkedHashMap<Integer, List<BulkItem>>();
+        for (final BulkItem item : items) {
+            if (!item.isDone()) {
+                final Integer certProfileId = Integer.valueOf(item.data.getCertificateProfileId());
+                List<BulkItem> profileItems = itemsByProfile.get(certProfileId);
+                if (profileItems == null) {
+                    profileItems = new ArrayList<BulkItem>();
+                    itemsByProfile.put(certProfileId, profileItems);
+                }
+                profileItems.add(item);
+            }
+        }
+        for (final Map.Entry<Integer, List<BulkItem>> entry : itemsByProfile.entrySet()) {
+            final int certProfileId = entry.getKey().intValue();
+            final List<BulkItem> profileItems = entry.getValue();
+            final int type = profileItems.get(0).certProfile.getType();
+            for (int i = 0; i < profileItems.size(); i += batchSize) {
+                final List<BulkItem> batch = profileItems.subList(i, Math.min(i + batchSize, profileItems.size()));
+                final Map<Certificate, String> certificates = new LinkedHashMap<Certificate, String>();
+                for (final BulkItem item : batch) {
+                    certificates.put(item.cert, item.data.getUsername());
+                }
+                try {
+                    certificateStoreSession.storeCertificatesNoAuth(admin, certificates, cafingerprint, CertificateConstants.CERT_ACTIVE, type,
+                            certProfileId, tag, updateTime);
+                } catch (Exception e) {
+                    log.info("Can not store a batch of " + batch.size() + " certificates, will store them one at a time: " + e.getMessage());
+                    for (final BulkItem item : batch) {
+                        storeCertificate(admin, ca, item, cafingerprint, type, tag, updateTime);
                     }
                 }
             }
-            String sequence = null;
-            byte[] ki = req.getRequestKeyInfo();
-            // CVC sequence is only 5 characters, don't fill with a lot of garbage here, it must be a readable string
-            if ((ki != null) && (ki.length > 0) && (ki.length < 10) ) {
-            	final String str = new String(ki);
-            	// A cvc sequence must be ascii printable, otherwise it's some binary data
-            	if (StringUtils.isAsciiPrintable(str)) {
-                    sequence = new String(ki);            		
-            	}
+        }
+    }
+
+    /** Stores one certificate, like createCertificate does, retrying with a new serial number if the serial number is already used */
+    private void storeCertificate(final AuthenticationToken admin, final CA ca, final BulkItem item, final String cafingerprint, final int type,
+            final String tag, final long updateTime) {
+        final int maxRetrys = 5;
+        Exception storeEx = null;
+        try {
+            for (int retrycounter = 0; retrycounter < maxRetrys; retrycounter++) {
+                if (retrycounter > 0) {
+                    item.cert = ca.generateCertificate(item.data, item.requestX509Name, item.reqpk, item.keyusage, item.notBefore, item.notAfter,
+                            item.certProfile, item.exts, item.sequence);
+                }
+                try {
+                    certificateStoreSession.storeCertificateNoAuth(admin, item.cert, item.data.getUsername(), cafingerprint,
+                            CertificateConstants.CERT_ACTIVE, type, item.data.getCertificateProfileId(), tag, updateTime);
+                    storeEx = null;
+                    break;
+                } catch (Exception e) {
+                    if (retrycounter + 1 < maxRetrys) {
+                        log.info("Can not store certificate with serNo (" + CertTools.getSerialNumberAsString(item.cert)
+                                + "), will retry (retrycounter=" + retrycounter + ") with a new certificate with new serialNo: " + e.getMessage());
+                    }
+                    storeEx = e;
+                }
             }
-            Certificate cert = createCertificate(admin, userData, ca, req.getRequestX509Name(), reqpk, keyusage, notBefore, notAfter, exts, sequence);
+        } catch (Exception e) {
+            // The new certificate could not be generated
+            storeEx = e;
+        }
+        if (storeEx != null) {
+            log.error("Can not store certificate in database in 5 tries, aborting: ", storeEx);
+            failBulkItem(admin, ca, item, storeEx);
+        }
+    }
 
-            // Create the response message with all nonces and checks etc
-            ret = req.createResponseMessage(responseClass, req, ca.getCACertificate(), catoken.getPrivateKey(CATokenConstants.CAKEYPURPOSE_CERTSIGN),
-                    catoken.getCryptoToken().getSignProviderName());
-
-            ResponseStatus status = ResponseStatus.SUCCESS;
-            FailInfo failInfo = null;
-            String failText = null;
-            if ((cert == null) && (status == ResponseStatus.SUCCESS)) {
-                status = ResponseStatus.FAILURE;
-                failInfo = FailInfo.BAD_REQUEST;
+    /**
+     * Runs a step for each request that has not failed, in parallel if there is an executor. A step run in parallel must not call other
+     * session beans, since the threads of the executor are not managed by the container. Failures are handled on the calling thread.
+     */
+    private void runBulkStep(final AuthenticationToken admin, final CA ca, final List<BulkItem> items, final ExecutorService executor,
+            final BulkStep step) {
+        final List<BulkItem> started = new ArrayList<BulkItem>(items.size());
+        final List<Future<Exception>> futures = new ArrayList<Future<Exception>>(items.size());
+        for (final BulkItem item : items) {
+            if (item.isDone()) {
+                continue;
+            }
+            if (executor == null) {
+                try {
+                    step.run(item);
+                } catch (Exception e) {
+                    failBulkItem(admin, ca, item, e);
+                }
             } else {
-                ret.setCertificate(cert);
+                started.add(item);
+                futures.add(executor.submit(new Callable<Exception>() {
+                    @Override
+                    public Exception call() {
+                        try {
+                            step.run(item);
+                            return null;
+                        } catch (Exception e) {
+                            return e;
+                        }
+                    }
+                }));
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            final Exception e;
+            try {
+                e = futures.get(i).get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new EJBException(ie);
+            } catch (ExecutionException ee) {
+                throw new EJBException(ee);
             }
-            ret.setStatus(status);
-            if (failInfo != null) {
-                ret.setFailInfo(failInfo);
-                ret.setFailText(failText);
+            if (e != null) {
+                failBulkItem(admin, ca, started.get(i), e);
             }
+        }
+    }
 
-            ret.create();
-        } catch (IOException e) {
-            throw new CertificateCreateException(e);
+    /**
+     * Gives a request the exception that createCertificate would have thrown, and audit logs the failure if the request was audit logged.
+     */
+    private void failBulkItem(final AuthenticationToken admin, final CA ca, final BulkItem item, final Exception e) {
+        final Exception ret;
+        if (item.requested && !item.issued) {
+            // createCertificate(EndEntityInformation, CA, ...) audit logs all failures
+            if (e instanceof CryptoTokenOfflineException) {
+                log.info(intres.getLocalizedMessage("error.catokenoffline", ca.getCAId()));
+                auditFailure(admin, e, e.getMessage(), null, ca.getCAId(), item.data.getUsername());
+                ret = e;
+            } else if (e instanceof CesecoreException || e instanceof AuthorizationDeniedException) {
+                log.info(e.getMessage());
+                auditFailure(admin, e, null, null, ca.getCAId(), item.data.getUsername());
+                ret = e;
+            } else {
+                log.error("Error creating certificate", e);
+                auditFailure(admin, e, null, null, ca.getCAId(), item.data.getUsername());
+                ret = new CertificateCreateException(e);
+            }
+        } else if (e instanceof CesecoreException || e instanceof AuthorizationDeniedException) {
+            ret = e;
+        } else if (e instanceof InvalidKeyException || e instanceof NoSuchAlgorithmException || e instanceof NoSuchProviderException) {
+            ret = new IllegalCryptoTokenException(e);
+        } else {
+            ret = new CertificateCreateException(e);
+        }
+        item.fail(ret);
+    }
+
+    /** @return true if the end entity asks for a custom certificate serial number */
+    private boolean hasCustomSerialNumber(final EndEntityInformation data) {
+        final ExtendedInformation ei = data == null ? null : data.getExtendedinformation();
+        return ei != null && ei.certificateSerialNumber() != null;
+    }
+
+    /**
+     * Verifies the proof of possession of a request, after giving it the CA key if it needs one to decrypt the request.
+     * 
+     * @return the public key of the request
+     * @throws IllegalKeyException if the request does not contain a valid public key
+     * @throws SignRequestSignatureException if the proof of possession could not be verified
+     */
+    private PublicKey verifyRequest(final CA ca, final RequestMessage req) throws IllegalKeyException, SignRequestSignatureException,
+            CryptoTokenOfflineException, IllegalCryptoTokenException, NoSuchAlgorithmException, NoSuchProviderException {
+        final CAToken catoken = ca.getCAToken();
+        // See if we need some key material to decrypt request
+        if (req.requireKeyInfo()) {
+            // You go figure...scep encrypts message with the public CA-cert
+            req.setKeyInfo(ca.getCACertificate(), catoken.getPrivateKey(CATokenConstants.CAKEYPURPOSE_CERTSIGN), catoken.getCryptoToken()
+                    .getEncProviderName());
+        }
+        final PublicKey reqpk;
+        try {
+            if (req.verify() == false) {
+                final String msg = intres.getLocalizedMessage("createcert.popverificationfailed");
+                // logSession.log(admin, ca.getCAId(), LogConstants.MODULE_CA, new java.util.Date(), req.getUsername(), null,
+                // LogConstants.EVENT_ERROR_CREATECERTIFICATE, msg);
+                throw new SignRequestSignatureException(msg);
+            }
+            reqpk = req.getRequestPublicKey();
+            if (reqpk == null) {
+                final String msg = intres.getLocalizedMessage("createcert.nokeyinrequest");
+                throw new InvalidKeyException(msg);
+            }
         } catch (InvalidKeyException e) {
-            throw new IllegalCryptoTokenException(e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalCryptoTokenException(e);
-        } catch (NoSuchProviderException e) {
-            throw new IllegalCryptoTokenException(e);
+            // If we get an invalid key exception here, we shoudl throw an IllegalKeyException to the caller
+            // The catch of InvalidKeyException in the end of createCertificate, catches error from the CA crypto token
+            throw new IllegalKeyException(e);
         }
+        return reqpk;
+    }
 
-        if (log.isTraceEnabled()) {
-            log.trace("<createCertificate(IRequestMessage)");
+    /** @return the key usage requested with a KeyUsage extension, or -1 if none was requested */
+    private int getKeyUsage(final X509Extensions exts) throws IOException {
+        int keyusage = -1;
+        if (exts != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("we have extensions, see if we can override KeyUsage by looking for a KeyUsage extension in request");
+            }
+            final X509Extension ext = exts.getExtension(X509Extensions.KeyUsage);
+            if (ext != null) {
+                final ASN1OctetString os = ext.getValue();
+                final ByteArrayInputStream bIs = new ByteArrayInputStream(os.getOctets());
+                final ASN1InputStream dIs = new ASN1InputStream(bIs);
+                try {
+                    final DERObject dob = dIs.readObject();
+                    final DERBitString bs = DERBitString.getInstance(dob);
+                    keyusage = bs.intValue();
+                } catch (IOException e) {
+                    log.warn("Invalid KeyUsage extension in request, extensionbytes: " + new String(Base64.encode(exts.getEncoded())));
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("We have a key usage request extension: " + keyusage);
+                }
+            }
+        }
+        return keyusage;
+    }
+
+    /** @return the CVC sequence from the key info of the request, or null if the request does not have one */
+    private String getSequence(final RequestMessage req) {
+        String sequence = null;
+        byte[] ki = req.getRequestKeyInfo();
+        // CVC sequence is only 5 characters, don't fill with a lot of garbage here, it must be a readable string
+        if ((ki != null) && (ki.length > 0) && (ki.length < 10) ) {
+        	final String str = new String(ki);
+        	// A cvc sequence must be ascii printable, otherwise it's some binary data
+        	if (StringUtils.isAsciiPrintable(str)) {
+                sequence = new String(ki);            		
+        	}
         }
+        return sequence;
+    }
+
+    /** Creates the response message with all nonces and checks etc */
+    private CertificateResponseMessage createResponse(final RequestMessage req, final Class responseClass, final CA ca, final Certificate cert)
+            throws CryptoTokenOfflineException, IllegalCryptoTokenException, SignRequestException, IOException, InvalidKeyException,
+            NoSuchAlgorithmException, NoSuchProviderException {
+        final CAToken catoken = ca.getCAToken();
+        final CertificateResponseMessage ret = req.createResponseMessage(responseClass, req, ca.getCACertificate(),
+                catoken.getPrivateKey(CATokenConstants.CAKEYPURPOSE_CERTSIGN), catoken.getCryptoToken().getSignProviderName());
+
+        ResponseStatus status = ResponseStatus.SUCCESS;
+        FailInfo failInfo = null;
+        String failText = null;
+        if ((cert == null) && (status == ResponseStatus.SUCCESS)) {
+            status = ResponseStatus.FAILURE;
+            failInfo = FailInfo.BAD_REQUEST;
+        } else {
+            ret.setCertificate(cert);
+        }
+        ret.setStatus(status);
+        if (failInfo != null) {
+            ret.setFailInfo(failInfo);
+            ret.setFailText(failText);
+        }
+
+        ret.create();
         return ret;
     }
 
@@ -315,23 +761,10 @@ public class CertificateCreateSessionBean implements CertificateCreateSessionLoc
         }
 
         // Audit log that we received the request
-        final Map<String, Object> details = new LinkedHashMap<String, Object>();
-        details.put("subjectdn", data.getDN());
-        details.put("requestX509name", requestX509Name == null ? "null" : requestX509Name.toString());
-        details.put("certprofile", data.getCertificateProfileId());
-        details.put("keyusage", keyusage);
-        details.put("notbefore", notBefore);
-        details.put("notafter", notAfter);
-        details.put("sequence", sequence);
-        details.put("publickey", new String(Base64.encode(pk.getEncoded(), false)));
-        logSession.log(EventTypes.CERT_REQUEST, EventStatus.SUCCESS, ModuleTypes.CERTIFICATE, ServiceTypes.CORE, admin.toString(), Integer.valueOf(ca.getCAId()).toString(), null, data.getUsername(), details);
+        auditRequest(admin, data, ca, requestX509Name, pk, keyusage, notBefore, notAfter, sequence);
 
         try {
-            // If the user is of type USER_INVALID, it cannot have any other type (in the mask)
-            if (data.getType() == EndEntityConstants.USER_INVALID) {
-                final String msg = intres.getLocalizedMessage("createcert.usertypeinvalid", data.getUsername());
-                throw new CertificateCreateException(msg);
-            }
+            checkUserType(data);
             final Certificate cacert = ca.getCACertificate();
             final String caSubjectDN = CertTools.getSubjectDN(cacert);
             if (ca.isDoEnforceUniqueDistinguishedName()) {
@@ -435,20 +868,7 @@ public class CertificateCreateSessionBean implements CertificateCreateSessionLoc
             }
 
             // Finally we check if this certificate should not be issued as active, but revoked directly upon issuance
-            int revreason = RevokedCertInfo.NOT_REVOKED;
-            ExtendedInformation ei = data.getExtendedinformation();
-            if (ei != null) {
-            	revreason = ei.getIssuanceRevocationReason();
-            	if (revreason != RevokedCertInfo.NOT_REVOKED) {
-                    // If we don't store the certificate in the database, we wont support revocation/reactivation so issuing revoked certificates would be
-                    // really strange.
-                    if (ca.isUseCertificateStorage()) {
-                        certificateStoreSession.setRevokeStatusNoAuth(admin, cert, new Date(), revreason, data.getDN());
-                    } else {
-                        log.warn("CA configured to revoke issued certificates directly, but not to store issued the certificates. Revocation will be ignored. Please verify your configuration.");
-                    }
-            	}
-            }
+            final int revreason = revokeOnIssuance(admin, data, ca, cert);
             if (log.isDebugEnabled()) {
                 log.debug("Generated certificate with SerialNumber '" + serialNo + "' for user '" + data.getUsername() + "', with revocation reason="
                         + revreason);
@@ -456,13 +876,7 @@ public class CertificateCreateSessionBean implements CertificateCreateSessionLoc
             }
 
             // Audit log that we issued the certificate
-            final Map<String, Object> issuedetails = new LinkedHashMap<String, Object>();
-            issuedetails.put("subjectdn", data.getDN());
-            issuedetails.put("certprofile", data.getCertificateProfileId());
-            issuedetails.put("issuancerevocationreason", revreason);
-            issuedetails.put("cert", new String(Base64.encode(cert.getEncoded(), false)));
-            logSession.log(EventTypes.CERT_CREATION, EventStatus.SUCCESS, ModuleTypes.CERTIFICATE, ServiceTypes.CORE, admin.toString(), Integer.valueOf(ca.getCAId()).toString(), serialNo, data.getUsername(),
-            		issuedetails);
+            auditIssued(admin, data, ca, cert, serialNo, revreason);
 
             if (log.isTraceEnabled()) {
                 log.trace("<createCertificate(EndEntityInformation, CA, X509Name, pk, ku, notBefore, notAfter, extesions, sequence)");
@@ -503,6 +917,65 @@ public class CertificateCreateSessionBean implements CertificateCreateSessionLoc
         }
     }
 
+    /** Audit log that we received a request */
+    private void auditRequest(final AuthenticationToken admin, final EndEntityInformation data, final CA ca, final X509Name requestX509Name,
+            final PublicKey pk, final int keyusage, final Date notBefore, final Date notAfter, final String sequence) {
+        final Map<String, Object> details = new LinkedHashMap<String, Object>();
+        details.put("subjectdn", data.getDN());
+        details.put("requestX509name", requestX509Name == null ? "null" : requestX509Name.toString());
+        details.put("certprofile", data.getCertificateProfileId());
+        details.put("keyusage", keyusage);
+        details.put("notbefore", notBefore);
+        details.put("notafter", notAfter);
+        details.put("sequence", sequence);
+        details.put("publickey", new String(Base64.encode(pk.getEncoded(), false)));
+        logSession.log(EventTypes.CERT_REQUEST, EventStatus.SUCCESS, ModuleTypes.CERTIFICATE, ServiceTypes.CORE, admin.toString(), Integer.valueOf(ca.getCAId()).toString(), null, data.getUsername(), details);
+    }
+
+    /** If the user is of type USER_INVALID, it cannot have any other type (in the mask) */
+    private void checkUserType(final EndEntityInformation data) throws CertificateCreateException {
+        if (data.getType() == EndEntityConstants.USER_INVALID) {
+            final String msg = intres.getLocalizedMessage("createcert.usertypeinvalid", data.getUsername());
+            throw new CertificateCreateException(msg);
+        }
+    }
+
+    /**
+     * Revokes a certificate that was just issued, if the end entity says it should be revoked directly upon issuance.
+     * 
+     * @return the revocation reason, RevokedCertInfo.NOT_REVOKED if the certificate should be active
+     */
+    private int revokeOnIssuance(final AuthenticationToken admin, final EndEntityInformation data, final CA ca, final Certificate cert)
+            throws CertificateRevokeException, AuthorizationDeniedException {
+        int revreason = RevokedCertInfo.NOT_REVOKED;
+        ExtendedInformation ei = data.getExtendedinformation();
+        if (ei != null) {
+        	revreason = ei.getIssuanceRevocationReason();
+        	if (revreason != RevokedCertInfo.NOT_REVOKED) {
+                // If we don't store the certificate in the database, we wont support revocation/reactivation so issuing revoked certificates would be
+                // really strange.
+                if (ca.isUseCertificateStorage()) {
+                    certificateStoreSession.setRevokeStatusNoAuth(admin, cert, new Date(), revreason, data.getDN());
+                } else {
+                    log.warn("CA configured to revoke issued certificates directly, but not to store issued the certificates. Revocation will be ignored. Please verify your configuration.");
+                }
+        	}
+        }
+        return revreason;
+    }
+
+    /** Audit log that we issued a certificate */
+    private void auditIssued(final AuthenticationToken admin, final EndEntityInformation data, final CA ca, final Certificate cert,
+            final String serialNo, final int revreason) throws CertificateEncodingException {
+        final Map<String, Object> issuedetails = new LinkedHashMap<String, Object>();
+        issuedetails.put("subjectdn", data.getDN());
+        issuedetails.put("certprofile", data.getCertificateProfileId());
+        issuedetails.put("issuancerevocationreason", revreason);
+        issuedetails.put("cert", new String(Base64.encode(cert.getEncoded(), false)));
+        logSession.log(EventTypes.CERT_CREATION, EventStatus.SUCCESS, ModuleTypes.CERTIFICATE, ServiceTypes.CORE, admin.toString(), Integer.valueOf(ca.getCAId()).toString(), serialNo, data.getUsername(),
+        		issuedetails);
+    }
+
     private CertificateProfile getCertificateProfile(final int certProfileId, final int caid)
             throws AuthorizationDeniedException {
         final CertificateProfile certProfile = certificateProfileSession.getCertificateProfile(certProfileId);
@@ -610,4 +1083,64 @@ public class CertificateCreateSessionBean implements CertificateCreateSessionLoc
     public boolean isUniqueCertificateSerialNumberIndex() {
     	return UniqueSernoHelper.isUniqueCertificateSerialNumberIndex(certificateStoreSession);
     }
+
+    /** A step of issuing many certificates, done for each request on its own */
+    private interface BulkStep {
+        void run(BulkItem item) throws Exception;
+    }
+
+    /** The state of one request when issuing many certificates */
+    private static final class BulkItem {
+        private final EndEntityInformation data;
+        private final RequestMessage req;
+        private CA ca;
+        private PublicKey reqpk;
+        private Date notBefore;
+        private Date notAfter;
+        private X509Extensions exts;
+        private int keyusage;
+        private String sequence;
+        private X509Name requestX509Name;
+        private String certificateDN;
+        private CertificateProfile certProfile;
+        private Certificate cert;
+        /** True when the request has been audit logged, from then on failures are audit logged too */
+        private boolean requested = false;
+        /** True when the issued certificate has been audit logged */
+        private boolean issued = false;
+        private CertificateCreateResult result;
+
+        private BulkItem(final CertificateCreateRequest request) {
+            this.data = request.getUserData();
+            this.req = request.getRequestMessage();
+        }
+
+        private boolean isDone() {
+            return result != null;
+        }
+
+        private void succeed(final CertificateResponseMessage response) {
+            result = new CertificateCreateResult(getUsername(), response);
+        }
+
+        private void fail(final Exception e) {
+            result = new CertificateCreateResult(getUsername(), e);
+        }
+
+        private String getUsername() {
+            return data == null ? req.getUsername() : data.getUsername();
+        }
+    }
+
+    /** Threads signing certificates when many certificates are issued in one call */
+    private static class BulkIssuanceThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "Certificate issuance-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -22,8 +22,11 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.persistence.ColumnResult;
@@ -78,6 +81,9 @@ public class CertificateData extends ProtectedData implements Serializable {
 
     private static final Logger log = Logger.getLogger(CertificateData.class);
 
+    /** The maximum number of values in the IN list of a query, kept low enough for all supported databases */
+    private static final int IN_LIST_SIZE = 100;
+
     private String issuerDN;
     private String subjectDN;
     private String fingerprint = "";
@@ -809,6 +815,52 @@ public class CertificateData extends ProtectedData implements Serializable {
         return new HashSet<String>(query.getResultList());
     }
 
+    /**
+     * @param subjectDNs the subject DNs to look for
+     * @return the usernames of the certificates with each of the subject DNs issued by the issuer, subject DNs without certificates are left out
+     */
+    public static Map<String, Set<String>> findUsernamesBySubjectDNsAndIssuerDN(EntityManager entityManager, Collection<String> subjectDNs,
+            String issuerDN) {
+        return findUsernamesByIssuerDNAnd(entityManager, "subjectDN", subjectDNs, issuerDN);
+    }
+
+    /**
+     * @param subjectKeyIds the Base64 encoded subject key ids to look for
+     * @return the usernames of the certificates with each of the subject key ids issued by the issuer, key ids without certificates are left out
+     */
+    public static Map<String, Set<String>> findUsernamesByIssuerDNAndSubjectKeyIds(EntityManager entityManager, String issuerDN,
+            Collection<String> subjectKeyIds) {
+        return findUsernamesByIssuerDNAnd(entityManager, "subjectKeyId", subjectKeyIds, issuerDN);
+    }
+
+    /** Looks for many values with as few queries as possible, without making the IN lists longer than all databases can handle. */
+    private static Map<String, Set<String>> findUsernamesByIssuerDNAnd(EntityManager entityManager, String column, Collection<String> values,
+            String issuerDN) {
+        final Map<String, Set<String>> ret = new HashMap<String, Set<String>>();
+        final Iterator<String> iter = values.iterator();
+        while (iter.hasNext()) {
+            final List<String> chunk = new ArrayList<String>(IN_LIST_SIZE);
+            while (iter.hasNext() && chunk.size() < IN_LIST_SIZE) {
+                chunk.add(iter.next());
+            }
+            final Query query = entityManager.createQuery("SELECT a." + column + ", a.username FROM CertificateData a WHERE a.issuerDN=:issuerDN AND a."
+                    + column + " IN (:values)");
+            query.setParameter("issuerDN", issuerDN);
+            query.setParameter("values", chunk);
+            @SuppressWarnings("unchecked")
+            final List<Object[]> resultList = (List<Object[]>) query.getResultList();
+            for (final Object[] row : resultList) {
+                Set<String> usernames = ret.get(row[0]);
+                if (usernames == null) {
+                    usernames = new HashSet<String>();
+                    ret.put((String) row[0], usernames);
+                }
+                usernames.add((String) row[1]);
+            }
+        }
+        return ret;
+    }
+
     /** @return return the query results as a List<String>. */
     public static List<String> findFingerprintsByIssuerDN(EntityManager entityManager, String issuerDN) {
         final Query query = entityManager.createQuery("SELECT a.fingerprint FROM CertificateData a WHERE a.issuerDN=:issuerDN");
@@ -873,13 +925,32 @@ public class CertificateData extends ProtectedData implements Serializable {
 
     /** @return return the query results as a List<RevokedCertInfo>. */
     public static List<RevokedCertInfo> getRevokedCertInfos(EntityManager entityManager, String issuerDN, long lastbasecrldate) {
+        return getRevokedCertInfos(entityManager, issuerDN, lastbasecrldate, null, 0);
+    }
+
+    /**
+     * Fetch one page of revoked certificates ordered by fingerprint, so that all revoked certificates of a CA can be read without having them
+     * all in memory at once, by passing the last fingerprint of the previous page.
+     * 
+     * @param lastFingerprint only certificates with a fingerprint greater than this are returned, or null to start from the beginning
+     * @param maxResults maximum number of entries to return, or 0 to return all entries in no specified order
+     * @return return the query results as a List<RevokedCertInfo>.
+     */
+    public static List<RevokedCertInfo> getRevokedCertInfos(EntityManager entityManager, String issuerDN, long lastbasecrldate,
+            String lastFingerprint, int maxResults) {
+        final String paging;
+        if (maxResults > 0) {
+            paging = (lastFingerprint == null ? "" : " AND a.fingerprint>:fingerprint") + " ORDER BY a.fingerprint";
+        } else {
+            paging = "";
+        }
         Query query;
         if (lastbasecrldate > 0) {
             query = entityManager
                     .createNativeQuery(
                             "SELECT a.fingerprint, a.serialNumber, a.expireDate, a.revocationDate, a.revocationReason FROM CertificateData a WHERE "
-                                    + "a.issuerDN=:issuerDN AND a.revocationDate>:revocationDate AND (a.status=:status1 OR (a.status=:status2 AND a.revocationReason=:revocationReason))",
-                            "RevokedCertInfoSubset");
+                                    + "a.issuerDN=:issuerDN AND a.revocationDate>:revocationDate AND (a.status=:status1 OR (a.status=:status2 AND a.revocationReason=:revocationReason))"
+                                    + paging, "RevokedCertInfoSubset");
             query.setParameter("issuerDN", issuerDN);
             query.setParameter("revocationDate", lastbasecrldate);
             query.setParameter("status1", CertificateConstants.CERT_REVOKED);
@@ -888,10 +959,16 @@ public class CertificateData extends ProtectedData implements Serializable {
         } else {
             query = entityManager.createNativeQuery(
                     "SELECT a.fingerprint, a.serialNumber, a.expireDate, a.revocationDate, a.revocationReason FROM CertificateData a WHERE "
-                            + "a.issuerDN=:issuerDN AND a.status=:status", "RevokedCertInfoSubset");
+                            + "a.issuerDN=:issuerDN AND a.status=:status" + paging, "RevokedCertInfoSubset");
             query.setParameter("issuerDN", issuerDN);
             query.setParameter("status", CertificateConstants.CERT_REVOKED);
         }
+        if (maxResults > 0) {
+            if (lastFingerprint != null) {
+                query.setParameter("fingerprint", lastFingerprint);
+            }
+            query.setMaxResults(maxResults);
+        }
         final List<Object[]> incompleteCertificateDatas = query.getResultList();
         final List<RevokedCertInfo> revokedCertInfos = new ArrayList<RevokedCertInfo>();
         for (Object[] current : incompleteCertificateDatas) {
@@ -906,6 +983,66 @@ public class CertificateData extends ProtectedData implements Serializable {
         return revokedCertInfos;
     }
 
+    /**
+     * Fetch the columns needed to determine the status of certificates updated at or after updateTime, ordered by fingerprint so that the whole
+     * table can be paged through by passing the last fingerprint of the previous batch.
+     *
+     * @param updateTime -1 to fetch all certificates, including those with no updateTime that might exist in an upgraded installation
+     * @return [0] = (String) fingerprint, [1] = (String) issuerDN, [2] = (String) serialNumber, [3] = status, [4] = revocationDate,
+     *         [5] = revocationReason, [6] = certificateProfileId (may be null)
+     */
+    public static List<Object[]> findStatusInfoUpdatedAfter(EntityManager entityManager, long updateTime, String currentFingerprint, int batchSize) {
+        // a.updateTime>=:updateTime would not match rows where updateTime is null
+        final String updateTimeCondition = updateTime < 0 ? "" : "a.updateTime>=:updateTime AND ";
+        final Query query = entityManager
+                .createQuery("SELECT a.fingerprint, a.issuerDN, a.serialNumber, a.status, a.revocationDate, a.revocationReason, a.certificateProfileId "
+                        + "FROM CertificateData a WHERE " + updateTimeCondition + "a.fingerprint>:currentFingerprint ORDER BY a.fingerprint ASC");
+        if (updateTime >= 0) {
+            query.setParameter("updateTime", updateTime);
+        }
+        query.setParameter("currentFingerprint", currentFingerprint);
+        query.setMaxResults(batchSize);
+        return query.getResultList();
+    }
+
+    /**
+     * Fetch the revocation status of all certificates from an issuer that have been revoked, unrevoked or archived at or after updateTime.
+     * Certificates that are not revoked any more are returned with reason {@link RevokedCertInfo#NOT_REVOKED}. Certificates that have never
+     * been revoked, such as newly issued ones, are not returned: they are stored with reason NOT_REVOKED, while unrevoked certificates are
+     * stored with reason {@link RevokedCertInfo#REVOCATION_REASON_REMOVEFROMCRL}.
+     * 
+     * @return return the query results as a List<RevokedCertInfo>.
+     */
+    public static List<RevokedCertInfo> getRevocationChanges(EntityManager entityManager, String issuerDN, long updateTime) {
+        final Query query = entityManager
+                .createQuery("SELECT a.fingerprint, a.serialNumber, a.status, a.revocationDate, a.revocationReason, a.expireDate FROM CertificateData a "
+                        + "WHERE a.issuerDN=:issuerDN AND a.updateTime>=:updateTime AND (a.status=:status OR a.revocationReason<>:revocationReason)");
+        query.setParameter("issuerDN", issuerDN);
+        query.setParameter("updateTime", updateTime);
+        query.setParameter("status", CertificateConstants.CERT_REVOKED);
+        query.setParameter("revocationReason", RevokedCertInfo.NOT_REVOKED);
+        final List<Object[]> results = query.getResultList();
+        final List<RevokedCertInfo> revokedCertInfos = new ArrayList<RevokedCertInfo>(results.size());
+        for (final Object[] current : results) {
+            final int status = ValueExtractor.extractIntValue(current[2]);
+            final int revocationReason = status == CertificateConstants.CERT_REVOKED ? ValueExtractor.extractIntValue(current[4])
+                    : RevokedCertInfo.NOT_REVOKED;
+            revokedCertInfos.add(new RevokedCertInfo((String) current[0], new BigInteger((String) current[1]), new Date(ValueExtractor
+                    .extractLongValue(current[3])), revocationReason, new Date(ValueExtractor.extractLongValue(current[5]))));
+        }
+        return revokedCertInfos;
+    }
+
+    /** @return fingerprints of the revoked certificates from an issuer that expired before expireDate */
+    public static List<String> findFingerprintsOfRevokedExpiredBefore(EntityManager entityManager, String issuerDN, long expireDate) {
+        final Query query = entityManager
+                .createQuery("SELECT a.fingerprint FROM CertificateData a WHERE a.issuerDN=:issuerDN AND a.status=:status AND a.expireDate<:expireDate");
+        query.setParameter("issuerDN", issuerDN);
+        query.setParameter("status", CertificateConstants.CERT_REVOKED);
+        query.setParameter("expireDate", expireDate);
+        return query.getResultList();
+    }
+
     /** @return return the query results as a List. */
     public static List<CertificateData> findByExpireDateWithLimit(EntityManager entityManager, long expireDate) {
         final Query query = entityManager
@@ -959,6 +1096,27 @@ public class CertificateData extends ProtectedData implements Serializable {
         return certificateList;
     }
 
+    /**
+     * Fetch the columns needed to determine the status of the certificates with the given serial numbers from one issuer, in one query.
+     *
+     * @return [0] = (String) serialNumber, [1] = status, [2] = revocationDate, [3] = revocationReason, [4] = certificateProfileId (may be null)
+     */
+    public static List<Object[]> findStatusInfoByIssuerDnAndSerialNumbers(EntityManager entityManager, String issuerDN,
+            Collection<BigInteger> serialNumbers) {
+        final StringBuilder sb = new StringBuilder();
+        for (final BigInteger serno : serialNumbers) {
+            sb.append(", '");
+            sb.append(serno.toString());
+            sb.append("'");
+        }
+        sb.delete(0, ", ".length());
+        final Query query = entityManager
+                .createQuery("SELECT a.serialNumber, a.status, a.revocationDate, a.revocationReason, a.certificateProfileId FROM CertificateData a "
+                        + "WHERE a.issuerDN=:issuerDN AND a.serialNumber IN (" + sb.toString() + ")");
+        query.setParameter("issuerDN", issuerDN);
+        return query.getResultList();
+    }
+
     /** @return the CertificateInfo representation (all fields except the actual cert) or null if no such fingerprint exists. */
     public static CertificateInfo getCertificateInfo(EntityManager entityManager, String fingerprint) {
         CertificateInfo ret = null;
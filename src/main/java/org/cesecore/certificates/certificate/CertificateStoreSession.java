@@ -17,6 +17,7 @@ import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
 import java.util.Date;
+import java.util.Map;
 import java.util.Set;
 
 import javax.ejb.CreateException;
@@ -101,6 +102,22 @@ public interface CertificateStoreSession {
     /** @return set of users with certificates with specified key issued by specified issuer. */
     Set<String> findUsernamesByIssuerDNAndSubjectKeyId(String issuerDN, byte[] subjectKeyId);
 
+    /**
+     * Looks up the users of many subject DNs at once, see {@link #findUsernamesByIssuerDNAndSubjectDN(String, String)}.
+     * 
+     * @return map from each of the given subject DNs to the users with certificates with that subject DN issued by specified issuer,
+     *         subject DNs without certificates are not in the map.
+     */
+    Map<String, Set<String>> findUsernamesByIssuerDNAndSubjectDNs(String issuerDN, Collection<String> subjectDNs);
+
+    /**
+     * Looks up the users of many keys at once, see {@link #findUsernamesByIssuerDNAndSubjectKeyId(String, byte[])}.
+     * 
+     * @return map from the Base64 encoding of each of the given subject key ids to the users with certificates with that key issued by
+     *         specified issuer, keys without certificates are not in the map.
+     */
+    Map<String, Set<String>> findUsernamesByIssuerDNAndSubjectKeyIds(String issuerDN, Collection<byte[]> subjectKeyIds);
+
     /**
      * Lists certificates for a given subject.
      * 
@@ -328,6 +345,14 @@ public interface CertificateStoreSession {
      */
     CertificateStatus getStatus(String issuerDN, BigInteger serno);
 
+    /**
+     * Get the status of several certificates from the same issuer with one database query.
+     * @param issuerDN the DN of the issuer.
+     * @param sernos the serial numbers of the certificates
+     * @return a map with an entry for each of the serial numbers, never null, CertificateStatus.NOT_AVAILABLE for certificates that are not found.
+     */
+    Map<BigInteger, CertificateStatus> getStatuses(String issuerDN, Collection<BigInteger> sernos);
+
     /**
      * Update the status of a cert in the database.
      * @param fingerprint
@@ -20,22 +20,27 @@ import java.security.spec.ECParameterSpec;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Resource;
 import javax.ejb.CreateException;
 import javax.ejb.EJB;
 import javax.ejb.EJBException;
 import javax.ejb.FinderException;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
@@ -50,6 +55,9 @@ import org.cesecore.authorization.control.AccessControlSessionLocal;
 import org.cesecore.authorization.control.StandardRules;
 import org.cesecore.certificates.certificateprofile.CertificateProfileConstants;
 import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.ocsp.cache.RevocationStatusIndex;
+import org.cesecore.certificates.ocsp.cache.RevocationStatusIndexHolder;
+import org.cesecore.certificates.ocsp.cache.RevocationStatusIndexInvalidation;
 import org.cesecore.config.CesecoreConfiguration;
 import org.cesecore.internal.InternalResources;
 import org.cesecore.jndi.JndiConstants;
@@ -57,6 +65,7 @@ import org.cesecore.keys.util.KeyTools;
 import org.cesecore.util.Base64;
 import org.cesecore.util.CertTools;
 import org.cesecore.util.StringTools;
+import org.cesecore.util.ValueExtractor;
 import org.ejbca.cvc.PublicKeyEC;
 
 /**
@@ -75,6 +84,10 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
 
     @PersistenceContext(unitName = CesecoreConfiguration.PERSISTENCE_UNIT)
     private EntityManager entityManager;
+    @Resource
+    private SessionContext sessionContext;
+    @Resource
+    private TransactionSynchronizationRegistry transactionSynchronizationRegistry;
 
     @EJB
     private AccessControlSessionLocal accessSession;
@@ -100,8 +113,83 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
         if (log.isTraceEnabled()) {
             log.trace(">storeCertificateNoAuth(" + username + ", " + cafp + ", " + status + ", " + type + ")");
         }
-        // We need special handling here of CVC certificate with EC keys, because they lack EC parameters in all certs except the Root certificate
-        // (CVCA)
+        final PublicKey pubk = getPublicKeyWithParams(incert, cafp);
+
+        // Create the certificate in one go with all parameters at once. This used to be important in EJB2.1 so the persistence layer only creates
+        // *one* single
+        // insert statement. If we do a home.create and the some setXX, it will create one insert and one update statement to the database.
+        // Probably not important in EJB3 anymore
+        CertificateData data1 = new CertificateData(incert, pubk, username, cafp, status, type, certificateProfileId, tag, updateTime);
+        try {
+            entityManager.persist(data1);
+        } catch (Exception e) {
+            // For backward compatibility. We should drop the throw entirely and rely on the return value.
+            CreateException ce = new CreateException();
+            ce.setStackTrace(e.getStackTrace());
+            throw ce;
+        }
+        invalidateRevocationStatusIndex(data1.getIssuerDN(), CertTools.getSerialNumber(incert));
+        final String serialNo = CertTools.getSerialNumberAsString(incert);
+		final String msg = INTRES.getLocalizedMessage("store.storecert", username, data1.getFingerprint(), data1.getSubjectDN(), data1.getIssuerDN(), serialNo);
+		Map<String, Object> details = new LinkedHashMap<String, Object>();
+		details.put("msg", msg);
+		final String caId = Integer.valueOf(CertTools.getIssuerDN(incert).hashCode()).toString();
+		logSession.log(EventTypes.CERT_STORED, EventStatus.SUCCESS, ModuleTypes.CERTIFICATE, ServiceTypes.CORE, adminForLogging.toString(), caId, serialNo, username, details);
+        if (log.isTraceEnabled()) {
+            log.trace("<storeCertificateNoAuth()");
+        }
+        return true;
+    }
+
+    /** Local interface only */
+    @Override
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void storeCertificatesNoAuth(AuthenticationToken adminForLogging, Map<Certificate, String> certificates, String cafp, int status,
+            int type, int certificateProfileId, String tag, long updateTime) throws CreateException {
+        if (log.isTraceEnabled()) {
+            log.trace(">storeCertificatesNoAuth(" + certificates.size() + ", " + cafp + ", " + status + ", " + type + ")");
+        }
+        final List<CertificateData> stored = new ArrayList<CertificateData>(certificates.size());
+        try {
+            for (final Map.Entry<Certificate, String> entry : certificates.entrySet()) {
+                final Certificate incert = entry.getKey();
+                final CertificateData data = new CertificateData(incert, getPublicKeyWithParams(incert, cafp), entry.getValue(), cafp, status, type,
+                        certificateProfileId, tag, updateTime);
+                entityManager.persist(data);
+                stored.add(data);
+            }
+            // Send all the inserts now, in JDBC batches, so a failure is seen here and not when the transaction commits
+            entityManager.flush();
+        } catch (Exception e) {
+            sessionContext.setRollbackOnly();
+            CreateException ce = new CreateException();
+            ce.setStackTrace(e.getStackTrace());
+            throw ce;
+        }
+        final Iterator<Certificate> iter = certificates.keySet().iterator();
+        for (final CertificateData data : stored) {
+            final Certificate incert = iter.next();
+            invalidateRevocationStatusIndex(data.getIssuerDN(), CertTools.getSerialNumber(incert));
+            final String serialNo = CertTools.getSerialNumberAsString(incert);
+            final String msg = INTRES.getLocalizedMessage("store.storecert", data.getUsername(), data.getFingerprint(), data.getSubjectDN(),
+                    data.getIssuerDN(), serialNo);
+            final Map<String, Object> details = new LinkedHashMap<String, Object>();
+            details.put("msg", msg);
+            final String caId = Integer.valueOf(CertTools.getIssuerDN(incert).hashCode()).toString();
+            logSession.log(EventTypes.CERT_STORED, EventStatus.SUCCESS, ModuleTypes.CERTIFICATE, ServiceTypes.CORE, adminForLogging.toString(),
+                    caId, serialNo, data.getUsername(), details);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("<storeCertificatesNoAuth()");
+        }
+    }
+
+    /**
+     * We need special handling of CVC certificates with EC keys, because they lack EC parameters in all certs except the Root certificate (CVCA).
+     * 
+     * @return the public key of the certificate, with EC parameters taken from the CA certificate if needed and possible.
+     */
+    private PublicKey getPublicKeyWithParams(final Certificate incert, final String cafp) {
         PublicKey pubk = incert.getPublicKey();
         if ((pubk instanceof PublicKeyEC)) {
             PublicKeyEC pkec = (PublicKeyEC) pubk;
@@ -142,30 +230,7 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
                 }
             }
         } // finished with ECC key special handling
-
-        // Create the certificate in one go with all parameters at once. This used to be important in EJB2.1 so the persistence layer only creates
-        // *one* single
-        // insert statement. If we do a home.create and the some setXX, it will create one insert and one update statement to the database.
-        // Probably not important in EJB3 anymore
-        CertificateData data1 = new CertificateData(incert, pubk, username, cafp, status, type, certificateProfileId, tag, updateTime);
-        try {
-            entityManager.persist(data1);
-        } catch (Exception e) {
-            // For backward compatibility. We should drop the throw entirely and rely on the return value.
-            CreateException ce = new CreateException();
-            ce.setStackTrace(e.getStackTrace());
-            throw ce;
-        }
-        final String serialNo = CertTools.getSerialNumberAsString(incert);
-		final String msg = INTRES.getLocalizedMessage("store.storecert", username, data1.getFingerprint(), data1.getSubjectDN(), data1.getIssuerDN(), serialNo);
-		Map<String, Object> details = new LinkedHashMap<String, Object>();
-		details.put("msg", msg);
-		final String caId = Integer.valueOf(CertTools.getIssuerDN(incert).hashCode()).toString();
-		logSession.log(EventTypes.CERT_STORED, EventStatus.SUCCESS, ModuleTypes.CERTIFICATE, ServiceTypes.CORE, adminForLogging.toString(), caId, serialNo, username, details);
-        if (log.isTraceEnabled()) {
-            log.trace("<storeCertificateNoAuth()");
-        }
-        return true;
+        return pubk;
     }
 
     @Override
@@ -185,6 +250,29 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
         return CertificateData.getRevokedCertInfos(entityManager, CertTools.stringToBCDNString(StringTools.strip(issuerdn)), lastbasecrldate);
     }
 
+    @Override
+    public List<RevokedCertInfo> listRevokedCertInfo(String issuerdn, long lastbasecrldate, String lastFingerprint, int maxResults) {
+        if (log.isTraceEnabled()) {
+            log.trace(">listRevokedCertInfo(" + lastFingerprint + ", " + maxResults + ")");
+        }
+        return CertificateData.getRevokedCertInfos(entityManager, CertTools.stringToBCDNString(StringTools.strip(issuerdn)), lastbasecrldate,
+                lastFingerprint, maxResults);
+    }
+
+    @Override
+    public List<RevokedCertInfo> listRevocationChanges(String issuerdn, long updateTime) {
+        if (log.isTraceEnabled()) {
+            log.trace(">listRevocationChanges(" + updateTime + ")");
+        }
+        return CertificateData.getRevocationChanges(entityManager, CertTools.stringToBCDNString(StringTools.strip(issuerdn)), updateTime);
+    }
+
+    @Override
+    public List<String> listRevokedCertificatesExpiredBefore(String issuerdn, long expireDate) {
+        return CertificateData.findFingerprintsOfRevokedExpiredBefore(entityManager, CertTools.stringToBCDNString(StringTools.strip(issuerdn)),
+                expireDate);
+    }
+
     @Override
     public Collection<Certificate> findCertificatesBySubjectAndIssuer(String subjectDN, String issuerDN) {
         if (log.isTraceEnabled()) {
@@ -250,6 +338,58 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
         }
     }
 
+    @Override
+    public Map<String, Set<String>> findUsernamesByIssuerDNAndSubjectDNs(String issuerDN, Collection<String> subjectDNs) {
+        if (log.isTraceEnabled()) {
+            log.trace(">findUsernamesByIssuerDNAndSubjectDNs(), issuer='" + issuerDN + "', " + subjectDNs.size() + " subject DNs");
+        }
+        // First make the DNs in our well-known format, and remember which DN the caller asked for
+        final String transformedIssuerDN = CertTools.stringToBCDNString(StringTools.strip(issuerDN));
+        final Map<String, List<String>> subjectDNsByTransformed = new HashMap<String, List<String>>();
+        for (final String subjectDN : subjectDNs) {
+            final String transformedSubjectDN = CertTools.stringToBCDNString(StringTools.strip(subjectDN));
+            List<String> original = subjectDNsByTransformed.get(transformedSubjectDN);
+            if (original == null) {
+                original = new ArrayList<String>(1);
+                subjectDNsByTransformed.put(transformedSubjectDN, original);
+            }
+            original.add(subjectDN);
+        }
+        final Map<String, Set<String>> ret = new HashMap<String, Set<String>>();
+        for (final Map.Entry<String, Set<String>> entry : CertificateData.findUsernamesBySubjectDNsAndIssuerDN(entityManager,
+                subjectDNsByTransformed.keySet(), transformedIssuerDN).entrySet()) {
+            final List<String> original = subjectDNsByTransformed.get(entry.getKey());
+            if (original != null) {
+                for (final String subjectDN : original) {
+                    ret.put(subjectDN, entry.getValue());
+                }
+            }
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("<findUsernamesByIssuerDNAndSubjectDNs(), issuer='" + issuerDN + "', " + ret.size() + " subject DNs found");
+        }
+        return ret;
+    }
+
+    @Override
+    public Map<String, Set<String>> findUsernamesByIssuerDNAndSubjectKeyIds(String issuerDN, Collection<byte[]> subjectKeyIds) {
+        if (log.isTraceEnabled()) {
+            log.trace(">findUsernamesByIssuerDNAndSubjectKeyIds(), issuer='" + issuerDN + "', " + subjectKeyIds.size() + " keys");
+        }
+        final String transformedIssuerDN = CertTools.stringToBCDNString(StringTools.strip(issuerDN));
+        final Set<String> sSubjectKeyIds = new HashSet<String>();
+        for (final byte[] subjectKeyId : subjectKeyIds) {
+            sSubjectKeyIds.add(new String(Base64.encode(subjectKeyId, false)));
+        }
+        try {
+            return CertificateData.findUsernamesByIssuerDNAndSubjectKeyIds(entityManager, transformedIssuerDN, sSubjectKeyIds);
+        } finally {
+            if (log.isTraceEnabled()) {
+                log.trace("<findUsernamesByIssuerDNAndSubjectKeyIds(), issuer='" + issuerDN + "'");
+            }
+        }
+    }
+
     @Override
     public Collection<Certificate> findCertificatesBySubject(String subjectDN) {
         if (log.isTraceEnabled()) {
@@ -614,7 +754,8 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
             // long revocationDate = -1L; // A null Date to setRevocationDate will result in -1 stored in long column
             rev.setRevocationDate(null);
             rev.setUpdateTime(now.getTime());
-            int revocationReason = RevokedCertInfo.NOT_REVOKED;
+            // Not NOT_REVOKED, so that incremental CRLs can tell an unrevoked certificate from one that has never been revoked
+            int revocationReason = RevokedCertInfo.REVOCATION_REASON_REMOVEFROMCRL;
             rev.setRevocationReason(revocationReason);
             
     		final String msg = INTRES.getLocalizedMessage("store.unrevokedcert", username, rev.getFingerprint(), Integer.valueOf(reason), rev.getSubjectDN(), rev.getIssuerDN(), serialNo);
@@ -627,6 +768,9 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
             log.info(msg);
     		returnVal = false; // we did _not_ change status in the database
         }
+        if (returnVal) {
+            invalidateRevocationStatusIndex(rev.getIssuerDN(), CertTools.getSerialNumber(certificate));
+        }
         if (log.isTraceEnabled()) {
             log.trace("<private setRevokeStatusNoAuth(), issuerdn=" + CertTools.getIssuerDN(certificate) + ", serno="
                     + CertTools.getSerialNumberAsString(certificate));
@@ -648,12 +792,15 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
         try {
             final int maxRows = 10000;
             int firstResult = 0;
+            final long updateTime = System.currentTimeMillis();
             // Change all temporary revoked certificates to permanently revoked certificates
             List<CertificateData> list = CertificateData.findAllOnHold(entityManager, bcdn, firstResult, maxRows);
             while (list.size() > 0) {
             	for (int i = 0; i<list.size(); i++) {
                 	CertificateData d = list.get(i);
                 	d.setStatus(CertificateConstants.CERT_REVOKED);
+                	// So the delta polls of the OCSP responders and incremental CRLs see the change
+                	d.setUpdateTime(updateTime);
             	}
             	firstResult += maxRows;
             	list = CertificateData.findAllNonRevokedCertificates(entityManager, bcdn, firstResult, maxRows);
@@ -670,10 +817,21 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
                 	d.setStatus(CertificateConstants.CERT_REVOKED);
                 	d.setRevocationDate(System.currentTimeMillis());
                 	d.setRevocationReason(reason);
+                	d.setUpdateTime(updateTime);
             	}
             	firstResult += maxRows;
             	list = CertificateData.findAllNonRevokedCertificates(entityManager, bcdn, firstResult, maxRows);
             }
+            // Too many entries to invalidate one by one, the index will be reloaded in full on the next update
+            final RevocationStatusIndex index = RevocationStatusIndexHolder.INSTANCE.getIndex();
+            if (index != null) {
+                final RevocationStatusIndexInvalidation invalidation = getRevocationStatusIndexInvalidation(index);
+                if (invalidation != null) {
+                    invalidation.clear();
+                } else {
+                    index.clear();
+                }
+            }
             final String msg = INTRES.getLocalizedMessage("store.revokedallbyca", issuerdn, Integer.valueOf(revoked + temprevoked), Integer.valueOf(reason));
     		Map<String, Object> details = new LinkedHashMap<String, Object>();
     		details.put("msg", msg);
@@ -778,6 +936,56 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
         return CertificateStatus.NOT_AVAILABLE;
     }
 
+    @Override
+    public Map<BigInteger, CertificateStatus> getStatuses(String issuerDN, Collection<BigInteger> sernos) {
+        if (log.isTraceEnabled()) {
+            log.trace(">getStatuses(), dn:" + issuerDN + ", " + sernos.size() + " sernos");
+        }
+        final Map<BigInteger, CertificateStatus> ret = new HashMap<BigInteger, CertificateStatus>();
+        if (sernos.isEmpty()) {
+            return ret;
+        }
+        // First make a DN in our well-known format
+        final String dn = CertTools.stringToBCDNString(issuerDN);
+        // Keep the IN list within what all supported databases accept (Oracle allows at most 1000 expressions)
+        final int maxInListSize = 500;
+        final List<BigInteger> batch = new ArrayList<BigInteger>(Math.min(sernos.size(), maxInListSize));
+        final Iterator<BigInteger> iter = sernos.iterator();
+        while (iter.hasNext()) {
+            batch.add(iter.next());
+            if (batch.size() < maxInListSize && iter.hasNext()) {
+                continue;
+            }
+            try {
+                final List<Object[]> list = CertificateData.findStatusInfoByIssuerDnAndSerialNumbers(entityManager, dn, batch);
+                for (final Object[] fields : list) {
+                    // The order of the results are defined by the query in CertificateData.findStatusInfoByIssuerDnAndSerialNumbers
+                    final BigInteger serno = new BigInteger((String) fields[0]);
+                    if (ret.containsKey(serno)) {
+                        final String msg = INTRES.getLocalizedMessage("store.errorseveralissuerserno", issuerDN, serno.toString(16));
+                        log.error(msg);
+                        continue;
+                    }
+                    final int pId = fields[4] != null ? ValueExtractor.extractIntValue(fields[4]) : CertificateProfileConstants.CERTPROFILE_NO_PROFILE;
+                    ret.put(serno, getCertificateStatus(ValueExtractor.extractIntValue(fields[1]), ValueExtractor.extractLongValue(fields[2]),
+                            ValueExtractor.extractIntValue(fields[3]), pId));
+                }
+            } catch (Exception e) {
+                throw new EJBException(e);
+            }
+            batch.clear();
+        }
+        for (final BigInteger serno : sernos) {
+            if (!ret.containsKey(serno)) {
+                ret.put(serno, CertificateStatus.NOT_AVAILABLE);
+            }
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("<getStatuses() returned " + ret.size() + " statuses");
+        }
+        return ret;
+    }
+
     /**
      * Algorithm: if status is CERT_REVOKED the certificate is revoked and reason and date is picked up if status is CERT_ARCHIVED and reason is _NOT_
      * REMOVEFROMCRL or NOT_REVOKED the certificate is revoked and reason and date is picked up if status is CERT_ARCHIVED and reason is REMOVEFROMCRL
@@ -795,20 +1003,81 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
             final Integer tmp = data.getCertificateProfileId();
             pId = tmp != null ? tmp.intValue() : CertificateProfileConstants.CERTPROFILE_NO_PROFILE;
         }
-        final int status = data.getStatus();
+        return getCertificateStatus(data.getStatus(), data.getRevocationDate(), data.getRevocationReason(), pId);
+    }
+
+    /** Same algorithm as {@link #getCertificateStatus(CertificateData)}, for when only the needed columns have been read. */
+    private static CertificateStatus getCertificateStatus(final int status, final long revocationDate, final int revocationReason, final int pId) {
         if (status == CertificateConstants.CERT_REVOKED) {
-            return new CertificateStatus(data.getRevocationDate(), data.getRevocationReason(), pId);
+            return new CertificateStatus(revocationDate, revocationReason, pId);
         }
         if (status != CertificateConstants.CERT_ARCHIVED) {
             return new CertificateStatus(CertificateStatus.OK.toString(), pId);
         }
         // If the certificate have status ARCHIVED, BUT revocationReason is REMOVEFROMCRL or NOTREVOKED, the certificate is OK
         // Otherwise it is a revoked certificate that has been archived and we must return REVOKED
-        final int revReason = data.getRevocationReason(); // Read revocationReason from database if we really need to..
-        if (revReason == RevokedCertInfo.REVOCATION_REASON_REMOVEFROMCRL || revReason == RevokedCertInfo.NOT_REVOKED) {
+        if (revocationReason == RevokedCertInfo.REVOCATION_REASON_REMOVEFROMCRL || revocationReason == RevokedCertInfo.NOT_REVOKED) {
             return new CertificateStatus(CertificateStatus.OK.toString(), pId);
         }
-        return new CertificateStatus(data.getRevocationDate(), revReason, pId);
+        return new CertificateStatus(revocationDate, revocationReason, pId);
+    }
+
+    @Override
+    public int updateRevocationStatusIndex(final RevocationStatusIndex index, final long updateTime) {
+        if (log.isTraceEnabled()) {
+            log.trace(">updateRevocationStatusIndex(" + updateTime + ")");
+        }
+        final int maxRows = 10000;
+        int count = 0;
+        String lastFingerprint = "";
+        List<Object[]> list = CertificateData.findStatusInfoUpdatedAfter(entityManager, updateTime, lastFingerprint, maxRows);
+        while (list.size() > 0) {
+            for (final Object[] fields : list) {
+                // The order of the results are defined by the query in CertificateData.findStatusInfoUpdatedAfter
+                final int pId = fields[6] != null ? ValueExtractor.extractIntValue(fields[6]) : CertificateProfileConstants.CERTPROFILE_NO_PROFILE;
+                final CertificateStatus status = getCertificateStatus(ValueExtractor.extractIntValue(fields[3]),
+                        ValueExtractor.extractLongValue(fields[4]), ValueExtractor.extractIntValue(fields[5]), pId);
+                index.put((String) fields[1], new BigInteger((String) fields[2]), status);
+                lastFingerprint = (String) fields[0];
+            }
+            count += list.size();
+            list = CertificateData.findStatusInfoUpdatedAfter(entityManager, updateTime, lastFingerprint, maxRows);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("<updateRevocationStatusIndex(" + updateTime + "): " + count);
+        }
+        return count;
+    }
+
+    /** Invalidates the entry of a certificate in the revocation status index, when the current transaction has completed. */
+    private void invalidateRevocationStatusIndex(final String issuerDN, final BigInteger serno) {
+        final RevocationStatusIndex index = RevocationStatusIndexHolder.INSTANCE.getIndex();
+        if (index != null) {
+            final RevocationStatusIndexInvalidation invalidation = getRevocationStatusIndexInvalidation(index);
+            if (invalidation != null) {
+                invalidation.add(issuerDN, serno);
+            } else {
+                index.invalidate(issuerDN, serno);
+            }
+        }
+    }
+
+    /**
+     * @return the invalidations of the revocation status index to make when the current transaction has completed, or null if there is no
+     *         transaction and the invalidations should be made at once.
+     */
+    private RevocationStatusIndexInvalidation getRevocationStatusIndexInvalidation(final RevocationStatusIndex index) {
+        if (transactionSynchronizationRegistry.getTransactionKey() == null) {
+            return null;
+        }
+        RevocationStatusIndexInvalidation ret = (RevocationStatusIndexInvalidation) transactionSynchronizationRegistry
+                .getResource(RevocationStatusIndexInvalidation.class);
+        if (ret == null) {
+            ret = new RevocationStatusIndexInvalidation(index);
+            transactionSynchronizationRegistry.putResource(RevocationStatusIndexInvalidation.class, ret);
+            transactionSynchronizationRegistry.registerInterposedSynchronization(ret);
+        }
+        return ret;
     }
 
     @Override
@@ -838,6 +1107,8 @@ public class CertificateStoreSessionBean implements CertificateStoreSessionRemot
             authorizedToCA(admin, caid);
 
         	data.setStatus(status);
+        	data.setUpdateTime(System.currentTimeMillis());
+        	invalidateRevocationStatusIndex(data.getIssuerDN(), new BigInteger(data.getSerialNumber()));
         	final String serialNo = CertTools.getSerialNumberAsString(data.getCertificate());
             final String msg = INTRES.getLocalizedMessage("store.setstatus", data.getUsername(), fingerprint, status, data.getSubjectDN(), data.getIssuerDN(), serialNo);
     		Map<String, Object> details = new LinkedHashMap<String, Object>();
@@ -17,12 +17,15 @@ import java.security.cert.Certificate;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import javax.ejb.CreateException;
 import javax.ejb.Local;
 
 import org.cesecore.authentication.tokens.AuthenticationToken;
 import org.cesecore.authorization.AuthorizationDeniedException;
+import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.ocsp.cache.RevocationStatusIndex;
 
 /**
  * Local interface for CertificateStoreSession.
@@ -53,6 +56,22 @@ public interface CertificateStoreSessionLocal extends CertificateStoreSession {
     boolean storeCertificateNoAuth(AuthenticationToken admin, Certificate incert, String username,
             String cafp, int status, int type, int certificateProfileId, String tag, long updateTime) throws CreateException, AuthorizationDeniedException;
 
+    /**
+     * Stores many certificates of the same CA and certificate profile without checking authorization, in a transaction of its own
+     * with as few round trips to the database as possible. Either all of the certificates are stored or none of them.
+     * 
+     * @param certificates the certificates to be stored, with the username of the end entity owning each of them.
+     * @param cafp Fingerprint (hex) of the CAs certificate.
+     * @param status the status from the CertificateConstants.CERT_ constants
+     * @param type Type of certificate (CERTTYPE_ENDENTITY etc from CertificateConstants).
+     * @param certificateProfileId the certificate profile id the certificates were issued under
+     * @param tag a custom string tagging the certificates for some purpose
+     * @throws CreateException (rollback) if any of the certificates can not be stored in the database
+     * @see #storeCertificateNoAuth(AuthenticationToken, Certificate, String, String, int, int, int, String, long)
+     */
+    void storeCertificatesNoAuth(AuthenticationToken admin, Map<Certificate, String> certificates, String cafp, int status, int type,
+            int certificateProfileId, String tag, long updateTime) throws CreateException;
+
     /**
      * Method to set the status of certificate to revoked or active, without checking for authorization. 
      * This is why it is important that this method is _local only_. 
@@ -75,5 +94,45 @@ public interface CertificateStoreSessionLocal extends CertificateStoreSession {
      */
     List<Object[]> findExpirationInfo(Collection<String> cas, long activeNotifiedExpireDateMin, long activeNotifiedExpireDateMax, long activeExpireDateMin);
     
+    /**
+     * Reads the status of all certificates updated at or after the given time and puts it in the index. Used to bulk load, and to poll for
+     * changes to, the OCSP revocation status index.
+     * 
+     * @param index the index to fill
+     * @param updateTime only certificates with an updateTime at or after this are read, use -1 for all certificates, including those with no
+     *            updateTime.
+     * @return the number of certificates read from the database
+     */
+    int updateRevocationStatusIndex(RevocationStatusIndex index, long updateTime);
+
+    /**
+     * Lists one page of RevokedCertInfo of revoked certificates from a certain issuer, ordered by fingerprint. Used to read all entries of a
+     * large CRL without holding them all in memory.
+     * 
+     * @param issuerdn the dn of the certificates issuer.
+     * @param lastbasecrldate a date (Date.getTime()) of last base CRL or -1 for a complete CRL
+     * @param lastFingerprint fingerprint of the last entry of the previous page, or null for the first page
+     * @param maxResults the maximum number of entries to return
+     * @return List of RevokedCertInfo ordered by fingerprint, empty when there are no more entries
+     */
+    List<RevokedCertInfo> listRevokedCertInfo(String issuerdn, long lastbasecrldate, String lastFingerprint, int maxResults);
+
+    /**
+     * Lists the certificates from a certain issuer that have been revoked, unrevoked or archived since a certain time. Used to update the
+     * previous CRL instead of reading all revoked certificates again.
+     * 
+     * @param issuerdn the dn of the certificates issuer.
+     * @param updateTime a date (Date.getTime()), only certificates updated at or after this are returned
+     * @return List of RevokedCertInfo, with reason RevokedCertInfo.NOT_REVOKED for certificates that are not revoked
+     */
+    List<RevokedCertInfo> listRevocationChanges(String issuerdn, long updateTime);
+
+    /**
+     * @param issuerdn the dn of the certificates issuer.
+     * @param expireDate a date (Date.getTime())
+     * @return fingerprints of the revoked certificates from a certain issuer that expired before expireDate
+     */
+    List<String> listRevokedCertificatesExpiredBefore(String issuerdn, long expireDate);
+
 
 }
@@ -119,6 +119,16 @@ public abstract class CertificateExtension {
 		}		
 	}
 	
+	/**
+	 * Tells if the value of the extension only depends on the CA, the CA public key and the certificate profile, and not on the end entity
+	 * or its public key. Such values are encoded once and used for all certificates that the CA issues with the same profile.
+	 * 
+	 * @return true if the value is the same for all certificates issued by a CA with a profile, false by default
+	 */
+	public boolean isSameForAllCertificates() {
+		return false;
+	}
+	
 	/**
 	 * Method that should return the DEREncodable value used in the extension
 	 * this is the method at all implementors must implement.
@@ -51,6 +51,11 @@ public class AuthorityInformationAccess extends StandardCertificateExtension {
 		super.setCriticalFlag(false);
 	}
     
+    @Override
+	public boolean isSameForAllCertificates() {
+		return true;
+	}
+    
     @Override
 	public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey, final PublicKey caPublicKey ) throws CertificateExtentionConfigurationException, CertificateExtensionException {
 		final ASN1EncodableVector accessList = new ASN1EncodableVector();
@@ -53,6 +53,11 @@ public class AuthorityKeyIdentifier extends StandardCertificateExtension {
         super.setCriticalFlag(certProf.getAuthorityKeyIdentifierCritical());
     }
 
+    @Override
+    public boolean isSameForAllCertificates() {
+        return true;
+    }
+
     @Override
     public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey,
             final PublicKey caPublicKey) throws CertificateExtentionConfigurationException, CertificateExtensionException {
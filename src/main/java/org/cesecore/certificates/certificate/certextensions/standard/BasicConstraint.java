@@ -40,6 +40,11 @@ public class BasicConstraint extends StandardCertificateExtension {
 		super.setCriticalFlag(certProf.getBasicConstraintsCritical());
 	}
     
+    @Override
+	public boolean isSameForAllCertificates() {
+		return true;
+	}
+    
     @Override
 	public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey, final PublicKey caPublicKey ) throws CertificateExtentionConfigurationException, CertificateExtensionException {
 		// Default value, end entity 
@@ -55,6 +55,11 @@ public class CertificatePolicies extends StandardCertificateExtension {
 		super.setCriticalFlag(certProf.getCertificatePoliciesCritical());
 	}
     
+    @Override
+	public boolean isSameForAllCertificates() {
+		return true;
+	}
+    
     @Override
 	public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey, final PublicKey caPublicKey ) throws CertificateExtentionConfigurationException, CertificateExtensionException {
 		DERSequence ret = null;
@@ -56,6 +56,11 @@ public class CrlDistributionPoints extends StandardCertificateExtension {
 		super.setCriticalFlag(certProf.getCRLDistributionPointCritical());
 	}
     
+    @Override
+	public boolean isSameForAllCertificates() {
+		return true;
+	}
+    
     @Override
 	public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey, final PublicKey caPublicKey ) throws CertificateExtentionConfigurationException, CertificateExtensionException {
 		String crldistpoint = certProfile.getCRLDistributionPointURI();
@@ -45,6 +45,11 @@ public class ExtendedKeyUsage extends StandardCertificateExtension {
 		super.setCriticalFlag(certProf.getExtendedKeyUsageCritical());
 	}
     
+    @Override
+	public boolean isSameForAllCertificates() {
+		return true;
+	}
+    
     @Override
 	public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey, final PublicKey caPublicKey ) throws CertificateExtentionConfigurationException, CertificateExtensionException {
 		org.bouncycastle.asn1.x509.ExtendedKeyUsage ret = null;
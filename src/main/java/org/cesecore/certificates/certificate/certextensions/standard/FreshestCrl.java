@@ -52,6 +52,11 @@ public class FreshestCrl extends StandardCertificateExtension {
 		super.setCriticalFlag(false);
 	}
     
+    @Override
+	public boolean isSameForAllCertificates() {
+		return true;
+	}
+    
     @Override
 	public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey, final PublicKey caPublicKey ) throws CertificateExtentionConfigurationException, CertificateExtensionException {
         String freshestcrldistpoint = certProfile.getFreshestCRLURI();
@@ -42,6 +42,11 @@ public class KeyUsage extends StandardCertificateExtension {
 		super.setCriticalFlag(certProf.getKeyUsageCritical());
 	}
     
+    @Override
+	public boolean isSameForAllCertificates() {
+		return true;
+	}
+    
     @Override
 	public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey, final PublicKey caPublicKey ) throws CertificateExtentionConfigurationException, CertificateExtensionException {
 		// Key usage
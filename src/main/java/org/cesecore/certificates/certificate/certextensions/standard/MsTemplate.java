@@ -40,6 +40,11 @@ public class MsTemplate extends StandardCertificateExtension {
 		super.setCriticalFlag(false);
 	}
     
+    @Override
+	public boolean isSameForAllCertificates() {
+		return true;
+	}
+    
     @Override
 	public DEREncodable getValue(final EndEntityInformation subject, final CA ca, final CertificateProfile certProfile, final PublicKey userPublicKey, final PublicKey caPublicKey ) throws CertificateExtentionConfigurationException, CertificateExtensionException {
 		final String mstemplate = certProfile.getMicrosoftTemplate();             
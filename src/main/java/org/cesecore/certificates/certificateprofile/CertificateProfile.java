@@ -1703,6 +1703,22 @@ public class CertificateProfile extends UpgradeableDataHashMap implements Serial
         return clone;
     }
 
+    /**
+     * Profiles are cloned every time they are read, so this tells if two profile objects are the same version of a profile.
+     *
+     * @param other another certificate profile
+     * @return true if the other profile has exactly the same settings as this profile
+     */
+    public boolean hasSameSettings(final CertificateProfile other) {
+        // Compare the entries and not the maps, Base64GetHashMap.get decodes the values
+        return other != null && data.entrySet().equals(other.data.entrySet());
+    }
+
+    /** @return a hash code of the settings of the profile, the same for profiles where {@link #hasSameSettings(CertificateProfile)} is true */
+    public int getSettingsHashCode() {
+        return data.entrySet().hashCode();
+    }
+
     /** Implementation of UpgradableDataHashMap function getLatestVersion */
     public float getLatestVersion() {
         return LATEST_VERSION;
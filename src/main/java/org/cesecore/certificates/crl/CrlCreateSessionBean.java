@@ -12,21 +12,26 @@
  *************************************************************************/
 package org.cesecore.certificates.crl;
 
+import java.math.BigInteger;
 import java.security.cert.CRLException;
 import java.security.cert.Certificate;
-import java.security.cert.X509CRL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.EJBException;
-import javax.ejb.FinderException;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
@@ -61,6 +66,7 @@ import org.cesecore.config.CesecoreConfiguration;
 import org.cesecore.internal.InternalResources;
 import org.cesecore.jndi.JndiConstants;
 import org.cesecore.keys.token.CryptoTokenOfflineException;
+import org.cesecore.keys.token.PKCS11CryptoToken;
 import org.cesecore.util.CertTools;
 import org.cesecore.util.CryptoProviderTools;
 
@@ -77,6 +83,11 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     private static final Logger log = Logger.getLogger(CrlCreateSessionBean.class);
     /** Internal localization of logs and errors */
     private static final InternalResources intres = InternalResources.getInstance();
+
+    /** Number of revoked certificates read from the database at a time when generating a CRL */
+    private static final int CRL_ENTRY_PAGE_SIZE = 10000;
+    /** How long before the previous CRL was issued changes are read, when a full CRL is made by updating the previous one */
+    private static final long INCREMENTAL_CRL_OVERLAP = 10 * 60 * 1000L;
     
     @PersistenceContext(unitName = CesecoreConfiguration.PERSISTENCE_UNIT)
     private EntityManager entityManager;
@@ -114,66 +125,169 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
 
 	@Override
     public int createCRLs(AuthenticationToken admin, Collection<Integer> caids, long addtocrloverlaptime) throws AuthorizationDeniedException {
-		int createdcrls = 0;
-		Iterator<Integer> iter = null;
-		if (caids != null) {
-			iter = caids.iterator();
+		return createCRLs(admin, caids, addtocrloverlaptime, false);
+    }
+
+    @Override
+    public int createDeltaCRLs(AuthenticationToken admin, Collection<Integer> caids, long crloverlaptime) throws AuthorizationDeniedException {
+        return createCRLs(admin, caids, crloverlaptime, true);
+    }
+
+    /**
+     * Creates the CRLs or delta CRLs that are needed for the given CAs, the ones whose current CRL expires first first. The revoked certificates
+     * of each CA are read in one transaction and the CRL is stored in another, both in this thread. Only the signing is done in other threads,
+     * several CRLs at the same time if so configured.
+     * 
+     * @param caids CA ids to check, or null to check all CAs
+     * @param overlaptime added to the CRL overlap time for CRLs, the overlap time for delta CRLs
+     * @param deltaCRL true to create delta CRLs, false to create CRLs
+     * @return the number of CRLs created
+     */
+    private int createCRLs(final AuthenticationToken admin, final Collection<Integer> caids, final long overlaptime, final boolean deltaCRL) throws AuthorizationDeniedException {
+		final Collection<Integer> ids;
+		if ((caids == null) || (caids.contains(Integer.valueOf(CAConstants.ALLCAS)))) {
+			ids = caSession.getAvailableCAs();
+		} else {
+			ids = caids;
+		}
+		final List<CrlGenerationScheduler.Task> tasks = new ArrayList<CrlGenerationScheduler.Task>(ids.size());
+		for (final Integer id : ids) {
+			final int caid = id.intValue();
+			final CrlGenerationScheduler.Job job = new CrlGenerationScheduler.Job() {
+				private PendingCrl crl = null;
+
+				@Override
+				public boolean prepare() throws AuthorizationDeniedException {
+					if (log.isDebugEnabled()) {
+						log.debug((deltaCRL ? "createDeltaCRLs" : "createCRLs")+" for caid: " + caid);
+					}
+					try {
+						crl = crlCreateSession.prepareCRLNewTransactionConditioned(admin, caid, overlaptime, deltaCRL);
+						return crl != null;
+					} catch (CesecoreException e) {
+						createCRLFailed(admin, caid, deltaCRL, e);
+						return false;
+					}
+				}
+
+				@Override
+				public void sign() {
+					crl.sign();
+				}
+
+				@Override
+				public boolean store() throws AuthorizationDeniedException {
+					try {
+						return crlCreateSession.storeCRLNewTransaction(admin, crl);
+					} catch (CesecoreException e) {
+						createCRLFailed(admin, caid, deltaCRL, e);
+						return false;
+					}
+				}
+			};
+			tasks.add(getCrlGenerationTask(admin, caid, deltaCRL, job));
 		}
-		if ((iter == null) || (caids.contains(Integer.valueOf(CAConstants.ALLCAS)))) {
-			iter = caSession.getAvailableCAs().iterator();
+		final CrlGenerationScheduler scheduler = new CrlGenerationScheduler(CesecoreConfiguration.getCrlGenerationThreads(),
+				CesecoreConfiguration.getCrlGenerationThreadsPerToken());
+		final long start = System.currentTimeMillis();
+		final List<CrlGenerationScheduler.Task> done;
+		try {
+			done = scheduler.run(tasks);
+		} catch (AuthorizationDeniedException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new EJBException(e);
 		}
-		while (iter.hasNext()) {
-			int caid = ((Integer) iter.next()).intValue();
-			log.debug("createCRLs for caid: " + caid);
-			try {
-				if (crlCreateSession.createCRLNewTransactionConditioned(admin, caid, addtocrloverlaptime)) {
-					createdcrls++;
-				}                	
-			} catch (CesecoreException e) {
-            	// Don't fail all generation just because one of the CAs had token offline or similar. 
-            	// Continue working with the others, but log an error message in system logs, use error logging 
-				// since it might be something that should call for attention of the operators, CRL generation is important.
-				String msg = intres.getLocalizedMessage("createcrl.errorcreate", caid, e.getMessage());
-				log.error(msg, e); 
+		int created = 0;
+		for (final CrlGenerationScheduler.Task task : done) {
+			if (task.isCreated()) {
+				created++;
+				log.info((deltaCRL ? "Delta CRL" : "CRL")+" generation for CA "+task.getCaId()+" took "+task.getDuration()+" ms.");
 			}
 		}
-		return createdcrls;
+		if (log.isDebugEnabled()) {
+			log.debug("Created "+created+(deltaCRL ? " delta CRLs" : " CRLs")+" for "+done.size()+" CAs in "+(System.currentTimeMillis()-start)+" ms.");
+		}
+		return created;
     }
 
-    @Override
-    public int createDeltaCRLs(AuthenticationToken admin, Collection<Integer> caids, long crloverlaptime) throws AuthorizationDeniedException {
-        int createddeltacrls = 0;
-            Iterator<Integer> iter = null;
-            if (caids != null) {
-                iter = caids.iterator();
-            }
-            if ((iter == null) || (caids.contains(Integer.valueOf(CAConstants.ALLCAS)))) {
-                iter = caSession.getAvailableCAs().iterator();
-            }
-            while (iter.hasNext()) {
-                int caid = iter.next().intValue();
-                log.debug("createDeltaCRLs for caid: " + caid);
-                try {
-                	if (crlCreateSession.createDeltaCRLnewTransactionConditioned(admin, caid, crloverlaptime)) {
-                		createddeltacrls++;
-                	}
-                } catch (CesecoreException e) {
-                	// Don't fail all generation just because one of the CAs had token offline or similar. 
-                	// Continue working with the others, but log a warning message in system logs.
-                	String msg = intres.getLocalizedMessage("createcrl.errorcreate", caid, e.getMessage());
-                	log.error(msg, e);                	
-    				Map<String, Object> details = new LinkedHashMap<String, Object>();
-    				details.put("msg", msg);
-    				logSession.log(EventTypes.CRL_CREATION, EventStatus.FAILURE, ModuleTypes.CRL, ServiceTypes.CORE, admin.toString(), Integer.valueOf(caid).toString(), null, null, details);				
-    			}                
-            }
-        return createddeltacrls;
+    /**
+     * Don't fail all generation just because one of the CAs had token offline or similar. Continue working with the others, but log an error
+     * message in system logs, use error logging since it might be something that should call for attention of the operators, CRL generation is
+     * important.
+     */
+    private void createCRLFailed(final AuthenticationToken admin, final int caid, final boolean deltaCRL, final CesecoreException e) {
+    	String msg = intres.getLocalizedMessage("createcrl.errorcreate", caid, e.getMessage());
+    	log.error(msg, e);
+    	if (deltaCRL) {
+    		Map<String, Object> details = new LinkedHashMap<String, Object>();
+    		details.put("msg", msg);
+    		logSession.log(EventTypes.CRL_CREATION, EventStatus.FAILURE, ModuleTypes.CRL, ServiceTypes.CORE, admin.toString(), Integer.valueOf(caid).toString(), null, null, details);
+    	}
+    }
+
+    /**
+     * Finds out how urgent the CRL of a CA is and which crypto token it uses. If the CA can not be read, the job will report it when run.
+     */
+    private CrlGenerationScheduler.Task getCrlGenerationTask(final AuthenticationToken admin, final int caid, final boolean deltaCRL, final CrlGenerationScheduler.Job job) {
+    	long nextUpdate = 0;
+    	String tokenKey = "ca:" + caid;
+    	try {
+    		final CAInfo cainfo = caSession.getCAInfo(admin, caid);
+    		final CRLInfo crlInfo = crlSession.getLastCRLInfo(cainfo.getSubjectDN(), deltaCRL);
+    		if (crlInfo != null) {
+    			nextUpdate = crlInfo.getExpireDate().getTime();
+    		}
+    		final Properties properties = cainfo.getCATokenInfo() != null ? cainfo.getCATokenInfo().getProperties() : null;
+    		if (properties != null && properties.getProperty(PKCS11CryptoToken.SHLIB_LABEL_KEY) != null) {
+    			// CAs in the same slot of the same HSM share the limit
+    			final String slot = properties.getProperty(PKCS11CryptoToken.SLOT_LABEL_KEY, properties.getProperty(PKCS11CryptoToken.SLOT_LIST_INDEX_LABEL_KEY));
+    			tokenKey = properties.getProperty(PKCS11CryptoToken.SHLIB_LABEL_KEY) + ":" + slot;
+    		}
+    	} catch (CesecoreException e) {
+    		log.debug("Can not read CA "+caid+" before CRL generation: "+e.getMessage());
+    	} catch (AuthorizationDeniedException e) {
+    		log.debug("Can not read CA "+caid+" before CRL generation: "+e.getMessage());
+    	}
+    	return new CrlGenerationScheduler.Task(caid, tokenKey, nextUpdate, job);
     }
 
     @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
     @Override
     public boolean createCRLNewTransactionConditioned(AuthenticationToken admin, int caid, long addtocrloverlaptime) throws CryptoTokenOfflineException, CADoesntExistsException, AuthorizationDeniedException, CAOfflineException {
-    	boolean ret = false;
+    	return signAndStoreCRL(admin, prepareCRLConditioned(admin, caid, addtocrloverlaptime)) != null;
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    @Override
+    public boolean createDeltaCRLnewTransactionConditioned(AuthenticationToken admin, int caid, long crloverlaptime) throws CryptoTokenOfflineException, CAOfflineException, CADoesntExistsException, AuthorizationDeniedException {
+    	return signAndStoreCRL(admin, prepareDeltaCRLConditioned(admin, caid, crloverlaptime)) != null;
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    @Override
+    public PendingCrl prepareCRLNewTransactionConditioned(AuthenticationToken admin, int caid, long overlaptime, boolean deltaCRL) throws CryptoTokenOfflineException, CAOfflineException, CADoesntExistsException, AuthorizationDeniedException {
+    	if (deltaCRL) {
+    		return prepareDeltaCRLConditioned(admin, caid, overlaptime);
+    	}
+    	return prepareCRLConditioned(admin, caid, overlaptime);
+    }
+
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    @Override
+    public boolean storeCRLNewTransaction(AuthenticationToken admin, PendingCrl crl) throws CryptoTokenOfflineException, AuthorizationDeniedException {
+    	return storeCRL(admin, crl) != null;
+    }
+
+    /**
+     * Checks if a CRL needs to be created, and if so reads the revoked certificates and encodes it.
+     * 
+     * @return the CRL to sign and store, or null if no CRL is needed
+     */
+    private PendingCrl prepareCRLConditioned(AuthenticationToken admin, int caid, long addtocrloverlaptime) throws CryptoTokenOfflineException, CADoesntExistsException, AuthorizationDeniedException, CAOfflineException {
+    	PendingCrl ret = null;
     	Date currenttime = new Date();
     	// Get CA checks authorization to the CA
     	CA ca = caSession.getCA(admin, caid);
@@ -249,9 +363,7 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     							if (log.isDebugEnabled()) {
     								log.debug("Creating CRL for CA, because:"+currenttime.getTime()+overlap+" >= "+nextUpdate);                                                
     							}
-    							if (internalCreateCRL(admin, ca) != null) {
-        							ret = true;    								
-    							}
+    							ret = prepareCRL(admin, ca);
     						}
     					}
     				} else if (cacert != null) {
@@ -272,10 +384,13 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     	return ret;
     }
 
-    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
-    @Override
-    public boolean createDeltaCRLnewTransactionConditioned(AuthenticationToken admin, int caid, long crloverlaptime) throws CryptoTokenOfflineException, CAOfflineException, CADoesntExistsException, AuthorizationDeniedException {
-    	boolean ret = false;
+    /**
+     * Checks if a delta CRL needs to be created, and if so reads the revoked certificates and encodes it.
+     * 
+     * @return the delta CRL to sign and store, or null if no delta CRL is needed
+     */
+    private PendingCrl prepareDeltaCRLConditioned(AuthenticationToken admin, int caid, long crloverlaptime) throws CryptoTokenOfflineException, CAOfflineException, CADoesntExistsException, AuthorizationDeniedException {
+    	PendingCrl ret = null;
     	Date currenttime = new Date();
     	CA ca = caSession.getCA(admin, caid);
     	CAInfo cainfo = ca.getCAInfo();
@@ -318,9 +433,7 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     								}                                          
     							}
     							if((deltacrlinfo == null) || ((currenttime.getTime() + crloverlaptime) >= deltacrlinfo.getExpireDate().getTime())){
-    								if (internalCreateDeltaCRL(admin, ca, -1, -1) != null) {
-    									ret = true;
-    								}
+    								ret = prepareDeltaCRL(admin, ca, -1, -1);
     							}
     						}
     					}
@@ -345,7 +458,7 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     @Override
     public boolean forceCRL(AuthenticationToken admin, int caid) throws CADoesntExistsException, AuthorizationDeniedException, CryptoTokenOfflineException, CAOfflineException {
     	CA ca = caSession.getCA(admin, caid);
-    	return internalCreateCRL(admin, ca) != null;
+    	return signAndStoreCRL(admin, prepareCRL(admin, ca)) != null;
     }
 
     @Override
@@ -357,7 +470,7 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     	if (crlInfo != null) {
             CAInfo cainfo = ca.getCAInfo();
             if (cainfo.getDeltaCRLPeriod() > 0) {
-                byte[] crl = internalCreateDeltaCRL(admin, ca, crlInfo.getLastCRLNumber(), crlInfo.getCreateDate().getTime());
+                byte[] crl = signAndStoreCRL(admin, prepareDeltaCRL(admin, ca, crlInfo.getLastCRLNumber(), crlInfo.getCreateDate().getTime()));
                 ret = (crl != null);    
             }
     	} else {
@@ -367,27 +480,25 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     }
 
 	/**
-     * Generates a new CRL by looking in the database for revoked certificates
-     * and generating a CRL. This method also "archives" certificates when after
-     * they are no longer needed in the CRL.
-     * Generates the CRL and stores it in the database.
+     * Prepares a new CRL by looking in the database for revoked certificates
+     * and encoding a CRL. This method also "archives" certificates when after
+     * they are no longer needed in the CRL, when the CRL is stored.
      * 
      * @param admin administrator performing the task
      * @param ca the CA this operation regards
-     * @return fingerprint (primary key) of the generated CRL or null if
-     *            generation failed
+     * @return the CRL to sign and store, or null if the CA does not issue CRLs
 	 * @throws AuthorizationDeniedException 
      * @throws javax.ejb.EJBException if a communications- or system error occurs
      */
-    private String internalCreateCRL(AuthenticationToken admin, CA ca) throws CAOfflineException, CryptoTokenOfflineException, AuthorizationDeniedException {
+    private PendingCrl prepareCRL(AuthenticationToken admin, CA ca) throws CAOfflineException, CryptoTokenOfflineException, AuthorizationDeniedException {
     	if (log.isTraceEnabled()) {
-    		log.trace(">internalCreateCRL()");
+    		log.trace(">prepareCRL()");
     	}
     	if (ca == null) {
     		throw new EJBException("No CA specified.");
     	}
     	CAInfo cainfo = ca.getCAInfo();
-    	String ret = null;
+    	PendingCrl ret = null;
     	try {
     		final String caCertSubjectDN; // DN from the CA issuing the CRL to be used when searching for the CRL in the database.
     		{
@@ -398,11 +509,7 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     		// We can not create a CRL for a CA that is waiting for certificate response
     		if ( caCertSubjectDN!=null && cainfo.getStatus()==CAConstants.CA_ACTIVE )  {
     			long crlperiod = cainfo.getCRLPeriod();
-    			// Find all revoked certificates for a complete CRL
-    			Collection<RevokedCertInfo> revcerts = certificateStoreSession.listRevokedCertInfo(caCertSubjectDN, -1);
-    			if (log.isDebugEnabled()) {
-    				log.debug("Found "+revcerts.size()+" revoked certificates.");
-    			}
+    			// Find all revoked certificates for a complete CRL, a page at a time as there may be millions of them
     			// Go through them and create a CRL, at the same time archive expired certificates
     			//
     			// Archiving is only done for full CRLs, not delta CRLs.
@@ -414,38 +521,28 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     			//  the revocation notice MUST be included in all subsequent delta CRLs
     			//  until the revocation notice is included on at least one explicitly
     			//  issued complete CRL for this scope
-    			Date now = new Date();
-    			Date check = new Date(now.getTime() - crlperiod);
-    			Iterator<RevokedCertInfo> iter = revcerts.iterator();
-    			AuthenticationToken archiveAdmin = new AlwaysAllowLocalAuthenticationToken(new UsernamePrincipal("CrlCreateSession.archive_expired"));
-    			while (iter.hasNext()) {
-    				RevokedCertInfo data = iter.next();
-    				// We want to include certificates that was revoked after the last CRL was issued, but before this one
-    				// so the revoked certs are included in ONE CRL at least. See RFC5280 section 3.3.
-    				if ( data.getExpireDate().before(check) ) {
-    					// Certificate has expired, set status to archived in the database
-    					certificateStoreSession.setStatus(archiveAdmin, data.getCertificateFingerprint(), CertificateConstants.CERT_ARCHIVED);
-    				} else {
-    					Date revDate = data.getRevocationDate();
-    					if (revDate == null) {
-    						data.setRevocationDate(now);
-    						CertificateData certdata = CertificateData.findByFingerprint(entityManager, data.getCertificateFingerprint());
-    						if (certdata == null) {
-    							throw new FinderException("No certificate with fingerprint " + data.getCertificateFingerprint());
+    			// The changes to the certificates are made when the CRL is stored, in case it never is
+    			final Date now = new Date();
+    			final Date check = new Date(now.getTime() - crlperiod);
+    			final PendingCrl crl = new PendingCrl(cainfo.getCAId(), cainfo.getName(), cainfo.getSubjectDN());
+    			Iterator<RevokedCertInfo> revcerts = getIncrementalRevokedCertInfos(caCertSubjectDN, check, now, crl);
+    			if (revcerts == null) {
+    				revcerts = new RevokedCertInfoPager(caCertSubjectDN, -1) {
+    					@Override
+    					protected void process(RevokedCertInfo data) {
+    						// We want to include certificates that was revoked after the last CRL was issued, but before this one
+    						// so the revoked certs are included in ONE CRL at least. See RFC5280 section 3.3.
+    						if ( data.getExpireDate().before(check) ) {
+    							// Certificate has expired, set status to archived in the database
+    							crl.archive.add(data.getCertificateFingerprint());
+    						} else {
+    							setMissingRevocationDate(data, now, crl);
     						}
-    						// Set revocation date in the database
-    						certdata.setRevocationDate(now);
     					}
-    				}
+    				};
     			}
     			// a full CRL
-    			byte[] crlBytes = generateAndStoreCRL(admin, ca, revcerts, -1);
-    			if (crlBytes != null) {
-    				ret = CertTools.getFingerprintAsString(crlBytes);                       
-    			}
-    			// This is logged in the database by SignSession 
-    			String msg = intres.getLocalizedMessage("createcrl.createdcrl", cainfo.getName(), cainfo.getSubjectDN(), ret);               
-    			log.info(msg);
+    			ret = encodeCRL(admin, ca, crl, revcerts, -1);
     			// This debug logging is very very heavy if you have large CRLs. Please don't use it :-)
     			//              if (log.isDebugEnabled()) {
     			//              X509CRL crl = CertTools.getCRLfromByteArray(crlBytes);
@@ -461,23 +558,110 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     		}
     	} catch (CryptoTokenOfflineException e) {
     		throw e;            
-    	} catch (FinderException e) {
-    		// Should really not happen
-    		log.error(e);
-    		throw new EJBException(e);
-    	} 
+    	}
     	if (log.isTraceEnabled()) {
-    		log.trace("<internalCreateCRL()");
+    		log.trace("<prepareCRL()");
     	}
     	return ret;
     }
 
     /**
-     * Generates a new Delta CRL by looking in the database for revoked
-     * certificates since the last complete CRL issued and generating a CRL with
+     * Makes the entries of a full CRL by updating the previous full CRL, if configured to, instead of reading all revoked certificates from the
+     * database. Certificates revoked, unrevoked or archived since the previous CRL was issued are read from the database, and all other entries
+     * are copied from the previous CRL as they are. Expired certificates are archived, as when reading all revoked certificates.
+     * 
+     * @param issuerDN DN of the CA certificate
+     * @param crl where the changes to make to the certificates when the CRL is stored are added
+     * @return the entries of the CRL, or null if the CRL should be made from all revoked certificates in the database
+     */
+    private Iterator<RevokedCertInfo> getIncrementalRevokedCertInfos(final String issuerDN, final Date check, final Date now,
+    		final PendingCrl crl) {
+    	final int interval = CesecoreConfiguration.getCrlIncrementalRebuildInterval();
+    	if (interval <= 0) {
+    		return null;
+    	}
+    	final CRLInfo baseCrlInfo = crlSession.getLastCRLInfo(issuerDN, false);
+    	if (baseCrlInfo == null) {
+    		return null;
+    	}
+    	final int baseCrlNumber = baseCrlInfo.getLastCRLNumber();
+    	final int nextCrlNumber = Math.max(baseCrlNumber, crlSession.getLastCRLNumber(issuerDN, true)) + 1;
+    	if (nextCrlNumber / interval != baseCrlNumber / interval) {
+    		if (log.isDebugEnabled()) {
+    			log.debug("Building CRL number "+nextCrlNumber+" from all revoked certificates, rebuild interval is "+interval+".");
+    		}
+    		return null;
+    	}
+    	final CRLData baseCrl = CRLData.findByIssuerDNAndCRLNumber(entityManager, issuerDN, baseCrlNumber);
+    	if (baseCrl == null) {
+    		return null;
+    	}
+    	final Iterator<RevokedCertInfo> baseEntries;
+    	try {
+    		baseEntries = new EncodedCrlEntryIterator(baseCrl.getCRLBytes());
+    	} catch (CRLException e) {
+    		log.warn("Can not read the entries of CRL number "+baseCrlNumber+" from "+issuerDN+", reading all revoked certificates instead: "+e.getMessage());
+    		return null;
+    	}
+    	// Changes are read from a while before the previous CRL was issued, in case revocations were committed while it was being generated.
+    	// Reading a change twice does no harm.
+    	final List<RevokedCertInfo> changes = certificateStoreSession.listRevocationChanges(issuerDN, baseCrl.getThisUpdate() - INCREMENTAL_CRL_OVERLAP);
+    	final Set<BigInteger> changed = new HashSet<BigInteger>();
+    	final List<RevokedCertInfo> added = new ArrayList<RevokedCertInfo>();
+    	for (final RevokedCertInfo change : changes) {
+    		changed.add(change.getUserCertificate());
+    		if (change.isRevoked()) {
+    			if (!change.getExpireDate().before(check)) {
+    				setMissingRevocationDate(change, now, crl);
+    			}
+    			added.add(change);
+    		}
+    	}
+    	// Expired certificates are still on this CRL, they are archived now so they are removed from the next one
+    	final List<String> expired = certificateStoreSession.listRevokedCertificatesExpiredBefore(issuerDN, check.getTime());
+    	crl.archive.addAll(expired);
+    	if (log.isDebugEnabled()) {
+    		log.debug("Updating CRL number "+baseCrlNumber+" from "+issuerDN+" with "+changes.size()+" changed certificates, "+added.size()
+    				+" of them revoked. Archiving "+expired.size()+" expired certificates.");
+    	}
+    	return new IncrementalEntries(baseEntries, changed, added.iterator());
+    }
+
+    private void archive(final AuthenticationToken archiveAdmin, final String fingerprint) {
+    	try {
+    		certificateStoreSession.setStatus(archiveAdmin, fingerprint, CertificateConstants.CERT_ARCHIVED);
+    	} catch (AuthorizationDeniedException e) {
+    		// Should really not happen, the archive admin is always allowed
+    		throw new EJBException(e);
+    	}
+    }
+
+    /** Sets the revocation date of revoked certificates without one, to now, in data and, when the CRL is stored, in the database. */
+    private void setMissingRevocationDate(final RevokedCertInfo data, final Date now, final PendingCrl crl) {
+    	Date revDate = data.getRevocationDate();
+    	if (revDate == null) {
+    		data.setRevocationDate(now);
+    		crl.revocationDates.put(data.getCertificateFingerprint(), now);
+    	}
+    }
+
+    private void setRevocationDate(final String fingerprint, final Date revocationDate) {
+    	CertificateData certdata = CertificateData.findByFingerprint(entityManager, fingerprint);
+    	if (certdata == null) {
+    		// Should really not happen
+    		final String msg = "No certificate with fingerprint " + fingerprint;
+    		log.error(msg);
+    		throw new EJBException(msg);
+    	}
+    	// Set revocation date in the database
+    	certdata.setRevocationDate(revocationDate);
+    }
+
+    /**
+     * Prepares a new Delta CRL by looking in the database for revoked
+     * certificates since the last complete CRL issued and encoding a CRL with
      * the difference. If either of baseCrlNumber or baseCrlCreateTime is -1
      * this method will try to query the database for the last complete CRL.
-     * Generates the CRL and stores it in the database.
      * 
      * @param admin administrator performing the task
      * @param ca the CA this operation regards
@@ -490,20 +674,20 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
      *            the time the base CRL was issued. If value is -1 the value is
      *            fetched by querying the database looking for the last complete
      *            CRL.
-     * @return the bytes of the Delta CRL generated or null of no delta CRL was
-     *         generated.
+     * @return the Delta CRL to sign and store, or null if the CA does not
+     *         issue CRLs
      * @throws AuthorizationDeniedException 
      * @throws javax.ejb.EJBException if a communications- or system error occurs
      */
-    private byte[] internalCreateDeltaCRL(AuthenticationToken admin, CA ca, int baseCrlNumber, long baseCrlCreateTime) throws CryptoTokenOfflineException, CAOfflineException, AuthorizationDeniedException {
+    private PendingCrl prepareDeltaCRL(AuthenticationToken admin, CA ca, int baseCrlNumber, long baseCrlCreateTime) throws CryptoTokenOfflineException, CAOfflineException, AuthorizationDeniedException {
     	if (ca == null) {
     		throw new EJBException("No CA specified.");
     	}
     	CAInfo cainfo = ca.getCAInfo();
         if (log.isTraceEnabled()) {
-                log.trace(">internalCreateDeltaCRL: "+cainfo.getSubjectDN());
+                log.trace(">prepareDeltaCRL: "+cainfo.getSubjectDN());
         }
-        byte[] crlBytes = null;
+        PendingCrl crl = null;
         try {
         	final String caCertSubjectDN; {
         		final Collection<Certificate> certs = cainfo.getCertificateChain();
@@ -517,26 +701,19 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
         			baseCrlCreateTime = basecrlinfo.getCreateDate().getTime();
         			baseCrlNumber = basecrlinfo.getLastCRLNumber();                                 
         		}
-        		// Find all revoked certificates
-        		Collection<RevokedCertInfo> revcertinfos = certificateStoreSession.listRevokedCertInfo(caCertSubjectDN, baseCrlCreateTime);
-        		if (log.isDebugEnabled()) {
-        			log.debug("Found "+revcertinfos.size()+" revoked certificates.");
-        		}
-        		// Go through them and create a CRL, at the same time archive expired certificates
-        		ArrayList<RevokedCertInfo> certs = new ArrayList<RevokedCertInfo>();
-        		Iterator<RevokedCertInfo> iter = revcertinfos.iterator();
-        		while (iter.hasNext()) {
-        			RevokedCertInfo ci = iter.next();
-        			if (ci.getRevocationDate() == null) {
-        				ci.setRevocationDate(new Date());
+        		// Find all revoked certificates, a page at a time
+        		final RevokedCertInfoPager revcertinfos = new RevokedCertInfoPager(caCertSubjectDN, baseCrlCreateTime) {
+        			@Override
+        			protected void process(RevokedCertInfo ci) {
+        				if (ci.getRevocationDate() == null) {
+        					ci.setRevocationDate(new Date());
+        				}
         			}
-        			certs.add(ci);
-        		}
+        		};
         		// create a delta CRL
-        		crlBytes = generateAndStoreCRL(admin, ca, certs, baseCrlNumber);
-        		X509CRL crl = CertTools.getCRLfromByteArray(crlBytes);
+        		crl = encodeCRL(admin, ca, new PendingCrl(cainfo.getCAId(), cainfo.getName(), cainfo.getSubjectDN()), revcertinfos, baseCrlNumber);
         		if (log.isDebugEnabled()) {
-        			log.debug("Created delta CRL with expire date: "+crl.getNextUpdate());
+        			log.debug("Found "+revcertinfos.getCount()+" revoked certificates.");
         		}
     		} else {
     			String msg = intres.getLocalizedMessage("createcrl.errornotactive", cainfo.getName(), Integer.valueOf(cainfo.getCAId()), cainfo.getStatus());                                                      
@@ -545,35 +722,29 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     		}
         } catch (CryptoTokenOfflineException e) {
         	throw e;            
-        } catch (CRLException e) {
-    		// Should really not happen
-        	log.error(e);
-        	throw new EJBException(e);
-		}
+        }
         if (log.isTraceEnabled()) {
-        	log.trace("<internalCreateDeltaCRL: "+cainfo.getSubjectDN());
+        	log.trace("<prepareDeltaCRL: "+cainfo.getSubjectDN());
         }
-        return crlBytes;
+        return crl;
     }
 
     /**
-     * Requests for a CRL to be created with the passed (revoked) certificates. 
-     * Generates the CRL and stores it in the database.
+     * Requests for a CRL to be encoded with the passed (revoked) certificates. 
      *
      * @param admin administrator performing the task
      * @param ca the CA this operation regards
-     * @param certs collection of RevokedCertInfo object.
+     * @param crl the CRL to encode, with the changes to make to the certificates when it is stored
+     * @param certs the RevokedCertInfo objects, read once while the CRL is encoded so they do not all have to be in memory at the same time.
      * @param basecrlnumber the CRL number of the Base CRL to generate a deltaCRL, -1 to generate a full CRL
-     * @return The newly created CRL in DER encoded byte form or null, use CertTools.getCRLfromByteArray to convert to X509CRL.
+     * @return crl, encoded, or null if the CA does not issue CRLs
      * @throws AuthorizationDeniedException 
      * @throws CATokenOfflineException 
      */
-    private byte[] generateAndStoreCRL(AuthenticationToken admin, CA ca, Collection<RevokedCertInfo> certs, int basecrlnumber) throws CryptoTokenOfflineException, AuthorizationDeniedException {
+    private PendingCrl encodeCRL(AuthenticationToken admin, CA ca, PendingCrl crl, Iterator<RevokedCertInfo> certs, int basecrlnumber) throws CryptoTokenOfflineException, AuthorizationDeniedException {
     	if (log.isTraceEnabled()) {
-    		log.trace(">createCRL(Collection)");
+    		log.trace(">encodeCRL(Iterator)");
     	}
-    	byte[] crlBytes = null; // return value
-
     	// Check that we are allowed to create CRLs
     	// Authorization for other things, that we have access to the CA has already been done
     	final int caid = ca.getCAId();
@@ -584,7 +755,7 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     			String msg = intres.getLocalizedMessage("signsession.canotactive", ca.getSubjectDN());
     			throw new CryptoTokenOfflineException(msg);
     		}
-    		final X509CRL crl;
+    		final UnsignedCrl unsignedCrl;
     		final String certSubjectDN = CertTools.getSubjectDN(ca.getCACertificate());
     		int fullnumber = crlSession.getLastCRLNumber(certSubjectDN, false);
     		int deltanumber = crlSession.getLastCRLNumber(certSubjectDN, true);
@@ -596,50 +767,210 @@ public class CrlCreateSessionBean implements CrlCreateSessionLocal, CrlCreateSes
     			if (nextCrlNumber == basecrlnumber) {
     				nextCrlNumber++;
     			}
-    			crl = (X509CRL) ca.generateDeltaCRL(certs, nextCrlNumber, basecrlnumber);       
+    			unsignedCrl = ca.encodeDeltaCRL(certs, nextCrlNumber, basecrlnumber);       
     		} else {
-    			crl = (X509CRL) ca.generateCRL(certs, nextCrlNumber);
+    			unsignedCrl = ca.encodeCRL(certs, nextCrlNumber);
     		}
-    		if (crl != null) {
-    			// Store CRL in the database, this can still fail so the whole thing is rolled back
-    			String cafp = CertTools.getFingerprintAsString(ca.getCACertificate());
-    			byte[] tmpcrlBytes = crl.getEncoded();                    
-    			if (log.isDebugEnabled()) {
-    				log.debug("Storing CRL in certificate store.");
-    			}
-    			crlSession.storeCRL(admin, tmpcrlBytes, cafp, nextCrlNumber, crl.getIssuerDN().getName(), crl.getThisUpdate(), crl.getNextUpdate(), (deltaCRL ? 1 : -1));
-    			String msg = intres.getLocalizedMessage("createcrl.createdcrl", Integer.valueOf(nextCrlNumber), ca.getName(), ca.getSubjectDN());
-    			Map<String, Object> details = new LinkedHashMap<String, Object>();
-    			details.put("msg", msg);
-    			logSession.log(EventTypes.CRL_CREATION, EventStatus.SUCCESS, ModuleTypes.CRL, ServiceTypes.CORE, admin.toString(), Integer.valueOf(caid).toString(), null, null, details);	                	
-    			// Now all is finished and audit logged, now we are ready to "really" set the return value
-    			crlBytes = tmpcrlBytes; 
+    		if (unsignedCrl == null) {
+    			return null;
     		}
-    	} catch (CryptoTokenOfflineException ctoe) {
-    		String msg = intres.getLocalizedMessage("error.catokenoffline", ca.getSubjectDN());
-    		log.info(msg, ctoe);
-    		String auditmsg = intres.getLocalizedMessage("createcrl.errorcreate", ca.getName(), ctoe.getMessage());
-    		Map<String, Object> details = new LinkedHashMap<String, Object>();
-    		details.put("msg", auditmsg);
-    		logSession.log(EventTypes.CRL_CREATION, EventStatus.FAILURE, ModuleTypes.CRL, ServiceTypes.CORE, admin.toString(), Integer.valueOf(caid).toString(), null, null, details);
-    		throw ctoe;
+    		crl.caFingerprint = CertTools.getFingerprintAsString(ca.getCACertificate());
+    		crl.crlNumber = nextCrlNumber;
+    		crl.deltaCRL = deltaCRL;
+    		crl.unsignedCrl = unsignedCrl;
     	} catch (Exception e) {
-    		log.info("Error generating CRL: ", e);
-    		String msg = intres.getLocalizedMessage("createcrl.errorcreate", ca.getName(), e.getMessage());
+    		crlCreationFailed(admin, crl, e);
+    	}
+    	if (log.isTraceEnabled()) {
+    		log.trace("<encodeCRL(Iterator)");
+    	}
+    	return crl;
+    }
+
+    /** Signs a CRL in the calling thread and stores it. Does nothing if crl is null. */
+    private byte[] signAndStoreCRL(AuthenticationToken admin, PendingCrl crl) throws CryptoTokenOfflineException, AuthorizationDeniedException {
+    	if (crl == null) {
+    		return null;
+    	}
+    	crl.sign();
+    	return storeCRL(admin, crl);
+    }
+
+    /**
+     * Stores a signed CRL in the database, and makes the changes to the certificates found when the CRL was prepared. 
+     *
+     * @param admin administrator performing the task
+     * @param crl the signed CRL
+     * @return The newly created CRL in DER encoded byte form, use CertTools.getCRLfromByteArray to convert to X509CRL.
+     * @throws AuthorizationDeniedException 
+     * @throws CATokenOfflineException 
+     */
+    private byte[] storeCRL(AuthenticationToken admin, PendingCrl crl) throws CryptoTokenOfflineException, AuthorizationDeniedException {
+    	if (log.isTraceEnabled()) {
+    		log.trace(">storeCRL()");
+    	}
+    	byte[] crlBytes = null; // return value
+    	try {
+    		final byte[] tmpcrlBytes = crl.getCrlBytes();
+    		final CRLInfo crlInfo = crl.unsignedCrl.getCrlInfo();
+    		if (!crl.archive.isEmpty()) {
+    			final AuthenticationToken archiveAdmin = new AlwaysAllowLocalAuthenticationToken(new UsernamePrincipal("CrlCreateSession.archive_expired"));
+    			for (final String fingerprint : crl.archive) {
+    				archive(archiveAdmin, fingerprint);
+    			}
+    		}
+    		for (final Map.Entry<String, Date> entry : crl.revocationDates.entrySet()) {
+    			setRevocationDate(entry.getKey(), entry.getValue());
+    		}
+    		// Store CRL in the database, this can still fail so the whole thing is rolled back
+    		if (log.isDebugEnabled()) {
+    			log.debug("Storing CRL in certificate store, expire date: "+crlInfo.getExpireDate());
+    		}
+    		crlSession.storeCRL(admin, tmpcrlBytes, crl.caFingerprint, crl.crlNumber, crlInfo.getSubjectDN(), crlInfo.getCreateDate(), crlInfo.getExpireDate(), (crl.deltaCRL ? 1 : -1));
+    		String msg = intres.getLocalizedMessage("createcrl.createdcrl", Integer.valueOf(crl.crlNumber), crl.caName, crl.caSubjectDN);
     		Map<String, Object> details = new LinkedHashMap<String, Object>();
     		details.put("msg", msg);
-    		logSession.log(EventTypes.CRL_CREATION, EventStatus.FAILURE, ModuleTypes.CRL, ServiceTypes.CORE, admin.toString(), Integer.valueOf(caid).toString(), null, null, details);
-    		if (e instanceof EJBException) {
-    			throw (EJBException)e;
-    		}
-    		throw new EJBException(intres.getLocalizedMessage("signsession.errorcreatecrl"), e);
+    		logSession.log(EventTypes.CRL_CREATION, EventStatus.SUCCESS, ModuleTypes.CRL, ServiceTypes.CORE, admin.toString(), Integer.valueOf(crl.caid).toString(), null, null, details);	                	
+    		// Now all is finished and audit logged, now we are ready to "really" set the return value
+    		crlBytes = tmpcrlBytes; 
+    	} catch (Exception e) {
+    		crlCreationFailed(admin, crl, e);
+    	} finally {
+    		crl.close();
+    	}
+    	if (!crl.deltaCRL) {
+    		// This is logged in the database by SignSession 
+    		String msg = intres.getLocalizedMessage("createcrl.createdcrl", crl.caName, crl.caSubjectDN, CertTools.getFingerprintAsString(crlBytes));               
+    		log.info(msg);
     	}
     	if (log.isTraceEnabled()) {
-    		log.trace("<createCRL(Collection)");
+    		log.trace("<storeCRL()");
     	}
     	return crlBytes;
     }
 
+    /** Logs that a CRL could not be created and throws the exception again, in an EJBException unless the crypto token is offline. */
+    private void crlCreationFailed(AuthenticationToken admin, PendingCrl crl, Exception e) throws CryptoTokenOfflineException {
+    	if (e instanceof CryptoTokenOfflineException) {
+    		String msg = intres.getLocalizedMessage("error.catokenoffline", crl.caSubjectDN);
+    		log.info(msg, e);
+    		String auditmsg = intres.getLocalizedMessage("createcrl.errorcreate", crl.caName, e.getMessage());
+    		Map<String, Object> details = new LinkedHashMap<String, Object>();
+    		details.put("msg", auditmsg);
+    		logSession.log(EventTypes.CRL_CREATION, EventStatus.FAILURE, ModuleTypes.CRL, ServiceTypes.CORE, admin.toString(), Integer.valueOf(crl.caid).toString(), null, null, details);
+    		throw (CryptoTokenOfflineException) e;
+    	}
+    	log.info("Error generating CRL: ", e);
+    	String msg = intres.getLocalizedMessage("createcrl.errorcreate", crl.caName, e.getMessage());
+    	Map<String, Object> details = new LinkedHashMap<String, Object>();
+    	details.put("msg", msg);
+    	logSession.log(EventTypes.CRL_CREATION, EventStatus.FAILURE, ModuleTypes.CRL, ServiceTypes.CORE, admin.toString(), Integer.valueOf(crl.caid).toString(), null, null, details);
+    	if (e instanceof EJBException) {
+    		throw (EJBException)e;
+    	}
+    	throw new EJBException(intres.getLocalizedMessage("signsession.errorcreatecrl"), e);
+    }
+
+    /**
+     * Reads the revoked certificates of a CA from the database a page at a time, so that a CRL with millions of entries can be generated
+     * without reading them all into memory first.
+     */
+    private class RevokedCertInfoPager implements Iterator<RevokedCertInfo> {
+    	private final String issuerDN;
+    	private final long lastBaseCrlDate;
+    	private Iterator<RevokedCertInfo> page = Collections.<RevokedCertInfo>emptyList().iterator();
+    	private String lastFingerprint = null;
+    	private boolean lastPage = false;
+    	private int count = 0;
+
+    	private RevokedCertInfoPager(final String issuerDN, final long lastBaseCrlDate) {
+    		this.issuerDN = issuerDN;
+    		this.lastBaseCrlDate = lastBaseCrlDate;
+    	}
+
+    	@Override
+    	public boolean hasNext() {
+    		while (!page.hasNext() && !lastPage) {
+    			final List<RevokedCertInfo> entries = certificateStoreSession.listRevokedCertInfo(issuerDN, lastBaseCrlDate, lastFingerprint, CRL_ENTRY_PAGE_SIZE);
+    			lastPage = entries.size() < CRL_ENTRY_PAGE_SIZE;
+    			if (!entries.isEmpty()) {
+    				lastFingerprint = entries.get(entries.size()-1).getCertificateFingerprint();
+    			}
+    			page = entries.iterator();
+    		}
+    		return page.hasNext();
+    	}
+
+    	@Override
+    	public RevokedCertInfo next() {
+    		if (!hasNext()) {
+    			throw new NoSuchElementException();
+    		}
+    		final RevokedCertInfo ret = page.next();
+    		process(ret);
+    		count++;
+    		return ret;
+    	}
+
+    	@Override
+    	public void remove() {
+    		throw new UnsupportedOperationException();
+    	}
+
+    	/** Called for every entry before it is put on the CRL. */
+    	protected void process(RevokedCertInfo info) {
+    		// Nothing to do by default
+    	}
+
+    	/** @return the number of entries read so far */
+    	public int getCount() {
+    		return count;
+    	}
+    }
+
+    /** The entries of a previous CRL, except those that have changed, followed by the changed entries that are revoked. */
+    private static class IncrementalEntries implements Iterator<RevokedCertInfo> {
+    	private final Iterator<RevokedCertInfo> baseEntries;
+    	private final Set<BigInteger> changed;
+    	private final Iterator<RevokedCertInfo> added;
+    	private RevokedCertInfo next = null;
+
+    	private IncrementalEntries(final Iterator<RevokedCertInfo> baseEntries, final Set<BigInteger> changed, final Iterator<RevokedCertInfo> added) {
+    		this.baseEntries = baseEntries;
+    		this.changed = changed;
+    		this.added = added;
+    	}
+
+    	@Override
+    	public boolean hasNext() {
+    		while (next == null && baseEntries.hasNext()) {
+    			final RevokedCertInfo entry = baseEntries.next();
+    			if (!changed.contains(entry.getUserCertificate())) {
+    				next = entry;
+    			}
+    		}
+    		if (next == null && added.hasNext()) {
+    			next = added.next();
+    		}
+    		return next != null;
+    	}
+
+    	@Override
+    	public RevokedCertInfo next() {
+    		if (!hasNext()) {
+    			throw new NoSuchElementException();
+    		}
+    		final RevokedCertInfo ret = next;
+    		next = null;
+    		return ret;
+    	}
+
+    	@Override
+    	public void remove() {
+    		throw new UnsupportedOperationException();
+    	}
+    }
+
     private void authorizedToCreateCRL(final AuthenticationToken admin, final int caid) throws AuthorizationDeniedException {
     	if (!accessSession.isAuthorized(admin, StandardRules.CREATECRL.resource())) {
     		final String msg = intres.getLocalizedMessage("createcrl.notauthorized", admin.toString(), caid);
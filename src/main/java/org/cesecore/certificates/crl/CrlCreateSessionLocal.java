@@ -14,6 +14,12 @@ package org.cesecore.certificates.crl;
 
 import javax.ejb.Local;
 
+import org.cesecore.authentication.tokens.AuthenticationToken;
+import org.cesecore.authorization.AuthorizationDeniedException;
+import org.cesecore.certificates.ca.CADoesntExistsException;
+import org.cesecore.certificates.ca.CAOfflineException;
+import org.cesecore.keys.token.CryptoTokenOfflineException;
+
 /**
  * Local interface for CrlCreateSession
  * 
@@ -24,4 +30,27 @@ import javax.ejb.Local;
 @Local
 public interface CrlCreateSessionLocal extends CrlCreateSession {
 
+    /**
+     * Checks if a CRL or delta CRL needs to be created, like createCRLNewTransactionConditioned and createDeltaCRLnewTransactionConditioned,
+     * and if so reads the revoked certificates and encodes the CRL. Nothing is written to the database, the CRL is to be signed with
+     * {@link PendingCrl#sign()}, which may be done in any thread, and then stored with {@link #storeCRLNewTransaction(AuthenticationToken, PendingCrl)}.
+     * 
+     * @param admin administrator performing the task
+     * @param caid the id of the CA this operation regards
+     * @param overlaptime added to the CRL overlap time for CRLs, the overlap time for delta CRLs, in milliseconds
+     * @param deltaCRL true for a delta CRL, false for a CRL
+     * @return the CRL to sign and store, or null if no CRL is needed
+     */
+    PendingCrl prepareCRLNewTransactionConditioned(AuthenticationToken admin, int caid, long overlaptime, boolean deltaCRL) throws CryptoTokenOfflineException,
+            CAOfflineException, CADoesntExistsException, AuthorizationDeniedException;
+
+    /**
+     * Stores a CRL from prepareCRLNewTransactionConditioned that has been signed, and makes the changes to the certificates found when the
+     * revoked certificates were read, such as archiving expired ones.
+     * 
+     * @param admin administrator performing the task
+     * @param crl the signed CRL
+     * @return true if the CRL was stored
+     */
+    boolean storeCRLNewTransaction(AuthenticationToken admin, PendingCrl crl) throws CryptoTokenOfflineException, AuthorizationDeniedException;
 }
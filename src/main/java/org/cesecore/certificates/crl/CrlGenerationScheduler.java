@@ -0,0 +1,264 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.crl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Generates CRLs for several CAs at the same time. The CAs whose CRLs expire first are generated first, and there is a limit on how many CRLs
+ * are signed at the same time in total and with the same crypto token, so that one HSM slot is not given more work than it can handle.
+ *
+ * Only the signing is done in other threads. The entries are read and the CRL is stored in the calling thread, one CA at a time, as the
+ * threads started here can not use the database or call session beans. While a CRL is signed, the entries of the next CA are read.
+ *
+ * With one thread, all CRLs are generated one after the other in the calling thread. An instance is used for one run only.
+ *
+ * @version $Id$
+ */
+public class CrlGenerationScheduler {
+
+    private static final Logger log = Logger.getLogger(CrlGenerationScheduler.class);
+
+    private final int threads;
+    private final int threadsPerToken;
+
+    /** Tasks not started yet, most urgent first */
+    private final List<Task> pending = new ArrayList<Task>();
+    /** The number of CRLs being signed per crypto token */
+    private final Map<String, Integer> signing = new HashMap<String, Integer>();
+    /** The first exception thrown by a task, after which no more tasks are started */
+    private Exception failure = null;
+
+    /**
+     * @param threads the maximum number of CRLs signed at the same time
+     * @param threadsPerToken the maximum number of CRLs signed at the same time with the same crypto token
+     */
+    public CrlGenerationScheduler(final int threads, final int threadsPerToken) {
+        this.threads = Math.max(1, threads);
+        this.threadsPerToken = Math.max(1, threadsPerToken);
+    }
+
+    /**
+     * Runs all tasks and waits for them to finish. If a task throws an exception, no more tasks are started and the exception is thrown when the
+     * CRLs being signed have been stored.
+     *
+     * @param tasks the CRLs to generate
+     * @return the tasks, most urgent first, with their results and durations
+     * @throws Exception the first exception thrown by a task
+     */
+    public List<Task> run(final List<Task> tasks) throws Exception {
+        pending.addAll(tasks);
+        // Earliest nextUpdate first, the sort is stable so CAs without previous CRLs keep their order
+        Collections.sort(pending, new Comparator<Task>() {
+            @Override
+            public int compare(final Task t1, final Task t2) {
+                return t1.nextUpdate < t2.nextUpdate ? -1 : (t1.nextUpdate == t2.nextUpdate ? 0 : 1);
+            }
+        });
+        final List<Task> started = new ArrayList<Task>(pending);
+        final ExecutorService executor = threads == 1 || tasks.size() <= 1 ? null : Executors.newFixedThreadPool(Math.min(threads, tasks.size()),
+                new SigningThreadFactory());
+        try {
+            final CompletionService<Task> signed = executor == null ? null : new ExecutorCompletionService<Task>(executor);
+            int running = 0;
+            while (true) {
+                final Task task = failure == null && running < threads ? take() : null;
+                if (task != null) {
+                    task.start = System.currentTimeMillis();
+                    try {
+                        if (!task.job.prepare()) {
+                            task.duration = System.currentTimeMillis() - task.start;
+                        } else if (executor == null) {
+                            task.job.sign();
+                            store(task);
+                        } else {
+                            signing.put(task.tokenKey, Integer.valueOf(getSigning(task.tokenKey) + 1));
+                            running++;
+                            signed.submit(new Signer(task));
+                        }
+                    } catch (Exception e) {
+                        task.duration = System.currentTimeMillis() - task.start;
+                        failure = e;
+                    }
+                } else if (running > 0) {
+                    final Task done = signed.take().get();
+                    running--;
+                    signing.put(done.tokenKey, Integer.valueOf(getSigning(done.tokenKey) - 1));
+                    if (done.signFailure != null) {
+                        done.duration = System.currentTimeMillis() - done.start;
+                        if (failure == null) {
+                            failure = done.signFailure;
+                        }
+                    } else {
+                        try {
+                            store(done);
+                        } catch (Exception e) {
+                            if (failure == null) {
+                                failure = e;
+                            }
+                        }
+                    }
+                } else {
+                    break;
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (log.isDebugEnabled()) {
+            for (final Task task : started) {
+                log.debug("CRL generation for CA " + task.caid + " took " + task.duration + " ms, created: " + task.created);
+            }
+        }
+        return started;
+    }
+
+    /** @return the most urgent task whose crypto token is not busy, or null if there is none */
+    private Task take() {
+        final Iterator<Task> iter = pending.iterator();
+        while (iter.hasNext()) {
+            final Task task = iter.next();
+            if (getSigning(task.tokenKey) < threadsPerToken) {
+                iter.remove();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private int getSigning(final String tokenKey) {
+        final Integer count = signing.get(tokenKey);
+        return count == null ? 0 : count.intValue();
+    }
+
+    private void store(final Task task) throws Exception {
+        try {
+            task.created = task.job.store();
+        } finally {
+            task.duration = System.currentTimeMillis() - task.start;
+        }
+    }
+
+    /** Signs the CRL of a task in a thread of its own, keeping the exception for the calling thread. */
+    private static class Signer implements Callable<Task> {
+        private final Task task;
+
+        private Signer(final Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public Task call() {
+            try {
+                task.job.sign();
+            } catch (Exception e) {
+                task.signFailure = e;
+            }
+            return task;
+        }
+    }
+
+    private static class SigningThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "CRL signing-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * The steps of generating the CRL of one CA. prepare and store are called in the thread that runs the scheduler, sign may be called in
+     * another thread.
+     */
+    public interface Job {
+        /**
+         * Reads the revoked certificates and encodes the entries of the CRL.
+         *
+         * @return true if there is a CRL to sign, false if no CRL is to be generated
+         */
+        boolean prepare() throws Exception;
+
+        /** Signs the CRL. Must not use the database or call session beans, as it may be called in a thread started by the scheduler. */
+        void sign() throws Exception;
+
+        /**
+         * Stores the signed CRL.
+         *
+         * @return true if a CRL was created
+         */
+        boolean store() throws Exception;
+    }
+
+    /** Generation of the CRL of one CA. */
+    public static class Task {
+        private final int caid;
+        private final String tokenKey;
+        private final long nextUpdate;
+        private final Job job;
+        private boolean created = false;
+        private long start = 0;
+        private long duration = 0;
+        /** Set in the signing thread, read after the task has been handed back through the completion service */
+        private Exception signFailure = null;
+
+        /**
+         * @param caid the CA the CRL is generated for
+         * @param tokenKey identifies the crypto token of the CA, CAs with the same key share the limit on concurrent CRL signing
+         * @param nextUpdate nextUpdate of the current CRL of the CA, or 0 if it has none
+         * @param job generates the CRL
+         */
+        public Task(final int caid, final String tokenKey, final long nextUpdate, final Job job) {
+            this.caid = caid;
+            this.tokenKey = tokenKey;
+            this.nextUpdate = nextUpdate;
+            this.job = job;
+        }
+
+        public int getCaId() {
+            return caid;
+        }
+
+        /** @return true if a CRL was created */
+        public boolean isCreated() {
+            return created;
+        }
+
+        /** @return the time (ms) it took to generate the CRL */
+        public long getDuration() {
+            return duration;
+        }
+    }
+}
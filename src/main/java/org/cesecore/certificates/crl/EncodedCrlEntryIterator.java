@@ -0,0 +1,132 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.crl;
+
+import java.math.BigInteger;
+import java.security.cert.CRLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the entries of a DER encoded CRL without parsing the whole CRL. Each entry is returned as a
+ * {@link StreamingCrlGenerator.EncodedEntry} with its serial number and its encoding, so that it can be copied to a new CRL as it is.
+ *
+ * Only the structure needed to find the revokedCertificates is read, the signature of the CRL is not verified.
+ *
+ * @version $Id$
+ */
+public class EncodedCrlEntryIterator implements Iterator<RevokedCertInfo> {
+
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_UTCTIME = 0x17;
+    private static final int TAG_GENERALIZEDTIME = 0x18;
+
+    private final byte[] crl;
+    private int position;
+    private final int end;
+
+    /**
+     * @param crl a DER encoded CRL
+     * @throws CRLException if the CRL is not a DER encoded CertificateList
+     */
+    public EncodedCrlEntryIterator(final byte[] crl) throws CRLException {
+        this.crl = crl;
+        try {
+            // CertificateList ::= SEQUENCE { tbsCertList, signatureAlgorithm, signatureValue }
+            final int tbsCertList = getContentStart(expect(0, TAG_SEQUENCE));
+            final int tbsEnd = getContentStart(expect(tbsCertList, TAG_SEQUENCE)) + getLength(tbsCertList);
+            int pos = getContentStart(tbsCertList);
+            // TBSCertList ::= SEQUENCE { version OPTIONAL, signature, issuer, thisUpdate, nextUpdate OPTIONAL, revokedCertificates OPTIONAL,
+            // crlExtensions [0] OPTIONAL }
+            if ((crl[pos] & 0xff) == TAG_INTEGER) {
+                pos = getNext(pos);
+            }
+            pos = getNext(expect(pos, TAG_SEQUENCE));
+            pos = getNext(expect(pos, TAG_SEQUENCE));
+            pos = getNext(pos);
+            if (pos < tbsEnd && ((crl[pos] & 0xff) == TAG_UTCTIME || (crl[pos] & 0xff) == TAG_GENERALIZEDTIME)) {
+                pos = getNext(pos);
+            }
+            if (pos < tbsEnd && (crl[pos] & 0xff) == TAG_SEQUENCE) {
+                position = getContentStart(pos);
+                end = position + getLength(pos);
+            } else {
+                position = 0;
+                end = 0;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new CRLException("Truncated CRL.");
+        }
+        if (end > crl.length) {
+            throw new CRLException("Truncated CRL.");
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < end;
+    }
+
+    @Override
+    public RevokedCertInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final int next = getNext(position);
+        final byte[] encoded = new byte[next - position];
+        System.arraycopy(crl, position, encoded, 0, encoded.length);
+        // revokedCertificate ::= SEQUENCE { userCertificate CertificateSerialNumber, revocationDate, crlEntryExtensions OPTIONAL }
+        final int serialNumber = getContentStart(position);
+        final byte[] serial = new byte[getLength(serialNumber)];
+        System.arraycopy(crl, getContentStart(serialNumber), serial, 0, serial.length);
+        position = next;
+        return new StreamingCrlGenerator.EncodedEntry(new BigInteger(serial), encoded);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private int expect(final int pos, final int tag) throws CRLException {
+        if ((crl[pos] & 0xff) != tag) {
+            throw new CRLException("Unexpected tag " + (crl[pos] & 0xff) + " at position " + pos + " in CRL.");
+        }
+        return pos;
+    }
+
+    /** @return the position of the element after the one at pos */
+    private int getNext(final int pos) {
+        return getContentStart(pos) + getLength(pos);
+    }
+
+    /** @return the position of the contents of the element at pos, all tags used in CRLs fit in one octet */
+    private int getContentStart(final int pos) {
+        final int first = crl[pos + 1] & 0xff;
+        return first < 0x80 ? pos + 2 : pos + 2 + (first & 0x7f);
+    }
+
+    /** @return the length of the contents of the element at pos */
+    private int getLength(final int pos) {
+        final int first = crl[pos + 1] & 0xff;
+        if (first < 0x80) {
+            return first;
+        }
+        int length = 0;
+        for (int i = 0; i < (first & 0x7f); i++) {
+            length = (length << 8) | (crl[pos + 2 + i] & 0xff);
+        }
+        return length;
+    }
+}
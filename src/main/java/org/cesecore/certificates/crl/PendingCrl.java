@@ -0,0 +1,81 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.crl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A CRL that has been encoded by CrlCreateSession but not stored yet. The changes to the certificates found while their entries were read,
+ * expired certificates to archive and missing revocation dates, are kept here and made when the CRL is stored, so that nothing is written to
+ * the database unless the CRL is.
+ *
+ * @version $Id$
+ */
+public class PendingCrl {
+
+    final int caid;
+    final String caName;
+    final String caSubjectDN;
+    /** Fingerprints of expired certificates to archive */
+    final List<String> archive = new ArrayList<String>();
+    /** Revocation dates to set, by fingerprint, for revoked certificates without one */
+    final Map<String, Date> revocationDates = new LinkedHashMap<String, Date>();
+
+    String caFingerprint = null;
+    int crlNumber = 0;
+    boolean deltaCRL = false;
+    UnsignedCrl unsignedCrl = null;
+
+    private byte[] crlBytes = null;
+    private Exception signFailure = null;
+
+    PendingCrl(final int caid, final String caName, final String caSubjectDN) {
+        this.caid = caid;
+        this.caName = caName;
+        this.caSubjectDN = caSubjectDN;
+    }
+
+    /**
+     * Signs the CRL. Nothing but the crypto token of the CA is used, so this can be done in any thread. An exception is kept to be reported when
+     * the CRL is stored.
+     */
+    public void sign() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            unsignedCrl.sign(out);
+            crlBytes = out.toByteArray();
+        } catch (Exception e) {
+            signFailure = e;
+        }
+    }
+
+    /** @return the DER encoded CRL, or null if it has not been signed */
+    byte[] getCrlBytes() throws Exception {
+        if (signFailure != null) {
+            throw signFailure;
+        }
+        return crlBytes;
+    }
+
+    /** Deletes the encoded entries, if the CRL was never signed. */
+    void close() {
+        if (unsignedCrl != null) {
+            unsignedCrl.close();
+        }
+    }
+}
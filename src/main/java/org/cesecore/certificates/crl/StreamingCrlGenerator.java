@@ -0,0 +1,346 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.crl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Vector;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DEREncodable;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.CertificateList;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.asn1.x509.X509Extensions;
+
+/**
+ * Generates a CRL without holding its entries in memory. The entries are DER encoded one at a time to a temporary file, and the CRL is then
+ * signed and written by streaming that file, so the memory needed does not depend on the number of revoked certificates.
+ *
+ * The issuer, dates, extensions and signature algorithm are taken from a TBSCertList without entries, that is not signed. Entries are encoded
+ * exactly as X509V2CRLGenerator encodes them, so the result is the same CRL as if all entries had been added to the generator.
+ *
+ * @version $Id$
+ */
+public class StreamingCrlGenerator {
+
+    private static final Logger log = Logger.getLogger(StreamingCrlGenerator.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Everything in the TBSCertList before the revokedCertificates, DER encoded */
+    private final byte[] tbsHeader;
+    /** Everything in the TBSCertList after the revokedCertificates, i.e. the crlExtensions, DER encoded */
+    private final byte[] tbsTrailer;
+    /** The DER encoded signatureAlgorithm of the CRL */
+    private final byte[] signatureAlgorithmId;
+    private final String signatureAlgorithmName;
+
+    /** The DER encoded entries, written by writeEntries */
+    private File entriesFile = null;
+    private int count = 0;
+    private long entriesLength = 0;
+
+    /**
+     * @param template a TBSCertList without entries, with the issuer, dates, extensions and signature algorithm of the CRL to generate
+     * @param signatureAlgorithm the name of the signature algorithm in the template, for example SHA256WithRSA
+     * @throws CRLException if the template can not be encoded
+     */
+    public StreamingCrlGenerator(final TBSCertList template, final String signatureAlgorithm) throws CRLException {
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+        try {
+            final Enumeration<?> elements = ((ASN1Sequence) template.getDERObject()).getObjects();
+            while (elements.hasMoreElements()) {
+                final DEREncodable element = (DEREncodable) elements.nextElement();
+                if (element instanceof ASN1TaggedObject) {
+                    // The crlExtensions are the only tagged element, and come after the revokedCertificates
+                    trailer.write(element.getDERObject().getDEREncoded());
+                } else if (element instanceof ASN1Sequence && isRevokedCertificates((ASN1Sequence) element)) {
+                    throw new CRLException("Template CRL must not have any entries.");
+                } else {
+                    header.write(element.getDERObject().getDEREncoded());
+                }
+            }
+            // The outer signatureAlgorithm is the same as the signature field of the TBSCertList
+            signatureAlgorithmId = template.getSignature().getDERObject().getDEREncoded();
+        } catch (IOException e) {
+            throw new CRLException("Can not encode template CRL: " + e.getMessage(), e);
+        }
+        tbsHeader = header.toByteArray();
+        tbsTrailer = trailer.toByteArray();
+        signatureAlgorithmName = signatureAlgorithm;
+    }
+
+    /**
+     * @param template a CRL without entries, with the issuer, dates and extensions of the CRL to generate, signed with the algorithm to use
+     * @param signatureAlgorithm the name of the signature algorithm the template was generated with, for example SHA256WithRSA
+     * @throws CRLException if the template can not be parsed
+     */
+    public StreamingCrlGenerator(final X509CRL template, final String signatureAlgorithm) throws CRLException {
+        this(getTBSCertList(template), signatureAlgorithm);
+    }
+
+    /**
+     * Writes the CRL. Entries are read from the iterator once, and may be fetched lazily from the database by it.
+     *
+     * @param entries the revoked certificates to include in the CRL
+     * @param signKey key to sign the CRL with
+     * @param verifyKey key to verify the signature with before the CRL is written, or null to not verify
+     * @param provider name of the provider to sign with
+     * @param out where the DER encoded CRL is written
+     * @return the number of entries in the CRL
+     */
+    public int generate(final Iterator<RevokedCertInfo> entries, final PrivateKey signKey, final PublicKey verifyKey, final String provider,
+            final OutputStream out) throws IOException, CRLException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException,
+            SignatureException {
+        try {
+            final int count = writeEntries(entries);
+            sign(signKey, verifyKey, provider, out);
+            return count;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * DER encodes the entries of the CRL to a temporary file. This is the only step that reads the entries, so when they are fetched from the
+     * database it must be done in a thread that may use the database. {@link #close()} must be called when the CRL is signed or abandoned.
+     *
+     * @param entries the revoked certificates to include in the CRL
+     * @return the number of entries in the CRL
+     */
+    public int writeEntries(final Iterator<RevokedCertInfo> entries) throws IOException {
+        if (entriesFile != null) {
+            throw new IllegalStateException("The entries of the CRL have already been written.");
+        }
+        entriesFile = File.createTempFile("crlentries", ".der");
+        final OutputStream entriesOut = new BufferedOutputStream(new FileOutputStream(entriesFile), BUFFER_SIZE);
+        try {
+            while (entries.hasNext()) {
+                final byte[] entry = encodeEntry(entries.next());
+                entriesOut.write(entry);
+                entriesLength += entry.length;
+                count++;
+            }
+        } finally {
+            entriesOut.close();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Encoded " + count + " CRL entries in " + entriesLength + " bytes.");
+        }
+        return count;
+    }
+
+    /**
+     * Signs and writes the CRL with the entries written by {@link #writeEntries(Iterator)}. Only the temporary file is read, so this can be done
+     * in another thread than the one that wrote the entries.
+     *
+     * @param signKey key to sign the CRL with
+     * @param verifyKey key to verify the signature with before the CRL is written, or null to not verify
+     * @param provider name of the provider to sign with
+     * @param out where the DER encoded CRL is written
+     */
+    public void sign(final PrivateKey signKey, final PublicKey verifyKey, final String provider, final OutputStream out) throws IOException,
+            NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, SignatureException {
+        if (entriesFile == null) {
+            throw new IllegalStateException("The entries of the CRL have not been written.");
+        }
+        // An empty revokedCertificates must be left out, as X509V2CRLGenerator does
+        final byte[] entriesHeader = count > 0 ? getHeader(entriesLength) : new byte[0];
+        final long tbsLength = tbsHeader.length + entriesHeader.length + entriesLength + tbsTrailer.length;
+        final byte[] tbsSequenceHeader = getHeader(tbsLength);
+
+        final Signature signer = Signature.getInstance(signatureAlgorithmName, provider);
+        signer.initSign(signKey);
+        final Signature verifier;
+        if (verifyKey != null) {
+            verifier = Signature.getInstance(signatureAlgorithmName, provider);
+            verifier.initVerify(verifyKey);
+        } else {
+            verifier = null;
+        }
+        writeTbs(new SignatureOutputStream(signer, null), tbsSequenceHeader, entriesHeader);
+        final byte[] rawSignature = signer.sign();
+        final byte[] signature = new DERBitString(rawSignature).getDEREncoded();
+
+        final OutputStream bufferedOut = new BufferedOutputStream(out, BUFFER_SIZE);
+        final long length = tbsSequenceHeader.length + tbsLength + signatureAlgorithmId.length + signature.length;
+        bufferedOut.write(getHeader(length));
+        // Verify the signature on the bytes actually written, as they are read from the temporary file again
+        writeTbs(new SignatureOutputStream(verifier, bufferedOut), tbsSequenceHeader, entriesHeader);
+        if (verifier != null && !verifier.verify(rawSignature)) {
+            throw new SignatureException("CRL signature does not verify.");
+        }
+        bufferedOut.write(signatureAlgorithmId);
+        bufferedOut.write(signature);
+        bufferedOut.flush();
+    }
+
+    /** Deletes the temporary file with the encoded entries. */
+    public void close() {
+        if (entriesFile != null && entriesFile.exists() && !entriesFile.delete()) {
+            log.warn("Could not delete temporary CRL file " + entriesFile.getAbsolutePath());
+        }
+    }
+
+    private void writeTbs(final OutputStream out, final byte[] tbsSequenceHeader, final byte[] entriesHeader) throws IOException {
+        out.write(tbsSequenceHeader);
+        out.write(tbsHeader);
+        out.write(entriesHeader);
+        final InputStream in = new BufferedInputStream(new FileInputStream(entriesFile), BUFFER_SIZE);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        out.write(tbsTrailer);
+    }
+
+    /**
+     * DER encodes a CRL entry the same way as X509V2CRLGenerator.addCRLEntry(BigInteger, Date, int). Entries read from a previous CRL are
+     * copied as they are.
+     */
+    static byte[] encodeEntry(final RevokedCertInfo info) throws IOException {
+        if (info instanceof EncodedEntry) {
+            return ((EncodedEntry) info).getEncoded();
+        }
+        final ASN1EncodableVector entry = new ASN1EncodableVector();
+        entry.add(new DERInteger(info.getUserCertificate()));
+        entry.add(new Time(info.getRevocationDate()));
+        if (info.getReason() != 0) {
+            final Vector<DERObjectIdentifier> oids = new Vector<DERObjectIdentifier>();
+            final Vector<X509Extension> values = new Vector<X509Extension>();
+            oids.add(X509Extensions.ReasonCode);
+            values.add(new X509Extension(false, new DEROctetString(new CRLReason(info.getReason()).getEncoded())));
+            entry.add(new X509Extensions(oids, values));
+        }
+        return new DERSequence(entry).getDEREncoded();
+    }
+
+    /** @return the DER tag and length octets of a SEQUENCE with contents of the given length */
+    static byte[] getHeader(final long length) {
+        if (length < 0x80) {
+            return new byte[] { 0x30, (byte) length };
+        }
+        int size = 1;
+        while ((length >>> (8 * size)) > 0) {
+            size++;
+        }
+        final byte[] ret = new byte[2 + size];
+        ret[0] = 0x30;
+        ret[1] = (byte) (0x80 | size);
+        for (int i = 0; i < size; i++) {
+            ret[2 + i] = (byte) (length >>> (8 * (size - 1 - i)));
+        }
+        return ret;
+    }
+
+    private static TBSCertList getTBSCertList(final X509CRL crl) throws CRLException {
+        try {
+            return CertificateList.getInstance(new ASN1InputStream(crl.getEncoded()).readObject()).getTBSCertList();
+        } catch (IOException e) {
+            throw new CRLException("Can not parse template CRL: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isRevokedCertificates(final ASN1Sequence sequence) {
+        // revokedCertificates is a SEQUENCE OF SEQUENCE, while the signature AlgorithmIdentifier starts with an OID and the issuer Name is a
+        // SEQUENCE OF SET
+        return sequence.size() > 0 && sequence.getObjectAt(0) instanceof ASN1Sequence;
+    }
+
+    /** An entry of an existing CRL, kept DER encoded so it can be put on a new CRL without being decoded and encoded again. */
+    public static class EncodedEntry extends RevokedCertInfo {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] encoded;
+
+        /**
+         * @param serialNumber serial number of the revoked certificate
+         * @param encoded the DER encoded CRL entry
+         */
+        public EncodedEntry(final BigInteger serialNumber, final byte[] encoded) {
+            super(null, serialNumber, null, REVOCATION_REASON_UNSPECIFIED, null);
+            this.encoded = encoded;
+        }
+
+        public byte[] getEncoded() {
+            return encoded;
+        }
+    }
+
+    /** Feeds everything written to a signature, and optionally passes it on to another stream. */
+    private static class SignatureOutputStream extends OutputStream {
+        private final Signature signature;
+        private final OutputStream out;
+
+        private SignatureOutputStream(final Signature signature, final OutputStream out) {
+            this.signature = signature;
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (signature != null) {
+                try {
+                    signature.update(b, off, len);
+                } catch (SignatureException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+            if (out != null) {
+                out.write(b, off, len);
+            }
+        }
+    }
+}
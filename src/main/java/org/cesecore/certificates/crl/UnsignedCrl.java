@@ -0,0 +1,77 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.crl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+
+/**
+ * A CRL whose entries have been read and encoded, but that is not signed yet. Signing does not read the entries again, so it does not use the
+ * database and can be done in another thread than the one that read them.
+ *
+ * @version $Id$
+ */
+public class UnsignedCrl {
+
+    private final StreamingCrlGenerator generator;
+    private final PrivateKey signKey;
+    private final PublicKey verifyKey;
+    private final String provider;
+    private final CRLInfo crlInfo;
+
+    /**
+     * @param generator a generator whose entries have been written
+     * @param signKey key to sign the CRL with
+     * @param verifyKey key to verify the signature with, or null to not verify
+     * @param provider name of the provider to sign with
+     * @param crlInfo issuer DN, CRL number and dates of the CRL
+     */
+    public UnsignedCrl(final StreamingCrlGenerator generator, final PrivateKey signKey, final PublicKey verifyKey, final String provider,
+            final CRLInfo crlInfo) {
+        this.generator = generator;
+        this.signKey = signKey;
+        this.verifyKey = verifyKey;
+        this.provider = provider;
+        this.crlInfo = crlInfo;
+    }
+
+    /** @return issuer DN, CRL number and dates of the CRL */
+    public CRLInfo getCrlInfo() {
+        return crlInfo;
+    }
+
+    /**
+     * Signs the CRL and writes it. The encoded entries are deleted afterwards, so a CRL can only be signed once.
+     *
+     * @param out where the DER encoded CRL is written
+     */
+    public void sign(final OutputStream out) throws IOException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException,
+            SignatureException {
+        try {
+            generator.sign(signKey, verifyKey, provider, out);
+        } finally {
+            close();
+        }
+    }
+
+    /** Deletes the encoded entries of a CRL that will not be signed. Does nothing if the CRL has been signed. */
+    public void close() {
+        generator.close();
+    }
+}
@@ -20,6 +20,7 @@ import java.util.HashMap;
 import org.cesecore.certificates.util.dn.DNFieldsUtil;
 import org.cesecore.util.Base64GetHashMap;
 import org.cesecore.util.Base64PutHashMap;
+import org.cesecore.util.MapSerializer;
 import org.cesecore.util.StringTools;
 
 
@@ -270,9 +271,7 @@ public class EndEntityInformation implements Serializable {
         ExtendedInformation returnval = null;
         if ( (extendedinfostring != null) && (extendedinfostring.length() > 0) ) {
             try {
-            	java.beans.XMLDecoder decoder = new  java.beans.XMLDecoder(new java.io.ByteArrayInputStream(extendedinfostring.getBytes("UTF8")));            	
-            	HashMap h = (HashMap) decoder.readObject();
-            	decoder.close();
+            	HashMap h = (HashMap) MapSerializer.decode(extendedinfostring);
                 // Handle Base64 encoded string values
                 HashMap data = new Base64GetHashMap(h);
             	int type = ((Integer) data.get(ExtendedInformation.TYPE)).intValue();
@@ -295,11 +294,7 @@ public class EndEntityInformation implements Serializable {
             // We must base64 encode string for UTF safety
             HashMap a = new Base64PutHashMap();
             a.putAll((HashMap)extendedinformation.saveData());
-            java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-    		java.beans.XMLEncoder encoder = new java.beans.XMLEncoder(baos);
-    		encoder.writeObject(a);
-    		encoder.close();
-    		ret = baos.toString("UTF8");
+    		ret = MapSerializer.encode(a);
     	}
     	return ret;
     }
@@ -0,0 +1,200 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.ocsp.BasicOCSPResp;
+import org.cesecore.certificates.ocsp.exception.OcspFailureException;
+import org.cesecore.certificates.ocsp.exception.OcspSignerBusyException;
+import org.cesecore.keys.token.CryptoTokenOfflineException;
+
+/**
+ * Bounded pool of threads signing OCSP responses with one signer. The number of threads should match the number of sessions the HSM of the signer
+ * can handle. When all threads are busy, requests wait in a queue of limited size, and when the queue is full the request is rejected at once,
+ * so that a slow HSM can not tie up all threads of the application server.
+ *
+ * Signing is done in a separate thread for the same reason as {@link HsmResponseThread} exists: the HSM may deadlock, and we must be able to
+ * give up on it.
+ *
+ * @version $Id$
+ *
+ */
+public class HsmSigningExecutor {
+
+    private static final Logger log = Logger.getLogger(HsmSigningExecutor.class);
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final long timeoutMillis;
+
+    private final AtomicLong signedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong totalQueueTime = new AtomicLong();
+    private final AtomicLong totalSignTime = new AtomicLong();
+
+    /**
+     * @param name name of the signer, used for thread names and logging
+     * @param threads maximum number of responses signed in parallel
+     * @param queueSize maximum number of responses waiting for a thread, 0 to reject requests as soon as all threads are busy
+     * @param timeoutMillis maximum time to wait for a response to be signed, including time spent in the queue
+     */
+    public HsmSigningExecutor(final String name, final int threads, final int queueSize, final long timeoutMillis) {
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+        final BlockingQueue<Runnable> queue;
+        if (queueSize > 0) {
+            queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        } else {
+            queue = new SynchronousQueue<Runnable>();
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new SignerThreadFactory(name),
+                new ThreadPoolExecutor.AbortPolicy());
+        // Signers that are not used, for example after a key renewal, should not keep any threads
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Signs a response in one of the threads of this signer.
+     *
+     * @param task the signing to perform
+     * @return the signed response
+     * @throws OcspSignerBusyException if all threads are busy and the queue is full
+     * @throws CryptoTokenOfflineException if the response was not signed within the timeout
+     */
+    public BasicOCSPResp sign(final HsmResponseThread task) throws OcspSignerBusyException, CryptoTokenOfflineException {
+        final Future<BasicOCSPResp> future;
+        try {
+            future = executor.submit(new TimedTask(task, System.currentTimeMillis()));
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            log.warn("All threads signing OCSP responses with " + name + " are busy and " + getQueueDepth()
+                    + " responses are waiting. Rejecting request.");
+            throw new OcspSignerBusyException("Signer " + name + " is busy.", e);
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new Error("OCSP response retrieval was interrupted while running. This should not happen", e);
+        } catch (ExecutionException e) {
+            throw new OcspFailureException("Failure encountered while retrieving OCSP response.", e);
+        } catch (TimeoutException e) {
+            // Free the queue slot if signing has not started, and try to wake up the thread if it has
+            future.cancel(true);
+            timedOutCount.incrementAndGet();
+            throw new CryptoTokenOfflineException("HSM timed out while trying to get OCSP response", e);
+        }
+    }
+
+    /** Stops all threads of this signer. Signings in progress are interrupted. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /** @return the number of responses waiting for a thread */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** @return the number of responses being signed right now */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getSignedCount() {
+        return signedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    /** @return average time (ms) responses have waited for a thread */
+    public long getAverageQueueTime() {
+        final long count = signedCount.get();
+        return count == 0 ? 0 : totalQueueTime.get() / count;
+    }
+
+    /** @return average time (ms) it has taken to sign a response, not counting the time in the queue */
+    public long getAverageSignTime() {
+        final long count = signedCount.get();
+        return count == 0 ? 0 : totalSignTime.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": active=" + getActiveCount() + ", queued=" + getQueueDepth() + ", signed=" + getSignedCount() + ", rejected="
+                + getRejectedCount() + ", timedOut=" + getTimedOutCount() + ", avgQueueTime=" + getAverageQueueTime() + "ms, avgSignTime="
+                + getAverageSignTime() + "ms";
+    }
+
+    /** Measures the time a signing spends in the queue and in the HSM. */
+    private class TimedTask implements Callable<BasicOCSPResp> {
+        private final HsmResponseThread task;
+        private final long submitTime;
+
+        private TimedTask(final HsmResponseThread task, final long submitTime) {
+            this.task = task;
+            this.submitTime = submitTime;
+        }
+
+        @Override
+        public BasicOCSPResp call() throws Exception {
+            final long startTime = System.currentTimeMillis();
+            final BasicOCSPResp ret = task.call();
+            final long endTime = System.currentTimeMillis();
+            totalQueueTime.addAndGet(startTime - submitTime);
+            totalSignTime.addAndGet(endTime - startTime);
+            signedCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Signed OCSP response with " + name + " in " + (endTime - startTime) + " ms after waiting " + (startTime - submitTime)
+                        + " ms in the queue.");
+            }
+            return ret;
+        }
+    }
+
+    private static class SignerThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        private SignerThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "OCSP signer " + name + "-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -30,16 +30,13 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
+import javax.annotation.PreDestroy;
 import javax.ejb.EJB;
 import javax.ejb.Local;
 import javax.ejb.Stateless;
@@ -83,15 +80,21 @@ import org.cesecore.certificates.certificate.CertificateStoreSessionLocal;
 import org.cesecore.certificates.certificateprofile.CertificateProfileConstants;
 import org.cesecore.certificates.ocsp.cache.CryptoTokenAndChain;
 import org.cesecore.certificates.ocsp.cache.DirectoryCache;
+import org.cesecore.certificates.ocsp.cache.HsmSigningExecutorCache;
 import org.cesecore.certificates.ocsp.cache.OcspExtensionsCache;
+import org.cesecore.certificates.ocsp.cache.RevocationStatusIndex;
+import org.cesecore.certificates.ocsp.cache.RevocationStatusIndexHolder;
+import org.cesecore.certificates.ocsp.cache.SignedResponseCache;
 import org.cesecore.certificates.ocsp.cache.TokenAndChainCache;
 import org.cesecore.certificates.ocsp.exception.CryptoProviderException;
 import org.cesecore.certificates.ocsp.exception.MalformedRequestException;
 import org.cesecore.certificates.ocsp.exception.NotSupportedException;
 import org.cesecore.certificates.ocsp.exception.OcspFailureException;
+import org.cesecore.certificates.ocsp.exception.OcspSignerBusyException;
 import org.cesecore.certificates.ocsp.extension.OCSPExtension;
 import org.cesecore.certificates.ocsp.logging.AuditLogger;
 import org.cesecore.certificates.ocsp.logging.GuidHolder;
+import org.cesecore.certificates.ocsp.logging.PatternLogSink;
 import org.cesecore.certificates.ocsp.logging.PatternLogger;
 import org.cesecore.certificates.ocsp.logging.TransactionCounter;
 import org.cesecore.certificates.ocsp.logging.TransactionLogger;
@@ -152,6 +155,15 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
      */
     protected abstract void initiateIfNecessary();
 
+    /**
+     * Writes the transaction and audit log lines that are still queued and stops the log writer thread. If other instances of the bean are
+     * still in use, the next line they log starts a new writer thread.
+     */
+    @PreDestroy
+    public void preDestroy() {
+        PatternLogSink.shutdownInstance();
+    }
+
     /**
      * 
      * @return a reference to the extending bean's token and chain cache. Allows different children to use separate caches.
@@ -220,6 +232,8 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
 
                 long maxAge = OcspConfiguration.getMaxAge(CertificateProfileConstants.CERTPROFILE_NO_PROFILE);
                 long nextUpdate = OcspConfiguration.getUntilNextUpdate(CertificateProfileConstants.CERTPROFILE_NO_PROFILE);
+                // The shortest maxAge of the single responses, i.e. for how long the signed response may be served from the signed response cache
+                long cacheTime = Long.MAX_VALUE;
 
                 // Add standard response extensions
                 Hashtable<DERObjectIdentifier, X509Extension> responseExtensions = getStandardResponseExtensions(req);
@@ -227,6 +241,9 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
                 // Look for extension OIDs
                 final Collection<String> extensionOids = OcspConfiguration.getExtensionOids();
 
+                // Read the status of all certificates in the request up front, with one query per issuer instead of one per certificate
+                final Map<String, Map<BigInteger, CertificateStatus>> certificateStatuses = getCertificateStatuses(ocspRequests);
+
                 // Look over the status requests
                 List<OCSPResponseItem> responseList = new ArrayList<OCSPResponseItem>();
                 for (Req ocspRequest : ocspRequests) {
@@ -271,6 +288,7 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
                                     new String(Hex.encode(certId.getIssuerNameHash())));
                             log.info(errMsg);
                             // If we can not find the CA, answer UnknowStatus
+                            cacheTime = Math.min(cacheTime, maxAge);
                             responseList.add(new OCSPResponseItem(certId, new UnknownStatus(), nextUpdate));
                             transactionLogger.paramPut(TransactionLogger.CERT_STATUS, OCSPResponseItem.OCSP_UNKNOWN);
                             transactionLogger.writeln();
@@ -293,20 +311,22 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
                     transactionLogger.paramPut(TransactionLogger.CERT_STATUS, OCSPResponseItem.OCSP_GOOD); // it seems to be correct
 
                     // Check if the cacert (or the default responderid) is revoked
-                    final CertificateStatus signerIssuerCertStatus = certificateStoreSession.getStatus(
-                            CertTools.getSubjectDN(signerTokenAndChain.getCaCertificate()),
-                            CertTools.getSerialNumber(signerTokenAndChain.getCaCertificate()));
+                    final X509Certificate caCertificate = signerTokenAndChain.getCaCertificate();
+                    final String caSubjectDn = CertTools.getSubjectDN(caCertificate);
+                    final CertificateStatus signerIssuerCertStatus = getCertificateStatus(certificateStatuses, caSubjectDn,
+                            CertTools.getSerialNumber(caCertificate));
 
-                    String subjectDn = signerTokenAndChain.getCaCertificate().getSubjectDN().getName();
+                    String subjectDn = caCertificate.getSubjectDN().getName();
                     if (!signerIssuerCertStatus.equals(CertificateStatus.REVOKED)) {
 
                         // Check if cert is revoked
-                        final CertificateStatus status = certificateStoreSession.getStatus(subjectDn, certId.getSerialNumber());
+                        final CertificateStatus status = getCertificateStatus(certificateStatuses, caSubjectDn, certId.getSerialNumber());
 
                         /* If we have different maxAge and untilNextUpdate for different certificate profiles, we have to fetch these
                          values now that we have fetched the certificate status, that includes certificate profile.*/
                         nextUpdate = OcspConfiguration.getUntilNextUpdate(status.certificateProfileId);
                         maxAge = OcspConfiguration.getMaxAge(status.certificateProfileId);
+                        cacheTime = Math.min(cacheTime, maxAge);
                         if (log.isDebugEnabled()) {
                             log.debug("Set nextUpdate=" + nextUpdate + ", and maxAge=" + maxAge + " for certificateProfileId="
                                     + status.certificateProfileId);
@@ -351,6 +371,7 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
                     } else {
                         certStatus = new RevokedStatus(new RevokedInfo(new DERGeneralizedTime(signerIssuerCertStatus.revocationDate), new CRLReason(
                                 signerIssuerCertStatus.revocationReason)));
+                        cacheTime = Math.min(cacheTime, maxAge);
                         infoMsg = intres.getLocalizedMessage("ocsp.infoaddedstatusinfo", "revoked", certId.getSerialNumber().toString(16), subjectDn);
                         log.info(infoMsg);
                         responseList.add(new OCSPResponseItem(certId, certStatus, nextUpdate));
@@ -398,7 +419,27 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
                     final X509Certificate[] signerChain = signerTokenAndChain.getChain();
                     final PrivateKey privateKey = signerTokenAndChain.getPrivateKey();
                     final String privateKeyProvider = signerTokenAndChain.getSignProviderName();
-                    BasicOCSPResp basicresp = signOcspResponse(req, responseList, exts, signerChain, privateKey, privateKeyProvider);
+                    // Responses with a nonce, or other response extensions, are unique to the request and can not be reused
+                    final String cacheKey;
+                    if (SignedResponseCache.INSTANCE.isEnabled() && responseExtensions.isEmpty()) {
+                        cacheKey = SignedResponseCache.getKey(signerChain[0], responseList);
+                    } else {
+                        cacheKey = null;
+                    }
+                    BasicOCSPResp basicresp = cacheKey != null ? SignedResponseCache.INSTANCE.get(cacheKey) : null;
+                    if (basicresp != null) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Using cached signed OCSP response produced at " + basicresp.getProducedAt());
+                        }
+                    } else {
+                        basicresp = signOcspResponse(req, responseList, exts, signerChain, privateKey, privateKeyProvider);
+                        if (cacheKey != null) {
+                            final long expireTime = getSignedResponseExpireTime(responseList, cacheTime, signerChain[0]);
+                            if (expireTime > System.currentTimeMillis()) {
+                                SignedResponseCache.INSTANCE.put(cacheKey, basicresp, expireTime);
+                            }
+                        }
+                    }
                     ocspResponse = responseGenerator.generate(OCSPRespGenerator.SUCCESSFUL, basicresp);
                     auditLogger.paramPut(AuditLogger.STATUS, OCSPRespGenerator.SUCCESSFUL);
                     transactionLogger.paramPut(TransactionLogger.STATUS, OCSPRespGenerator.SUCCESSFUL);
@@ -438,6 +479,15 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
                 transactionLogger.paramPut(TransactionLogger.STATUS, OCSPRespGenerator.UNAUTHORIZED);
                 transactionLogger.writeln();
                 auditLogger.paramPut(AuditLogger.STATUS, OCSPRespGenerator.UNAUTHORIZED);
+            } catch (OcspSignerBusyException e) {
+                transactionLogger.paramPut(PatternLogger.PROCESS_TIME, PatternLogger.PROCESS_TIME);
+                auditLogger.paramPut(PatternLogger.PROCESS_TIME, PatternLogger.PROCESS_TIME);
+                String errMsg = intres.getLocalizedMessage("ocsp.errorprocessreq", e.getMessage());
+                log.info(errMsg); // Already logged as a warning by the signer
+                ocspResponse = responseGenerator.generate(OCSPRespGenerator.TRY_LATER, null); // RFC 2560: responseBytes are not set on error.
+                transactionLogger.paramPut(TransactionLogger.STATUS, OCSPRespGenerator.TRY_LATER);
+                transactionLogger.writeln();
+                auditLogger.paramPut(AuditLogger.STATUS, OCSPRespGenerator.TRY_LATER);
             } catch (NoSuchAlgorithmException e) {
                 ocspResponse = processDefaultError(responseGenerator, transactionLogger, auditLogger, e);
             } catch (CertificateException e) {
@@ -491,6 +541,155 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
 
     }
 
+    /**
+     * A signed response may be served from the cache for the shortest maxAge of its single responses, but never after the nextUpdate of any of them
+     * or after the signer certificate has expired. Single responses without nextUpdate tell the client that newer information is always available,
+     * so a response containing one is never cached.
+     * 
+     * @return the time (ms) after which the response must not be served from the signed response cache
+     */
+    private static long getSignedResponseExpireTime(final List<OCSPResponseItem> responseList, final long cacheTime, final X509Certificate signerCert) {
+        if (responseList.isEmpty()) {
+            return 0;
+        }
+        long ret = signerCert.getNotAfter().getTime();
+        for (final OCSPResponseItem item : responseList) {
+            if (item.getNextUpdate() == null) {
+                return 0;
+            }
+            ret = Math.min(ret, item.getNextUpdate().getTime());
+            ret = Math.min(ret, item.getThisUpdate().getTime() + cacheTime);
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the status of a certificate from the revocation status index, if one is configured and can answer, and from the database otherwise.
+     * 
+     * @param issuerDN issuer DN in CertTools.stringToBCDNString format, i.e. as returned by CertTools.getIssuerDN/getSubjectDN
+     * @param serialNumber serial number of the certificate
+     * @return the status, never null
+     */
+    private CertificateStatus getCertificateStatus(final String issuerDN, final BigInteger serialNumber) {
+        final RevocationStatusIndex index = RevocationStatusIndexHolder.INSTANCE.getIndex();
+        Object stamp = null;
+        if (index != null) {
+            // Taken before the status is read, so we do not put back a status that is invalidated while we read it
+            stamp = index.getStamp(issuerDN, serialNumber);
+            final CertificateStatus status = index.getStatus(issuerDN, serialNumber);
+            if (status != null) {
+                return status;
+            }
+        }
+        final CertificateStatus status = certificateStoreSession.getStatus(issuerDN, serialNumber);
+        if (index != null && index.isLoaded()) {
+            // Read through, so the next request for an invalidated entry is served from memory again
+            index.putIfUnchanged(issuerDN, serialNumber, stamp, status);
+        }
+        return status;
+    }
+
+    /**
+     * Reads the status of all certificates needed to answer the request, and of the CA certificates issuing them, with one database query per issuer
+     * for the entries that the revocation status index can not answer.
+     * 
+     * @param ocspRequests the single requests of an OCSP request
+     * @return map from issuer DN to map from serial number to status. Requests for CAs not handled by this responder are not included.
+     */
+    private Map<String, Map<BigInteger, CertificateStatus>> getCertificateStatuses(final Req[] ocspRequests) {
+        final Map<String, Collection<BigInteger>> sernosByIssuer = new HashMap<String, Collection<BigInteger>>();
+        for (final Req ocspRequest : ocspRequests) {
+            final CertificateID certId = ocspRequest.getCertID();
+            final CryptoTokenAndChain tokenAndChain = getTokenAndChainCache().get(certId);
+            if (tokenAndChain == null) {
+                continue;
+            }
+            final X509Certificate caCertificate = tokenAndChain.getCaCertificate();
+            final String caSubjectDn = CertTools.getSubjectDN(caCertificate);
+            Collection<BigInteger> sernos = sernosByIssuer.get(caSubjectDn);
+            if (sernos == null) {
+                sernos = new HashSet<BigInteger>();
+                sernosByIssuer.put(caSubjectDn, sernos);
+            }
+            sernos.add(CertTools.getSerialNumber(caCertificate));
+            sernos.add(certId.getSerialNumber());
+        }
+        final RevocationStatusIndex index = RevocationStatusIndexHolder.INSTANCE.getIndex();
+        final Map<String, Map<BigInteger, CertificateStatus>> ret = new HashMap<String, Map<BigInteger, CertificateStatus>>();
+        for (final Map.Entry<String, Collection<BigInteger>> entry : sernosByIssuer.entrySet()) {
+            final String issuerDN = entry.getKey();
+            final Map<BigInteger, CertificateStatus> statuses = new HashMap<BigInteger, CertificateStatus>();
+            final Collection<BigInteger> misses = new ArrayList<BigInteger>();
+            final Map<BigInteger, Object> stamps = new HashMap<BigInteger, Object>();
+            for (final BigInteger serno : entry.getValue()) {
+                CertificateStatus status = null;
+                if (index != null) {
+                    stamps.put(serno, index.getStamp(issuerDN, serno));
+                    status = index.getStatus(issuerDN, serno);
+                }
+                if (status != null) {
+                    statuses.put(serno, status);
+                } else {
+                    misses.add(serno);
+                }
+            }
+            if (!misses.isEmpty()) {
+                final Map<BigInteger, CertificateStatus> read = certificateStoreSession.getStatuses(issuerDN, misses);
+                if (index != null && index.isLoaded()) {
+                    // Read through, so the next request for an invalidated entry is served from memory again
+                    for (final Map.Entry<BigInteger, CertificateStatus> readEntry : read.entrySet()) {
+                        index.putIfUnchanged(issuerDN, readEntry.getKey(), stamps.get(readEntry.getKey()), readEntry.getValue());
+                    }
+                }
+                statuses.putAll(read);
+            }
+            ret.put(issuerDN, statuses);
+        }
+        return ret;
+    }
+
+    /** @return the status from the map made by {@link #getCertificateStatuses(Req[])}, or read it if it is not there. */
+    private CertificateStatus getCertificateStatus(final Map<String, Map<BigInteger, CertificateStatus>> certificateStatuses, final String issuerDN,
+            final BigInteger serialNumber) {
+        final Map<BigInteger, CertificateStatus> statuses = certificateStatuses.get(issuerDN);
+        final CertificateStatus status = statuses != null ? statuses.get(serialNumber) : null;
+        if (status != null) {
+            return status;
+        }
+        return getCertificateStatus(issuerDN, serialNumber);
+    }
+
+    /**
+     * Loads the revocation status index if it has not been loaded, or updates it with the certificates that have changed since the last update.
+     * Called from the timers of the implementing beans, so that the database is never read from a request thread for this.
+     */
+    protected void updateRevocationStatusIndex() {
+        final RevocationStatusIndex index = RevocationStatusIndexHolder.INSTANCE.getIndex();
+        if (index == null) {
+            return;
+        }
+        // updateTime is set before the transaction is committed, so look back a bit to catch rows committed after our last update
+        final long overlap = 60000;
+        final long startTime = System.currentTimeMillis();
+        try {
+            if (index.isLoaded()) {
+                final int count = certificateStoreSession.updateRevocationStatusIndex(index,
+                        RevocationStatusIndexHolder.INSTANCE.getLastUpdateTime() - overlap);
+                if (log.isDebugEnabled()) {
+                    log.debug("Updated revocation status index with " + count + " changed certificates.");
+                }
+            } else {
+                final int count = certificateStoreSession.updateRevocationStatusIndex(index, -1);
+                index.setLoaded(true);
+                log.info("Loaded revocation status index with " + count + " certificates in " + (System.currentTimeMillis() - startTime) + " ms.");
+            }
+            RevocationStatusIndexHolder.INSTANCE.setLastUpdateTime(startTime);
+        } catch (RuntimeException e) {
+            // Keep serving, from memory if we were loaded before or from the database if not, and try again on the next timeout
+            log.error("Could not update revocation status index.", e);
+        }
+    }
+
     public void setCanlog(boolean canLog) {
         CanLogCache.INSTANCE.setCanLog(canLog);
     }
@@ -589,8 +788,7 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
 
             if (OcspConfiguration.getEnforceRequestSigning()) {
                 // If it verifies OK, check if it is revoked
-                final CertificateStatus status = certificateStoreSession.getStatus(CertTools.getIssuerDN(signercert),
-                        CertTools.getSerialNumber(signercert));
+                final CertificateStatus status = getCertificateStatus(CertTools.getIssuerDN(signercert), CertTools.getSerialNumber(signercert));
                 /*
                  * If rci == null it means the certificate does not exist in database, we then treat it as ok, because it may be so that only revoked
                  * certificates is in the (external) OCSP database.
@@ -819,7 +1017,7 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
     private BasicOCSPResp signOcspResponse(OCSPReq req, List<OCSPResponseItem> responseList, X509Extensions exts,
             final X509Certificate[] signerChain, final PrivateKey privateKey, String privateKeyProvider) throws CADoesntExistsException,
             ExtendedCAServiceRequestException, IllegalExtendedCAServiceRequestException, ExtendedCAServiceNotActiveException,
-            AuthorizationDeniedException, CryptoTokenOfflineException, IllegalCryptoTokenException {
+            AuthorizationDeniedException, CryptoTokenOfflineException, IllegalCryptoTokenException, OcspSignerBusyException {
 
         final X509Certificate[] certChain = Arrays.asList(signerChain).toArray(new X509Certificate[0]);
         final X509Certificate signerCert = certChain[0];
@@ -872,7 +1070,7 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
 
     private BasicOCSPResp generateBasicOcspResp(OCSPReq ocspRequest, X509Extensions exts, List<OCSPResponseItem> responses, String sigAlg,
             X509Certificate signerCert, PrivateKey signerKey, String provider, X509Certificate[] chain, int respIdType) throws NotSupportedException,
-            OCSPException, NoSuchProviderException, CryptoTokenOfflineException {
+            OCSPException, NoSuchProviderException, CryptoTokenOfflineException, OcspSignerBusyException {
         BasicOCSPResp returnval = null;
         BasicOCSPRespGenerator basicRes = null;
         basicRes = createOcspResponseGenerator(ocspRequest, signerCert, respIdType);
@@ -890,26 +1088,15 @@ public abstract class OcspResponseSessionBean implements OcspResponseSessionLoca
         }
 
         /*
-         * The below code breaks the EJB standard by creating its own thread pool and creating a single thread (of the HsmResponseThread 
-         * type). The reason for this is that the HSM may deadlock when requesting an OCSP response, which we need to guard against. Since 
+         * The below code breaks the EJB standard by signing in its own thread pool, one bounded pool per signer key (see HsmSigningExecutor). 
+         * The reason for this is that the HSM may deadlock when requesting an OCSP response, which we need to guard against. Since 
          * there is no way of performing this action within the EJB3.0 standard, we are consciously creating threads here. 
          * 
          * Note that this does in no way break the spirit of the EJB standard, which is to not interrupt EJB's transaction handling by 
          * competing with its own thread pool, since these operations have no database impact.
          */
 
-        final ExecutorService service = Executors.newFixedThreadPool(1);
-        final Future<BasicOCSPResp> task = service.submit(new HsmResponseThread(basicRes, sigAlg, signerKey, chain, provider));
-
-        try {
-            returnval = task.get(HsmResponseThread.HSM_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            throw new Error("OCSP response retrieval was interrupted while running. This should not happen", e);
-        } catch (ExecutionException e) {
-            throw new OcspFailureException("Failure encountered while retrieving OCSP response.", e);
-        } catch (TimeoutException e) {
-            throw new CryptoTokenOfflineException("HSM timed out while trying to get OCSP response", e);
-        }
+        returnval = HsmSigningExecutorCache.INSTANCE.get(signerCert).sign(new HsmResponseThread(basicRes, sigAlg, signerKey, chain, provider));
 
         if (log.isDebugEnabled()) {
             log.debug("Signing OCSP response with OCSP signer cert: " + signerCert.getSubjectDN().getName());
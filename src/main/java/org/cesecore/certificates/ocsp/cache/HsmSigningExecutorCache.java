@@ -0,0 +1,74 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.cesecore.certificates.ocsp.HsmSigningExecutor;
+import org.cesecore.config.OcspConfiguration;
+import org.cesecore.util.CertTools;
+
+/**
+ * Enum based singleton holding one HsmSigningExecutor per OCSP signer certificate. The executors survive reloads of the TokenAndChainCache, since
+ * the signer keys do.
+ * 
+ * @version $Id$
+ * 
+ */
+public enum HsmSigningExecutorCache {
+    INSTANCE;
+
+    private static final Logger log = Logger.getLogger(HsmSigningExecutorCache.class);
+
+    private final Map<String, HsmSigningExecutor> executors = new ConcurrentHashMap<String, HsmSigningExecutor>();
+
+    /**
+     * @param signerCert the certificate of the key that will sign the response
+     * @return the executor for the signer, created with the number of threads, queue size and timeout configured for the signer if it does not
+     *         exist
+     */
+    public HsmSigningExecutor get(final X509Certificate signerCert) {
+        final String fingerprint = CertTools.getFingerprintAsString(signerCert);
+        HsmSigningExecutor ret = executors.get(fingerprint);
+        if (ret == null) {
+            synchronized (executors) {
+                ret = executors.get(fingerprint);
+                if (ret == null) {
+                    final int threads = OcspConfiguration.getSigningThreads(fingerprint);
+                    final int queueSize = OcspConfiguration.getSigningQueueSize(fingerprint);
+                    final long timeout = OcspConfiguration.getSigningTimeout(fingerprint);
+                    final String name = CertTools.getSubjectDN(signerCert);
+                    ret = new HsmSigningExecutor(name, threads, queueSize, timeout);
+                    executors.put(fingerprint, ret);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Created OCSP signing executor for " + name + " with " + threads + " threads, queue size " + queueSize
+                                + " and timeout " + timeout + " ms");
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /** Logs queue depth, latency and rejection counts of all signers. */
+    public void logStatistics() {
+        if (log.isDebugEnabled()) {
+            for (final HsmSigningExecutor executor : executors.values()) {
+                log.debug("OCSP signing statistics for " + executor.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cesecore.certificates.certificate.CertificateStatus;
+import org.cesecore.certificates.certificateprofile.CertificateProfileConstants;
+
+/**
+ * Heap based RevocationStatusIndex. Entries are grouped per issuer so that the issuer DN string is only held once, and non revoked statuses are
+ * shared per certificate profile, so that an entry costs little more than its serial number.
+ *
+ * @version $Id$
+ *
+ */
+public class InMemoryRevocationStatusIndex implements RevocationStatusIndex {
+
+    /**
+     * Marker for entries that must be read from the database. Each invalidation puts a new marker, so that a read-through that started before
+     * an invalidation can see that the entry has been invalidated again since.
+     */
+    private static final class Invalidated extends CertificateStatus {
+        private static final long serialVersionUID = 1L;
+
+        private Invalidated() {
+            super("INVALIDATED", CertificateProfileConstants.CERTPROFILE_NO_PROFILE);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj == this;
+        }
+
+        @Override
+        public boolean equals(final CertificateStatus obj) {
+            return obj == this;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+    }
+
+    private final Map<String, ConcurrentMap<BigInteger, CertificateStatus>> issuers = new ConcurrentHashMap<String, ConcurrentMap<BigInteger, CertificateStatus>>();
+
+    /** Shared OK statuses, one per certificate profile id */
+    private final Map<Integer, CertificateStatus> okStatuses = new ConcurrentHashMap<Integer, CertificateStatus>();
+
+    private volatile boolean loaded = false;
+
+    @Override
+    public CertificateStatus getStatus(final String issuerDN, final BigInteger serialNumber) {
+        if (!loaded) {
+            return null;
+        }
+        final Map<BigInteger, CertificateStatus> entries = issuers.get(issuerDN);
+        final CertificateStatus status = entries == null ? null : entries.get(serialNumber);
+        if (status instanceof Invalidated) {
+            return null;
+        }
+        if (status == null) {
+            return CertificateStatus.NOT_AVAILABLE;
+        }
+        return status;
+    }
+
+    @Override
+    public void put(final String issuerDN, final BigInteger serialNumber, final CertificateStatus status) {
+        getEntries(issuerDN).put(serialNumber, canonicalize(status));
+    }
+
+    @Override
+    public Object getStamp(final String issuerDN, final BigInteger serialNumber) {
+        final Map<BigInteger, CertificateStatus> entries = issuers.get(issuerDN);
+        return entries == null ? null : entries.get(serialNumber);
+    }
+
+    @Override
+    public boolean putIfUnchanged(final String issuerDN, final BigInteger serialNumber, final Object stamp, final CertificateStatus status) {
+        final ConcurrentMap<BigInteger, CertificateStatus> entries = getEntries(issuerDN);
+        if (stamp == null) {
+            return entries.putIfAbsent(serialNumber, canonicalize(status)) == null;
+        }
+        return entries.replace(serialNumber, (CertificateStatus) stamp, canonicalize(status));
+    }
+
+    @Override
+    public void invalidate(final String issuerDN, final BigInteger serialNumber) {
+        getEntries(issuerDN).put(serialNumber, new Invalidated());
+    }
+
+    @Override
+    public void clear() {
+        loaded = false;
+        issuers.clear();
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    @Override
+    public void setLoaded(final boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    @Override
+    public int size() {
+        int ret = 0;
+        for (ConcurrentMap<BigInteger, CertificateStatus> entries : issuers.values()) {
+            ret += entries.size();
+        }
+        return ret;
+    }
+
+    private ConcurrentMap<BigInteger, CertificateStatus> getEntries(final String issuerDN) {
+        ConcurrentMap<BigInteger, CertificateStatus> entries = issuers.get(issuerDN);
+        if (entries == null) {
+            synchronized (issuers) {
+                entries = issuers.get(issuerDN);
+                if (entries == null) {
+                    entries = new ConcurrentHashMap<BigInteger, CertificateStatus>();
+                    issuers.put(issuerDN, entries);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /** @return a shared instance for non revoked statuses, the status itself otherwise. */
+    private CertificateStatus canonicalize(final CertificateStatus status) {
+        if (status.equals(CertificateStatus.NOT_AVAILABLE)) {
+            return CertificateStatus.NOT_AVAILABLE;
+        }
+        if (!status.equals(CertificateStatus.OK)) {
+            return status;
+        }
+        final Integer profileId = Integer.valueOf(status.certificateProfileId);
+        final CertificateStatus shared = okStatuses.get(profileId);
+        if (shared != null) {
+            return shared;
+        }
+        okStatuses.put(profileId, status);
+        return status;
+    }
+}
@@ -0,0 +1,89 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import java.math.BigInteger;
+
+import org.cesecore.certificates.certificate.CertificateStatus;
+
+/**
+ * An index of certificate statuses, keyed on issuer DN and serial number, that lets the OCSP responder answer status requests without querying
+ * the database. Implementations are configured with ocsp.revocationstatusindex.class and must have a public no-argument constructor.
+ *
+ * The index is filled by CertificateStoreSession (bulk load and delta polls on updateTime) and entries are invalidated when a transaction that
+ * stores a certificate or changes its status on this node has completed, see {@link RevocationStatusIndexInvalidation}. An implementation must be safe for concurrent use.
+ *
+ * @version $Id$
+ *
+ */
+public interface RevocationStatusIndex {
+
+    /**
+     * @param issuerDN the issuer DN in the CertTools.stringToBCDNString format, as stored in CertificateData.
+     * @param serialNumber the certificate serial number.
+     * @return the indexed status, CertificateStatus.NOT_AVAILABLE if the index is loaded and has no such certificate, or null if the index can not
+     *         answer (not yet loaded, or the entry has been invalidated) and the caller must ask the database.
+     */
+    CertificateStatus getStatus(String issuerDN, BigInteger serialNumber);
+
+    /**
+     * Adds or replaces the status for a certificate. This also clears a previous invalidation of the entry.
+     *
+     * @param issuerDN the issuer DN in the CertTools.stringToBCDNString format.
+     * @param serialNumber the certificate serial number.
+     * @param status the status read from the database, never null.
+     */
+    void put(String issuerDN, BigInteger serialNumber, CertificateStatus status);
+
+    /**
+     * Returns a stamp of the current state of an entry. Take it before reading the status from the database, and pass it to
+     * {@link #putIfUnchanged(String, BigInteger, Object, CertificateStatus)} to add the status that was read.
+     *
+     * @param issuerDN the issuer DN in the CertTools.stringToBCDNString format.
+     * @param serialNumber the certificate serial number.
+     * @return an object identifying the current state of the entry, or null if there is no entry.
+     */
+    Object getStamp(String issuerDN, BigInteger serialNumber);
+
+    /**
+     * Adds the status for a certificate read from the database, unless the entry has been put or invalidated since the stamp was taken. This keeps
+     * a read-through from putting back a status that was read just before a change to the certificate was committed and invalidated.
+     *
+     * @param issuerDN the issuer DN in the CertTools.stringToBCDNString format.
+     * @param serialNumber the certificate serial number.
+     * @param stamp the stamp from {@link #getStamp(String, BigInteger)}, taken before the status was read.
+     * @param status the status read from the database, never null.
+     * @return true if the status was added.
+     */
+    boolean putIfUnchanged(String issuerDN, BigInteger serialNumber, Object stamp, CertificateStatus status);
+
+    /**
+     * Marks an entry as unknown, so that lookups fall back to the database until the entry is put again.
+     *
+     * @param issuerDN the issuer DN in the CertTools.stringToBCDNString format.
+     * @param serialNumber the certificate serial number.
+     */
+    void invalidate(String issuerDN, BigInteger serialNumber);
+
+    /** Removes all entries and marks the index as not loaded. */
+    void clear();
+
+    /** @return true if a full load has completed, so that a missing entry means that the certificate does not exist. */
+    boolean isLoaded();
+
+    /** @param loaded true when a full load has completed. */
+    void setLoaded(boolean loaded);
+
+    /** @return the number of certificates in the index. */
+    int size();
+}
@@ -0,0 +1,62 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.cesecore.config.OcspConfiguration;
+
+/**
+ * Enum based singleton holding the RevocationStatusIndex configured with ocsp.revocationstatusindex.class, shared by the certificate store (which
+ * keeps it up to date) and the OCSP responders (which read from it).
+ *
+ * @version $Id$
+ *
+ */
+public enum RevocationStatusIndexHolder {
+    INSTANCE;
+
+    private final RevocationStatusIndex index;
+
+    /** Time (ms) when the last successful load or delta poll of the index was started */
+    private volatile long lastUpdateTime = -1;
+
+    private RevocationStatusIndexHolder() {
+        // The static fields of an enum are not initialized when the constructor runs
+        final Logger log = Logger.getLogger(RevocationStatusIndexHolder.class);
+        final String clazz = OcspConfiguration.getRevocationStatusIndexClass();
+        RevocationStatusIndex tmp = null;
+        if (StringUtils.isNotEmpty(clazz)) {
+            try {
+                tmp = (RevocationStatusIndex) Class.forName(clazz.trim()).newInstance();
+                log.info("Using revocation status index " + clazz);
+            } catch (Exception e) {
+                log.error("Can not create revocation status index with class " + clazz + ", OCSP status will be read from the database.", e);
+            }
+        }
+        index = tmp;
+    }
+
+    /** @return the configured index, or null if no index is in use. */
+    public RevocationStatusIndex getIndex() {
+        return index;
+    }
+
+    public long getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    public void setLastUpdateTime(final long lastUpdateTime) {
+        this.lastUpdateTime = lastUpdateTime;
+    }
+}
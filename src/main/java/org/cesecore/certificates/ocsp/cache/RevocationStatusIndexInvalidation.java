@@ -0,0 +1,69 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.Synchronization;
+
+/**
+ * The entries of a revocation status index that a transaction has changed in the database, invalidated when the transaction has completed.
+ *
+ * Until the transaction commits, the database still holds the old status and the index may keep answering with it. Invalidating the entries
+ * before the commit would instead let a concurrent read-through put the old status back after the invalidation, where it would stay until the
+ * next delta poll. The invalidation is also made if the transaction rolls back, which only costs a database read.
+ *
+ * @version $Id$
+ *
+ */
+public class RevocationStatusIndexInvalidation implements Synchronization {
+
+    private final RevocationStatusIndex index;
+    private final List<String> issuerDNs = new ArrayList<String>();
+    private final List<BigInteger> serialNumbers = new ArrayList<BigInteger>();
+    private boolean clear = false;
+
+    /** @param index the index to invalidate the entries in */
+    public RevocationStatusIndexInvalidation(final RevocationStatusIndex index) {
+        this.index = index;
+    }
+
+    /** Invalidates the entry of a certificate when the transaction has completed. */
+    public void add(final String issuerDN, final BigInteger serialNumber) {
+        issuerDNs.add(issuerDN);
+        serialNumbers.add(serialNumber);
+    }
+
+    /** Clears the whole index when the transaction has completed, for changes to too many certificates to invalidate one by one. */
+    public void clear() {
+        clear = true;
+    }
+
+    @Override
+    public void beforeCompletion() {
+        // Nothing to do until the changes are visible to others
+    }
+
+    @Override
+    public void afterCompletion(final int status) {
+        if (clear) {
+            index.clear();
+            return;
+        }
+        for (int i = 0; i < issuerDNs.size(); i++) {
+            index.invalidate(issuerDNs.get(i), serialNumbers.get(i));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bouncycastle.ocsp.BasicOCSPResp;
+import org.bouncycastle.ocsp.CertificateID;
+import org.bouncycastle.ocsp.CertificateStatus;
+import org.bouncycastle.ocsp.RevokedStatus;
+import org.bouncycastle.ocsp.UnknownStatus;
+import org.bouncycastle.util.encoders.Hex;
+import org.cesecore.certificates.ocsp.OCSPResponseItem;
+import org.cesecore.config.OcspConfiguration;
+import org.cesecore.util.CertTools;
+
+/**
+ * Enum based singleton caching signed OCSP responses, so that a response without nonce for the same certificates is only signed once per validity
+ * window instead of once per request.
+ *
+ * Responses are keyed on the signer certificate and on the CertificateID and status of every single response in it, so a response for a
+ * certificate that has been revoked since it was cached is never served: the lookup with the new status misses and a new response is signed.
+ *
+ * @version $Id$
+ *
+ */
+public enum SignedResponseCache {
+    INSTANCE;
+
+    private final int maxSize;
+
+    private final Cache cache;
+
+    private SignedResponseCache() {
+        maxSize = OcspConfiguration.getSignedResponseCacheSize();
+        cache = new Cache(maxSize);
+    }
+
+    /** @return true if ocsp.signedresponsecache.size is configured to a positive value */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @param key key made by {@link #getKey(X509Certificate, List)}
+     * @return the cached response, or null if there is none or it has expired
+     */
+    public BasicOCSPResp get(final String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Caches a signed response. If the cache is full, the least recently used response is removed.
+     *
+     * @param key key made by {@link #getKey(X509Certificate, List)}
+     * @param response the signed response
+     * @param expireTime time (ms) after which the response must not be served from the cache any more
+     */
+    public void put(final String key, final BasicOCSPResp response, final long expireTime) {
+        cache.put(key, response, expireTime);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @param signerCert the certificate the response is signed with
+     * @param responseList the single responses of the response, in order
+     * @return cache key identifying the content of the response
+     */
+    public static String getKey(final X509Certificate signerCert, final List<OCSPResponseItem> responseList) {
+        final StringBuilder sb = new StringBuilder(CertTools.getFingerprintAsString(signerCert));
+        for (final OCSPResponseItem item : responseList) {
+            final CertificateID certId = item.getCertID();
+            sb.append(';').append(certId.getHashAlgOID());
+            sb.append(',').append(new String(Hex.encode(certId.getIssuerNameHash())));
+            sb.append(',').append(new String(Hex.encode(certId.getIssuerKeyHash())));
+            sb.append(',').append(certId.getSerialNumber().toString(16));
+            final CertificateStatus status = item.getCertStatus();
+            if (status == null) {
+                sb.append(",good");
+            } else if (status instanceof UnknownStatus) {
+                sb.append(",unknown");
+            } else if (status instanceof RevokedStatus) {
+                final RevokedStatus revoked = (RevokedStatus) status;
+                sb.append(",revoked,").append(revoked.getRevocationTime().getTime());
+                if (revoked.hasRevocationReason()) {
+                    sb.append(',').append(revoked.getRevocationReason());
+                }
+            } else {
+                sb.append(',').append(status.getClass().getName());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Responses in least recently used order, so that both a lookup and caching a response take constant time also when the cache is full.
+     * Expired responses are removed when they are looked up, or when they are the least recently used.
+     */
+    static class Cache {
+        private final Map<String, Entry> entries;
+
+        Cache(final int maxSize) {
+            entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, SignedResponseCache.Entry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized BasicOCSPResp get(final String key) {
+            final Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireTime <= System.currentTimeMillis()) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.response;
+        }
+
+        synchronized void put(final String key, final BasicOCSPResp response, final long expireTime) {
+            entries.put(key, new Entry(response, expireTime));
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    private static class Entry {
+        private final BasicOCSPResp response;
+        private final long expireTime;
+
+        private Entry(final BasicOCSPResp response, final long expireTime) {
+            this.response = response;
+            this.expireTime = expireTime;
+        }
+    }
+}
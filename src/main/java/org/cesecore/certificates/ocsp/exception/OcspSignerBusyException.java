@@ -0,0 +1,41 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.exception;
+
+/**
+ * Thrown when an OCSP response can not be signed because all signing threads of the signer are busy and its queue is full. The client should
+ * be asked to try again later.
+ * 
+ * @version $Id$
+ * 
+ */
+public class OcspSignerBusyException extends Exception {
+
+    private static final long serialVersionUID = 4309614178521398370L;
+
+    /**
+     * @param arg0
+     */
+    public OcspSignerBusyException(String arg0) {
+        super(arg0);
+    }
+
+    /**
+     * @param arg0
+     * @param arg1
+     */
+    public OcspSignerBusyException(String arg0, Throwable arg1) {
+        super(arg0, arg1);
+    }
+
+}
@@ -43,6 +43,7 @@ import org.cesecore.certificates.ca.catoken.CAToken;
 import org.cesecore.certificates.certificate.CertificateStoreSessionLocal;
 import org.cesecore.certificates.ocsp.OcspResponseSessionBean;
 import org.cesecore.certificates.ocsp.cache.CryptoTokenAndChain;
+import org.cesecore.certificates.ocsp.cache.HsmSigningExecutorCache;
 import org.cesecore.certificates.ocsp.cache.TokenAndChainCache;
 import org.cesecore.certificates.ocsp.exception.OcspFailureException;
 import org.cesecore.config.OcspConfiguration;
@@ -176,6 +177,8 @@ public final class IntegratedOcspResponseGeneratorSessionBean extends OcspRespon
         } catch (AuthorizationDeniedException e) {
             throw new Error("Could not authorize using internal admin.");
         }
+        updateRevocationStatusIndex();
+        HsmSigningExecutorCache.INSTANCE.logStatistics();
     	if (log.isTraceEnabled()) {
     		log.trace("<timeoutHandler");
     	}
@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.cesecore.certificates.ocsp.logging;
 
+import org.apache.log4j.Logger;
 import org.cesecore.config.OcspConfiguration;
 
 /**
@@ -22,6 +23,8 @@ import org.cesecore.config.OcspConfiguration;
  */
 public class AuditLogger extends PatternLogger {
 
+    private static final Logger log = Logger.getLogger(AuditLogger.class);
+
     /**
      * The byte[] ocsp-request that came with the http-request
      */
@@ -46,4 +49,8 @@ public class AuditLogger extends PatternLogger {
         paramPut(PatternLogger.PROCESS_TIME, "-1");
     }
 
+    @Override
+    protected Logger getLogger() {
+        return log;
+    }
 }
@@ -0,0 +1,202 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+
+package org.cesecore.certificates.ocsp.logging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.cesecore.config.OcspConfiguration;
+
+/**
+ * Writes the output of {@link PatternLogger}s to log4j from a background thread, so that the OCSP response does not wait for the log to be
+ * written. Lines wait in a bounded queue. When the queue is full the request thread either waits for room, or the line is dropped and counted,
+ * as configured.
+ *
+ * With ocsp.log-safer there is no queue and the request thread writes each line itself, so the response is not sent before log4j has been
+ * given the line.
+ *
+ * {@link #shutdownInstance()} stops the background thread when the application is stopped, after the lines in the queue have been written.
+ *
+ * @version $Id$
+ */
+public final class PatternLogSink {
+
+    private static final Logger log = Logger.getLogger(PatternLogSink.class);
+
+    private static volatile PatternLogSink instance = null;
+
+    /** Milliseconds to wait for the queued lines to be written when shutting down */
+    private static final long SHUTDOWN_TIMEOUT = 10000;
+
+    /** null if lines are written by the calling thread */
+    private final BlockingQueue<Line> queue;
+    /** null if lines are written by the calling thread */
+    private final Thread writer;
+    /** Set when the writer thread should stop, after which lines are written by the calling thread */
+    private volatile boolean stopped = false;
+    private final boolean drop;
+    private final AtomicLong dropped = new AtomicLong();
+    /** The number of dropped lines that have been reported in the log */
+    private long reportedDropped = 0;
+
+    /**
+     * @param queueSize the number of lines that may wait to be written, 0 to write them in the calling thread
+     * @param drop true to drop lines when the queue is full, false to wait for room
+     */
+    PatternLogSink(final int queueSize, final boolean drop) {
+        this.drop = drop;
+        if (queueSize > 0) {
+            this.queue = new ArrayBlockingQueue<Line>(queueSize);
+            this.writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeQueued();
+                }
+            }, "OcspLogWriter");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        } else {
+            this.queue = null;
+            this.writer = null;
+        }
+    }
+
+    /** @return the sink configured in ocsp.properties */
+    public static PatternLogSink getInstance() {
+        if (instance == null) {
+            synchronized (PatternLogSink.class) {
+                if (instance == null) {
+                    final int queueSize = OcspConfiguration.getLogSafer() ? 0 : OcspConfiguration.getLogQueueSize();
+                    instance = new PatternLogSink(queueSize, OcspConfiguration.getLogQueueDrop());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /** Shuts down the sink configured in ocsp.properties, see {@link #shutdown()}. A new sink is created if it is used again. */
+    public static void shutdownInstance() {
+        final PatternLogSink sink;
+        synchronized (PatternLogSink.class) {
+            sink = instance;
+            instance = null;
+        }
+        if (sink != null) {
+            sink.shutdown();
+        }
+    }
+
+    /**
+     * Stops the background thread, after it has written the lines in the queue. Waits at most 10 seconds for the lines to be written. Lines
+     * written after this are written by the calling thread.
+     */
+    void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        stopped = true;
+        writer.interrupt();
+        try {
+            writer.join(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            log.warn("The OCSP log writer did not stop in " + SHUTDOWN_TIMEOUT + " ms, " + queue.size() + " log lines were not written.");
+        }
+    }
+
+    /** Writes the output to the logger, now or later. */
+    void write(final Logger logger, final String output) {
+        if (!logger.isDebugEnabled()) {
+            return;
+        }
+        if (queue == null || stopped) {
+            logger.debug(output);
+            return;
+        }
+        final Line line = new Line(logger, output);
+        if (drop) {
+            if (!queue.offer(line)) {
+                dropped.incrementAndGet();
+            }
+        } else {
+            try {
+                queue.put(line);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+            }
+        }
+        if (stopped) {
+            // The writer may have stopped before the line was queued
+            writeRemaining();
+        }
+    }
+
+    /** @return the number of lines dropped because the queue was full */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** @return the number of lines waiting to be written */
+    public int getQueuedCount() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    private void writeQueued() {
+        while (!stopped) {
+            try {
+                writeLine(queue.take());
+                final long droppedNow = dropped.get();
+                if (droppedNow != reportedDropped) {
+                    log.warn("The OCSP log queue has been full, " + (droppedNow - reportedDropped) + " log lines were dropped (" + droppedNow
+                            + " in total).");
+                    reportedDropped = droppedNow;
+                }
+            } catch (InterruptedException e) {
+                // Interrupted by shutdown
+            }
+        }
+        writeRemaining();
+    }
+
+    /** Writes the lines left in the queue */
+    private void writeRemaining() {
+        Line line;
+        while ((line = queue.poll()) != null) {
+            writeLine(line);
+        }
+    }
+
+    private void writeLine(final Line line) {
+        try {
+            line.logger.debug(line.output);
+        } catch (RuntimeException e) {
+            log.error("Could not write OCSP log: " + e.getMessage(), e);
+        }
+    }
+
+    private static class Line {
+        private final Logger logger;
+        private final String output;
+
+        private Line(final Logger logger, final String output) {
+            this.logger = logger;
+            this.output = output;
+        }
+    }
+}
@@ -13,25 +13,17 @@
 
 package org.cesecore.certificates.ocsp.logging;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.log4j.Logger;
 import org.bouncycastle.util.encoders.Hex;
 
 /**
- * This class can be extended to create highly configurable log classes. Values that are to be logged are stored in a Hashmap and the output is
- * configured using a Java.util.regex.Matcher and a sortString. The extending classes also need to supply a Logger and a String specifying how to log
+ * This class can be extended to create highly configurable log classes. Values that are to be logged are stored in slots of a template that
+ * is parsed once from a sortString using a java.util.regex.Pattern. The extending classes also need to supply a Logger and a String specifying how to log
  * Dates.
  * 
  * Use paramPut(String key, String value) to add values, Use writeln() to log all the stored values and then use flush() to store them to file.
+ * The lines are written by {@link PatternLogSink}, normally from a background thread.
  * 
  * Roughly based on PatternLogger.java 8663 2010-02-17 10:42:41Z anatom from EJBCA
  * 
@@ -79,15 +71,22 @@ public abstract class PatternLogger {
      */
     public static final String PROCESS_TIME = "PROCESS_TIME";
 
-    private final Map<String, String> valuepairs = new HashMap<String, String>();
-    private final StringWriter sw = new StringWriter();
-    private final PrintWriter pw = new PrintWriter(this.sw);
-    private final Matcher m;
-    private final String orderString;
-    private final String logDateFormat;
-    private final String timeZone;
-    private final Date startTime;
-    private Date startProcessTime = null;
+    /** Buffer for formatting a log line, reused by each thread */
+    private static final ThreadLocal<StringBuilder> lineBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final PatternLoggerTemplate template;
+    /** The values of the variables in the template, by slot */
+    private final String[] values;
+    /** The lines written, only created when something is written */
+    private StringBuilder output = null;
+    private final long startTime;
+    private long startProcessTime = -1;
     private boolean doLogging;
 
     /**
@@ -105,18 +104,11 @@ public abstract class PatternLogger {
      */
     protected PatternLogger(boolean doLogging, String matchPattern, String matchString, String logDateFormat, String timeZone) {
         this.doLogging = doLogging;
-        this.m = Pattern.compile(matchPattern).matcher(matchString);
-        this.orderString = matchString;
-        this.logDateFormat = logDateFormat;
-        this.timeZone = timeZone;
-        this.startTime = new Date();
-        final FastDateFormat dateformat;
-        if (this.timeZone == null) {
-                dateformat = FastDateFormat.getInstance(this.logDateFormat);
-        } else {
-                dateformat = FastDateFormat.getInstance(this.logDateFormat, TimeZone.getTimeZone(this.timeZone));
-        }
-        paramPut(LOG_TIME, dateformat.format(new Date()));
+        // The template is parsed once for each log order, not once per logger
+        this.template = PatternLoggerTemplate.getInstance(matchPattern, matchString, logDateFormat, timeZone);
+        this.values = new String[this.template.getSlotCount()];
+        this.startTime = System.currentTimeMillis();
+        paramPut(LOG_TIME, this.template.getDateFormat().format(this.startTime));
         this.paramPut(REPLY_TIME, REPLY_TIME);
         this.paramPut(LOG_ID, "0");
     }
@@ -126,26 +118,9 @@ public abstract class PatternLogger {
      * @return output to be logged
      */
     private String interpolate() {
-        final StringBuffer sb = new StringBuffer(this.orderString.length());
-        this.m.reset();
-        while (this.m.find()) {
-            // when the pattern is ${identifier}, group 0 is 'identifier'
-            final String key = this.m.group(1);
-            final String value = this.valuepairs.get(key);
-
-            // if the pattern does exists, replace it by its value
-            // otherwise keep the pattern ( it is group(0) )
-            if (value != null) {
-                this.m.appendReplacement(sb, value);
-            } else {
-                // I'm doing this to avoid the backreference problem as there will be a $
-                // if I replace directly with the group 0 (which is also a pattern)
-                this.m.appendReplacement(sb, "");
-                final String unknown = this.m.group(0);
-                sb.append(unknown);
-            }
-        }
-        this.m.appendTail(sb);
+        final StringBuilder sb = lineBuffer.get();
+        sb.setLength(0);
+        this.template.appendTo(sb, this.values);
         return sb.toString();
     }
 
@@ -160,14 +135,9 @@ public abstract class PatternLogger {
      * @see IPatternLogger#paramPut(String, String)
      */
     public void paramPut(String key, String value) {
-        // logger.debug("paramput: "+ key+ ";" +value +";" +valuepairs.toString());
-        if (value == null) {
-            this.valuepairs.put(key, "");
-        } else {
-            this.valuepairs.put(key, value);
-        }
+        put(key, value == null ? "" : value);
         if (StringUtils.equals(key, PROCESS_TIME)) {
-            startProcessTime = new Date();
+            startProcessTime = System.currentTimeMillis();
         }
     }
 
@@ -175,10 +145,14 @@ public abstract class PatternLogger {
      * @see IPatternLogger#paramPut(String, Integer)
      */
     public void paramPut(String key, Integer value) {
-        if (value == null) {
-            this.valuepairs.put(key, "");
-        } else {
-            this.valuepairs.put(key, value.toString());
+        put(key, value == null ? "" : value.toString());
+    }
+
+    /** Stores the value, values of variables that are not in the template are never written so they are not kept */
+    private void put(final String key, final String value) {
+        final int slot = this.template.getSlot(key);
+        if (slot >= 0) {
+            this.values[slot] = value;
         }
     }
 
@@ -187,7 +161,10 @@ public abstract class PatternLogger {
      */
     public void writeln() {
         if (doLogging) {
-            this.pw.println(interpolate());
+            if (this.output == null) {
+                this.output = new StringBuilder(256);
+            }
+            this.output.append(interpolate()).append(LINE_SEPARATOR);
         }
     }
 
@@ -195,13 +172,18 @@ public abstract class PatternLogger {
      * @see org.ejbca.util.IPatternLogger#flush()
      */
     public void flush() {
-        if (doLogging) {
-            this.pw.flush();
-            String output = this.sw.toString();
-            output = output.replaceAll(REPLY_TIME, String.valueOf(new Date().getTime() - this.startTime.getTime()));
-            if (startProcessTime != null) {
-                output = output.replaceAll(PROCESS_TIME, String.valueOf(new Date().getTime() - this.startProcessTime.getTime()));
+        if (doLogging && this.output != null) {
+            final long now = System.currentTimeMillis();
+            String output = this.output.toString();
+            output = StringUtils.replace(output, REPLY_TIME, String.valueOf(now - this.startTime));
+            if (startProcessTime != -1) {
+                output = StringUtils.replace(output, PROCESS_TIME, String.valueOf(now - this.startProcessTime));
             }
+            PatternLogSink.getInstance().write(getLogger(), output);
+            this.output = null;
         }
     }
+
+    /** @return the log4j Logger the output is written to */
+    protected abstract Logger getLogger();
 }
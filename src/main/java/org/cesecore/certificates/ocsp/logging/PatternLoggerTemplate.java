@@ -0,0 +1,120 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+
+package org.cesecore.certificates.ocsp.logging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+/**
+ * A log order string of a {@link PatternLogger}, parsed once into literal text and variables. Each variable gets a slot number, so a logger can
+ * keep its values in an array and a log line is written by appending the parts in order, without running the match pattern for every line.
+ *
+ * Templates are cached, since there is only one per configured log order, and used by all loggers at the same time.
+ *
+ * @version $Id$
+ */
+final class PatternLoggerTemplate {
+
+    private static final Map<String, PatternLoggerTemplate> cache = new ConcurrentHashMap<String, PatternLoggerTemplate>();
+
+    /** The text before each variable, and after the last one */
+    private final String[] literals;
+    /** The slot of each variable */
+    private final int[] slots;
+    /** The variable as written in the order string, used when it has no value */
+    private final String[] placeholders;
+    /** Slot number by variable name */
+    private final Map<String, Integer> slotNumbers;
+    private final FastDateFormat dateFormat;
+
+    private PatternLoggerTemplate(final String matchPattern, final String matchString, final String logDateFormat, final String timeZone) {
+        final List<String> literalList = new ArrayList<String>();
+        final List<Integer> slotList = new ArrayList<Integer>();
+        final List<String> placeholderList = new ArrayList<String>();
+        final Map<String, Integer> slotMap = new HashMap<String, Integer>();
+        final Matcher m = Pattern.compile(matchPattern).matcher(matchString);
+        int end = 0;
+        while (m.find()) {
+            // when the pattern is ${identifier}, group 1 is 'identifier'
+            final String key = m.group(1);
+            Integer slot = slotMap.get(key);
+            if (slot == null) {
+                slot = Integer.valueOf(slotMap.size());
+                slotMap.put(key, slot);
+            }
+            literalList.add(matchString.substring(end, m.start()));
+            slotList.add(slot);
+            placeholderList.add(m.group(0));
+            end = m.end();
+        }
+        literalList.add(matchString.substring(end));
+        this.literals = literalList.toArray(new String[literalList.size()]);
+        this.slots = new int[slotList.size()];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = slotList.get(i).intValue();
+        }
+        this.placeholders = placeholderList.toArray(new String[placeholderList.size()]);
+        this.slotNumbers = slotMap;
+        if (timeZone == null) {
+            this.dateFormat = FastDateFormat.getInstance(logDateFormat);
+        } else {
+            this.dateFormat = FastDateFormat.getInstance(logDateFormat, TimeZone.getTimeZone(timeZone));
+        }
+    }
+
+    /** @return the parsed template, from the cache if it has been parsed before */
+    static PatternLoggerTemplate getInstance(final String matchPattern, final String matchString, final String logDateFormat, final String timeZone) {
+        final String key = matchPattern + '\n' + matchString + '\n' + logDateFormat + '\n' + timeZone;
+        PatternLoggerTemplate template = cache.get(key);
+        if (template == null) {
+            // Parsing the same template twice at the same time does no harm
+            template = new PatternLoggerTemplate(matchPattern, matchString, logDateFormat, timeZone);
+            cache.put(key, template);
+        }
+        return template;
+    }
+
+    /** @return the number of different variables, i.e. the size of the value array */
+    int getSlotCount() {
+        return slotNumbers.size();
+    }
+
+    /** @return the slot of the variable, or -1 if it is not used in the template */
+    int getSlot(final String key) {
+        final Integer slot = slotNumbers.get(key);
+        return slot == null ? -1 : slot.intValue();
+    }
+
+    FastDateFormat getDateFormat() {
+        return dateFormat;
+    }
+
+    /** Appends the template with the values filled in. Variables without a value are written as they are in the template. */
+    void appendTo(final StringBuilder sb, final String[] values) {
+        for (int i = 0; i < slots.length; i++) {
+            sb.append(literals[i]);
+            final String value = values[slots[i]];
+            sb.append(value != null ? value : placeholders[i]);
+        }
+        sb.append(literals[slots.length]);
+    }
+}
@@ -12,24 +12,25 @@
  *************************************************************************/
 package org.cesecore.certificates.ocsp.logging;
 
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An enum based singleton which returns transaction numbers. Not a static volatile value, because these are forbidden by the EJB standard.
  * 
+ * The numbers are handed out by an atomic increment without any lock, since this is done for every OCSP request. They increase by one for
+ * each request on this node, so together with the id of the node from {@link GuidHolder} (the SESSION_ID and LOG_ID of the OCSP logs) they
+ * identify a request in the whole cluster, and show the order of the requests on each node.
+ * 
  * @version $Id$
  * 
  */
 public enum TransactionCounter {
     INSTANCE;
 
-    private TransactionCounter() {
-        transactionNumber = 0;
-    }
+    private final AtomicInteger transactionNumber = new AtomicInteger(0);
 
-    public synchronized int getTransactionNumber() {
-        return transactionNumber++;
+    public int getTransactionNumber() {
+        return transactionNumber.getAndIncrement();
     }
 
-    private int transactionNumber;
-
 }
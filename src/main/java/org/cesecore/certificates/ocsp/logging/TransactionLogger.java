@@ -12,6 +12,7 @@
  *************************************************************************/
 package org.cesecore.certificates.ocsp.logging;
 
+import org.apache.log4j.Logger;
 import org.cesecore.config.OcspConfiguration;
 
 /**
@@ -22,6 +23,8 @@ import org.cesecore.config.OcspConfiguration;
  */
 public class TransactionLogger extends PatternLogger {
 
+    private static final Logger log = Logger.getLogger(TransactionLogger.class);
+
     /**
      * The Common Name (CN) of the client making the request
      */
@@ -80,6 +83,9 @@ public class TransactionLogger extends PatternLogger {
         paramPut(CERT_STATUS, "0");
         paramPut(PatternLogger.PROCESS_TIME, "-1");
     }
-    
 
+    @Override
+    protected Logger getLogger() {
+        return log;
+    }
 }
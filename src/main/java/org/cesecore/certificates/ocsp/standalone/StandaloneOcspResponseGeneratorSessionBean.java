@@ -52,6 +52,7 @@ import org.cesecore.authorization.AuthorizationDeniedException;
 import org.cesecore.certificates.certificate.CertificateStoreSessionLocal;
 import org.cesecore.certificates.ocsp.OcspResponseSessionBean;
 import org.cesecore.certificates.ocsp.cache.CryptoTokenAndChain;
+import org.cesecore.certificates.ocsp.cache.HsmSigningExecutorCache;
 import org.cesecore.certificates.ocsp.cache.TokenAndChainCache;
 import org.cesecore.certificates.ocsp.exception.OcspFailureException;
 import org.cesecore.certificates.ocsp.standalone.exception.StandaloneOcspInitializationException;
@@ -135,6 +136,8 @@ public final class StandaloneOcspResponseGeneratorSessionBean extends OcspRespon
         } catch (AuthorizationDeniedException e) {
             throw new Error("Could not authorize using internal admin.");
         }
+        updateRevocationStatusIndex();
+        HsmSigningExecutorCache.INSTANCE.logStatistics();
         Integer timerInfo = (Integer) timer.getInfo();
         addTimer(OcspConfiguration.getSignTrustValidTimeInSeconds(), timerInfo);
     }
@@ -24,6 +24,15 @@ import java.util.LinkedList;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.RSASSAPSSparams;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
 import org.bouncycastle.jce.spec.ECNamedCurveSpec;
 import org.cesecore.keys.util.KeyTools;
 import org.cesecore.util.CertTools;
@@ -200,6 +209,52 @@ public final class AlgorithmTools {
 		return encSigAlg;
 	}
 
+	/**
+	 * Gives the AlgorithmIdentifier that BouncyCastle puts in certificates and CRLs signed with the given algorithm, so that a structure can be
+	 * put together before it is signed.
+	 * @param signatureAlgorithm one of the signature algorithms in AlgorithmConstants
+	 * @return the AlgorithmIdentifier, with the same parameters as BouncyCastle encodes
+	 * @throws IllegalArgumentException if the signature algorithm is not known
+	 */
+	public static AlgorithmIdentifier getSignatureAlgorithmIdentifier(final String signatureAlgorithm) {
+		final AlgorithmIdentifier ret;
+		if (AlgorithmConstants.SIGALG_SHA1_WITH_RSA.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha1WithRSAEncryption, new DERNull());
+		} else if (AlgorithmConstants.SIGALG_SHA256_WITH_RSA.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, new DERNull());
+		} else if (AlgorithmConstants.SIGALG_SHA384_WITH_RSA.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha384WithRSAEncryption, new DERNull());
+		} else if (AlgorithmConstants.SIGALG_SHA512_WITH_RSA.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha512WithRSAEncryption, new DERNull());
+		} else if (AlgorithmConstants.SIGALG_SHA1_WITH_RSA_AND_MGF1.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = getPSSAlgorithmIdentifier(OIWObjectIdentifiers.idSHA1, 20);
+		} else if (AlgorithmConstants.SIGALG_SHA256_WITH_RSA_AND_MGF1.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = getPSSAlgorithmIdentifier(NISTObjectIdentifiers.id_sha256, 32);
+		} else if (AlgorithmConstants.SIGALG_SHA1_WITH_ECDSA.equalsIgnoreCase(signatureAlgorithm)) {
+			// No parameters for ECDSA and DSA, not even NULL
+			ret = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA1);
+		} else if (AlgorithmConstants.SIGALG_SHA224_WITH_ECDSA.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA224);
+		} else if (AlgorithmConstants.SIGALG_SHA256_WITH_ECDSA.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
+		} else if (AlgorithmConstants.SIGALG_SHA384_WITH_ECDSA.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA384);
+		} else if (AlgorithmConstants.SIGALG_SHA1_WITH_DSA.equalsIgnoreCase(signatureAlgorithm)) {
+			ret = new AlgorithmIdentifier(X9ObjectIdentifiers.id_dsa_with_sha1);
+		} else {
+			throw new IllegalArgumentException("Unknown signature algorithm: " + signatureAlgorithm);
+		}
+		return ret;
+	}
+
+	/** RSASSA-PSS with MGF1 using the same hash, and a salt as long as the hash, as BouncyCastle does it */
+	private static AlgorithmIdentifier getPSSAlgorithmIdentifier(final DERObjectIdentifier hashOid, final int saltLength) {
+		final AlgorithmIdentifier hashAlgorithm = new AlgorithmIdentifier(hashOid, new DERNull());
+		final RSASSAPSSparams params = new RSASSAPSSparams(hashAlgorithm, new AlgorithmIdentifier(PKCSObjectIdentifiers.id_mgf1, hashAlgorithm),
+				new DERInteger(saltLength), new DERInteger(1));
+		return new AlgorithmIdentifier(PKCSObjectIdentifiers.id_RSASSA_PSS, params);
+	}
+
 	/**
 	 * Answers if the key can be used together with the given signature algorithm.
 	 * @param publicKey public key to use
@@ -73,6 +73,21 @@ public final class CesecoreConfiguration {
         return ConfigurationHolder.getString("ca.rngalgorithm");
     }
 
+    /**
+     * The number of serial numbers that are generated in advance, in the background, so they are ready when certificates are issued.
+     * 0 means that serial numbers are generated when they are needed.
+     */
+    public static int getCaSerialNumberPoolSize() {
+        int size = 0;
+        try {
+            size = Integer.valueOf(ConfigurationHolder.getString("ca.serialnumberpoolsize"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in ca.serialnumberpoolsize, must be decimal number (number of serial numbers generated in advance): "
+                    + e.getMessage());
+        }
+        return Math.max(0, size);
+    }
+
     /**
      * The date and time from which an expire date of a certificate is to be considered to be too far in the future.
      */
@@ -186,6 +201,95 @@ public final class CesecoreConfiguration {
         return time;
     }
 
+    /**
+     * Parameter to specify how many authorization decisions (authentication token and resource) may be cached per access tree, 0 to not cache
+     * decisions.
+     */
+    public static int getAuthorizationDecisionCacheSize() {
+        int size = 10000;
+        try {
+            size = Integer.valueOf(ConfigurationHolder.getString("authorization.decisioncache.size"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in authorization.decisioncache.size, must be decimal number (number of authorization decisions to cache): "
+                    + e.getMessage());
+        }
+        return size;
+    }
+
+    /**
+     * Parameter to specify if full CRLs should be made by updating the previous full CRL with the revocations since it was issued, instead of
+     * reading all revoked certificates from the database. The value is how often, in CRL numbers, the CRL is still built from all revoked
+     * certificates. 0 means that CRLs are always built from all revoked certificates.
+     */
+    public static int getCrlIncrementalRebuildInterval() {
+        int interval = 0; // never update incrementally is the default
+        try {
+            interval = Integer.valueOf(ConfigurationHolder.getString("crl.incremental.rebuildinterval"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in crl.incremental.rebuildinterval, must be decimal number (number of CRLs between complete rebuilds): "
+                    + e.getMessage());
+        }
+        return interval;
+    }
+
+    /**
+     * Parameter to specify how many CRLs, for different CAs, may be signed at the same time. 1 means that CRLs are generated one after the
+     * other.
+     */
+    public static int getCrlGenerationThreads() {
+        int threads = 1; // one CRL at a time is the default
+        try {
+            threads = Integer.valueOf(ConfigurationHolder.getString("crl.generation.threads"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in crl.generation.threads, must be decimal number (number of CRLs generated at the same time): "
+                    + e.getMessage());
+        }
+        return threads;
+    }
+
+    /**
+     * Parameter to specify how many CRLs may be signed at the same time by CAs in the same HSM slot.
+     */
+    public static int getCrlGenerationThreadsPerToken() {
+        int threads = 1; // one CRL at a time per slot is the default
+        try {
+            threads = Integer.valueOf(ConfigurationHolder.getString("crl.generation.threadspertoken"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in crl.generation.threadspertoken, must be decimal number (number of CRLs generated at the same time in one slot): "
+                    + e.getMessage());
+        }
+        return threads;
+    }
+
+    /**
+     * Parameter to specify how many certificates may be signed at the same time with the crypto token of a CA, when many certificates are issued
+     * in one call. 1 means that the certificates are signed one after the other.
+     */
+    public static int getBulkIssuanceThreadsPerToken() {
+        int threads = 1; // one certificate at a time is the default
+        try {
+            threads = Integer.valueOf(ConfigurationHolder.getString("certificate.bulk.threadspertoken"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in certificate.bulk.threadspertoken, must be decimal number (number of certificates signed at the same time): "
+                    + e.getMessage());
+        }
+        return Math.max(1, threads);
+    }
+
+    /**
+     * Parameter to specify how many certificates are stored in one transaction, when many certificates are issued in one call.
+     */
+    public static int getBulkIssuanceStoreBatchSize() {
+        int size = 100;
+        try {
+            size = Integer.valueOf(ConfigurationHolder.getString("certificate.bulk.storebatchsize"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in certificate.bulk.storebatchsize, must be decimal number (number of certificates stored in one transaction): "
+                    + e.getMessage());
+        }
+        return Math.max(1, size);
+    }
+
     public static Class<?> getTrustedTimeProvider() throws ClassNotFoundException {
         String providerClass = ConfigurationHolder.getString("time.provider");
         if(log.isDebugEnabled()) {
@@ -209,6 +313,53 @@ public final class CesecoreConfiguration {
         return ConfigurationHolder.getString("time.ntp.command");
     }
 
+    /**
+     * Milliseconds the system clock may drift from the trusted time calculated from the monotonic clock, before the time is read from the
+     * trusted time provider again
+     */
+    public static long getTrustedTimeMaxDrift() {
+        long drift = 1000;
+        try {
+            drift = Long.valueOf(ConfigurationHolder.getString("time.maxdrift"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in time.maxdrift, must be decimal number (milliseconds the system clock may drift): " + e.getMessage());
+        }
+        return drift;
+    }
+
+    /**
+     * Comma separated list of NTP servers (host or host:port) queried with SNTP by the SntpProvider
+     */
+    public static String[] getTrustedTimeSntpServers() {
+        return ConfigurationHolder.getString("time.sntp.servers").split("\\s*,\\s*");
+    }
+
+    /**
+     * Seconds between each query of the NTP servers by the SntpProvider
+     */
+    public static int getTrustedTimeSntpPollInterval() {
+        int seconds = 64; // same as the default minpoll of ntpd
+        try {
+            seconds = Integer.valueOf(ConfigurationHolder.getString("time.sntp.poll"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in time.sntp.poll, must be decimal number (seconds between NTP queries): " + e.getMessage());
+        }
+        return seconds;
+    }
+
+    /**
+     * Milliseconds to wait for an answer from an NTP server
+     */
+    public static int getTrustedTimeSntpTimeout() {
+        int timeout = 1000;
+        try {
+            timeout = Integer.valueOf(ConfigurationHolder.getString("time.sntp.timeout"));
+        } catch (NumberFormatException e) {
+            log.error("Invalid value in time.sntp.timeout, must be decimal number (milliseconds to wait for an NTP server): " + e.getMessage());
+        }
+        return timeout;
+    }
+
     /**
      * Option if we should keep JBoss serialized objects as such, or convert them to JPA/hibernate serialization. Used for backwards compatibility
      * with older versions of EJBCA than 4.0.0.
@@ -218,6 +369,15 @@ public final class CesecoreConfiguration {
         return value != null && value.trim().equalsIgnoreCase(TRUE);
     }
 
+    /**
+     * Option if CAs and extended end entity information should be stored in a compact binary format instead of as XML. Set to false while the
+     * database is shared with nodes that can only read XML. Audit log details are always stored as XML.
+     */
+    public static boolean isBinaryDataEncoding() {
+        final String value = ConfigurationHolder.getString("db.binaryencoding");
+        return value == null || value.trim().equalsIgnoreCase(TRUE);
+    }
+
     /**
      * When we run in a cluster, each node should have it's own identifier. By default we use the DNS name.
      */
@@ -46,6 +46,13 @@ public class OcspConfiguration {
     public static final String WSSWKEYSTOREPASSWORD = "ocsp.rekeying.swKeystorePassword";
     public static final String WARNING_BEFORE_EXPERATION_TIME = "ocsp.warningBeforeExpirationTime";
     public static final String OCSP_KEYS_DIR= "ocsp.keys.dir";
+    public static final String REVOCATION_STATUS_INDEX_CLASS = "ocsp.revocationstatusindex.class";
+    public static final String SIGNED_RESPONSE_CACHE_SIZE = "ocsp.signedresponsecache.size";
+    public static final String SIGNING_THREADS = "ocsp.signing.threads";
+    public static final String SIGNING_QUEUE_SIZE = "ocsp.signing.queuesize";
+    public static final String SIGNING_TIMEOUT = "ocsp.signing.timeout";
+    public static final String LOG_QUEUE_SIZE = "ocsp.log-queue.size";
+    public static final String LOG_QUEUE_DROP = "ocsp.log-queue.drop";
 
     public static final int RESTRICTONISSUER = 0;
     public static final int RESTRICTONSIGNER = 1;
@@ -339,6 +346,105 @@ public class OcspConfiguration {
         return value;
     }
 
+    /**
+     * Class implementing RevocationStatusIndex, used to answer status requests from memory instead of the database. Empty to disable.
+     */
+    public static String getRevocationStatusIndexClass() {
+        return ConfigurationHolder.getString(REVOCATION_STATUS_INDEX_CLASS);
+    }
+
+    /**
+     * Maximum number of signed responses to keep in the signed response cache. 0 to disable.
+     */
+    public static int getSignedResponseCacheSize() {
+        int result = 0;
+        try {
+            result = Integer.parseInt(ConfigurationHolder.getString(SIGNED_RESPONSE_CACHE_SIZE));
+        } catch (NumberFormatException e) {
+            log.warn(SIGNED_RESPONSE_CACHE_SIZE + " is not a decimal number. Using default value: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Maximum number of OCSP responses signed in parallel with a signer key. Should match the number of sessions the HSM can handle.
+     * 
+     * @param signerFingerprint fingerprint of the OCSP signer certificate, "ocsp.&lt;fingerprint&gt;.signing.threads" is used if it is set
+     */
+    public static int getSigningThreads(final String signerFingerprint) {
+        int result = 10;
+        final String key = getSignerKey(SIGNING_THREADS, signerFingerprint);
+        try {
+            result = Integer.parseInt(ConfigurationHolder.getString(key));
+        } catch (NumberFormatException e) {
+            log.warn(key + " is not a decimal number. Using default value: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Maximum number of OCSP responses waiting to be signed with a signer key. Requests arriving when the queue is full are answered with
+     * tryLater.
+     * 
+     * @param signerFingerprint fingerprint of the OCSP signer certificate, "ocsp.&lt;fingerprint&gt;.signing.queuesize" is used if it is set
+     */
+    public static int getSigningQueueSize(final String signerFingerprint) {
+        int result = 100;
+        final String key = getSignerKey(SIGNING_QUEUE_SIZE, signerFingerprint);
+        try {
+            result = Integer.parseInt(ConfigurationHolder.getString(key));
+        } catch (NumberFormatException e) {
+            log.warn(key + " is not a decimal number. Using default value: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * Maximum time in milliseconds to wait for an OCSP response to be signed with a signer key, including the time waiting in the queue.
+     * 
+     * @param signerFingerprint fingerprint of the OCSP signer certificate, "ocsp.&lt;fingerprint&gt;.signing.timeout" is used if it is set
+     */
+    public static long getSigningTimeout(final String signerFingerprint) {
+        long result = 30;
+        final String key = getSignerKey(SIGNING_TIMEOUT, signerFingerprint);
+        try {
+            result = Long.parseLong(ConfigurationHolder.getString(key));
+        } catch (NumberFormatException e) {
+            log.warn(key + " is not a decimal number. Using default value: " + result);
+        }
+        return result * 1000;
+    }
+
+    /** @return the key of the setting for the signer if it is set, like ocsp.999.maxAge for a certificate profile, otherwise the general key */
+    private static String getSignerKey(final String key, final String signerFingerprint) {
+        final String signerKey = "ocsp." + signerFingerprint + key.substring("ocsp".length());
+        if (signerFingerprint != null && ConfigurationHolder.instance().containsKey(signerKey)) {
+            return signerKey;
+        }
+        return key;
+    }
+
+    /**
+     * Maximum number of transaction and audit log lines waiting to be written by the background log writer. 0 to write them in the request
+     * thread. Not used with ocsp.log-safer, then there is no queue and each line is written by the request thread before the response is sent.
+     */
+    public static int getLogQueueSize() {
+        int result = 10000;
+        try {
+            result = Integer.parseInt(ConfigurationHolder.getString(LOG_QUEUE_SIZE));
+        } catch (NumberFormatException e) {
+            log.warn(LOG_QUEUE_SIZE + " is not a decimal number. Using default value: " + result);
+        }
+        return result;
+    }
+
+    /**
+     * @return true if transaction and audit log lines should be dropped when the log queue is full, false to make the request wait for room.
+     */
+    public static boolean getLogQueueDrop() {
+        return "true".equalsIgnoreCase(ConfigurationHolder.getString(LOG_QUEUE_DROP));
+    }
+
     // Values for stand-alone OCSP
 
     /**
@@ -33,6 +33,11 @@ public class TrustedTime implements Serializable {
     private Long previousUpdate; //seconds
     private Long nextUpdate; //seconds
     private boolean sync = false;
+    private boolean uncorrectedOffset = false;
+    /** Milliseconds added to the system clock, kept when serialized so the time is the same on the receiving side */
+    private long offsetMillis = 0;
+    /** Set when the time is published by the TrustedTimeCache, after which this object is not changed */
+    private transient TrustedTimeSnapshot snapshot = null;
     
     public TrustedTime() {}
 
@@ -56,7 +61,48 @@ public class TrustedTime implements Serializable {
     public boolean isSync() { return this.sync; }
     public void setSync(boolean sync) { this.sync = sync; }
 
-    public Date getTime() { return new Date(); }
+    /**
+     * @return true if the accuracy is an offset of the system clock that nothing is correcting, such as one measured with SNTP, so it is added
+     *  to the system clock. The offset reported by an NTP daemon is already being corrected by the daemon itself, and adding it as well would
+     *  correct the clock twice.
+     */
+    public boolean isUncorrectedOffset() { return this.uncorrectedOffset; }
+    public void setUncorrectedOffset(boolean uncorrectedOffset) { this.uncorrectedOffset = uncorrectedOffset; }
+
+    public Date getTime() { return new Date(getTimeMillis()); }
+
+    /**
+     * @return the trusted time in milliseconds since the epoch, i.e. the system clock corrected with the offset of the time source if it is
+     *  synchronized and the offset is not already being corrected. Use this instead of getTime() to avoid creating a Date.
+     */
+    public long getTimeMillis() {
+        final TrustedTimeSnapshot snapshot = this.snapshot;
+        return snapshot == null ? System.currentTimeMillis() + this.offsetMillis : snapshot.currentTimeMillis();
+    }
+
+    /**
+     * Anchors the offset to the clocks, so the time can be calculated from the monotonic clock from now on.
+     *
+     * @param maxDriftMillis how far the system clock may drift from the calculated time before {@link #isDrifted()} is true
+     */
+    void anchor(final long maxDriftMillis) {
+        if (this.sync) {
+            this.offsetMillis = this.uncorrectedOffset && this.accuracy != null ? Math.round(this.accuracy.doubleValue()) : 0;
+            this.snapshot = new TrustedTimeSnapshot(this.offsetMillis, maxDriftMillis);
+        }
+    }
+
+    /** @return true if the system clock has drifted too far from the calculated time and the time should be read from the provider again */
+    boolean isDrifted() {
+        final TrustedTimeSnapshot snapshot = this.snapshot;
+        return snapshot != null && snapshot.isDrifted();
+    }
+
+    /** @return milliseconds the system clock has drifted from the calculated time */
+    long getDriftMillis() {
+        final TrustedTimeSnapshot snapshot = this.snapshot;
+        return snapshot == null ? 0 : snapshot.getDriftMillis();
+    }
 
     public String getSource() { return this.source; }
     public void setSource(String source) { this.source = source; }
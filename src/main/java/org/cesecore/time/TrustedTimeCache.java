@@ -23,13 +23,16 @@ import org.cesecore.time.providers.TrustedTimeProviderException;
  * Simple singleton that holds the latest TrustedTime, an instance of the provider.
  * This class supports thread-safe atomic updates from the provider, but does not support any timeout.
  * 
+ * The latest TrustedTime is published through a volatile field and not changed after that, so it can be read without a lock. If the system
+ * clock drifts from the time calculated from the latest update, the time is read from the provider again on the next update.
+ * 
  * @version $Id$
  */
 public enum TrustedTimeCache {
 	INSTANCE;
 
 	private static final Logger log = Logger.getLogger(TrustedTimeCache.class);
-	private TrustedTime trustedTime = null;
+	private volatile TrustedTime trustedTime = null;
 	private TrustedTimeProvider provider = null;
 	private final ReentrantLock resourceLock = new ReentrantLock();
 
@@ -37,6 +40,19 @@ public enum TrustedTimeCache {
 		return trustedTime;
 	}
 
+	/**
+	 * Reads the latest TrustedTime without a lock and without going through the TrustedTimeWatcherSession.
+	 * 
+	 * @return the latest TrustedTime, or null if there is none yet or if it has drifted and the watcher has to update it
+	 */
+	public TrustedTime getCurrentTrustedTime() {
+	    final TrustedTime current = trustedTime;
+	    if (current == null || current.isDrifted()) {
+	        return null;
+	    }
+	    return current;
+	}
+
 	/**
 	 * Perform an atomic update using the configured provider.
 	 * 
@@ -49,21 +65,26 @@ public enum TrustedTimeCache {
 	    if(log.isTraceEnabled()) {
 	        log.trace(String.format(">TrustedTimeCache: forcedUpdate: %s || TrustedTime: %s", forceUpdate, TrustedTimeCache.INSTANCE.getTrustedTime() != null));
 	    }
-	    if (!forceUpdate && TrustedTimeCache.INSTANCE.getTrustedTime() != null) {
+	    if (!forceUpdate && getCurrentTrustedTime() != null) {
             // False alarm.. another thread has already made the initial sync, so we don't need to.
             return null;
         }
         try {
     		resourceLock.lock();
-    		if (!forceUpdate && TrustedTimeCache.INSTANCE.getTrustedTime() != null) {
+    		if (!forceUpdate && getCurrentTrustedTime() != null) {
                 // False alarm.. another thread has already made the initial sync, so we don't need to.
                 return null;
+            }
+            final TrustedTime oldTrustedTime = trustedTime;
+            if (!forceUpdate && oldTrustedTime != null) {
+                log.warn("The system clock has drifted " + oldTrustedTime.getDriftMillis() + " ms since the trusted time was last updated, updating it again.");
             }
     		if(log.isDebugEnabled()) {
                 log.debug("TrustedTime will be updated");
             }
-            final TrustedTime oldTrustedTime = trustedTime;
-            trustedTime = getProvider().getTrustedTime();
+            final TrustedTime updatedTrustedTime = getProvider().getTrustedTime();
+            updatedTrustedTime.anchor(CesecoreConfiguration.getTrustedTimeMaxDrift());
+            trustedTime = updatedTrustedTime;
             final TrustedTime[] ret = {oldTrustedTime, trustedTime};
             return ret;
         } finally {
@@ -56,6 +56,10 @@ public class TrustedTimeSessionBean implements TrustedTimeSessionLocal, TrustedT
      */
     @Override
     public TrustedTime getTrustedTime() throws TrustedTimeProviderException, AuditRecordStorageException {
+        final TrustedTime trustedTime = TrustedTimeCache.INSTANCE.getCurrentTrustedTime();
+        if (trustedTime != null) {
+            return trustedTime;
+        }
         return watcher.getTrustedTime(false);
     }
 }
@@ -0,0 +1,57 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.time;
+
+/**
+ * The offset to the trusted time source, anchored to the system clock and the monotonic clock at the time the provider was asked. The trusted
+ * time is calculated from the anchor and System.nanoTime(), so it does not jump if someone sets the system clock between updates from the
+ * provider.
+ *
+ * If the system clock and the calculated time move apart by more than the allowed drift, either the system clock has been changed or the
+ * clock is being corrected, and the snapshot should be replaced with a new one from the provider.
+ *
+ * @version $Id$
+ */
+final class TrustedTimeSnapshot {
+
+    private final long offsetMillis;
+    private final long anchorMillis;
+    private final long anchorNanos;
+    private final long maxDriftMillis;
+
+    /**
+     * @param offsetMillis milliseconds the trusted time source is ahead of the system clock
+     * @param maxDriftMillis how far the system clock may drift from the calculated time
+     */
+    TrustedTimeSnapshot(final long offsetMillis, final long maxDriftMillis) {
+        this.offsetMillis = offsetMillis;
+        this.maxDriftMillis = maxDriftMillis;
+        this.anchorMillis = System.currentTimeMillis();
+        this.anchorNanos = System.nanoTime();
+    }
+
+    /** @return the trusted time in milliseconds since the epoch */
+    long currentTimeMillis() {
+        return anchorMillis + offsetMillis + (System.nanoTime() - anchorNanos) / 1000000L;
+    }
+
+    /** @return milliseconds the system clock has moved from the monotonic clock since the snapshot was taken */
+    long getDriftMillis() {
+        return System.currentTimeMillis() - (anchorMillis + (System.nanoTime() - anchorNanos) / 1000000L);
+    }
+
+    /** @return true if the system clock has moved more than the allowed drift from the monotonic clock */
+    boolean isDrifted() {
+        return Math.abs(getDriftMillis()) > maxDriftMillis;
+    }
+}
@@ -0,0 +1,264 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.time.providers;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.cesecore.config.CesecoreConfiguration;
+import org.cesecore.time.TrustedTime;
+
+/**
+ * TrustedTimeProvider that asks NTP servers for the time itself, using SNTP (RFC 4330) over UDP, instead of running an NTP client command like
+ * {@link NtpClientParser}.
+ *
+ * The servers are queried on a background thread every time.sntp.poll seconds and the answer with the shortest round trip is kept, so
+ * {@link #getTrustedTime()} only reads the latest answer and never waits for the network, except for the very first call which waits up to
+ * time.sntp.timeout for the first answer. As with NtpClientParser the accuracy is the offset of the local clock from the server, in
+ * milliseconds, but since nothing corrects the local clock by it, it is added to the system clock to get the trusted time. The time is
+ * reported as not synchronized if no server has answered in three poll intervals, or if the server says that it is
+ * not synchronized itself.
+ *
+ * @version $Id$
+ */
+public class SntpProvider implements TrustedTimeProvider {
+
+    private static final long serialVersionUID = 4513127542213436811L;
+    private static final Logger log = Logger.getLogger(SntpProvider.class);
+
+    static final int NTP_PORT = 123;
+    static final int PACKET_SIZE = 48;
+    /** Seconds from 1900-01-01 (the NTP epoch) to 1970-01-01 */
+    static final long NTP_EPOCH_OFFSET = 2208988800L;
+    /** Number of poll intervals without an answer before the time is no longer considered synchronized */
+    private static final int MAX_MISSED_POLLS = 3;
+
+    private final List<InetSocketAddress> servers;
+    private final int pollInterval;
+    private final int timeout;
+
+    private transient volatile Sample latest = null;
+    private transient volatile Thread poller = null;
+    private transient CountDownLatch firstPoll = null;
+
+    /** Creates a provider for the servers in the configuration. */
+    public SntpProvider() {
+        this(parseServers(CesecoreConfiguration.getTrustedTimeSntpServers()), CesecoreConfiguration.getTrustedTimeSntpPollInterval(),
+                CesecoreConfiguration.getTrustedTimeSntpTimeout());
+    }
+
+    /**
+     * @param servers the NTP servers to ask
+     * @param pollInterval seconds between each query
+     * @param timeout milliseconds to wait for each server
+     */
+    SntpProvider(final List<InetSocketAddress> servers, final int pollInterval, final int timeout) {
+        this.servers = servers;
+        this.pollInterval = pollInterval;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public TrustedTime getTrustedTime() {
+        startPoller();
+        Sample sample = latest;
+        if (sample == null) {
+            try {
+                firstPoll.await(timeout * servers.size(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample = latest;
+        }
+        final TrustedTime trustedTime = new TrustedTime();
+        if (sample == null) {
+            // Nobody has answered yet, ask again when the next poll has been made
+            trustedTime.setNextUpdate(0, pollInterval);
+        } else {
+            final long age = (System.currentTimeMillis() - sample.receivedAt) / 1000;
+            trustedTime.setSource(sample.source);
+            trustedTime.setAccuracy(Double.valueOf(sample.offset));
+            trustedTime.setUncorrectedOffset(true);
+            trustedTime.setStratum(Integer.valueOf(sample.stratum));
+            trustedTime.setNextUpdate((int) Math.min(age, pollInterval), pollInterval);
+            trustedTime.setSync(sample.sync && age < (long) MAX_MISSED_POLLS * pollInterval);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(trustedTime.toString());
+        }
+        return trustedTime;
+    }
+
+    /** Starts the background thread on first use */
+    private void startPoller() {
+        if (poller == null) {
+            synchronized (this) {
+                if (poller == null) {
+                    firstPoll = new CountDownLatch(1);
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            pollForever();
+                        }
+                    }, "TrustedTimeSntp");
+                    thread.setDaemon(true);
+                    thread.start();
+                    poller = thread;
+                }
+            }
+        }
+    }
+
+    private void pollForever() {
+        while (true) {
+            poll();
+            firstPoll.countDown();
+            try {
+                Thread.sleep(pollInterval * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Queries all servers and keeps the answer with the shortest round trip, since its offset has the smallest error. */
+    void poll() {
+        Sample best = null;
+        for (final InetSocketAddress server : servers) {
+            try {
+                final Sample sample = query(server);
+                if (best == null || (sample.sync && !best.sync) || (sample.sync == best.sync && sample.delay < best.delay)) {
+                    best = sample;
+                }
+            } catch (IOException e) {
+                log.info("No answer from NTP server " + server + ": " + e.getMessage());
+            }
+        }
+        if (best != null) {
+            latest = best;
+        } else {
+            log.warn("None of the NTP servers " + servers + " answered.");
+        }
+    }
+
+    /**
+     * Sends one SNTP request and reads the answer.
+     *
+     * @return the offset and round trip time measured against the server
+     * @throws IOException if the server did not give a valid answer in time
+     */
+    Sample query(final InetSocketAddress server) throws IOException {
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(timeout);
+            final byte[] buffer = new byte[PACKET_SIZE];
+            // LI = 0, VN = 4, Mode = 3 (client)
+            buffer[0] = 0x23;
+            final long originateTime = System.currentTimeMillis();
+            writeTimestamp(buffer, 40, originateTime);
+            socket.send(new DatagramPacket(buffer, buffer.length, server));
+            final DatagramPacket response = new DatagramPacket(new byte[PACKET_SIZE], PACKET_SIZE);
+            socket.receive(response);
+            final long destinationTime = System.currentTimeMillis();
+            final byte[] answer = response.getData();
+            if (response.getLength() < PACKET_SIZE) {
+                throw new IOException("Too short answer: " + response.getLength() + " bytes");
+            }
+            final int leapIndicator = (answer[0] >> 6) & 0x3;
+            final int mode = answer[0] & 0x7;
+            final int stratum = answer[1] & 0xff;
+            if (mode != 4 && mode != 5) {
+                throw new IOException("Not a server answer, mode " + mode);
+            }
+            if (stratum == 0) {
+                // Kiss-o'-Death, the server does not want to be asked
+                throw new IOException("Kiss-o'-Death " + new String(answer, 12, 4, "US-ASCII"));
+            }
+            if (readTimestamp(answer, 24) != originateTime) {
+                throw new IOException("The answer is not for our request");
+            }
+            final long receiveTime = readTimestamp(answer, 32);
+            final long transmitTime = readTimestamp(answer, 40);
+            final long offset = ((receiveTime - originateTime) + (transmitTime - destinationTime)) / 2;
+            final long delay = (destinationTime - originateTime) - (transmitTime - receiveTime);
+            // Leap indicator 3 means that the server is not synchronized
+            return new Sample(server.getHostName(), stratum, offset, delay, leapIndicator != 3, destinationTime);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /** Writes the Java time as an NTP timestamp: 32 bits of seconds since 1900 and 32 bits of fraction */
+    static void writeTimestamp(final byte[] buffer, final int offset, final long millis) {
+        final long seconds = millis / 1000 + NTP_EPOCH_OFFSET;
+        final long fraction = (millis % 1000) * 0x100000000L / 1000;
+        for (int i = 0; i < 4; i++) {
+            buffer[offset + i] = (byte) (seconds >>> (24 - 8 * i));
+            buffer[offset + 4 + i] = (byte) (fraction >>> (24 - 8 * i));
+        }
+    }
+
+    /** Reads an NTP timestamp as Java time */
+    static long readTimestamp(final byte[] buffer, final int offset) {
+        long seconds = 0;
+        long fraction = 0;
+        for (int i = 0; i < 4; i++) {
+            seconds = (seconds << 8) | (buffer[offset + i] & 0xff);
+            fraction = (fraction << 8) | (buffer[offset + 4 + i] & 0xff);
+        }
+        // Round the fraction, so a timestamp written by writeTimestamp is read back as the same millisecond
+        return (seconds - NTP_EPOCH_OFFSET) * 1000 + (fraction * 1000 + 0x80000000L) / 0x100000000L;
+    }
+
+    private static List<InetSocketAddress> parseServers(final String[] servers) {
+        final List<InetSocketAddress> ret = new ArrayList<InetSocketAddress>();
+        for (final String server : servers) {
+            final int colon = server.lastIndexOf(':');
+            if (colon > 0) {
+                ret.add(new InetSocketAddress(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1))));
+            } else {
+                ret.add(new InetSocketAddress(server, NTP_PORT));
+            }
+        }
+        return ret;
+    }
+
+    /** One answer from an NTP server */
+    static class Sample {
+        final String source;
+        final int stratum;
+        /** Milliseconds the server clock is ahead of the local clock */
+        final long offset;
+        /** Round trip time in milliseconds */
+        final long delay;
+        final boolean sync;
+        /** Local time when the answer was received */
+        final long receivedAt;
+
+        Sample(final String source, final int stratum, final long offset, final long delay, final boolean sync, final long receivedAt) {
+            this.source = source;
+            this.stratum = stratum;
+            this.offset = offset;
+            this.delay = delay;
+            this.sync = sync;
+            this.receivedAt = receivedAt;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.util;
+
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.cesecore.config.CesecoreConfiguration;
+
+/**
+ * Serializes the maps that UpgradeableDataHashMap objects are stored in to and from strings for the database. Audit log details are
+ * serialized with {@link XmlSerializer}, which always writes XML.
+ *
+ * Maps are written in a compact binary format, "BIN:" followed by the Base64 encoded data, that can be read without reflection. Maps with
+ * values of other types than null, String, Boolean, Integer, Long, Float, Double, Date, byte[], ArrayList, HashMap, LinkedHashMap, Hashtable
+ * and Properties (such as CertificatePolicy objects) are written with java.beans.XMLEncoder, as all maps were before. Both formats can be
+ * read, so existing rows are converted to the binary format the next time they are written.
+ *
+ * Subclasses of LinkedHashMap, such as Base64PutHashMap, are read back as LinkedHashMap.
+ *
+ * @version $Id$
+ */
+public final class MapSerializer {
+
+    /** Prefix of strings in the binary format, XML always starts with '<' */
+    static final String BINARY_PREFIX = "BIN:";
+    /** Version of the binary format, written first */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_TRUE = 2;
+    private static final int TYPE_FALSE = 3;
+    private static final int TYPE_INTEGER = 4;
+    private static final int TYPE_LONG = 5;
+    private static final int TYPE_FLOAT = 6;
+    private static final int TYPE_DOUBLE = 7;
+    private static final int TYPE_DATE = 8;
+    private static final int TYPE_BYTES = 9;
+    private static final int TYPE_ARRAYLIST = 10;
+    private static final int TYPE_HASHMAP = 11;
+    private static final int TYPE_LINKEDHASHMAP = 12;
+    private static final int TYPE_HASHTABLE = 13;
+    private static final int TYPE_PROPERTIES = 14;
+
+    private MapSerializer() {
+        // Only static methods
+    }
+
+    /**
+     * @param map the map to serialize
+     * @return the map in the binary format if all values can be written in it and binary encoding is enabled, otherwise as XML
+     */
+    public static String encode(final Map<?, ?> map) {
+        if (CesecoreConfiguration.isBinaryDataEncoding() && isSupported(map)) {
+            return encodeBinary(map);
+        }
+        return encodeXml(map);
+    }
+
+    /**
+     * @param data a map serialized by {@link #encode(Map)}, in either format
+     * @return the map
+     */
+    public static Object decode(final String data) {
+        if (isBinary(data)) {
+            return decodeBinary(data);
+        }
+        return decodeXml(data);
+    }
+
+    /** @return true if the data is in the binary format */
+    public static boolean isBinary(final String data) {
+        return data.startsWith(BINARY_PREFIX);
+    }
+
+    static String encodeBinary(final Map<?, ?> map) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeByte(FORMAT_VERSION);
+            writeValue(out, map);
+            out.close();
+            return BINARY_PREFIX + new String(Base64.encode(baos.toByteArray()), "US-ASCII");
+        } catch (IOException e) {
+            // Fatal, we are writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String encodeXml(final Map<?, ?> map) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final XMLEncoder encoder = new XMLEncoder(baos);
+        encoder.writeObject(map);
+        encoder.close();
+        try {
+            return baos.toString("UTF8");
+        } catch (UnsupportedEncodingException e) {
+            // Fatal. No point in handling the lack of UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object decodeBinary(final String data) {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decode(data.substring(BINARY_PREFIX.length()))));
+        try {
+            final int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown version of serialized data: " + version);
+            }
+            return readValue(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid serialized data: " + e.getMessage(), e);
+        }
+    }
+
+    private static Object decodeXml(final String data) {
+        try {
+            final XMLDecoder decoder = new XMLDecoder(new ByteArrayInputStream(data.getBytes("UTF8")));
+            final Object ret = decoder.readObject();
+            decoder.close();
+            return ret;
+        } catch (UnsupportedEncodingException e) {
+            // Fatal. No point in handling the lack of UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return true if the value and everything in it can be written in the binary format */
+    private static boolean isSupported(final Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Double || value instanceof byte[] || value.getClass() == Date.class) {
+            return true;
+        }
+        if (value.getClass() == ArrayList.class) {
+            for (final Object element : (List<?>) value) {
+                if (!isSupported(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value instanceof LinkedHashMap || value.getClass() == HashMap.class || value.getClass() == Hashtable.class
+                || value.getClass() == Properties.class) {
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!isSupported(entry.getKey()) || !isSupported(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void writeValue(final DataOutputStream out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeBytes(out, ((String) value).getBytes("UTF-8"));
+        } else if (value instanceof Boolean) {
+            out.writeByte(((Boolean) value).booleanValue() ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt(((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong(((Long) value).longValue());
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat(((Float) value).floatValue());
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Double) value).doubleValue());
+        } else if (value instanceof Date) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            out.writeByte(TYPE_BYTES);
+            writeBytes(out, (byte[]) value);
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            out.writeByte(TYPE_ARRAYLIST);
+            out.writeInt(list.size());
+            for (final Object element : list) {
+                writeValue(out, element);
+            }
+        } else {
+            final Map<?, ?> map = (Map<?, ?>) value;
+            if (map instanceof LinkedHashMap) {
+                out.writeByte(TYPE_LINKEDHASHMAP);
+            } else if (map instanceof HashMap) {
+                out.writeByte(TYPE_HASHMAP);
+            } else if (map instanceof Properties) {
+                out.writeByte(TYPE_PROPERTIES);
+            } else {
+                out.writeByte(TYPE_HASHTABLE);
+            }
+            out.writeInt(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        }
+    }
+
+    private static void writeBytes(final DataOutputStream out, final byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Object readValue(final DataInputStream in) throws IOException {
+        final int type = in.readUnsignedByte();
+        switch (type) {
+        case TYPE_NULL:
+            return null;
+        case TYPE_STRING:
+            return new String(readBytes(in), "UTF-8");
+        case TYPE_TRUE:
+            return Boolean.TRUE;
+        case TYPE_FALSE:
+            return Boolean.FALSE;
+        case TYPE_INTEGER:
+            return Integer.valueOf(in.readInt());
+        case TYPE_LONG:
+            return Long.valueOf(in.readLong());
+        case TYPE_FLOAT:
+            return Float.valueOf(in.readFloat());
+        case TYPE_DOUBLE:
+            return Double.valueOf(in.readDouble());
+        case TYPE_DATE:
+            return new Date(in.readLong());
+        case TYPE_BYTES:
+            return readBytes(in);
+        case TYPE_ARRAYLIST: {
+            final int size = readSize(in);
+            final List<Object> list = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(in));
+            }
+            return list;
+        }
+        case TYPE_HASHMAP:
+        case TYPE_LINKEDHASHMAP:
+        case TYPE_HASHTABLE:
+        case TYPE_PROPERTIES: {
+            final int size = readSize(in);
+            final Map<Object, Object> map;
+            if (type == TYPE_HASHMAP) {
+                map = new HashMap<Object, Object>();
+            } else if (type == TYPE_LINKEDHASHMAP) {
+                map = new LinkedHashMap<Object, Object>();
+            } else if (type == TYPE_HASHTABLE) {
+                map = new Hashtable<Object, Object>();
+            } else {
+                map = new Properties();
+            }
+            for (int i = 0; i < size; i++) {
+                final Object key = readValue(in);
+                map.put(key, readValue(in));
+            }
+            return map;
+        }
+        default:
+            throw new IOException("Unknown type " + type);
+        }
+    }
+
+    private static byte[] readBytes(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[readSize(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /** @return a size that is not larger than the data that is left, so corrupt data can not make us allocate lots of memory */
+    private static int readSize(final DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        if (size < 0 || size > in.available()) {
+            throw new IOException("Invalid size " + size);
+        }
+        return size;
+    }
+}
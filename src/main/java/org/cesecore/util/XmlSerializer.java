@@ -12,16 +12,13 @@
  *************************************************************************/
 package org.cesecore.util;
 
-import java.beans.XMLDecoder;
-import java.beans.XMLEncoder;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
- * This is a helper classed that handles the serialization to and deserialization from XML.
+ * This is a helper classed that handles the serialization to and deserialization from a String, used for the additional details of audit
+ * log records. Maps are always written as XML, not in the binary format of {@link MapSerializer}, since the audit log is exported exactly
+ * as it is stored and must stay readable. Both formats can be read.
  * 
  * Stored Strings in the input are stored as Base64 encoded strings.  
  * 
@@ -32,16 +29,9 @@ public class XmlSerializer {
 	public static Map<String, Object> decode(final String input) {
 		Map<String, Object> ret = null;
 		if (input != null) {
-			try {
-				XMLDecoder decoder = new XMLDecoder(new ByteArrayInputStream(input.getBytes("UTF8")));
-				final LinkedHashMap<Object,Object> h = (LinkedHashMap<Object,Object>) decoder.readObject();
-				decoder.close();
-				// Handle Base64 encoded string values
-				ret = new Base64GetHashMap(h);
-			} catch (UnsupportedEncodingException e) {
-				// Fatal. No point in handling the lack of UTF-8
-				throw new RuntimeException(e);
-			}
+			final LinkedHashMap<Object,Object> h = (LinkedHashMap<Object,Object>) MapSerializer.decode(input);
+			// Handle Base64 encoded string values
+			ret = new Base64GetHashMap(h);
 		}
 		return ret;
 	}
@@ -49,18 +39,9 @@ public class XmlSerializer {
 	public static String encode(final Map<String, Object> input) {
 		String ret = null;
 		if (input != null) {
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			final XMLEncoder encoder = new XMLEncoder(baos);
 			final LinkedHashMap<Object,Object> linkedHashMap = new Base64PutHashMap();
 			linkedHashMap.putAll(input);
-			encoder.writeObject(linkedHashMap);
-			encoder.close();
-			try {
-				ret = baos.toString("UTF8");
-			} catch (UnsupportedEncodingException e) {
-				// Fatal. No point in handling the lack of UTF-8
-				throw new RuntimeException(e);
-			}
+			ret = MapSerializer.encodeXml(linkedHashMap);
 		}
 		return ret;
 	}
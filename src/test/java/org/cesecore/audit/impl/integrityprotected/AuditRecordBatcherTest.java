@@ -0,0 +1,139 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.audit.impl.integrityprotected;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cesecore.audit.enums.EventStatus;
+import org.cesecore.audit.enums.EventType;
+import org.cesecore.audit.enums.EventTypes;
+import org.cesecore.audit.enums.ModuleType;
+import org.cesecore.audit.enums.ModuleTypes;
+import org.cesecore.audit.enums.ServiceType;
+import org.cesecore.audit.enums.ServiceTypes;
+import org.cesecore.audit.log.AuditRecordStorageException;
+import org.cesecore.time.TrustedTime;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class AuditRecordBatcherTest {
+
+    private static final int THREADS = 20;
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final RecordingLogger logger = new RecordingLogger(false);
+        final AuditRecordBatcher batcher = new AuditRecordBatcher(50, 100);
+        final List<Exception> failures = runConcurrently(batcher, logger);
+        assertTrue(failures.isEmpty());
+        // Every record is written exactly once
+        Collections.sort(logger.written);
+        for (int i = 0; i < THREADS; i++) {
+            assertEquals("id" + (i < 10 ? "0" : "") + i, logger.written.get(i));
+        }
+        assertEquals(THREADS, logger.written.size());
+        assertTrue("Expected fewer transactions than records, but got " + logger.batches.get(), logger.batches.get() < THREADS);
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        final RecordingLogger logger = new RecordingLogger(false);
+        final AuditRecordBatcher batcher = new AuditRecordBatcher(1000, 1);
+        final long start = System.currentTimeMillis();
+        batcher.log(logger, newEntry("id00"), new Properties());
+        // A full batch is written without waiting for the window to pass
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, logger.batches.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final RecordingLogger logger = new RecordingLogger(true);
+        final AuditRecordBatcher batcher = new AuditRecordBatcher(50, 100);
+        final List<Exception> failures = runConcurrently(batcher, logger);
+        // Nobody may think a record was written when it was not
+        assertEquals(THREADS, failures.size());
+        for (final Exception e : failures) {
+            assertTrue(e instanceof AuditRecordStorageException);
+        }
+    }
+
+    private List<Exception> runConcurrently(final AuditRecordBatcher batcher, final RecordingLogger logger) throws InterruptedException {
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final String customId = "id" + (i < 10 ? "0" : "") + i;
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        batcher.log(logger, newEntry(customId), new Properties());
+                    } catch (AuditRecordStorageException e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return failures;
+    }
+
+    private static AuditRecordBatcher.Entry newEntry(final String customId) {
+        return new AuditRecordBatcher.Entry(Long.valueOf(System.currentTimeMillis()), EventTypes.LOG_SIGN, EventStatus.SUCCESS, ModuleTypes.SECURITY_AUDIT,
+                ServiceTypes.CORE, "token", customId, null, null, null);
+    }
+
+    /** Records what would have been written to the database */
+    private static class RecordingLogger implements IntegrityProtectedLoggerSessionLocal {
+        private final boolean fail;
+        private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicInteger batches = new AtomicInteger();
+
+        private RecordingLogger(final boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void log(TrustedTime trustedTime, EventType eventType, EventStatus eventStatus, ModuleType module, ServiceType service,
+                String authToken, String customId, String searchDetail1, String searchDetail2, Map<String, Object> additionalDetails,
+                Properties properties) throws AuditRecordStorageException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void logBatch(final List<AuditRecordBatcher.Entry> entries, final Properties properties) throws AuditRecordStorageException {
+            batches.incrementAndGet();
+            if (fail) {
+                throw new AuditRecordStorageException("Database unavailable");
+            }
+            for (final AuditRecordBatcher.Entry entry : entries) {
+                written.add(entry.toAuditRecordData("node", Long.valueOf(0)).getCustomId());
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.audit.impl.integrityprotected;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+
+import org.cesecore.audit.audit.AuditLogReportElem;
+import org.cesecore.audit.audit.AuditLogValidationReport;
+import org.cesecore.audit.impl.integrityprotected.IntegrityProtectedAuditorSessionBean.SequenceRange;
+import org.cesecore.audit.log.SecurityEventsLoggerSessionLocal;
+import org.cesecore.authentication.tokens.AlwaysAllowLocalAuthenticationToken;
+import org.cesecore.authentication.tokens.AuthenticationToken;
+import org.cesecore.authentication.tokens.UsernamePrincipal;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of verifying the audit log in ranges of sequence numbers, with the database replaced by a list of rows. The row protection is
+ * not verified, since the rows are not loaded by JPA.
+ *
+ * @version $Id$
+ *
+ */
+public class IntegrityProtectedAuditorSessionBeanTest {
+
+    private final AuthenticationToken admin = new AlwaysAllowLocalAuthenticationToken(new UsernamePrincipal(
+            "IntegrityProtectedAuditorSessionBeanTest"));
+    private final List<AuditRecordData> rows = new ArrayList<AuditRecordData>();
+    /** The number of times each row has been read, by pk */
+    private final ConcurrentMap<String, AtomicInteger> reads = new ConcurrentHashMap<String, AtomicInteger>();
+    /** The largest number of rows an EntityManager has held since it was created or cleared */
+    private final AtomicInteger maxManaged = new AtomicInteger();
+    private IntegrityProtectedAuditorSessionBean auditorSession;
+
+    @Before
+    public void setUp() throws Exception {
+        auditorSession = new IntegrityProtectedAuditorSessionBean();
+        final SecurityEventsLoggerSessionLocal securityEventsLogger = EasyMock.createNiceMock(SecurityEventsLoggerSessionLocal.class);
+        EasyMock.replay(securityEventsLogger);
+        setField("entityManager", createEntityManager());
+        setField("entityManagerFactory", Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { EntityManagerFactory.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("createEntityManager".equals(method.getName())) {
+                            return createEntityManager();
+                        }
+                        return null;
+                    }
+                }));
+        setField("securityEventsLogger", securityEventsLogger);
+    }
+
+    @Test
+    public void testSequenceRanges() {
+        final List<SequenceRange> ranges = IntegrityProtectedAuditorSessionBean.getSequenceRanges("node1", 1, 100, 4);
+        assertEquals(4, ranges.size());
+        assertRange(ranges.get(0), -1, Long.valueOf(25));
+        assertRange(ranges.get(1), 25, Long.valueOf(50));
+        assertRange(ranges.get(2), 50, Long.valueOf(75));
+        assertRange(ranges.get(3), 75, null);
+        // Rows that do not divide evenly end up in the last, open range
+        final List<SequenceRange> uneven = IntegrityProtectedAuditorSessionBean.getSequenceRanges("node1", 11, 20, 3);
+        assertEquals(3, uneven.size());
+        assertRange(uneven.get(0), -1, Long.valueOf(13));
+        assertRange(uneven.get(1), 13, Long.valueOf(16));
+        assertRange(uneven.get(2), 16, null);
+    }
+
+    @Test
+    public void testSequenceRangesFewRows() {
+        // Fewer rows than parts, or no rows at all, give one range with everything
+        for (final List<SequenceRange> ranges : Arrays.asList(IntegrityProtectedAuditorSessionBean.getSequenceRanges("node1", 1, 3, 4),
+                IntegrityProtectedAuditorSessionBean.getSequenceRanges("node1", 0, -1, 4),
+                IntegrityProtectedAuditorSessionBean.getSequenceRanges("node1", 0, 99, 1))) {
+            assertEquals(1, ranges.size());
+            assertRange(ranges.get(0), -1, null);
+        }
+    }
+
+    @Test
+    public void testVerifyInParallel() throws Exception {
+        addRows("node1", 0, 99);
+        addRows("node2", 0, 9);
+        final AuditLogValidationReport report = verify(4, 7);
+        assertEquals(Collections.<AuditLogReportElem> emptyList(), report.warnings());
+        assertEquals(Collections.<AuditLogReportElem> emptyList(), report.errors());
+        assertEachRowReadOnce();
+    }
+
+    @Test
+    public void testVerifyMissingAtRangeBoundaries() throws Exception {
+        addRows("node1", 0, 23);
+        // 24 is the last of the first range and 50 the first after the second range
+        addRows("node1", 25, 49);
+        addRows("node1", 51, 99);
+        for (final int threads : new int[] { 1, 4 }) {
+            reads.clear();
+            final AuditLogValidationReport report = verify(threads, 7);
+            final Set<Long> missing = new LinkedHashSet<Long>();
+            for (final AuditLogReportElem elem : report.warnings()) {
+                missing.add(Long.valueOf(elem.getFirst().longValue() + 1));
+            }
+            assertEquals("Missing rows with " + threads + " threads", new LinkedHashSet<Long>(Arrays.asList(Long.valueOf(24), Long.valueOf(50))),
+                    missing);
+            assertEquals(2, report.warnings().size());
+            assertEachRowReadOnce();
+        }
+    }
+
+    @Test
+    public void testVerifyClearsEachBatch() throws Exception {
+        addRows("node1", 0, 99);
+        for (final int threads : new int[] { 1, 4 }) {
+            reads.clear();
+            maxManaged.set(0);
+            final AuditLogValidationReport report = verify(threads, 7);
+            assertEquals(Collections.<AuditLogReportElem> emptyList(), report.warnings());
+            assertEachRowReadOnce();
+            // Many batches were read, but no EntityManager held more than one batch at a time
+            assertEquals("Rows held with " + threads + " threads", 7, maxManaged.get());
+        }
+    }
+
+    private AuditLogValidationReport verify(final int threads, final int fetchSize) throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("validate.threads", String.valueOf(threads));
+        // Verification reads batches of the same size as export does
+        properties.setProperty("export.fetchsize", String.valueOf(fetchSize));
+        return auditorSession.verifyLogsIntegrity(admin, new Date(), properties);
+    }
+
+    private void assertRange(final SequenceRange range, final long after, final Long last) {
+        assertEquals("node1", range.nodeId);
+        assertEquals(after, range.after);
+        if (last == null) {
+            assertNull(range.last);
+        } else {
+            assertEquals(last, range.last);
+        }
+    }
+
+    private void assertEachRowReadOnce() {
+        for (final AuditRecordData row : rows) {
+            final AtomicInteger count = reads.get(row.getPk());
+            assertEquals("Reads of " + row.getNodeId() + " " + row.getSequenceNumber(), 1, count == null ? 0 : count.get());
+        }
+    }
+
+    private void addRows(final String nodeId, final long first, final long last) {
+        for (long i = first; i <= last; i++) {
+            final AuditRecordData row = new AuditRecordData();
+            row.setPk(nodeId + "-" + i);
+            row.setNodeId(nodeId);
+            row.setSequenceNumber(Long.valueOf(i));
+            row.setTimeStamp(Long.valueOf(0));
+            rows.add(row);
+        }
+    }
+
+    /**
+     * @return an EntityManager that answers the queries of the bean from {@link #rows}, and counts the rows it has returned since it was
+     *         cleared like a persistence context would hold them
+     */
+    private EntityManager createEntityManager() {
+        final AtomicInteger managed = new AtomicInteger();
+        return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { EntityManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("createQuery".equals(method.getName())) {
+                    return createQuery((String) args[0], managed);
+                } else if ("clear".equals(method.getName())) {
+                    managed.set(0);
+                }
+                return null;
+            }
+        });
+    }
+
+    private Query createQuery(final String query, final AtomicInteger managed) {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        final int[] maxResults = new int[] { Integer.MAX_VALUE };
+        return (Query) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Query.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("setParameter".equals(method.getName())) {
+                    parameters.put((String) args[0], args[1]);
+                    return proxy;
+                } else if ("setMaxResults".equals(method.getName())) {
+                    maxResults[0] = ((Integer) args[0]).intValue();
+                    return proxy;
+                } else if ("getResultList".equals(method.getName())) {
+                    final List<?> result = getResultList(query, parameters, maxResults[0]);
+                    if (query.startsWith("SELECT a FROM AuditRecordData a")) {
+                        final int held = managed.addAndGet(result.size());
+                        synchronized (maxManaged) {
+                            maxManaged.set(Math.max(maxManaged.get(), held));
+                        }
+                    }
+                    return result;
+                }
+                return proxy;
+            }
+        });
+    }
+
+    private List<?> getResultList(final String query, final Map<String, Object> parameters, final int maxResults) {
+        if (query.startsWith("SELECT DISTINCT a.nodeId")) {
+            final Set<String> nodeIds = new LinkedHashSet<String>();
+            for (final AuditRecordData row : rows) {
+                nodeIds.add(row.getNodeId());
+            }
+            return new ArrayList<String>(nodeIds);
+        }
+        if (query.startsWith("SELECT MIN(a.sequenceNumber), MAX(a.sequenceNumber)")) {
+            Long min = null;
+            Long max = null;
+            for (final AuditRecordData row : rows) {
+                if (row.getNodeId().equals(parameters.get("nodeId"))) {
+                    final Long sequenceNumber = row.getSequenceNumber();
+                    min = min == null || sequenceNumber.longValue() < min.longValue() ? sequenceNumber : min;
+                    max = max == null || sequenceNumber.longValue() > max.longValue() ? sequenceNumber : max;
+                }
+            }
+            return Collections.singletonList(new Object[] { min, max });
+        }
+        // SELECT a FROM AuditRecordData a WHERE a.nodeId = :nodeId0 AND a.timeStamp <= :timeStamp0 AND a.sequenceNumber > :sequenceNumber0
+        // [AND a.sequenceNumber <= :sequenceNumber1] ORDER BY a.sequenceNumber ASC
+        assertTrue(query, query.contains("a.sequenceNumber > :sequenceNumber0"));
+        final long after = ((Long) parameters.get("sequenceNumber0")).longValue();
+        final Long last = query.contains("a.sequenceNumber <= :sequenceNumber1") ? (Long) parameters.get("sequenceNumber1") : null;
+        final List<AuditRecordData> result = new ArrayList<AuditRecordData>();
+        for (final AuditRecordData row : rows) {
+            final long sequenceNumber = row.getSequenceNumber().longValue();
+            if (row.getNodeId().equals(parameters.get("nodeId0")) && sequenceNumber > after && (last == null || sequenceNumber <= last.longValue())) {
+                result.add(row);
+            }
+        }
+        final List<AuditRecordData> page = result.subList(0, Math.min(maxResults, result.size()));
+        for (final AuditRecordData row : page) {
+            reads.putIfAbsent(row.getPk(), new AtomicInteger());
+            reads.get(row.getPk()).incrementAndGet();
+        }
+        return new ArrayList<AuditRecordData>(page);
+    }
+
+    private void setField(final String name, final Object value) throws Exception {
+        final Field field = IntegrityProtectedAuditorSessionBean.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(auditorSession, value);
+    }
+}
@@ -0,0 +1,92 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.audit.impl.integrityprotected;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class NodeSequenceHolderTest {
+
+    private static final String NODEID = "node1";
+
+    @Test
+    public void testUniqueAndWithoutGaps() throws Exception {
+        final EntityManager entityManager = mockEntityManager(41);
+        EasyMock.replay(entityManager);
+        final NodeSequenceHolder holder = new NodeSequenceHolder();
+        final List<Long> sequenceNumbers = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        sequenceNumbers.add(Long.valueOf(holder.getNext(entityManager, NODEID)));
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        Collections.sort(sequenceNumbers);
+        assertEquals(8000, sequenceNumbers.size());
+        for (int i = 0; i < sequenceNumbers.size(); i++) {
+            assertEquals(42 + i, sequenceNumbers.get(i).longValue());
+        }
+        // The database is only read once
+        EasyMock.verify(entityManager);
+    }
+
+    @Test
+    public void testReset() {
+        final EntityManager entityManager = mockEntityManager(10);
+        EasyMock.replay(entityManager);
+        final NodeSequenceHolder holder = new NodeSequenceHolder();
+        assertEquals(11, holder.getNext(entityManager, NODEID));
+        assertEquals(12, holder.getNext(entityManager, NODEID));
+        EasyMock.verify(entityManager);
+        // After a reset the last sequence number is read again
+        final EntityManager emptyDatabase = mockEntityManager(-1);
+        EasyMock.replay(emptyDatabase);
+        holder.reset();
+        assertEquals(0, holder.getNext(emptyDatabase, NODEID));
+        assertEquals(1, holder.getNext(emptyDatabase, NODEID));
+        EasyMock.verify(emptyDatabase);
+    }
+
+    /** @return an EntityManager where the highest sequence number in the database is max, with replay not called yet */
+    private static EntityManager mockEntityManager(final long max) {
+        final Query query = EasyMock.createNiceMock(Query.class);
+        EasyMock.expect(query.getResultList()).andReturn(max == -1 ? new ArrayList<Long>() : Collections.singletonList(Long.valueOf(max)));
+        EasyMock.replay(query);
+        final EntityManager entityManager = EasyMock.createMock(EntityManager.class);
+        EasyMock.expect(entityManager.createQuery(EasyMock.<String> anyObject())).andReturn(query).once();
+        return entityManager;
+    }
+}
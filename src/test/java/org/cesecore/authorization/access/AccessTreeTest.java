@@ -15,10 +15,18 @@ package org.cesecore.authorization.access;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import junit.framework.Assert;
 
 import org.cesecore.authentication.tokens.AuthenticationToken;
+import org.cesecore.authorization.rules.AccessRuleData;
+import org.cesecore.authorization.user.AccessMatchType;
+import org.cesecore.authorization.user.AccessUserAspect;
+import org.cesecore.authorization.user.AccessUserAspectData;
+import org.cesecore.authorization.user.X500PrincipalAccessMatchValue;
 import org.cesecore.roles.RoleData;
 import org.easymock.EasyMock;
 import org.junit.Test;
@@ -80,4 +88,83 @@ public class AccessTreeTest {
         EasyMock.verify(rootNode);
     }
 
+    /**
+     * Tests that decisions are cached for tokens that allow it, and that the cache is thrown away when the tree is rebuilt.
+     */
+    @Test
+    public void testDecisionCache() {
+        AccessRuleData acceptRule = EasyMock.createMock(AccessRuleData.class);
+        EasyMock.expect(acceptRule.getAccessRuleName()).andReturn("/").anyTimes();
+        EasyMock.expect(acceptRule.getTreeState()).andReturn(AccessTreeState.STATE_ACCEPT_RECURSIVE).anyTimes();
+        AccessUserAspectData accessUser = EasyMock.createMock(AccessUserAspectData.class);
+        EasyMock.expect(accessUser.getMatchWithByValue()).andReturn(X500PrincipalAccessMatchValue.WITH_COUNTRY).anyTimes();
+        EasyMock.expect(accessUser.getMatchTypeAsType()).andReturn(AccessMatchType.TYPE_EQUALCASE).anyTimes();
+        EasyMock.expect(accessUser.getMatchValue()).andReturn("SE").anyTimes();
+        EasyMock.expect(accessUser.getPriority()).andReturn(X500PrincipalAccessMatchValue.WITH_COUNTRY).anyTimes();
+        EasyMock.expect(accessUser.getCaId()).andReturn(Integer.valueOf(1)).anyTimes();
+        Map<Integer, AccessRuleData> accessRules = new HashMap<Integer, AccessRuleData>();
+        accessRules.put(Integer.valueOf(0), acceptRule);
+        Map<Integer, AccessUserAspectData> accessUsers = new HashMap<Integer, AccessUserAspectData>();
+        accessUsers.put(Integer.valueOf(0), accessUser);
+        RoleData role = EasyMock.createMock(RoleData.class);
+        EasyMock.expect(role.getAccessRules()).andReturn(accessRules).anyTimes();
+        EasyMock.expect(role.getAccessUsers()).andReturn(accessUsers).anyTimes();
+        EasyMock.replay(acceptRule, accessUser, role);
+
+        AccessTree accessTree = new AccessTree(100);
+        accessTree.buildTree(Collections.singletonList(role));
+        CountingToken cacheable = new CountingToken(true);
+        Assert.assertTrue(accessTree.isAuthorized(cacheable, "/ca/1"));
+        Assert.assertTrue(accessTree.isAuthorized(cacheable, "/ca/1"));
+        Assert.assertEquals("Decision was not cached", 1, cacheable.matchCount);
+        // An equal token gets the cached decision
+        CountingToken equalToken = new CountingToken(true);
+        Assert.assertTrue(accessTree.isAuthorized(equalToken, "ca/1"));
+        Assert.assertEquals(0, equalToken.matchCount);
+        Assert.assertTrue(accessTree.isAuthorized(cacheable, "/ca/2"));
+        Assert.assertEquals(2, cacheable.matchCount);
+        // Rebuilding throws the cached decisions away
+        accessTree.buildTree(Collections.singletonList(role));
+        Assert.assertTrue(accessTree.isAuthorized(cacheable, "/ca/1"));
+        Assert.assertEquals(3, cacheable.matchCount);
+
+        CountingToken notCacheable = new CountingToken(false);
+        Assert.assertTrue(accessTree.isAuthorized(notCacheable, "/ca/1"));
+        Assert.assertTrue(accessTree.isAuthorized(notCacheable, "/ca/1"));
+        Assert.assertEquals(2, notCacheable.matchCount);
+    }
+
+    /** Token that matches everything and counts how many times it has been asked */
+    private static class CountingToken extends AuthenticationToken {
+        private static final long serialVersionUID = 1L;
+        private final boolean cacheable;
+        private int matchCount = 0;
+
+        private CountingToken(boolean cacheable) {
+            super(null, null);
+            this.cacheable = cacheable;
+        }
+
+        @Override
+        public boolean matches(AccessUserAspect accessUser) {
+            matchCount++;
+            return true;
+        }
+
+        @Override
+        public boolean isDecisionCacheable() {
+            return cacheable;
+        }
+
+        @Override
+        public boolean equals(Object authenticationToken) {
+            return authenticationToken instanceof CountingToken;
+        }
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+    }
+
 }
@@ -0,0 +1,117 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.authorization.access;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.cesecore.authentication.tokens.X509CertificateAuthenticationToken;
+import org.cesecore.authorization.user.AccessMatchType;
+import org.cesecore.authorization.user.AccessUserAspectData;
+import org.cesecore.authorization.user.X500PrincipalAccessMatchValue;
+import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.keys.util.KeyTools;
+import org.cesecore.roles.RoleData;
+import org.cesecore.util.CertTools;
+import org.cesecore.util.CryptoProviderTools;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that looking up access user aspects in the index gives the same result as matching them one at a time.
+ *
+ * @version $Id$
+ */
+public class AccessUserAspectIndexTest {
+
+    private static X509CertificateAuthenticationToken authenticationToken;
+
+    @BeforeClass
+    public static void setUpToken() throws Exception {
+        CryptoProviderTools.installBCProvider();
+        KeyPair keys = KeyTools.genKeys("512", AlgorithmConstants.KEYALGORITHM_RSA);
+        X509Certificate certificate = CertTools.genSelfCert(
+                "C=Test,O=Test,CN=Test,DC=Test,L=Test,SN=Test,ST=Test,OU=Test,OU=Other,T=Test,UID=Test,E=Test,RFC822NAME=Test,UPN=Test", 365,
+                null, keys.getPrivate(), keys.getPublic(), AlgorithmConstants.SIGALG_SHA1_WITH_RSA, true);
+        Set<X509Certificate> credentials = new HashSet<X509Certificate>();
+        credentials.add(certificate);
+        Set<X500Principal> principals = new HashSet<X500Principal>();
+        principals.add(certificate.getSubjectX500Principal());
+        authenticationToken = new X509CertificateAuthenticationToken(principals, credentials);
+    }
+
+    @Test
+    public void testSameAsMatches() {
+        final X509Certificate certificate = authenticationToken.getCertificate();
+        final int caId = CertTools.getIssuerDN(certificate).hashCode();
+        final String serialNumber = certificate.getSerialNumber().toString(16);
+        final String[] values = { "Test", "TEST", "test", "Other", "Nope", CertTools.getSubjectDN(certificate),
+                CertTools.getSubjectDN(certificate).toUpperCase(), serialNumber, "0" + serialNumber.toUpperCase() };
+        final List<RoleData> roles = new ArrayList<RoleData>();
+        int roleNumber = 0;
+        for (final X500PrincipalAccessMatchValue matchWith : X500PrincipalAccessMatchValue.values()) {
+            for (final AccessMatchType matchType : AccessMatchType.values()) {
+                for (final String value : values) {
+                    if (matchWith == X500PrincipalAccessMatchValue.WITH_SERIALNUMBER && !value.matches("[0-9a-fA-F]+")) {
+                        continue; // Not a serial number, matches throws NumberFormatException
+                    }
+                    for (final int aspectCaId : new int[] { caId, caId + 1 }) {
+                        final String roleName = "role" + roleNumber++;
+                        final RoleData role = new RoleData(Integer.valueOf(roleNumber), roleName);
+                        role.getAccessUsers().put(Integer.valueOf(0), new AccessUserAspectData(roleName, aspectCaId, matchWith, matchType, value));
+                        roles.add(role);
+                    }
+                }
+            }
+        }
+        final Map<RoleData, X500PrincipalAccessMatchValue> matchingRoles = new AccessUserAspectIndex(roles).getMatchingRoles(authenticationToken);
+        int matches = 0;
+        for (final RoleData role : roles) {
+            final AccessUserAspectData aspect = role.getAccessUsers().get(Integer.valueOf(0));
+            final boolean expected = authenticationToken.matches(aspect);
+            assertEquals(aspect.getMatchWithByValue() + " " + aspect.getMatchTypeAsType() + " " + aspect.getMatchValue() + " " + aspect.getCaId(),
+                    expected, matchingRoles.containsKey(role));
+            if (expected) {
+                assertEquals(aspect.getPriority(), matchingRoles.get(role));
+                matches++;
+            }
+        }
+        assertTrue("Expected some aspects to match", matches > 0);
+    }
+
+    @Test
+    public void testHighestPriorityPerRole() {
+        final int caId = CertTools.getIssuerDN(authenticationToken.getCertificate()).hashCode();
+        final RoleData role = new RoleData(Integer.valueOf(1), "role");
+        role.getAccessUsers().put(Integer.valueOf(0),
+                new AccessUserAspectData("role", caId, X500PrincipalAccessMatchValue.WITH_COUNTRY, AccessMatchType.TYPE_EQUALCASE, "Test"));
+        role.getAccessUsers().put(Integer.valueOf(1),
+                new AccessUserAspectData("role", caId, X500PrincipalAccessMatchValue.WITH_COMMONNAME, AccessMatchType.TYPE_EQUALCASE, "Test"));
+        role.getAccessUsers().put(Integer.valueOf(2),
+                new AccessUserAspectData("role", caId, X500PrincipalAccessMatchValue.WITH_ORGANIZATION, AccessMatchType.TYPE_NOT_EQUALCASE, "Nope"));
+        final Map<RoleData, X500PrincipalAccessMatchValue> matchingRoles = new AccessUserAspectIndex(Collections.singletonList(role))
+                .getMatchingRoles(authenticationToken);
+        assertEquals(X500PrincipalAccessMatchValue.WITH_COMMONNAME, matchingRoles.get(role));
+    }
+}
@@ -12,12 +12,16 @@
  *************************************************************************/
 package org.cesecore.authorization.cache;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.cesecore.config.CesecoreConfiguration;
 import org.cesecore.roles.RoleData;
@@ -76,4 +80,65 @@ public class AccessTreeCacheTest {
         assertTrue(accessTreeCache.getAccessTree() != null && !accessTreeCache.needsUpdate());
     }
 
+    /**
+     * Test that the cache stays expired if it is expired while the tree is being rebuilt, since the roles may have been read before the change.
+     */
+    @Test
+    public void testExpireDuringUpdate() {
+        AccessTreeCache accessTreeCache = new AccessTreeCache();
+        Collection<RoleData> roles = new ArrayList<RoleData>();
+        accessTreeCache.updateAccessTree(roles, 0);
+        accessTreeCache.forceCacheExpire();
+        assertTrue(accessTreeCache.needsUpdate());
+        assertTrue(accessTreeCache.beginUpdate());
+        try {
+            accessTreeCache.forceCacheExpire();
+            accessTreeCache.updateAccessTree(roles, 0);
+        } finally {
+            accessTreeCache.endUpdate();
+        }
+        assertTrue(accessTreeCache.needsUpdate());
+        // A rebuild with nothing happening meanwhile brings the cache up to date
+        assertTrue(accessTreeCache.beginUpdate());
+        try {
+            accessTreeCache.updateAccessTree(roles, 1);
+        } finally {
+            accessTreeCache.endUpdate();
+        }
+        assertFalse(accessTreeCache.needsUpdate());
+        // The number was checked and has not changed
+        accessTreeCache.updateChecked(1);
+        assertFalse(accessTreeCache.needsUpdate());
+    }
+
+    /**
+     * Test that only one thread rebuilds the tree, and that the others keep using the current tree meanwhile.
+     */
+    @Test
+    public void testOneUpdateAtATime() throws InterruptedException {
+        final AccessTreeCache accessTreeCache = new AccessTreeCache();
+        final Collection<RoleData> roles = new ArrayList<RoleData>();
+        accessTreeCache.updateAccessTree(roles, 0);
+        accessTreeCache.forceCacheExpire();
+        final Object oldTree = accessTreeCache.getAccessTree();
+        assertTrue(accessTreeCache.beginUpdate());
+        try {
+            final AtomicBoolean otherThreadMayUpdate = new AtomicBoolean(true);
+            final Thread other = new Thread() {
+                @Override
+                public void run() {
+                    otherThreadMayUpdate.set(accessTreeCache.beginUpdate());
+                }
+            };
+            other.start();
+            other.join();
+            assertFalse("Another thread was allowed to rebuild the tree at the same time", otherThreadMayUpdate.get());
+            assertSame(oldTree, accessTreeCache.getAccessTree());
+            accessTreeCache.updateAccessTree(roles, 1);
+        } finally {
+            accessTreeCache.endUpdate();
+        }
+        assertNotSame(oldTree, accessTreeCache.getAccessTree());
+    }
+
 }
@@ -31,6 +31,7 @@ import java.security.cert.X509CRL;
 import java.security.cert.X509CRLEntry;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -70,11 +71,14 @@ import org.cesecore.certificates.ca.catoken.CAToken;
 import org.cesecore.certificates.ca.catoken.CATokenConstants;
 import org.cesecore.certificates.ca.catoken.CATokenInfo;
 import org.cesecore.certificates.ca.extendedservices.ExtendedCAServiceInfo;
+import org.cesecore.certificates.certificate.CertificateConstants;
 import org.cesecore.certificates.certificate.request.PKCS10RequestMessage;
 import org.cesecore.certificates.certificateprofile.CertificatePolicy;
 import org.cesecore.certificates.certificateprofile.CertificateProfile;
 import org.cesecore.certificates.certificateprofile.CertificateProfileConstants;
+import org.cesecore.certificates.crl.CRLInfo;
 import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.crl.UnsignedCrl;
 import org.cesecore.certificates.endentity.EndEntityConstants;
 import org.cesecore.certificates.endentity.EndEntityInformation;
 import org.cesecore.certificates.util.AlgorithmConstants;
@@ -356,6 +360,48 @@ public class X509CATest {
         assertNull("CRL has freshest crl extension", xcrl.getExtensionValue(X509Extensions.FreshestCRL.getId()));
     }
 
+    /**
+     * Tests that a CRL encoded with its entries streamed has the same contents as one generated the normal way, for both full and delta CRLs.
+     */
+	@Test
+    public void testEncodeCRL() throws Exception {
+        X509CA ca = createTestCA(CADN);
+        X509CAInfo cainfo = (X509CAInfo) ca.getCAInfo();
+        cainfo.setUseCrlDistributionPointOnCrl(true);
+        cainfo.setDefaultCRLDistPoint("http://www.ejbca.org/foo/bar.crl");
+        cainfo.setCADefinedFreshestCRL("http://www.ejbca.org/foo/delta.crl");
+        ca.updateCA(cainfo);
+
+        Collection<RevokedCertInfo> revcerts = new ArrayList<RevokedCertInfo>();
+        revcerts.add(new RevokedCertInfo("fp1", BigInteger.valueOf(1), new Date(), RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE, new Date()));
+        revcerts.add(new RevokedCertInfo("fp2", BigInteger.valueOf(2), new Date(), RevokedCertInfo.REVOCATION_REASON_UNSPECIFIED, new Date()));
+        for (int i = 0; i < 2; i++) {
+            final boolean delta = i == 1;
+            final X509CRL expected = (X509CRL) (delta ? ca.generateDeltaCRL(revcerts, 3, 2) : ca.generateCRL(revcerts, 2));
+            final UnsignedCrl unsigned = delta ? ca.encodeDeltaCRL(revcerts.iterator(), 3, 2) : ca.encodeCRL(revcerts.iterator(), 2);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            unsigned.sign(out);
+            final X509CRL crl = CertTools.getCRLfromByteArray(out.toByteArray());
+            crl.verify(ca.getCAToken().getPublicKey(CATokenConstants.CAKEYPURPOSE_CRLSIGN));
+            assertEquals(expected.getSigAlgName(), crl.getSigAlgName());
+            assertEquals(expected.getIssuerX500Principal(), crl.getIssuerX500Principal());
+            assertEquals(expected.getRevokedCertificates(), crl.getRevokedCertificates());
+            assertEquals(expected.getCriticalExtensionOIDs(), crl.getCriticalExtensionOIDs());
+            assertEquals(expected.getNonCriticalExtensionOIDs(), crl.getNonCriticalExtensionOIDs());
+            for (final String oid : expected.getNonCriticalExtensionOIDs()) {
+                assertTrue(oid, Arrays.equals(expected.getExtensionValue(oid), crl.getExtensionValue(oid)));
+            }
+            for (final String oid : expected.getCriticalExtensionOIDs()) {
+                assertTrue(oid, Arrays.equals(expected.getExtensionValue(oid), crl.getExtensionValue(oid)));
+            }
+            final CRLInfo crlInfo = unsigned.getCrlInfo();
+            assertEquals(CertTools.getIssuerDN(crl), CertTools.stringToBCDNString(crlInfo.getSubjectDN()));
+            assertEquals(delta ? 3 : 2, crlInfo.getLastCRLNumber());
+            assertEquals(crl.getThisUpdate(), crlInfo.getCreateDate());
+            assertEquals(crl.getNextUpdate(), crlInfo.getExpireDate());
+        }
+    }
+
 	@Test
 	public void testStoreAndLoad() throws Exception {
 		X509CA ca = createTestCA(CADN);
@@ -467,6 +513,62 @@ public class X509CATest {
 		ca.setCAToken(token);
 	}
 	
+	/**
+	 * Tests that certificates get the extensions of the current profile and CA settings, also when the extensions that are the same for
+	 * all certificates are encoded in advance.
+	 */
+	@Test
+	public void testExtensionsWhenProfileAndCAChange() throws Exception {
+		X509CA x509ca = createTestCA(CADN);
+		CertificateProfile cp = new CertificateProfile(CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER);
+		cp.setUseCRLDistributionPoint(true);
+		cp.setUseDefaultCRLDistributionPoint(true);
+		cp.addCertificatePolicy(new CertificatePolicy("1.1.1.2", null, null));
+		cp.setUseCertificatePolicies(true);
+		KeyPair keypair1 = KeyTools.genKeys("512", "RSA");
+		KeyPair keypair2 = KeyTools.genKeys("512", "RSA");
+		EndEntityInformation user1 = new EndEntityInformation("user1", "CN=User1", 666, "dNSName=user1.com", null, EndEntityConstants.USER_ENDUSER, 0, 0, EndEntityConstants.TOKEN_USERGEN, 0, null);
+		EndEntityInformation user2 = new EndEntityInformation("user2", "CN=User2", 666, "dNSName=user2.com", null, EndEntityConstants.USER_ENDUSER, 0, 0, EndEntityConstants.TOKEN_USERGEN, 0, null);
+		X509Certificate cert1 = (X509Certificate) x509ca.generateCertificate(user1, keypair1.getPublic(), -1, 10L, cp, "00000");
+		X509Certificate cert2 = (X509Certificate) x509ca.generateCertificate(user2, keypair2.getPublic(), -1, 10L, cp, "00000");
+		// Values that depend on the end entity are not shared between certificates
+		assertEquals("dNSName=user1.com", CertTools.getSubjectAlternativeName(cert1));
+		assertEquals("dNSName=user2.com", CertTools.getSubjectAlternativeName(cert2));
+		assertFalse(Arrays.equals(CertTools.getSubjectKeyId(cert1), CertTools.getSubjectKeyId(cert2)));
+		assertEquals(new String(Hex.encode(CertTools.getSubjectKeyId(x509ca.getCACertificate()))), new String(Hex.encode(CertTools.getAuthorityKeyId(cert2))));
+		assertEquals("1.1.1.2", CertTools.getCertificatePolicyId(cert2, 0));
+		// The CA has no default CRL distribution point
+		assertNull(CertTools.getCrlDistributionPoint(cert2));
+
+		// Change the CA
+		X509CAInfo cainfo = (X509CAInfo) x509ca.getCAInfo();
+		cainfo.setDefaultCRLDistPoint("http://www.ejbca.org/foo/bar.crl");
+		x509ca.updateCA(cainfo);
+		X509Certificate cert = (X509Certificate) x509ca.generateCertificate(user1, keypair1.getPublic(), -1, 10L, cp, "00000");
+		assertEquals("http://www.ejbca.org/foo/bar.crl", CertTools.getCrlDistributionPoint(cert).toString());
+
+		// Change the profile object that was used before
+		cp.addCertificatePolicy(new CertificatePolicy("1.1.1.3", null, null));
+		cp.setKeyUsage(CertificateConstants.DIGITALSIGNATURE, false);
+		cert = (X509Certificate) x509ca.generateCertificate(user1, keypair1.getPublic(), -1, 10L, cp, "00000");
+		assertNotNull(CertTools.getCertificatePolicyId(cert, 1));
+		assertFalse(cert.getKeyUsage()[0]);
+		assertEquals("dNSName=user1.com", CertTools.getSubjectAlternativeName(cert));
+
+		// A copy of the first profile gives the first extensions again
+		CertificateProfile cp2 = new CertificateProfile(CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER);
+		cp2.setUseCRLDistributionPoint(true);
+		cp2.setUseDefaultCRLDistributionPoint(true);
+		cp2.addCertificatePolicy(new CertificatePolicy("1.1.1.2", null, null));
+		cp2.setUseCertificatePolicies(true);
+		assertFalse(cp2.hasSameSettings(cp));
+		cert = (X509Certificate) x509ca.generateCertificate(user2, keypair2.getPublic(), -1, 10L, cp2, "00000");
+		assertNull(CertTools.getCertificatePolicyId(cert, 1));
+		assertTrue(cert.getKeyUsage()[0]);
+		assertTrue(cp2.hasSameSettings((CertificateProfile) cp2.clone()));
+		assertEquals(cp2.getSettingsHashCode(), ((CertificateProfile) cp2.clone()).getSettingsHashCode());
+	}
+
 	private static X509CA createTestCA(final String cadn) throws Exception {
 		return createTestCA(cadn, AlgorithmConstants.SIGALG_SHA256_WITH_RSA);
 	}
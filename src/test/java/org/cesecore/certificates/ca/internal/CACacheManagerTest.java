@@ -14,10 +14,14 @@ package org.cesecore.certificates.ca.internal;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 
 import org.cesecore.certificates.ca.CA;
+import org.cesecore.certificates.ca.CAConstants;
 import org.cesecore.certificates.ca.X509CA;
 import org.cesecore.certificates.ca.X509CAInfo;
 import org.cesecore.certificates.ca.extendedservices.ExtendedCAServiceInfo;
@@ -93,4 +97,41 @@ public class CACacheManagerTest {
 		assertEquals(12, ca.getCAId());
 		assertEquals("CA4", ca.getName());
 	}
+
+	@Test
+	public void testRefreshCA() {
+		final X509CAInfo cainfo = new X509CAInfo() {
+			private static final long serialVersionUID = 1L;
+			{
+				updatetime = new Date(1000);
+			}
+		};
+		cainfo.setExtendedCAServiceInfos(new ArrayList<ExtendedCAServiceInfo>());
+		final CA ca1 = new X509CA(cainfo);
+		ca1.setName("CA5");
+		CACacheManager.instance().addCA(15, ca1);
+
+		// Not updated in the database, only the columns are copied
+		CACacheManager.instance().refreshCA(15, 1000, CAConstants.CA_OFFLINE, 2000, "CA5", "CN=CA5");
+		CA ca = CACacheManager.instance().getCA(15);
+		assertSame(ca1, ca);
+		assertEquals(CAConstants.CA_OFFLINE, ca.getStatus());
+		assertEquals(2000, ca.getExpireTime().getTime());
+		assertEquals("CN=CA5", ca.getSubjectDN());
+		// Updated in the database
+		CACacheManager.instance().refreshCA(15, 1001, CAConstants.CA_OFFLINE, 2000, "CA5", "CN=CA5");
+		assertNull(CACacheManager.instance().getCA(15));
+		assertNull(CACacheManager.instance().getCA("CA5"));
+
+		// Renamed in the database
+		CACacheManager.instance().addCA(15, ca1);
+		CACacheManager.instance().refreshCA(15, 1000, CAConstants.CA_OFFLINE, 2000, "CA6", "CN=CA5");
+		assertNull(CACacheManager.instance().getCA(15));
+
+		// Removed from the database
+		CACacheManager.instance().addCA(15, ca1);
+		CACacheManager.instance().retainCAs(Arrays.asList(Integer.valueOf(16)));
+		assertNull(CACacheManager.instance().getCA(15));
+		assertNull(CACacheManager.instance().getCA("CA5"));
+	}
 }
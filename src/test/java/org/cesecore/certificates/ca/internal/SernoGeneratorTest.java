@@ -12,10 +12,20 @@
  *************************************************************************/ 
 package org.cesecore.certificates.ca.internal;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -96,4 +106,59 @@ public class SernoGeneratorTest {
 //        log.info("Number of duplicates: "+duplicates);
     }
 
+    /** Threads taking serial numbers from the pool and from the generators at the same time must never get the same serial number */
+    @Test
+    public void test03GenerateSernosConcurrently() throws Exception {
+        final SernoGenerator gen = new SernoGeneratorRandom("SHA1PRNG", 8, 1000);
+        final Set<BigInteger> sernos = Collections.newSetFromMap(new ConcurrentHashMap<BigInteger, Boolean>());
+        final BigInteger lowest = new BigInteger("0080000000000000", 16);
+        final BigInteger highest = new BigInteger("7FFFFFFFFFFFFFFF", 16);
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 16; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int duplicates = 0;
+                        for (int i = 0; i < 10000; i++) {
+                            final BigInteger bi = gen.getSerno();
+                            assertTrue("Serial number out of range: " + bi.toString(16), bi.compareTo(lowest) >= 0 && bi.compareTo(highest) <= 0);
+                            if (!sernos.add(bi)) {
+                                duplicates++;
+                            }
+                        }
+                        return Integer.valueOf(duplicates);
+                    }
+                }));
+            }
+            for (final Future<Integer> future : futures) {
+                assertEquals("Duplicate serno produced.", 0, future.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(160000, sernos.size());
+    }
+
+    /** Changing the size of the serial numbers must take effect at once, also for serial numbers generated in advance */
+    @Test
+    public void test04ChangeSernoOctetSize() throws Exception {
+        final SernoGenerator gen = new SernoGeneratorRandom("SHA1PRNG", 8, 100);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(gen.getSerno().bitLength() > 32);
+        }
+        gen.setSernoOctetSize(4);
+        assertEquals(4, gen.getNoSernoBytes());
+        for (int i = 0; i < 1000; i++) {
+            final BigInteger bi = gen.getSerno();
+            assertTrue("Serial number out of range: " + bi.toString(16), bi.bitLength() > 23 && bi.bitLength() <= 31);
+        }
+        gen.setSernoOctetSize(8);
+        for (int i = 0; i < 1000; i++) {
+            final BigInteger bi = gen.getSerno();
+            assertTrue("Serial number out of range: " + bi.toString(16), bi.bitLength() > 55 && bi.bitLength() <= 63);
+        }
+    }
+
 }
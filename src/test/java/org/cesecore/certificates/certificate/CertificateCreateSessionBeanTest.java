@@ -0,0 +1,389 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.certificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.ejb.CreateException;
+
+import org.cesecore.CesecoreException;
+import org.cesecore.ErrorCode;
+import org.cesecore.audit.log.SecurityEventsLoggerSessionLocal;
+import org.cesecore.authentication.tokens.AlwaysAllowLocalAuthenticationToken;
+import org.cesecore.authentication.tokens.AuthenticationToken;
+import org.cesecore.authentication.tokens.UsernamePrincipal;
+import org.cesecore.authorization.control.AccessControlSessionLocal;
+import org.cesecore.certificates.ca.CAConstants;
+import org.cesecore.certificates.ca.CAInfo;
+import org.cesecore.certificates.ca.CaSessionLocal;
+import org.cesecore.certificates.ca.X509CA;
+import org.cesecore.certificates.ca.X509CAInfo;
+import org.cesecore.certificates.ca.catoken.CAToken;
+import org.cesecore.certificates.ca.catoken.CATokenConstants;
+import org.cesecore.certificates.ca.extendedservices.ExtendedCAServiceInfo;
+import org.cesecore.certificates.certificate.request.CertificateResponseMessage;
+import org.cesecore.certificates.certificate.request.SimpleRequestMessage;
+import org.cesecore.certificates.certificate.request.X509ResponseMessage;
+import org.cesecore.certificates.certificateprofile.CertificateProfile;
+import org.cesecore.certificates.certificateprofile.CertificateProfileConstants;
+import org.cesecore.certificates.certificateprofile.CertificateProfileSessionLocal;
+import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.endentity.EndEntityConstants;
+import org.cesecore.certificates.endentity.EndEntityInformation;
+import org.cesecore.certificates.endentity.ExtendedInformation;
+import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.config.ConfigurationHolder;
+import org.cesecore.keys.token.CryptoToken;
+import org.cesecore.keys.token.CryptoTokenFactory;
+import org.cesecore.keys.token.SoftCryptoToken;
+import org.cesecore.keys.util.KeyTools;
+import org.cesecore.util.CertTools;
+import org.cesecore.util.CryptoProviderTools;
+import org.cesecore.util.StringTools;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of the bulk issuance in CertificateCreateSessionBean, with the other session beans mocked.
+ *
+ * @version $Id$
+ *
+ */
+public class CertificateCreateSessionBeanTest {
+
+    private static final String CADN = "CN=TEST";
+
+    private final AuthenticationToken admin = new AlwaysAllowLocalAuthenticationToken(new UsernamePrincipal("CertificateCreateSessionBeanTest"));
+    private X509CA ca;
+    private CertificateCreateSessionBean certificateCreateSessionBean;
+    private CaSessionLocal caSession;
+    private CertificateStoreSessionLocal certificateStoreSession;
+    private CertificateCreateSessionLocal certificateCreateSession;
+
+    public CertificateCreateSessionBeanTest() {
+        CryptoProviderTools.installBCProvider();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ca = createTestCA(CADN);
+        certificateCreateSessionBean = new CertificateCreateSessionBean();
+        caSession = EasyMock.createMock(CaSessionLocal.class);
+        EasyMock.expect(caSession.getCA(admin, ca.getCAId())).andReturn(ca).anyTimes();
+        EasyMock.replay(caSession);
+        final AccessControlSessionLocal accessSession = EasyMock.createMock(AccessControlSessionLocal.class);
+        EasyMock.expect(accessSession.isAuthorized(EasyMock.eq(admin), EasyMock.anyObject(String.class))).andReturn(true).anyTimes();
+        EasyMock.replay(accessSession);
+        final CertificateProfile certProfile = new CertificateProfile(CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER);
+        certProfile.setAvailableCAs(Collections.singletonList(Integer.valueOf(CertificateProfile.ANYCA)));
+        final CertificateProfileSessionLocal certificateProfileSession = EasyMock.createMock(CertificateProfileSessionLocal.class);
+        EasyMock.expect(certificateProfileSession.getCertificateProfile(CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER)).andReturn(certProfile)
+                .anyTimes();
+        EasyMock.replay(certificateProfileSession);
+        final SecurityEventsLoggerSessionLocal logSession = EasyMock.createNiceMock(SecurityEventsLoggerSessionLocal.class);
+        EasyMock.replay(logSession);
+        certificateStoreSession = EasyMock.createMock(CertificateStoreSessionLocal.class);
+        certificateCreateSession = EasyMock.createMock(CertificateCreateSessionLocal.class);
+        setField("caSession", caSession);
+        setField("accessSession", accessSession);
+        setField("certificateProfileSession", certificateProfileSession);
+        setField("logSession", logSession);
+        setField("certificateStoreSession", certificateStoreSession);
+        setField("certificateCreateSession", certificateCreateSession);
+    }
+
+    @After
+    public void tearDown() {
+        ConfigurationHolder.restoreConfiguration();
+    }
+
+    @Test
+    public void testCreateCertificatesResults() throws Exception {
+        final List<CertificateCreateRequest> requests = new ArrayList<CertificateCreateRequest>();
+        requests.add(createRequest("user1", "CN=user1", null));
+        final CertificateCreateRequest invalid = createRequest("user2", "CN=user2", null);
+        invalid.getUserData().setType(EndEntityConstants.USER_INVALID);
+        requests.add(invalid);
+        requests.add(createRequest("user3", "CN=user3", null));
+        expectNoExistingCertificates();
+        final Capture<Map<Certificate, String>> stored = new Capture<Map<Certificate, String>>();
+        certificateStoreSession.storeCertificatesNoAuth(EasyMock.eq(admin), EasyMock.capture(stored), EasyMock.anyObject(String.class),
+                EasyMock.eq(CertificateConstants.CERT_ACTIVE), EasyMock.anyInt(), EasyMock.eq(CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER),
+                (String) EasyMock.isNull(), EasyMock.anyLong());
+        EasyMock.replay(certificateStoreSession, certificateCreateSession);
+
+        final List<CertificateCreateResult> results = certificateCreateSessionBean.createCertificates(admin, requests, X509ResponseMessage.class);
+        assertEquals(3, results.size());
+        assertIssued(results.get(0), "user1", "CN=user1");
+        assertEquals("user2", results.get(1).getUsername());
+        assertFalse(results.get(1).isSuccess());
+        assertEquals(CertificateCreateException.class, results.get(1).getException().getClass());
+        assertIssued(results.get(2), "user3", "CN=user3");
+        // Both issued certificates were stored in one batch
+        assertEquals(2, stored.getValue().size());
+        assertEquals("user1", stored.getValue().get(results.get(0).getResponse().getCertificate()));
+        assertEquals("user3", stored.getValue().get(results.get(2).getResponse().getCertificate()));
+        EasyMock.verify(certificateStoreSession, certificateCreateSession);
+    }
+
+    @Test
+    public void testCreateCertificatesInParallel() throws Exception {
+        ConfigurationHolder.updateConfiguration("certificate.bulk.threadspertoken", "4");
+        final List<CertificateCreateRequest> requests = new ArrayList<CertificateCreateRequest>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(createRequest("user" + i, "CN=user" + i, null));
+        }
+        expectNoExistingCertificates();
+        certificateStoreSession.storeCertificatesNoAuth(EasyMock.eq(admin), EasyMock.<Map<Certificate, String>> anyObject(),
+                EasyMock.anyObject(String.class), EasyMock.anyInt(), EasyMock.anyInt(), EasyMock.anyInt(), (String) EasyMock.isNull(),
+                EasyMock.anyLong());
+        EasyMock.replay(certificateStoreSession, certificateCreateSession);
+
+        final List<CertificateCreateResult> results = certificateCreateSessionBean.createCertificates(admin, requests, X509ResponseMessage.class);
+        assertEquals(10, results.size());
+        for (int i = 0; i < 10; i++) {
+            assertIssued(results.get(i), "user" + i, "CN=user" + i);
+        }
+        EasyMock.verify(certificateStoreSession, certificateCreateSession);
+    }
+
+    @Test
+    public void testUniqueness() throws Exception {
+        final KeyPair sharedKeys = KeyTools.genKeys("512", AlgorithmConstants.KEYALGORITHM_RSA);
+        final List<CertificateCreateRequest> requests = new ArrayList<CertificateCreateRequest>();
+        requests.add(createRequest("user1", "CN=user1", sharedKeys));
+        // The same key as an earlier request for another user
+        requests.add(createRequest("user2", "CN=user2", sharedKeys));
+        // The same subject DN as an existing certificate of another user
+        requests.add(createRequest("user3", "CN=existing", null));
+        // The same subject DN as an earlier request for another user
+        requests.add(createRequest("user4", "CN=user1", null));
+        // The same subject DN as a request that failed, which does not count
+        requests.add(createRequest("user5", "CN=user2", null));
+        // The same subject DN and key as an earlier request for the same user
+        requests.add(createRequest("user1", "CN=user1", sharedKeys));
+        final Map<String, Set<String>> existing = new HashMap<String, Set<String>>();
+        existing.put("CN=existing", Collections.singleton("other"));
+        EasyMock.expect(certificateStoreSession.findUsernamesByIssuerDNAndSubjectDNs(EasyMock.eq(CADN), EasyMock.<Collection<String>> anyObject()))
+                .andReturn(existing);
+        EasyMock.expect(
+                certificateStoreSession.findUsernamesByIssuerDNAndSubjectKeyIds(EasyMock.eq(CADN), EasyMock.<Collection<byte[]>> anyObject()))
+                .andReturn(new HashMap<String, Set<String>>());
+        final Capture<Map<Certificate, String>> stored = new Capture<Map<Certificate, String>>();
+        certificateStoreSession.storeCertificatesNoAuth(EasyMock.eq(admin), EasyMock.capture(stored), EasyMock.anyObject(String.class),
+                EasyMock.anyInt(), EasyMock.anyInt(), EasyMock.anyInt(), (String) EasyMock.isNull(), EasyMock.anyLong());
+        EasyMock.replay(certificateStoreSession, certificateCreateSession);
+
+        final List<CertificateCreateResult> results = certificateCreateSessionBean.createCertificates(admin, requests, X509ResponseMessage.class);
+        assertEquals(6, results.size());
+        assertIssued(results.get(0), "user1", "CN=user1");
+        assertFailed(results.get(1), "user2", ErrorCode.CERTIFICATE_FOR_THIS_KEY_ALLREADY_EXISTS_FOR_ANOTHER_USER);
+        assertFailed(results.get(2), "user3", ErrorCode.CERTIFICATE_WITH_THIS_SUBJECTDN_ALLREADY_EXISTS_FOR_ANOTHER_USER);
+        assertFailed(results.get(3), "user4", ErrorCode.CERTIFICATE_WITH_THIS_SUBJECTDN_ALLREADY_EXISTS_FOR_ANOTHER_USER);
+        assertIssued(results.get(4), "user5", "CN=user2");
+        assertIssued(results.get(5), "user1", "CN=user1");
+        assertEquals(3, stored.getValue().size());
+        EasyMock.verify(certificateStoreSession, certificateCreateSession);
+    }
+
+    @Test
+    public void testStoreOneByOneWhenBatchFails() throws Exception {
+        final List<CertificateCreateRequest> requests = new ArrayList<CertificateCreateRequest>();
+        requests.add(createRequest("user1", "CN=user1", null));
+        requests.add(createRequest("user2", "CN=user2", null));
+        expectNoExistingCertificates();
+        certificateStoreSession.storeCertificatesNoAuth(EasyMock.eq(admin), EasyMock.<Map<Certificate, String>> anyObject(),
+                EasyMock.anyObject(String.class), EasyMock.anyInt(), EasyMock.anyInt(), EasyMock.anyInt(), (String) EasyMock.isNull(),
+                EasyMock.anyLong());
+        EasyMock.expectLastCall().andThrow(new CreateException());
+        final Capture<Certificate> user1Stored = new Capture<Certificate>(CaptureType.ALL);
+        EasyMock.expect(
+                certificateStoreSession.storeCertificateNoAuth(EasyMock.eq(admin), EasyMock.capture(user1Stored), EasyMock.eq("user1"),
+                        EasyMock.anyObject(String.class), EasyMock.eq(CertificateConstants.CERT_ACTIVE), EasyMock.anyInt(),
+                        EasyMock.eq(CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER), (String) EasyMock.isNull(), EasyMock.anyLong())).andReturn(
+                true);
+        // The serial number of the second certificate is already used, so it is issued again with a new one
+        final Capture<Certificate> user2Stored = new Capture<Certificate>(CaptureType.ALL);
+        EasyMock.expect(
+                certificateStoreSession.storeCertificateNoAuth(EasyMock.eq(admin), EasyMock.capture(user2Stored), EasyMock.eq("user2"),
+                        EasyMock.anyObject(String.class), EasyMock.eq(CertificateConstants.CERT_ACTIVE), EasyMock.anyInt(),
+                        EasyMock.eq(CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER), (String) EasyMock.isNull(), EasyMock.anyLong())).andThrow(
+                new CreateException()).andReturn(true);
+        EasyMock.replay(certificateStoreSession, certificateCreateSession);
+
+        final List<CertificateCreateResult> results = certificateCreateSessionBean.createCertificates(admin, requests, X509ResponseMessage.class);
+        assertEquals(2, results.size());
+        assertIssued(results.get(0), "user1", "CN=user1");
+        assertIssued(results.get(1), "user2", "CN=user2");
+        assertEquals(1, user1Stored.getValues().size());
+        assertEquals(user1Stored.getValue(), results.get(0).getResponse().getCertificate());
+        assertEquals(2, user2Stored.getValues().size());
+        final BigInteger firstSerno = CertTools.getSerialNumber(user2Stored.getValues().get(0));
+        final BigInteger secondSerno = CertTools.getSerialNumber(user2Stored.getValues().get(1));
+        assertFalse("The certificate should have been issued again with a new serial number", firstSerno.equals(secondSerno));
+        assertEquals(user2Stored.getValues().get(1), results.get(1).getResponse().getCertificate());
+        EasyMock.verify(certificateStoreSession, certificateCreateSession);
+    }
+
+    @Test
+    public void testCustomSerialNumber() throws Exception {
+        final List<CertificateCreateRequest> requests = new ArrayList<CertificateCreateRequest>();
+        final CertificateCreateRequest custom = createRequest("user1", "CN=user1", null);
+        final ExtendedInformation ei = new ExtendedInformation();
+        ei.setCertificateSerialNumber(BigInteger.valueOf(4711));
+        custom.getUserData().setExtendedinformation(ei);
+        requests.add(custom);
+        final CertificateCreateRequest failing = createRequest("user2", "CN=user2", null);
+        final ExtendedInformation ei2 = new ExtendedInformation();
+        ei2.setCertificateSerialNumber(BigInteger.valueOf(4711));
+        failing.getUserData().setExtendedinformation(ei2);
+        requests.add(failing);
+        // Requests with custom serial numbers are issued one by one, by createCertificate
+        final CertificateResponseMessage response = new X509ResponseMessage();
+        EasyMock.expect(
+                certificateCreateSession.createCertificate(admin, custom.getUserData(), custom.getRequestMessage(), X509ResponseMessage.class))
+                .andReturn(response);
+        final CesecoreException e = new CustomCertSerialNumberException("serial number exists");
+        EasyMock.expect(
+                certificateCreateSession.createCertificate(admin, failing.getUserData(), failing.getRequestMessage(), X509ResponseMessage.class))
+                .andThrow(e);
+        EasyMock.replay(certificateStoreSession, certificateCreateSession);
+
+        final List<CertificateCreateResult> results = certificateCreateSessionBean.createCertificates(admin, requests, X509ResponseMessage.class);
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertSame(response, results.get(0).getResponse());
+        assertFalse(results.get(1).isSuccess());
+        assertSame(e, results.get(1).getException());
+        EasyMock.verify(certificateStoreSession, certificateCreateSession);
+    }
+
+    @Test
+    public void testRevokeOnIssuance() throws Exception {
+        final List<CertificateCreateRequest> requests = new ArrayList<CertificateCreateRequest>();
+        final CertificateCreateRequest revoked = createRequest("user1", "CN=user1", null);
+        final ExtendedInformation ei = new ExtendedInformation();
+        ei.setIssuanceRevocationReason(RevokedCertInfo.REVOCATION_REASON_CERTIFICATEHOLD);
+        revoked.getUserData().setExtendedinformation(ei);
+        requests.add(revoked);
+        requests.add(createRequest("user2", "CN=user2", null));
+        expectNoExistingCertificates();
+        certificateStoreSession.storeCertificatesNoAuth(EasyMock.eq(admin), EasyMock.<Map<Certificate, String>> anyObject(),
+                EasyMock.anyObject(String.class), EasyMock.anyInt(), EasyMock.anyInt(), EasyMock.anyInt(), (String) EasyMock.isNull(),
+                EasyMock.anyLong());
+        final Capture<Certificate> revokedCert = new Capture<Certificate>();
+        EasyMock.expect(
+                certificateStoreSession.setRevokeStatusNoAuth(EasyMock.eq(admin), EasyMock.capture(revokedCert), EasyMock.anyObject(Date.class),
+                        EasyMock.eq(RevokedCertInfo.REVOCATION_REASON_CERTIFICATEHOLD), EasyMock.eq("CN=user1"))).andReturn(true);
+        EasyMock.replay(certificateStoreSession, certificateCreateSession);
+
+        final List<CertificateCreateResult> results = certificateCreateSessionBean.createCertificates(admin, requests, X509ResponseMessage.class);
+        assertIssued(results.get(0), "user1", "CN=user1");
+        assertIssued(results.get(1), "user2", "CN=user2");
+        assertEquals(revokedCert.getValue(), results.get(0).getResponse().getCertificate());
+        EasyMock.verify(certificateStoreSession, certificateCreateSession);
+    }
+
+    private void expectNoExistingCertificates() {
+        EasyMock.expect(certificateStoreSession.findUsernamesByIssuerDNAndSubjectDNs(EasyMock.eq(CADN), EasyMock.<Collection<String>> anyObject()))
+                .andReturn(new HashMap<String, Set<String>>());
+        EasyMock.expect(
+                certificateStoreSession.findUsernamesByIssuerDNAndSubjectKeyIds(EasyMock.eq(CADN), EasyMock.<Collection<byte[]>> anyObject()))
+                .andReturn(new HashMap<String, Set<String>>());
+    }
+
+    private static void assertIssued(final CertificateCreateResult result, final String username, final String subjectDN) {
+        assertEquals(username, result.getUsername());
+        assertTrue("Certificate for " + username + " was not issued: " + result.getException(), result.isSuccess());
+        final X509Certificate cert = (X509Certificate) result.getResponse().getCertificate();
+        assertNotNull(cert);
+        assertEquals(subjectDN, CertTools.getSubjectDN(cert));
+        assertEquals(CADN, CertTools.getIssuerDN(cert));
+    }
+
+    private static void assertFailed(final CertificateCreateResult result, final String username, final ErrorCode errorCode) {
+        assertEquals(username, result.getUsername());
+        assertFalse(result.isSuccess());
+        assertEquals(errorCode, ((CesecoreException) result.getException()).getErrorCode());
+    }
+
+    /** @param keys the key pair of the request, or null to generate a new one */
+    private CertificateCreateRequest createRequest(final String username, final String subjectDN, final KeyPair keys) throws Exception {
+        final KeyPair keyPair = keys != null ? keys : KeyTools.genKeys("512", AlgorithmConstants.KEYALGORITHM_RSA);
+        final EndEntityInformation user = new EndEntityInformation(username, subjectDN, ca.getCAId(), null, null, EndEntityConstants.USER_ENDUSER,
+                0, CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER, EndEntityConstants.TOKEN_USERGEN, 0, null);
+        return new CertificateCreateRequest(user, new SimpleRequestMessage(keyPair.getPublic(), username, "foo123"));
+    }
+
+    private void setField(final String name, final Object value) throws Exception {
+        final Field field = CertificateCreateSessionBean.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(certificateCreateSessionBean, value);
+    }
+
+    private static X509CA createTestCA(final String cadn) throws Exception {
+        final Properties prop = new Properties();
+        prop.setProperty(CATokenConstants.CAKEYPURPOSE_CERTSIGN_STRING, CAToken.SOFTPRIVATESIGNKEYALIAS);
+        prop.setProperty(CATokenConstants.CAKEYPURPOSE_CRLSIGN_STRING, CAToken.SOFTPRIVATESIGNKEYALIAS);
+        prop.setProperty(CATokenConstants.CAKEYPURPOSE_DEFAULT_STRING, CAToken.SOFTPRIVATEDECKEYALIAS);
+        prop.setProperty(CryptoToken.KEYSPEC_PROPERTY, "512");
+        final CryptoToken cryptoToken = CryptoTokenFactory.createCryptoToken(SoftCryptoToken.class.getName(), prop, null, 666);
+        cryptoToken.generateKeyPair("512", CAToken.SOFTPRIVATESIGNKEYALIAS);
+        cryptoToken.generateKeyPair("512", CAToken.SOFTPRIVATEDECKEYALIAS);
+        final CAToken catoken = new CAToken(cryptoToken);
+        catoken.setKeySequence(CAToken.DEFAULT_KEYSEQUENCE);
+        catoken.setKeySequenceFormat(StringTools.KEY_SEQUENCE_FORMAT_NUMERIC);
+        catoken.setSignatureAlgorithm(AlgorithmConstants.SIGALG_SHA256_WITH_RSA);
+        catoken.setEncryptionAlgorithm(AlgorithmConstants.SIGALG_SHA256_WITH_RSA);
+
+        final X509CAInfo cainfo = new X509CAInfo(cadn, "TEST", CAConstants.CA_ACTIVE, new Date(), "", CertificateProfileConstants.CERTPROFILE_FIXED_ROOTCA,
+                3650, null, CAInfo.CATYPE_X509, CAInfo.SELFSIGNED, (Collection<Certificate>) null, catoken.getTokenInfo(), "JUnit RSA CA", -1, null,
+                null, 24, 0, 10, 10, new ArrayList<Integer>(), true, false, true, false, null, null, null, null, true,
+                new ArrayList<ExtendedCAServiceInfo>(), false, new ArrayList<Integer>(), 1, false, true, false, false, true, true, // isDoEnforceUniquePublicKeys
+                true, // isDoEnforceUniqueDistinguishedName
+                false, true, true, true, // useCertificateStorage
+                null);
+        final X509CA x509ca = new X509CA(cainfo);
+        x509ca.setCAToken(catoken);
+        final X509Certificate cacert = CertTools.genSelfCert(cadn, 10L, "1.1.1.1", catoken.getPrivateKey(CATokenConstants.CAKEYPURPOSE_CERTSIGN),
+                catoken.getPublicKey(CATokenConstants.CAKEYPURPOSE_CERTSIGN), "SHA256WithRSA", true);
+        final Collection<Certificate> cachain = new ArrayList<Certificate>();
+        cachain.add(cacert);
+        x509ca.setCertificateChain(cachain);
+        return x509ca;
+    }
+
+}
@@ -0,0 +1,215 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.certificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.CreateException;
+import javax.ejb.SessionContext;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.cesecore.audit.enums.EventStatus;
+import org.cesecore.audit.enums.EventTypes;
+import org.cesecore.audit.enums.ModuleTypes;
+import org.cesecore.audit.enums.ServiceTypes;
+import org.cesecore.audit.log.SecurityEventsLoggerSessionLocal;
+import org.cesecore.authentication.tokens.AlwaysAllowLocalAuthenticationToken;
+import org.cesecore.authentication.tokens.AuthenticationToken;
+import org.cesecore.authentication.tokens.UsernamePrincipal;
+import org.cesecore.certificates.certificateprofile.CertificateProfileConstants;
+import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.ocsp.cache.InMemoryRevocationStatusIndex;
+import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.keys.util.KeyTools;
+import org.cesecore.util.CertTools;
+import org.cesecore.util.CryptoProviderTools;
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests of storing certificates in batches in CertificateStoreSessionBean, with the entity manager and other session beans mocked.
+ *
+ * @version $Id$
+ *
+ */
+public class CertificateStoreSessionBeanTest {
+
+    private final AuthenticationToken admin = new AlwaysAllowLocalAuthenticationToken(new UsernamePrincipal("CertificateStoreSessionBeanTest"));
+    private CertificateStoreSessionBean certificateStoreSessionBean;
+    private EntityManager entityManager;
+    private SessionContext sessionContext;
+    private SecurityEventsLoggerSessionLocal logSession;
+    private Map<Certificate, String> certificates;
+
+    public CertificateStoreSessionBeanTest() {
+        CryptoProviderTools.installBCProvider();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        certificateStoreSessionBean = new CertificateStoreSessionBean();
+        entityManager = EasyMock.createMock(EntityManager.class);
+        sessionContext = EasyMock.createMock(SessionContext.class);
+        logSession = EasyMock.createMock(SecurityEventsLoggerSessionLocal.class);
+        final TransactionSynchronizationRegistry transactionSynchronizationRegistry = EasyMock
+                .createNiceMock(TransactionSynchronizationRegistry.class);
+        EasyMock.replay(transactionSynchronizationRegistry);
+        setField("entityManager", entityManager);
+        setField("sessionContext", sessionContext);
+        setField("logSession", logSession);
+        setField("transactionSynchronizationRegistry", transactionSynchronizationRegistry);
+        final KeyPair keys = KeyTools.genKeys("512", AlgorithmConstants.KEYALGORITHM_RSA);
+        certificates = new LinkedHashMap<Certificate, String>();
+        certificates.put(CertTools.genSelfCert("CN=user1", 10L, null, keys.getPrivate(), keys.getPublic(), "SHA1WithRSA", false), "user1");
+        certificates.put(CertTools.genSelfCert("CN=user2", 10L, null, keys.getPrivate(), keys.getPublic(), "SHA1WithRSA", false), "user2");
+    }
+
+    @Test
+    public void testStoreCertificatesNoAuth() throws Exception {
+        final Capture<CertificateData> persisted = new Capture<CertificateData>(CaptureType.ALL);
+        entityManager.persist(EasyMock.capture(persisted));
+        EasyMock.expectLastCall().times(2);
+        entityManager.flush();
+        logSession.log(EasyMock.eq(EventTypes.CERT_STORED), EasyMock.eq(EventStatus.SUCCESS), EasyMock.eq(ModuleTypes.CERTIFICATE),
+                EasyMock.eq(ServiceTypes.CORE), EasyMock.eq(admin.toString()), EasyMock.anyObject(String.class), EasyMock.anyObject(String.class),
+                EasyMock.anyObject(String.class), EasyMock.<Map<String, Object>> anyObject());
+        EasyMock.expectLastCall().times(2);
+        EasyMock.replay(entityManager, sessionContext, logSession);
+
+        certificateStoreSessionBean.storeCertificatesNoAuth(admin, certificates, null, CertificateConstants.CERT_ACTIVE,
+                CertificateConstants.CERTTYPE_ENDENTITY, CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER, null, 4711L);
+        final List<CertificateData> stored = persisted.getValues();
+        assertEquals(2, stored.size());
+        int i = 1;
+        for (final Certificate cert : certificates.keySet()) {
+            final CertificateData data = stored.get(i - 1);
+            assertEquals("user" + i, data.getUsername());
+            assertEquals(CertTools.getFingerprintAsString(cert), data.getFingerprint());
+            assertEquals(CertificateConstants.CERT_ACTIVE, data.getStatus());
+            assertEquals(CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER, data.getCertificateProfileId().intValue());
+            assertEquals(4711L, data.getUpdateTime().longValue());
+            i++;
+        }
+        EasyMock.verify(entityManager, sessionContext, logSession);
+    }
+
+    @Test
+    public void testStoreCertificatesNoAuthFailure() throws Exception {
+        entityManager.persist(EasyMock.anyObject(CertificateData.class));
+        EasyMock.expectLastCall().times(2);
+        // For example a serial number that is already used
+        entityManager.flush();
+        EasyMock.expectLastCall().andThrow(new PersistenceException("Duplicate key"));
+        sessionContext.setRollbackOnly();
+        EasyMock.replay(entityManager, sessionContext, logSession);
+
+        try {
+            certificateStoreSessionBean.storeCertificatesNoAuth(admin, certificates, null, CertificateConstants.CERT_ACTIVE,
+                    CertificateConstants.CERTTYPE_ENDENTITY, CertificateProfileConstants.CERTPROFILE_FIXED_ENDUSER, null, 4711L);
+            fail("Storing a batch that can not be flushed should fail");
+        } catch (CreateException e) {
+            // Expected
+        }
+        // Nothing is audit logged, since nothing was stored
+        EasyMock.verify(entityManager, sessionContext, logSession);
+    }
+
+    @Test
+    public void testUpdateRevocationStatusIndex() throws Exception {
+        // Certificates as stored in the database: fingerprint, issuerDN, serialNumber, status, revocationDate, revocationReason,
+        // certificateProfileId and updateTime, which is null for a certificate revoked before an upgrade
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        rows.add(new Object[] { "aa", "CN=CA", "1", Integer.valueOf(CertificateConstants.CERT_REVOKED), Long.valueOf(100),
+                Integer.valueOf(RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE), null, null });
+        rows.add(new Object[] { "bb", "CN=CA", "2", Integer.valueOf(CertificateConstants.CERT_ACTIVE), Long.valueOf(-1),
+                Integer.valueOf(RevokedCertInfo.NOT_REVOKED), Integer.valueOf(1), Long.valueOf(1000) });
+        setField("entityManager", createStatusInfoEntityManager(rows));
+
+        // The full load reads the certificate with no updateTime too
+        final InMemoryRevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        assertEquals(2, certificateStoreSessionBean.updateRevocationStatusIndex(index, -1));
+        index.setLoaded(true);
+        final CertificateStatus revoked = index.getStatus("CN=CA", BigInteger.ONE);
+        assertEquals(CertificateStatus.REVOKED, revoked);
+        assertEquals(RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE, revoked.revocationReason);
+        assertEquals(CertificateStatus.OK, index.getStatus("CN=CA", BigInteger.valueOf(2)));
+        // Polling for changes only reads what has been updated since
+        assertEquals(1, certificateStoreSessionBean.updateRevocationStatusIndex(index, 500));
+    }
+
+    /**
+     * @return an EntityManager answering CertificateData.findStatusInfoUpdatedAfter from rows, comparing updateTime like SQL does, so that a
+     *         null updateTime does not match
+     */
+    private EntityManager createStatusInfoEntityManager(final List<Object[]> rows) {
+        return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { EntityManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (!"createQuery".equals(method.getName())) {
+                    return null;
+                }
+                final boolean byUpdateTime = ((String) args[0]).contains("a.updateTime>=:updateTime");
+                final Map<String, Object> parameters = new HashMap<String, Object>();
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Query.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object query, final Method method, final Object[] args) {
+                        if ("setParameter".equals(method.getName())) {
+                            parameters.put((String) args[0], args[1]);
+                        } else if ("getResultList".equals(method.getName())) {
+                            final List<Object[]> result = new ArrayList<Object[]>();
+                            for (final Object[] row : rows) {
+                                final Long updateTime = (Long) row[7];
+                                if (byUpdateTime && (updateTime == null || updateTime.longValue() < ((Long) parameters.get("updateTime")).longValue())) {
+                                    continue;
+                                }
+                                if (((String) row[0]).compareTo((String) parameters.get("currentFingerprint")) > 0) {
+                                    final Object[] columns = new Object[7];
+                                    System.arraycopy(row, 0, columns, 0, 7);
+                                    result.add(columns);
+                                }
+                            }
+                            return result;
+                        }
+                        return query;
+                    }
+                });
+            }
+        });
+    }
+
+    private void setField(final String name, final Object value) throws Exception {
+        final Field field = CertificateStoreSessionBean.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(certificateStoreSessionBean, value);
+    }
+}
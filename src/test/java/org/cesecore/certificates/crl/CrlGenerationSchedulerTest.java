@@ -0,0 +1,197 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.crl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class CrlGenerationSchedulerTest {
+
+    @Test
+    public void testMostUrgentFirst() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<CrlGenerationScheduler.Task> tasks = new ArrayList<CrlGenerationScheduler.Task>();
+        tasks.add(new CrlGenerationScheduler.Task(1, "ca:1", 3000, new RecordingJob(1, order)));
+        tasks.add(new CrlGenerationScheduler.Task(2, "ca:2", 1000, new RecordingJob(2, order)));
+        tasks.add(new CrlGenerationScheduler.Task(3, "ca:3", 0, new RecordingJob(3, order)));
+        tasks.add(new CrlGenerationScheduler.Task(4, "ca:4", 2000, new RecordingJob(4, order)));
+        final List<CrlGenerationScheduler.Task> done = new CrlGenerationScheduler(1, 1).run(tasks);
+        assertEquals("[3, 2, 4, 1]", order.toString());
+        assertEquals(4, done.size());
+        for (final CrlGenerationScheduler.Task task : done) {
+            assertTrue(task.isCreated());
+        }
+    }
+
+    @Test
+    public void testLimitPerToken() throws Exception {
+        final Map<String, AtomicInteger> running = new HashMap<String, AtomicInteger>();
+        running.put("hsm:1", new AtomicInteger());
+        running.put("hsm:2", new AtomicInteger());
+        final AtomicInteger maxPerToken = new AtomicInteger();
+        final AtomicInteger maxTotal = new AtomicInteger();
+        final AtomicInteger total = new AtomicInteger();
+        final List<CrlGenerationScheduler.Task> tasks = new ArrayList<CrlGenerationScheduler.Task>();
+        for (int i = 0; i < 20; i++) {
+            final String token = i % 2 == 0 ? "hsm:1" : "hsm:2";
+            tasks.add(new CrlGenerationScheduler.Task(i, token, i, new CrlGenerationScheduler.Job() {
+                @Override
+                public boolean prepare() {
+                    return true;
+                }
+
+                @Override
+                public void sign() throws Exception {
+                    final int perToken = running.get(token).incrementAndGet();
+                    final int all = total.incrementAndGet();
+                    setMax(maxPerToken, perToken);
+                    setMax(maxTotal, all);
+                    Thread.sleep(20);
+                    total.decrementAndGet();
+                    running.get(token).decrementAndGet();
+                }
+
+                @Override
+                public boolean store() {
+                    return false;
+                }
+            }));
+        }
+        final List<CrlGenerationScheduler.Task> done = new CrlGenerationScheduler(8, 2).run(tasks);
+        assertEquals(20, done.size());
+        assertEquals(2, maxPerToken.get());
+        assertEquals(4, maxTotal.get());
+        assertFalse(done.get(0).isCreated());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<CrlGenerationScheduler.Task> tasks = new ArrayList<CrlGenerationScheduler.Task>();
+        tasks.add(new CrlGenerationScheduler.Task(1, "ca:1", 1000, new RecordingJob(1, order) {
+            @Override
+            public boolean prepare() {
+                throw new IllegalStateException("failed");
+            }
+        }));
+        tasks.add(new CrlGenerationScheduler.Task(2, "ca:2", 2000, new RecordingJob(2, order)));
+        try {
+            new CrlGenerationScheduler(1, 1).run(tasks);
+            fail("The exception of the failed task should have been thrown.");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        // No more tasks are started after a failure
+        assertTrue(order.isEmpty());
+    }
+
+    @Test
+    public void testOnlySigningInOtherThreads() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final List<String> wrongThread = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> stored = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<CrlGenerationScheduler.Task> tasks = new ArrayList<CrlGenerationScheduler.Task>();
+        for (int i = 0; i < 6; i++) {
+            final int caid = i;
+            tasks.add(new CrlGenerationScheduler.Task(caid, "hsm:" + (i % 3), i, new CrlGenerationScheduler.Job() {
+                @Override
+                public boolean prepare() {
+                    if (Thread.currentThread() != caller) {
+                        wrongThread.add("prepare " + caid);
+                    }
+                    return caid != 5;
+                }
+
+                @Override
+                public void sign() throws Exception {
+                    if (Thread.currentThread() == caller) {
+                        wrongThread.add("sign " + caid);
+                    }
+                    if (caid == 3) {
+                        throw new IllegalStateException("signing failed");
+                    }
+                    Thread.sleep(10);
+                }
+
+                @Override
+                public boolean store() {
+                    if (Thread.currentThread() != caller) {
+                        wrongThread.add("store " + caid);
+                    }
+                    stored.add(Integer.valueOf(caid));
+                    return true;
+                }
+            }));
+        }
+        try {
+            new CrlGenerationScheduler(4, 1).run(tasks);
+            fail("The exception of the failed signing should have been thrown.");
+        } catch (IllegalStateException e) {
+            assertEquals("signing failed", e.getMessage());
+        }
+        assertTrue(wrongThread.toString(), wrongThread.isEmpty());
+        // The CRLs signed before the failure are still stored, the failed one is not
+        assertTrue(stored.toString(), stored.containsAll(Arrays.asList(Integer.valueOf(0), Integer.valueOf(1), Integer.valueOf(2))));
+        assertFalse(stored.contains(Integer.valueOf(3)));
+        assertFalse(stored.contains(Integer.valueOf(5)));
+    }
+
+    private static void setMax(final AtomicInteger max, final int value) {
+        int current;
+        while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    private static class RecordingJob implements CrlGenerationScheduler.Job {
+        private final int caid;
+        private final List<Integer> order;
+
+        private RecordingJob(final int caid, final List<Integer> order) {
+            this.caid = caid;
+            this.order = order;
+        }
+
+        @Override
+        public boolean prepare() {
+            order.add(Integer.valueOf(caid));
+            return true;
+        }
+
+        @Override
+        public void sign() {
+            // Nothing to sign
+        }
+
+        @Override
+        public boolean store() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.crl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.keys.util.KeyTools;
+import org.cesecore.util.CertTools;
+import org.cesecore.util.CryptoProviderTools;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class EncodedCrlEntryIteratorTest {
+
+    private static final String SIGALG = AlgorithmConstants.SIGALG_SHA256_WITH_RSA;
+
+    private static KeyPair keys;
+    private static X509Certificate cacert;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        CryptoProviderTools.installBCProviderIfNotAvailable();
+        keys = KeyTools.genKeys("1024", "RSA");
+        cacert = CertTools.genSelfCert("CN=EncodedCrlEntryIteratorTest", 10, null, keys.getPrivate(), keys.getPublic(), SIGALG, true);
+    }
+
+    @Test
+    public void testEmptyCrl() throws Exception {
+        final Date thisUpdate = new Date();
+        assertFalse(new EncodedCrlEntryIterator(generate(0, thisUpdate, true).getEncoded()).hasNext());
+        assertFalse(new EncodedCrlEntryIterator(generate(0, thisUpdate, false).getEncoded()).hasNext());
+    }
+
+    @Test
+    public void testReadEntries() throws Exception {
+        final Date thisUpdate = new Date();
+        // With and without nextUpdate, which is optional
+        for (final boolean withNextUpdate : new boolean[] { true, false }) {
+            final X509CRL crl = generate(1000, thisUpdate, withNextUpdate);
+            final Iterator<RevokedCertInfo> entries = new EncodedCrlEntryIterator(crl.getEncoded());
+            final List<RevokedCertInfo> read = new ArrayList<RevokedCertInfo>();
+            for (int i = 0; i < 1000; i++) {
+                final RevokedCertInfo entry = entries.next();
+                assertEquals(getSerialNumber(i), entry.getUserCertificate());
+                read.add(entry);
+            }
+            assertFalse(entries.hasNext());
+            // Entries copied as they are to a new CRL with the same template give the same CRL
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new StreamingCrlGenerator(generate(0, thisUpdate, withNextUpdate), SIGALG).generate(read.iterator(), keys.getPrivate(),
+                    keys.getPublic(), "BC", out);
+            assertArrayEquals(crl.getEncoded(), out.toByteArray());
+        }
+    }
+
+    private static BigInteger getSerialNumber(final int i) {
+        // Serial numbers of different lengths, also with the sign bit set that need a leading zero
+        return BigInteger.valueOf(0x7fL + i * 0x10001L);
+    }
+
+    private X509CRL generate(final int entries, final Date thisUpdate, final boolean withNextUpdate) throws Exception {
+        final X509V2CRLGenerator crlgen = new X509V2CRLGenerator();
+        crlgen.setThisUpdate(thisUpdate);
+        if (withNextUpdate) {
+            crlgen.setNextUpdate(new Date(thisUpdate.getTime() + 24 * 3600 * 1000L));
+        }
+        crlgen.setSignatureAlgorithm(SIGALG);
+        crlgen.setIssuerDN(cacert.getSubjectX500Principal());
+        for (int i = 0; i < entries; i++) {
+            crlgen.addCRLEntry(getSerialNumber(i), new Date(thisUpdate.getTime() - i * 1000L), i % 3);
+        }
+        crlgen.addExtension(X509Extensions.CRLNumber.getId(), false, new CRLNumber(BigInteger.ONE));
+        return crlgen.generate(keys.getPrivate(), "BC");
+    }
+}
@@ -0,0 +1,113 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.crl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.keys.util.KeyTools;
+import org.cesecore.util.CertTools;
+import org.cesecore.util.CryptoProviderTools;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class StreamingCrlGeneratorTest {
+
+    private static final String SIGALG = AlgorithmConstants.SIGALG_SHA256_WITH_RSA;
+
+    private static KeyPair keys;
+    private static X509Certificate cacert;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        CryptoProviderTools.installBCProviderIfNotAvailable();
+        keys = KeyTools.genKeys("1024", "RSA");
+        cacert = CertTools.genSelfCert("CN=StreamingCrlGeneratorTest", 10, null, keys.getPrivate(), keys.getPublic(), SIGALG, true);
+    }
+
+    @Test
+    public void testEmptyCrl() throws Exception {
+        final Date thisUpdate = new Date();
+        final X509CRL template = generate(new ArrayList<RevokedCertInfo>(), thisUpdate);
+        final X509CRL crl = generateStreaming(template, new ArrayList<RevokedCertInfo>());
+        assertArrayEquals(template.getEncoded(), crl.getEncoded());
+        assertNull(crl.getRevokedCertificates());
+    }
+
+    /** RSA signatures are deterministic, so the streamed CRL must be identical to one made by X509V2CRLGenerator. */
+    @Test
+    public void testSameAsGenerator() throws Exception {
+        final Date thisUpdate = new Date();
+        final X509CRL template = generate(new ArrayList<RevokedCertInfo>(), thisUpdate);
+        // Enough entries to need a long form length of several bytes
+        final List<RevokedCertInfo> entries = new ArrayList<RevokedCertInfo>();
+        for (int i = 0; i < 3000; i++) {
+            final BigInteger serno = new BigInteger(64, new Random(i)).add(BigInteger.ONE);
+            // Include reason 0, that has no reason code extension, and a revocation date after 2049 that needs GeneralizedTime
+            final Date revocationDate = i == 0 ? new Date(3000000000000L) : new Date(thisUpdate.getTime() - i * 1000L);
+            entries.add(new RevokedCertInfo("fp" + i, serno, revocationDate, i % 11, thisUpdate));
+        }
+        final X509CRL expected = generate(entries, thisUpdate);
+        final X509CRL crl = generateStreaming(template, entries);
+        assertArrayEquals(expected.getEncoded(), crl.getEncoded());
+        crl.verify(keys.getPublic());
+        assertEquals(3000, crl.getRevokedCertificates().size());
+    }
+
+    @Test
+    public void testHeader() {
+        assertArrayEquals(new byte[] { 0x30, 0x7f }, StreamingCrlGenerator.getHeader(127));
+        assertArrayEquals(new byte[] { 0x30, (byte) 0x81, (byte) 0x80 }, StreamingCrlGenerator.getHeader(128));
+        assertArrayEquals(new byte[] { 0x30, (byte) 0x82, 0x01, 0x00 }, StreamingCrlGenerator.getHeader(256));
+        assertArrayEquals(new byte[] { 0x30, (byte) 0x83, 0x01, 0x00, 0x00 }, StreamingCrlGenerator.getHeader(65536));
+    }
+
+    private X509CRL generate(final List<RevokedCertInfo> entries, final Date thisUpdate) throws Exception {
+        final X509V2CRLGenerator crlgen = new X509V2CRLGenerator();
+        crlgen.setThisUpdate(thisUpdate);
+        crlgen.setNextUpdate(new Date(thisUpdate.getTime() + 24 * 3600 * 1000L));
+        crlgen.setSignatureAlgorithm(SIGALG);
+        crlgen.setIssuerDN(cacert.getSubjectX500Principal());
+        for (final RevokedCertInfo entry : entries) {
+            crlgen.addCRLEntry(entry.getUserCertificate(), entry.getRevocationDate(), entry.getReason());
+        }
+        crlgen.addExtension(X509Extensions.CRLNumber.getId(), false, new CRLNumber(BigInteger.ONE));
+        return crlgen.generate(keys.getPrivate(), "BC");
+    }
+
+    private X509CRL generateStreaming(final X509CRL template, final List<RevokedCertInfo> entries) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int count = new StreamingCrlGenerator(template, SIGALG).generate(entries.iterator(), keys.getPrivate(), keys.getPublic(), "BC", out);
+        assertEquals(entries.size(), count);
+        return CertTools.getCRLfromByteArray(out.toByteArray());
+    }
+}
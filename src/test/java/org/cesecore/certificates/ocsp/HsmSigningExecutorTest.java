@@ -0,0 +1,118 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.ocsp.BasicOCSPResp;
+import org.cesecore.certificates.ocsp.exception.OcspSignerBusyException;
+import org.cesecore.keys.token.CryptoTokenOfflineException;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class HsmSigningExecutorTest {
+
+    @Test
+    public void testSign() throws Exception {
+        final HsmSigningExecutor executor = new HsmSigningExecutor("test", 2, 2, 10000);
+        try {
+            assertNull(executor.sign(new BlockingResponseThread(new CountDownLatch(0), new CountDownLatch(1))));
+            assertEquals(1, executor.getSignedCount());
+            assertEquals(0, executor.getRejectedCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectWhenBusy() throws Exception {
+        final HsmSigningExecutor executor = new HsmSigningExecutor("test", 1, 0, 10000);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        try {
+            final Thread first = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        executor.sign(new BlockingResponseThread(release, started));
+                    } catch (Exception e) {
+                        // The assertions below will fail
+                    }
+                }
+            };
+            first.start();
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            try {
+                executor.sign(new BlockingResponseThread(new CountDownLatch(0), new CountDownLatch(1)));
+                fail("The only signing thread is busy and there is no queue, so the request should have been rejected.");
+            } catch (OcspSignerBusyException e) {
+                // NOPMD: expected
+            }
+            assertEquals(1, executor.getRejectedCount());
+            release.countDown();
+            first.join(10000);
+            assertEquals(1, executor.getSignedCount());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final HsmSigningExecutor executor = new HsmSigningExecutor("test", 1, 1, 100);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.sign(new BlockingResponseThread(release, new CountDownLatch(1)));
+            fail("The signing never finishes, so it should have timed out.");
+        } catch (CryptoTokenOfflineException e) {
+            // NOPMD: expected
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+        assertEquals(1, executor.getTimedOutCount());
+    }
+
+    /** Pretends to sign, waiting for a latch to simulate a slow HSM. */
+    private static class BlockingResponseThread extends HsmResponseThread {
+        private final CountDownLatch release;
+        private final CountDownLatch started;
+
+        public BlockingResponseThread(final CountDownLatch release, final CountDownLatch started) {
+            super(null, null, null, null, null);
+            this.release = release;
+            this.started = started;
+        }
+
+        @Override
+        public BasicOCSPResp call() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+
+import org.cesecore.certificates.certificate.CertificateStatus;
+import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class InMemoryRevocationStatusIndexTest {
+
+    private static final String ISSUER = "CN=Test CA,O=Test,C=SE";
+    private static final String OTHER_ISSUER = "CN=Other CA,O=Test,C=SE";
+
+    @Test
+    public void testNotLoadedIndexDoesNotAnswer() {
+        final RevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        assertFalse(index.isLoaded());
+        assertNull(index.getStatus(ISSUER, BigInteger.ONE));
+    }
+
+    @Test
+    public void testLookup() {
+        final RevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        index.put(ISSUER, BigInteger.valueOf(2), new CertificateStatus(1000L, RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE, 1));
+        index.setLoaded(true);
+        assertEquals(2, index.size());
+        final CertificateStatus ok = index.getStatus(ISSUER, BigInteger.ONE);
+        assertEquals(CertificateStatus.OK, ok);
+        assertEquals(1, ok.certificateProfileId);
+        final CertificateStatus revoked = index.getStatus(ISSUER, BigInteger.valueOf(2));
+        assertEquals(CertificateStatus.REVOKED, revoked);
+        assertEquals(RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE, revoked.revocationReason);
+        assertEquals(1000L, revoked.revocationDate.getTime());
+        // Unknown serial number and unknown issuer
+        assertSame(CertificateStatus.NOT_AVAILABLE, index.getStatus(ISSUER, BigInteger.valueOf(3)));
+        assertSame(CertificateStatus.NOT_AVAILABLE, index.getStatus(OTHER_ISSUER, BigInteger.ONE));
+    }
+
+    @Test
+    public void testOkStatusIsShared() {
+        final RevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        index.put(ISSUER, BigInteger.valueOf(2), new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        index.put(ISSUER, BigInteger.valueOf(3), new CertificateStatus(CertificateStatus.OK.toString(), 2));
+        index.setLoaded(true);
+        assertSame(index.getStatus(ISSUER, BigInteger.ONE), index.getStatus(ISSUER, BigInteger.valueOf(2)));
+        assertEquals(2, index.getStatus(ISSUER, BigInteger.valueOf(3)).certificateProfileId);
+    }
+
+    @Test
+    public void testInvalidate() {
+        final RevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        index.setLoaded(true);
+        index.invalidate(ISSUER, BigInteger.ONE);
+        assertNull("An invalidated entry must be read from the database", index.getStatus(ISSUER, BigInteger.ONE));
+        // A certificate we have never seen, stored on this node
+        index.invalidate(ISSUER, BigInteger.TEN);
+        assertNull(index.getStatus(ISSUER, BigInteger.TEN));
+        // Read through
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(2000L, RevokedCertInfo.REVOCATION_REASON_CERTIFICATEHOLD, 1));
+        assertEquals(CertificateStatus.REVOKED, index.getStatus(ISSUER, BigInteger.ONE));
+    }
+
+    @Test
+    public void testPutIfUnchanged() {
+        final RevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        index.setLoaded(true);
+        index.invalidate(ISSUER, BigInteger.ONE);
+        // A read-through takes its stamp, and the certificate is changed again while it reads the database
+        final Object stamp = index.getStamp(ISSUER, BigInteger.ONE);
+        index.invalidate(ISSUER, BigInteger.ONE);
+        assertFalse("A status read before the last invalidation must not be put back",
+                index.putIfUnchanged(ISSUER, BigInteger.ONE, stamp, new CertificateStatus(CertificateStatus.OK.toString(), 1)));
+        assertNull(index.getStatus(ISSUER, BigInteger.ONE));
+        // A read-through that started after the last invalidation
+        final Object newStamp = index.getStamp(ISSUER, BigInteger.ONE);
+        assertTrue(index.putIfUnchanged(ISSUER, BigInteger.ONE, newStamp, new CertificateStatus(2000L,
+                RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE, 1)));
+        assertEquals(CertificateStatus.REVOKED, index.getStatus(ISSUER, BigInteger.ONE));
+        // No entry when the stamp was taken, and none put since
+        assertNull(index.getStamp(ISSUER, BigInteger.TEN));
+        assertTrue(index.putIfUnchanged(ISSUER, BigInteger.TEN, null, new CertificateStatus(CertificateStatus.OK.toString(), 1)));
+        assertFalse(index.putIfUnchanged(ISSUER, BigInteger.TEN, null, new CertificateStatus(CertificateStatus.OK.toString(), 1)));
+    }
+
+    @Test
+    public void testClear() {
+        final RevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        index.setLoaded(true);
+        index.clear();
+        assertFalse(index.isLoaded());
+        assertEquals(0, index.size());
+        index.setLoaded(true);
+        assertTrue(index.isLoaded());
+        assertSame(CertificateStatus.NOT_AVAILABLE, index.getStatus(ISSUER, BigInteger.ONE));
+    }
+}
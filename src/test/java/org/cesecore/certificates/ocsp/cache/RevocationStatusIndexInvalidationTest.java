@@ -0,0 +1,65 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigInteger;
+
+import javax.transaction.Status;
+
+import org.cesecore.certificates.certificate.CertificateStatus;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class RevocationStatusIndexInvalidationTest {
+
+    private static final String ISSUER = "CN=Test CA,O=Test,C=SE";
+
+    @Test
+    public void testInvalidateAfterCompletion() {
+        final RevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        index.setLoaded(true);
+        final RevocationStatusIndexInvalidation invalidation = new RevocationStatusIndexInvalidation(index);
+        invalidation.add(ISSUER, BigInteger.ONE);
+        invalidation.beforeCompletion();
+        assertEquals("The committed status must be served until the transaction has completed", CertificateStatus.OK,
+                index.getStatus(ISSUER, BigInteger.ONE));
+        // A read-through of the status that is still committed
+        final Object stamp = index.getStamp(ISSUER, BigInteger.ONE);
+        invalidation.afterCompletion(Status.STATUS_COMMITTED);
+        assertNull(index.getStatus(ISSUER, BigInteger.ONE));
+        assertFalse(index.putIfUnchanged(ISSUER, BigInteger.ONE, stamp, new CertificateStatus(CertificateStatus.OK.toString(), 1)));
+        assertNull(index.getStatus(ISSUER, BigInteger.ONE));
+    }
+
+    @Test
+    public void testClearAfterCompletion() {
+        final RevocationStatusIndex index = new InMemoryRevocationStatusIndex();
+        index.put(ISSUER, BigInteger.ONE, new CertificateStatus(CertificateStatus.OK.toString(), 1));
+        index.setLoaded(true);
+        final RevocationStatusIndexInvalidation invalidation = new RevocationStatusIndexInvalidation(index);
+        invalidation.add(ISSUER, BigInteger.ONE);
+        invalidation.clear();
+        assertEquals(CertificateStatus.OK, index.getStatus(ISSUER, BigInteger.ONE));
+        invalidation.afterCompletion(Status.STATUS_ROLLEDBACK);
+        assertFalse(index.isLoaded());
+        assertEquals(0, index.size());
+    }
+}
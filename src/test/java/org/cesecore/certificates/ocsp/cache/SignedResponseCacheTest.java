@@ -0,0 +1,120 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.ocsp.BasicOCSPResp;
+import org.bouncycastle.ocsp.BasicOCSPRespGenerator;
+import org.bouncycastle.ocsp.CertificateID;
+import org.bouncycastle.ocsp.RevokedStatus;
+import org.bouncycastle.ocsp.UnknownStatus;
+import org.cesecore.certificates.crl.RevokedCertInfo;
+import org.cesecore.certificates.ocsp.OCSPResponseItem;
+import org.cesecore.certificates.util.AlgorithmConstants;
+import org.cesecore.keys.util.KeyTools;
+import org.cesecore.util.CertTools;
+import org.cesecore.util.CryptoProviderTools;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class SignedResponseCacheTest {
+
+    private static KeyPair keys;
+    private static X509Certificate cacert;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        CryptoProviderTools.installBCProviderIfNotAvailable();
+        keys = KeyTools.genKeys("512", "RSA");
+        cacert = CertTools.genSelfCert("CN=SignedResponseCacheTest", 10, null, keys.getPrivate(), keys.getPublic(),
+                AlgorithmConstants.SIGALG_SHA1_WITH_RSA, true);
+    }
+
+    @Test
+    public void testKeyDependsOnContent() throws Exception {
+        final CertificateID certId = new CertificateID(CertificateID.HASH_SHA1, cacert, BigInteger.valueOf(4711));
+        final String good = SignedResponseCache.getKey(cacert, getList(new OCSPResponseItem(certId, null, 0)));
+        // Same content, created at another time, gives the same key
+        assertEquals(good, SignedResponseCache.getKey(cacert, getList(new OCSPResponseItem(certId, null, 1000))));
+        final String unknown = SignedResponseCache.getKey(cacert, getList(new OCSPResponseItem(certId, new UnknownStatus(), 0)));
+        assertFalse(good.equals(unknown));
+        final Date revocationDate = new Date();
+        final String revoked = SignedResponseCache.getKey(cacert,
+                getList(new OCSPResponseItem(certId, new RevokedStatus(revocationDate, RevokedCertInfo.REVOCATION_REASON_KEYCOMPROMISE), 0)));
+        assertFalse(good.equals(revoked));
+        final String onHold = SignedResponseCache.getKey(cacert,
+                getList(new OCSPResponseItem(certId, new RevokedStatus(revocationDate, CRLReason.certificateHold), 0)));
+        assertFalse(revoked.equals(onHold));
+        final CertificateID otherCertId = new CertificateID(CertificateID.HASH_SHA1, cacert, BigInteger.valueOf(4712));
+        assertFalse(good.equals(SignedResponseCache.getKey(cacert, getList(new OCSPResponseItem(otherCertId, null, 0)))));
+        final String both = SignedResponseCache.getKey(cacert, getList(new OCSPResponseItem(certId, null, 0), new OCSPResponseItem(otherCertId,
+                null, 0)));
+        assertFalse(good.equals(both));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedRemovedWhenFull() throws Exception {
+        final SignedResponseCache.Cache cache = new SignedResponseCache.Cache(2);
+        final long expireTime = System.currentTimeMillis() + 60000;
+        final BasicOCSPResp first = getResponse(1);
+        final BasicOCSPResp second = getResponse(2);
+        final BasicOCSPResp third = getResponse(3);
+        cache.put("first", first, expireTime);
+        cache.put("second", second, expireTime);
+        // Using the first makes the second the least recently used
+        assertSame(first, cache.get("first"));
+        cache.put("third", third, expireTime);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("second"));
+        assertSame(first, cache.get("first"));
+        assertSame(third, cache.get("third"));
+    }
+
+    @Test
+    public void testExpiredNotServed() throws Exception {
+        final SignedResponseCache.Cache cache = new SignedResponseCache.Cache(2);
+        cache.put("expired", getResponse(1), System.currentTimeMillis() - 1);
+        assertNull(cache.get("expired"));
+        assertEquals(0, cache.size());
+    }
+
+    private static BasicOCSPResp getResponse(final long serialNumber) throws Exception {
+        final BasicOCSPRespGenerator generator = new BasicOCSPRespGenerator(keys.getPublic());
+        generator.addResponse(new CertificateID(CertificateID.HASH_SHA1, cacert, BigInteger.valueOf(serialNumber)), null);
+        return generator.generate(AlgorithmConstants.SIGALG_SHA1_WITH_RSA, keys.getPrivate(), null, new Date(), "BC");
+    }
+
+    private static List<OCSPResponseItem> getList(final OCSPResponseItem... items) {
+        final List<OCSPResponseItem> ret = new ArrayList<OCSPResponseItem>();
+        for (final OCSPResponseItem item : items) {
+            ret.add(item);
+        }
+        return ret;
+    }
+}
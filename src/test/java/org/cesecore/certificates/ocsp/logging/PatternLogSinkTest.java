@@ -0,0 +1,127 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.certificates.ocsp.logging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @version $Id$
+ *
+ */
+public class PatternLogSinkTest {
+
+    private final Logger logger = Logger.getLogger(PatternLogSinkTest.class.getName() + ".output");
+    private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+    private final AppenderSkeleton appender = new AppenderSkeleton() {
+        @Override
+        protected void append(final LoggingEvent event) {
+            written.add(event.getRenderedMessage());
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        logger.setLevel(Level.DEBUG);
+        logger.setAdditivity(false);
+        logger.addAppender(appender);
+    }
+
+    @After
+    public void tearDown() {
+        logger.removeAppender(appender);
+    }
+
+    @Test
+    public void testWriteInCallingThread() {
+        final PatternLogSink sink = new PatternLogSink(0, false);
+        sink.write(logger, "line1");
+        assertEquals(Collections.singletonList("line1"), written);
+    }
+
+    @Test
+    public void testWriteInBackground() throws Exception {
+        final PatternLogSink sink = new PatternLogSink(10, false);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            sink.write(logger, "line" + i);
+            expected.add("line" + i);
+        }
+        waitForWritten(100);
+        // All lines are written, in order, since nothing is dropped when the queue is full
+        assertEquals(expected, written);
+        assertEquals(0, sink.getDroppedCount());
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        final PatternLogSink sink = new PatternLogSink(1, true);
+        for (int i = 0; i < 1000; i++) {
+            sink.write(logger, "line" + i);
+        }
+        waitForWritten(1000 - sink.getDroppedCount());
+        assertEquals(1000, written.size() + sink.getDroppedCount());
+    }
+
+    @Test
+    public void testShutdown() {
+        final PatternLogSink sink = new PatternLogSink(1000, false);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            sink.write(logger, "line" + i);
+            expected.add("line" + i);
+        }
+        // The queued lines are written before shutdown returns
+        sink.shutdown();
+        assertEquals(expected, written);
+        assertEquals(0, sink.getQueuedCount());
+        // and lines written after it are written by the calling thread
+        sink.write(logger, "after");
+        expected.add("after");
+        assertEquals(expected, written);
+    }
+
+    @Test
+    public void testDebugDisabled() {
+        logger.setLevel(Level.INFO);
+        final PatternLogSink sink = new PatternLogSink(10, false);
+        sink.write(logger, "line1");
+        assertEquals(0, sink.getQueuedCount());
+    }
+
+    private void waitForWritten(final long lines) throws InterruptedException {
+        for (int i = 0; i < 500 && written.size() < lines; i++) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -13,6 +13,7 @@
 
 package org.cesecore.certificates.ocsp.logging;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.lang.reflect.Method;
@@ -45,6 +46,19 @@ public class PatternLoggerTest {
         log.trace("<testPatternLogger");
     }
 
+    /** Variables without a value are kept as they are, and values are written as they are, also when they look like regexp replacements. */
+    @Test
+    public void testPatternLoggerUnknownAndRepeatedVariables() throws Exception {
+        final PatternLogger patternLogger = new TestPatternLogger("\\$\\{(.+?)\\}", "a${VAR1}b${UNKNOWN}c${VAR1}${VAR2}", "yyyy", null);
+        patternLogger.paramPut("VAR1", "$1\\");
+        patternLogger.paramPut("NOT_IN_TEMPLATE", "x");
+        final Method m = PatternLogger.class.getDeclaredMethod("interpolate", new Class[0]);
+        m.setAccessible(true);
+        assertEquals("a$1\\b${UNKNOWN}c$1\\${VAR2}", m.invoke(patternLogger));
+        patternLogger.paramPut("VAR2", (String) null);
+        assertEquals("a$1\\b${UNKNOWN}c$1\\", m.invoke(patternLogger));
+    }
+
     /** Helper method that replaces all ${VARx} where x={0..10} with "contentx" and asserts that the result is the expected using regexp. */
     private void testPatternLoggerInternal(String pattern, String dateFormat, String timeZone, String expected) throws Exception {
         log.trace(">testPatternLoggerInternal");
@@ -68,6 +82,11 @@ public class PatternLoggerTest {
             super(false, matchPattern, matchString, logDateFormat, timeZone);
             
         }
+
+        @Override
+        protected Logger getLogger() {
+            return log;
+        }
         
     }
 }
@@ -13,17 +13,31 @@
 
 package org.cesecore.certificates.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.security.KeyPair;
 import java.security.cert.Certificate;
+import java.security.cert.X509CRL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.CertificateList;
+import org.bouncycastle.asn1.x509.X509Name;
+import org.bouncycastle.x509.X509V2CRLGenerator;
 import org.cesecore.certificates.util.AlgorithmToolsHelper.MockDSAPublicKey;
 import org.cesecore.certificates.util.AlgorithmToolsHelper.MockECDSAPublicKey;
 import org.cesecore.certificates.util.AlgorithmToolsHelper.MockNotSupportedPublicKey;
@@ -121,6 +135,38 @@ public class AlgorithmToolsTest {
         assertEquals("Foobar", AlgorithmTools.getEncSigAlgFromSigAlg("Foobar"));
     }
 
+    /** The AlgorithmIdentifiers must be the same as BouncyCastle puts in a CRL it signs */
+    @Test
+    public void testGetSignatureAlgorithmIdentifier() throws Exception {
+        final KeyPair rsa = KeyTools.genKeys("1024", "RSA");
+        final KeyPair ecdsa = KeyTools.genKeys("prime192v1", "ECDSA");
+        final KeyPair dsa = KeyTools.genKeys("1024", "DSA");
+        final List<String> sigAlgs = new ArrayList<String>(Arrays.asList(AlgorithmConstants.AVAILABLE_SIGALGS));
+        sigAlgs.add(AlgorithmConstants.SIGALG_SHA1_WITH_RSA_AND_MGF1);
+        for (final String sigAlg : sigAlgs) {
+            final String keyAlg = AlgorithmTools.getKeyAlgorithmFromSigAlg(sigAlg);
+            final KeyPair keys = AlgorithmConstants.KEYALGORITHM_RSA.equals(keyAlg) ? rsa
+                    : (AlgorithmConstants.KEYALGORITHM_ECDSA.equals(keyAlg) ? ecdsa : dsa);
+            final X509V2CRLGenerator crlgen = new X509V2CRLGenerator();
+            crlgen.setThisUpdate(new Date());
+            crlgen.setNextUpdate(new Date());
+            crlgen.setSignatureAlgorithm(sigAlg);
+            crlgen.setIssuerDN(new X509Name("CN=testGetSignatureAlgorithmIdentifier"));
+            final X509CRL crl = crlgen.generate(keys.getPrivate(), "BC");
+            final CertificateList certificateList = CertificateList.getInstance(new ASN1InputStream(crl.getEncoded()).readObject());
+            assertArrayEquals(sigAlg, certificateList.getSignatureAlgorithm().getDEREncoded(),
+                    AlgorithmTools.getSignatureAlgorithmIdentifier(sigAlg).getDEREncoded());
+        }
+        assertEquals(new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, new DERNull()),
+                AlgorithmTools.getSignatureAlgorithmIdentifier("sha256withrsa"));
+        try {
+            AlgorithmTools.getSignatureAlgorithmIdentifier("Foobar");
+            fail("Unknown signature algorithm should throw");
+        } catch (IllegalArgumentException e) {
+            // NOPMD
+        }
+    }
+
     @Test
     public void testIsCompatibleSigAlg() {
     	assertTrue(AlgorithmTools.isCompatibleSigAlg(new MockRSAPublicKey(), AlgorithmConstants.SIGALG_SHA1_WITH_RSA));
@@ -71,5 +71,30 @@ public class OcspConfigurationTest {
 		assertEquals(60000, maxAge);
 		assertEquals(70000, nextUpdate);
 	}
+
+	@Test
+	public void test02SigningPerSigner() throws Exception {
+		final String fingerprint = "1234567890abcdef1234567890abcdef12345678";
+		assertEquals(10, OcspConfiguration.getSigningThreads(fingerprint));
+		assertEquals(100, OcspConfiguration.getSigningQueueSize(fingerprint));
+		assertEquals(30000, OcspConfiguration.getSigningTimeout(fingerprint));
+
+		File f = File.createTempFile("testocspconf", "properties");
+		f.deleteOnExit();
+		FileWriter fos = new FileWriter(f);
+		fos.write("ocsp.signing.threads=8\nocsp.signing.timeout=20\nocsp." + fingerprint + ".signing.threads=2\nocsp." + fingerprint
+				+ ".signing.timeout=60\n");
+		fos.close();
+		ConfigurationHolder.addConfigurationFile(f.getAbsolutePath());
+
+		// Our specified values
+		assertEquals(2, OcspConfiguration.getSigningThreads(fingerprint));
+		assertEquals(60000, OcspConfiguration.getSigningTimeout(fingerprint));
+		// Not specified for the signer, so the general value
+		assertEquals(100, OcspConfiguration.getSigningQueueSize(fingerprint));
+		// Another signer uses the general values
+		assertEquals(8, OcspConfiguration.getSigningThreads("abcdef"));
+		assertEquals(20000, OcspConfiguration.getSigningTimeout("abcdef"));
+	}
 	
 }
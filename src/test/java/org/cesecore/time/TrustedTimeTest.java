@@ -0,0 +1,89 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.time;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests calculating the trusted time from the offset of the time source.
+ *
+ * @version $Id$
+ */
+public class TrustedTimeTest {
+
+    @Test
+    public void testOffsetIsApplied() throws InterruptedException {
+        final TrustedTime trustedTime = new TrustedTime(Double.valueOf(5000.4));
+        trustedTime.setSync(true);
+        trustedTime.setUncorrectedOffset(true);
+        trustedTime.anchor(1000);
+        assertEquals(System.currentTimeMillis() + 5000, trustedTime.getTimeMillis(), 50);
+        Thread.sleep(100);
+        // The time moves on with the monotonic clock
+        assertEquals(System.currentTimeMillis() + 5000, trustedTime.getTimeMillis(), 50);
+        assertEquals(trustedTime.getTimeMillis(), trustedTime.getTime().getTime(), 50);
+        assertFalse(trustedTime.isDrifted());
+    }
+
+    @Test
+    public void testCorrectedOffsetIsNotApplied() {
+        // An NTP daemon is already correcting the system clock by the offset it reports
+        final TrustedTime trustedTime = new TrustedTime(Double.valueOf(5000));
+        trustedTime.setSync(true);
+        trustedTime.anchor(1000);
+        assertEquals(System.currentTimeMillis(), trustedTime.getTimeMillis(), 50);
+    }
+
+    @Test
+    public void testOffsetIsSerialized() throws Exception {
+        final TrustedTime trustedTime = new TrustedTime(Double.valueOf(5000));
+        trustedTime.setSync(true);
+        trustedTime.setUncorrectedOffset(true);
+        trustedTime.anchor(1000);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(trustedTime);
+        oos.close();
+        final TrustedTime deserialized = (TrustedTime) new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray())).readObject();
+        assertEquals(System.currentTimeMillis() + 5000, deserialized.getTimeMillis(), 50);
+    }
+
+    @Test
+    public void testNotSynchronized() {
+        // Without a synchronized time source the offset can not be trusted, so the system clock is used
+        final TrustedTime trustedTime = new TrustedTime(Double.valueOf(5000));
+        trustedTime.anchor(1000);
+        assertEquals(System.currentTimeMillis(), trustedTime.getTimeMillis(), 50);
+        assertFalse(trustedTime.isDrifted());
+        // Not published yet
+        assertEquals(System.currentTimeMillis(), new TrustedTime().getTimeMillis(), 50);
+    }
+
+    @Test
+    public void testDrift() {
+        final TrustedTime trustedTime = new TrustedTime(Double.valueOf(0));
+        trustedTime.setSync(true);
+        // No drift at all is allowed
+        trustedTime.anchor(-1);
+        assertTrue(trustedTime.isDrifted());
+    }
+}
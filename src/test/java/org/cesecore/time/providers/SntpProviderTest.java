@@ -0,0 +1,168 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.time.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.cesecore.time.TrustedTime;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the SNTP provider against a stub NTP server on localhost.
+ *
+ * @version $Id$
+ */
+public class SntpProviderTest {
+
+    private StubServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testTimestamp() {
+        final byte[] buffer = new byte[SntpProvider.PACKET_SIZE];
+        final long now = System.currentTimeMillis();
+        SntpProvider.writeTimestamp(buffer, 40, now);
+        assertEquals(now, SntpProvider.readTimestamp(buffer, 40));
+        SntpProvider.writeTimestamp(buffer, 40, 0);
+        assertEquals(SntpProvider.NTP_EPOCH_OFFSET, ((buffer[40] & 0xffL) << 24) | ((buffer[41] & 0xffL) << 16) | ((buffer[42] & 0xffL) << 8)
+                | (buffer[43] & 0xffL));
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        server = new StubServer(5000, 2, 0);
+        final SntpProvider provider = new SntpProvider(Collections.singletonList(server.getAddress()), 64, 1000);
+        final SntpProvider.Sample sample = provider.query(server.getAddress());
+        assertEquals(2, sample.stratum);
+        assertTrue(sample.sync);
+        assertEquals(5000, sample.offset, 100);
+        assertTrue(sample.delay >= 0);
+    }
+
+    @Test
+    public void testGetTrustedTime() throws Exception {
+        server = new StubServer(-250, 3, 0);
+        final SntpProvider provider = new SntpProvider(Collections.singletonList(server.getAddress()), 64, 1000);
+        final TrustedTime trustedTime = provider.getTrustedTime();
+        assertTrue(trustedTime.isSync());
+        assertEquals(-250, trustedTime.getAccuracy(), 100);
+        assertEquals(Integer.valueOf(3), trustedTime.getStratum());
+        assertEquals(server.getAddress().getHostName(), trustedTime.getSource());
+        assertTrue(trustedTime.getNextUpdate().longValue() <= 65000);
+    }
+
+    @Test
+    public void testServerNotSynchronized() throws Exception {
+        // Leap indicator 3 is "alarm condition (clock not synchronized)"
+        server = new StubServer(0, 16, 3);
+        final SntpProvider provider = new SntpProvider(Collections.singletonList(server.getAddress()), 64, 1000);
+        assertFalse(provider.getTrustedTime().isSync());
+    }
+
+    @Test
+    public void testPrefersSynchronizedServer() throws Exception {
+        server = new StubServer(0, 16, 3);
+        final StubServer other = new StubServer(1000, 2, 0);
+        try {
+            final SntpProvider provider = new SntpProvider(Arrays.asList(server.getAddress(), other.getAddress()), 64, 1000);
+            final TrustedTime trustedTime = provider.getTrustedTime();
+            assertTrue(trustedTime.isSync());
+            assertEquals(Integer.valueOf(2), trustedTime.getStratum());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testNoAnswer() throws Exception {
+        // A socket that never answers
+        final DatagramSocket silent = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        try {
+            final InetSocketAddress address = new InetSocketAddress("127.0.0.1", silent.getLocalPort());
+            final SntpProvider provider = new SntpProvider(Collections.singletonList(address), 64, 200);
+            final long start = System.currentTimeMillis();
+            final TrustedTime trustedTime = provider.getTrustedTime();
+            assertFalse(trustedTime.isSync());
+            assertTrue("Waited too long for the first answer", System.currentTimeMillis() - start < 2000);
+            // The watcher will ask again when the next poll has been made
+            assertEquals(Long.valueOf(65000), trustedTime.getNextUpdate());
+        } finally {
+            silent.close();
+        }
+    }
+
+    /** Answers SNTP requests with a clock that is offset milliseconds ahead of the local clock */
+    private static class StubServer extends Thread {
+        private final DatagramSocket socket;
+        private final long offset;
+        private final int stratum;
+        private final int leapIndicator;
+
+        private StubServer(final long offset, final int stratum, final int leapIndicator) throws SocketException, UnknownHostException {
+            this.socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+            this.offset = offset;
+            this.stratum = stratum;
+            this.leapIndicator = leapIndicator;
+            setDaemon(true);
+            start();
+        }
+
+        private InetSocketAddress getAddress() {
+            return new InetSocketAddress("127.0.0.1", socket.getLocalPort());
+        }
+
+        private void close() {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final DatagramPacket request = new DatagramPacket(new byte[SntpProvider.PACKET_SIZE], SntpProvider.PACKET_SIZE);
+                    socket.receive(request);
+                    final long receiveTime = System.currentTimeMillis() + offset;
+                    final byte[] answer = new byte[SntpProvider.PACKET_SIZE];
+                    // VN = 4, Mode = 4 (server)
+                    answer[0] = (byte) ((leapIndicator << 6) | 0x24);
+                    answer[1] = (byte) stratum;
+                    // The originate timestamp is the transmit timestamp of the request
+                    System.arraycopy(request.getData(), 40, answer, 24, 8);
+                    SntpProvider.writeTimestamp(answer, 32, receiveTime);
+                    SntpProvider.writeTimestamp(answer, 40, System.currentTimeMillis() + offset);
+                    socket.send(new DatagramPacket(answer, answer.length, request.getSocketAddress()));
+                }
+            } catch (Exception e) {
+                // closed
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*************************************************************************
+ *                                                                       *
+ *  CESeCore: CE Security Core                                           *
+ *                                                                       *
+ *  This software is free software; you can redistribute it and/or       *
+ *  modify it under the terms of the GNU Lesser General Public           *
+ *  License as published by the Free Software Foundation; either         *
+ *  version 2.1 of the License, or any later version.                    *
+ *                                                                       *
+ *  See terms of license at gnu.org.                                     *
+ *                                                                       *
+ *************************************************************************/
+package org.cesecore.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.cesecore.certificates.endentity.EndEntityInformation;
+import org.cesecore.certificates.endentity.ExtendedInformation;
+import org.junit.Test;
+
+/**
+ * Tests serializing maps in the binary format and reading maps stored as XML.
+ *
+ * @version $Id$
+ */
+public class MapSerializerTest {
+
+    @Test
+    public void testBinaryRoundTrip() {
+        final LinkedHashMap<Object, Object> map = createMap();
+        final String encoded = MapSerializer.encode(map);
+        assertTrue(MapSerializer.isBinary(encoded));
+        final Map<?, ?> decoded = (Map<?, ?>) MapSerializer.decode(encoded);
+        assertEquals(LinkedHashMap.class, decoded.getClass());
+        assertSameContent(map, decoded);
+        // The order of a LinkedHashMap is kept
+        assertEquals(new ArrayList<Object>(map.keySet()), new ArrayList<Object>(decoded.keySet()));
+    }
+
+    @Test
+    public void testReadXml() {
+        // Rows written before the binary format are read as before
+        final LinkedHashMap<Object, Object> map = createMap();
+        final String xml = MapSerializer.encodeXml(map);
+        assertFalse(MapSerializer.isBinary(xml));
+        assertSameContent(map, (Map<?, ?>) MapSerializer.decode(xml));
+        // And the map is the same when it is written again
+        assertSameContent(map, (Map<?, ?>) MapSerializer.decode(MapSerializer.encodeBinary((Map<?, ?>) MapSerializer.decode(xml))));
+    }
+
+    @Test
+    public void testUnsupportedTypeWrittenAsXml() {
+        final Map<Object, Object> map = new HashMap<Object, Object>();
+        final TreeMap<String, String> treeMap = new TreeMap<String, String>();
+        treeMap.put("key", "value");
+        map.put("treemap", treeMap);
+        final String encoded = MapSerializer.encode(map);
+        assertFalse(MapSerializer.isBinary(encoded));
+        assertEquals(treeMap, ((Map<?, ?>) MapSerializer.decode(encoded)).get("treemap"));
+        // Also if it is deep down in the map
+        final List<Object> list = new ArrayList<Object>();
+        list.add(treeMap);
+        final Map<Object, Object> inner = new HashMap<Object, Object>();
+        inner.put("list", list);
+        map.clear();
+        map.put("inner", inner);
+        assertFalse(MapSerializer.isBinary(MapSerializer.encode(map)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCorruptData() {
+        final String encoded = MapSerializer.encode(createMap());
+        MapSerializer.decode(encoded.substring(0, encoded.length() / 2));
+    }
+
+    @Test
+    public void testXmlSerializer() {
+        // Audit log details, with strings that Base64PutHashMap encodes
+        final Map<String, Object> details = new LinkedHashMap<String, Object>();
+        details.put("msg", "ĞİŞğışÅÄÖåäö</string>");
+        details.put("caid", Integer.valueOf(4711));
+        final Properties properties = new Properties();
+        properties.setProperty("certSignKey", "signKey");
+        details.put("tokenproperties", properties);
+        // Written as XML, so exported audit logs are readable
+        final String encoded = XmlSerializer.encode(details);
+        assertFalse(MapSerializer.isBinary(encoded));
+        final Map<String, Object> decoded = XmlSerializer.decode(encoded);
+        assertEquals("ĞİŞğışÅÄÖåäö</string>", decoded.get("msg"));
+        assertEquals(Integer.valueOf(4711), decoded.get("caid"));
+        assertEquals(properties, decoded.get("tokenproperties"));
+        // Details written in the binary format before can still be read
+        final LinkedHashMap<Object, Object> binary = new Base64PutHashMap();
+        binary.putAll(details);
+        final Map<String, Object> decodedBinary = XmlSerializer.decode(MapSerializer.encodeBinary(binary));
+        assertEquals("ĞİŞğışÅÄÖåäö</string>", decodedBinary.get("msg"));
+        assertEquals(properties, decodedBinary.get("tokenproperties"));
+    }
+
+    @Test
+    public void testExtendedInformation() throws Exception {
+        final ExtendedInformation ei = new ExtendedInformation();
+        ei.setSubjectDirectoryAttributes("dateOfBirth=19590927");
+        ei.setMaxLoginAttempts(3);
+        ei.setCustomData("foo", "bär");
+        final String encoded = EndEntityInformation.extendedInformationToStringData(ei);
+        assertTrue(MapSerializer.isBinary(encoded));
+        final ExtendedInformation decoded = EndEntityInformation.getExtendedInformation(encoded);
+        assertEquals("dateOfBirth=19590927", decoded.getSubjectDirectoryAttributes());
+        assertEquals(3, decoded.getMaxLoginAttempts());
+        assertEquals("bär", decoded.getCustomData("foo"));
+    }
+
+    private static LinkedHashMap<Object, Object> createMap() {
+        final LinkedHashMap<Object, Object> map = new LinkedHashMap<Object, Object>();
+        map.put("version", Float.valueOf(18));
+        map.put("string", "B64:w6XDpMO2");
+        map.put("empty", "");
+        map.put("null", null);
+        map.put("true", Boolean.TRUE);
+        map.put("false", Boolean.FALSE);
+        map.put(Integer.valueOf(1), Integer.valueOf(-1));
+        map.put("long", Long.valueOf(Long.MAX_VALUE));
+        map.put("double", Double.valueOf(0.1));
+        map.put("date", new Date(1234567890123L));
+        map.put("bytes", new byte[] { 1, 2, 3 });
+        final List<Object> list = new ArrayList<Object>();
+        list.add("MIIBkzCB/aADAgECAgh");
+        list.add(Integer.valueOf(2));
+        map.put("list", list);
+        final HashMap<Object, Object> hashMap = new HashMap<Object, Object>();
+        hashMap.put("classpath", "org.cesecore.keys.token.SoftCryptoToken");
+        hashMap.put("inner", new LinkedHashMap<Object, Object>());
+        map.put("hashmap", hashMap);
+        final Hashtable<Object, Object> hashtable = new Hashtable<Object, Object>();
+        hashtable.put("key", "value");
+        map.put("hashtable", hashtable);
+        final Properties properties = new Properties();
+        properties.setProperty("key", "value");
+        map.put("properties", properties);
+        return map;
+    }
+
+    private static void assertSameContent(final Map<?, ?> expected, final Map<?, ?> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (final Map.Entry<?, ?> entry : expected.entrySet()) {
+            assertTrue(actual.containsKey(entry.getKey()));
+            final Object expectedValue = entry.getValue();
+            final Object actualValue = actual.get(entry.getKey());
+            if (expectedValue instanceof byte[]) {
+                assertArrayEquals((byte[]) expectedValue, (byte[]) actualValue);
+            } else {
+                assertEquals(expectedValue, actualValue);
+                if (expectedValue != null) {
+                    assertEquals(expectedValue.getClass(), actualValue.getClass());
+                }
+            }
+        }
+    }
+}